@@ -37,6 +37,10 @@ android {
     buildFeatures {
         viewBinding = true;
     }
+    testOptions {
+        // android.util.Log and SystemClock are called on paths the JVM tests cover
+        unitTests.isReturnDefaultValues = true
+    }
     packaging {
         resources {
             excludes += "/META-INF/DEPENDENCIES"
@@ -78,9 +82,14 @@ dependencies {
     implementation("com.squareup.retrofit2:retrofit:2.9.0")
     implementation("com.squareup.retrofit2:converter-scalars:2.9.0")
 
+    // OkHttp (shared by uploads, EmailJS and Retrofit)
+    implementation("com.squareup.okhttp3:okhttp:4.12.0")
+    testImplementation("com.squareup.okhttp3:mockwebserver:4.12.0")
+    // The org.json of android.jar is a stub in JVM tests
+    testImplementation("org.json:json:20231013")
+
     implementation("com.cloudinary:cloudinary-http5:2.0.0")
     implementation("com.github.bumptech.glide:glide:4.16.0")
     annotationProcessor("com.github.bumptech.glide:compiler:4.16.0")
-    implementation("com.android.volley:volley:1.2.1")
 
 }
\ No newline at end of file
@@ -1,36 +1,24 @@
 package com.hgb7725.botchattyapp.activities;
 
-import android.os.Bundle;
-
-import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 
-import com.google.firebase.firestore.DocumentReference;
-import com.google.firebase.firestore.FirebaseFirestore;
-import com.hgb7725.botchattyapp.utilities.Constants;
-import com.hgb7725.botchattyapp.utilities.PreferenceManager;
+import com.hgb7725.botchattyapp.firebase.AvailabilityManager;
 
+/*
+ * Screens of a signed in user. Availability is tracked for the whole app,
+ * each screen only reports when it becomes visible or goes away.
+ */
 public class BaseActivity extends AppCompatActivity {
-    private DocumentReference documentReference;
-
-    @Override
-    protected void onCreate(@Nullable Bundle savedInstanceState) {
-        super.onCreate(savedInstanceState);
-        PreferenceManager preferenceManager = new PreferenceManager(getApplicationContext());
-        FirebaseFirestore database = FirebaseFirestore.getInstance();
-        documentReference = database.collection(Constants.KEY_COLLECTION_USERS)
-                .document(preferenceManager.getString(Constants.KEY_USER_ID));
-    }
 
     @Override
     protected void onPause() {
         super.onPause();
-        documentReference.update(Constants.KEY_AVAILABILITY, 0);
+        AvailabilityManager.getInstance(getApplicationContext()).onActivityPaused();
     }
 
     @Override
     protected void onResume() {
         super.onResume();
-        documentReference.update(Constants.KEY_AVAILABILITY, 1);
+        AvailabilityManager.getInstance(getApplicationContext()).onActivityResumed();
     }
 }
@@ -1,65 +1,90 @@
 package com.hgb7725.botchattyapp.activities;
 
 import android.content.Intent;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.MediaStore;
-import android.util.Base64;
 import android.util.Log;
 import android.view.View;
 import android.widget.Toast;
 
-import com.android.volley.Request;
-import com.android.volley.RequestQueue;
-import com.android.volley.toolbox.JsonObjectRequest;
-import com.android.volley.toolbox.Volley;
-import com.google.android.gms.tasks.OnCompleteListener;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.AdapterListUpdateCallback;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
 import com.google.firebase.firestore.DocumentChange;
-import com.google.firebase.firestore.DocumentReference;
 import com.google.firebase.firestore.DocumentSnapshot;
 import com.google.firebase.firestore.EventListener;
 import com.google.firebase.firestore.FirebaseFirestore;
 import com.google.firebase.firestore.QuerySnapshot;
 import com.hgb7725.botchattyapp.R;
 import com.hgb7725.botchattyapp.adapters.ChatAdapter;
+import com.hgb7725.botchattyapp.adapters.ChatImagePreloader;
+import com.hgb7725.botchattyapp.database.ChatDao;
+import com.hgb7725.botchattyapp.database.ChatDatabase;
+import com.hgb7725.botchattyapp.database.ChatSync;
+import com.hgb7725.botchattyapp.database.OutboxDao;
 import com.hgb7725.botchattyapp.databinding.ActivityChatBinding;
+import com.hgb7725.botchattyapp.firebase.AttachmentOutbox;
+import com.hgb7725.botchattyapp.firebase.ConversationMessageStream;
+import com.hgb7725.botchattyapp.firebase.OutboxManager;
+import com.hgb7725.botchattyapp.firebase.PresenceService;
+import com.hgb7725.botchattyapp.listeners.PresenceListener;
 import com.hgb7725.botchattyapp.models.ChatMessage;
+import com.hgb7725.botchattyapp.models.OutgoingMessage;
 import com.hgb7725.botchattyapp.models.User;
+import com.hgb7725.botchattyapp.utilities.AppExecutors;
+import com.hgb7725.botchattyapp.utilities.AvatarCache;
+import com.hgb7725.botchattyapp.utilities.ChatMessageStore;
 import com.hgb7725.botchattyapp.utilities.CloudinaryConfig;
 import com.hgb7725.botchattyapp.utilities.Constants;
+import com.hgb7725.botchattyapp.utilities.ConversationKeys;
 import com.hgb7725.botchattyapp.utilities.FileUtils;
+import com.hgb7725.botchattyapp.utilities.ImageCompressor;
 import com.hgb7725.botchattyapp.utilities.PreferenceManager;
+import com.hgb7725.botchattyapp.utilities.SnapshotProcessor;
+import com.hgb7725.botchattyapp.utilities.TimestampFormatter;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.InputStream;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
-import java.util.Objects;
-import java.util.TimeZone;
 
 public class ChatActivity extends BaseActivity {
 
+    private static final String TAG = "ChatActivity";
+
     private ActivityChatBinding binding;
     private User receiverUser;
     private List<ChatMessage> chatMessages;
     private ChatAdapter chatAdapter;
+    private ChatImagePreloader imagePreloader;
+    private ChatMessageStore chatMessageStore;
+    private SnapshotProcessor<ChatMessage> messageProcessor;
     private PreferenceManager preferenceManager;
     private FirebaseFirestore database;
-    private String conversionId = null;
+    private String conversationKey;
+    private ConversationMessageStream messageStream;
+    private ChatDao chatDao;
+    private ChatSync chatSync;
+    private OutboxDao outboxDao;
+    private OutboxManager outboxManager;
+    private boolean isLoadingOlder = false;
+    // Set once the local store has nothing older, pages then come from Firestore only
+    private boolean isLocalHistoryExhausted = false;
+    private AttachmentOutbox attachmentOutbox;
+    // Message whose attachment is being uploaded
+    private String currentUploadId;
     private Boolean isReceiverAvailable = false;
     private static final int PICK_IMAGE_REQUEST = 1;
     private static final int PICK_FILE_REQUEST = 2;
     private static final int RECORD_AUDIO_REQUEST = 3;
+    private static final int MESSAGE_PAGE_SIZE = 30;
+    private static final int LOAD_OLDER_THRESHOLD = 5;
+    private static final int MAX_STORED_MESSAGES = 1000;
+    // Rows ahead of the scroll whose images are loaded during a fast fling
+    private static final int IMAGE_PRELOAD_ROWS = 8;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -77,72 +102,192 @@ public class ChatActivity extends BaseActivity {
         chatMessages = new ArrayList<>();
         chatAdapter = new ChatAdapter(
                 chatMessages,
-                getBitmapFromEncodedString(receiverUser.getImage()),
+                null,
                 preferenceManager.getString(Constants.KEY_USER_ID)
         );
         binding.chatRecyclerView.setAdapter(chatAdapter);
+        imagePreloader = new ChatImagePreloader(binding.chatRecyclerView, chatMessages, IMAGE_PRELOAD_ROWS);
+        chatAdapter.setImagePreloader(imagePreloader);
+        binding.chatRecyclerView.addOnScrollListener(imagePreloader);
+        loadReceiverImage();
+        chatMessageStore = new ChatMessageStore(chatMessages, new AdapterListUpdateCallback(chatAdapter));
+        messageProcessor = new SnapshotProcessor<>(
+                "chat",
+                this::parseMessage,
+                this::publishMessages
+        );
         database = FirebaseFirestore.getInstance();
+        chatDao = ChatDatabase.getInstance(getApplicationContext());
+        chatSync = new ChatSync(chatDao);
+        outboxDao = ChatDatabase.getInstance(getApplicationContext());
+        outboxManager = OutboxManager.getInstance(getApplicationContext());
+        conversationKey = ConversationKeys.of(preferenceManager.getString(Constants.KEY_USER_ID), receiverUser.getId());
+        outboxManager.addListener(conversationKey, outboxListener);
+        attachmentOutbox = AttachmentOutbox.getInstance(getApplicationContext());
+        // Picks up an upload started before a configuration change
+        attachmentOutbox.addListener(conversationKey, attachmentListener);
     }
 
     private void sendMessage() {
-        HashMap<String, Object> message = new HashMap<>();
-        message.put(Constants.KEY_SENDER_ID, preferenceManager.getString(Constants.KEY_USER_ID));
-        message.put(Constants.KEY_RECEIVER_ID, receiverUser.getId());
-        message.put(Constants.KEY_MESSAGE, binding.inputMessage.getText().toString());
-        message.put(Constants.KEY_TIMESTAMP, new Date());
-        database.collection(Constants.KEY_COLLECTION_CHAT).add(message);
-
-        if(conversionId != null) {
-            updateConversion(binding.inputMessage.getText().toString());
-        } else {
-            HashMap<String, Object> conversion = new HashMap<>();
-            conversion.put(Constants.KEY_SENDER_ID, preferenceManager.getString(Constants.KEY_USER_ID));
-            conversion.put(Constants.KEY_SENDER_NAME, preferenceManager.getString(Constants.KEY_NAME));
-            conversion.put(Constants.KEY_SENDER_IMAGE, preferenceManager.getString(Constants.KEY_IMAGE));
-            conversion.put(Constants.KEY_RECEIVER_ID, receiverUser.getId());
-            conversion.put(Constants.KEY_RECEIVER_NAME, receiverUser.getName());
-            conversion.put(Constants.KEY_RECEIVER_IMAGE, receiverUser.getImage());
-            conversion.put(Constants.KEY_LAST_MESSAGE, binding.inputMessage.getText().toString());
-            conversion.put(Constants.KEY_TIMESTAMP, new Date());
-            addConversion(conversion);
-        }
-
+        String text = binding.inputMessage.getText().toString();
+        queueMessage(newMessage("text", text), text);
         binding.inputMessage.setText(null);
     }
 
-    private void listenAvailabilityOfReceiver() {
-        database.collection(Constants.KEY_COLLECTION_USERS).document(
-                receiverUser.getId()
-        ).addSnapshotListener(ChatActivity.this, (value, error) -> {
-           if (error != null) {
-               return;
-           }
-           if (value != null) {
-               if (value.getLong(Constants.KEY_AVAILABILITY) != null) {
-                   int availability = Objects.requireNonNull(
-                           value.getLong(Constants.KEY_AVAILABILITY)
-                   ).intValue();
-                   isReceiverAvailable = availability == 1;
-               }
-               receiverUser.setToken(value.getString(Constants.KEY_FCM_TOKEN));
-           }
-           if (isReceiverAvailable) {
-               binding.textAvailability.setVisibility(View.VISIBLE);
-           } else {
-               binding.textAvailability.setVisibility(View.GONE);
-           }
-        });
+    private ChatMessage newMessage(String type, String content) {
+        ChatMessage chatMessage = new ChatMessage();
+        chatMessage.setId(outboxManager.newMessageId());
+        chatMessage.setSenderId(preferenceManager.getString(Constants.KEY_USER_ID));
+        chatMessage.setReceiverId(receiverUser.getId());
+        chatMessage.setMessage(content);
+        chatMessage.setType(type);
+        chatMessage.setDateObject(new Date());
+        chatMessage.setDateTime(TimestampFormatter.formatDateTime(chatMessage.getDateObject()));
+        return chatMessage;
+    }
+
+    private OutgoingMessage newOutgoingMessage(ChatMessage chatMessage, String conversationLabel) {
+        OutgoingMessage outgoingMessage = new OutgoingMessage(chatMessage, conversationKey);
+        outgoingMessage.setSenderName(preferenceManager.getString(Constants.KEY_NAME));
+        outgoingMessage.setSenderImage(preferenceManager.getString(Constants.KEY_IMAGE));
+        outgoingMessage.setReceiverName(receiverUser.getName());
+        outgoingMessage.setReceiverImage(receiverUser.getImage());
+        outgoingMessage.setConversationLabel(conversationLabel);
+        return outgoingMessage;
+    }
+
+    // Shows the message right away and leaves delivery to the outbox
+    private void queueMessage(ChatMessage chatMessage, String conversationLabel) {
+        outboxManager.enqueue(newOutgoingMessage(chatMessage, conversationLabel));
+        showLatestMessage();
+    }
+
+    private void showLatestMessage() {
+        binding.chatRecyclerView.setVisibility(View.VISIBLE);
+        binding.progressBar.setVisibility(View.GONE);
+        binding.chatRecyclerView.smoothScrollToPosition(chatMessageStore.size() - 1);
     }
 
+    private final OutboxManager.Listener outboxListener = chatMessage -> {
+        ChatMessage existing = chatMessageStore.getById(chatMessage.getId());
+        if (existing != null && existing != chatMessage && chatMessage.getSendState() == ChatMessage.SEND_STATE_SENT) {
+            // Firestore already delivered its own copy, only its state is outdated
+            existing.setSendState(ChatMessage.SEND_STATE_SENT);
+            chatMessageStore.upsert(existing);
+        } else if (existing == null || existing.getSendState() != ChatMessage.SEND_STATE_SENT) {
+            chatMessageStore.upsert(chatMessage);
+        }
+    };
+
+    private final AttachmentOutbox.Listener attachmentListener = new AttachmentOutbox.Listener() {
+        @Override
+        public void onUploadProgress(String messageId, long bytesSent, long totalBytes) {
+            currentUploadId = messageId;
+            showUploadProgress(bytesSent, totalBytes);
+        }
+
+        @Override
+        public void onUploadFinished(String messageId, @Nullable String errorMessage) {
+            hideUploadProgress();
+            if (errorMessage != null) {
+                Toast.makeText(ChatActivity.this, "Upload failed:\n" + errorMessage, Toast.LENGTH_LONG).show();
+            } else {
+                showLatestMessage();
+            }
+        }
+    };
+
+    private final PresenceListener receiverPresenceListener = (userId, isOnline) -> {
+        isReceiverAvailable = isOnline;
+        String token = PresenceService.getInstance().getFcmToken(userId);
+        if (token != null) {
+            receiverUser.setToken(token);
+        }
+        if (isReceiverAvailable) {
+            binding.textAvailability.setVisibility(View.VISIBLE);
+        } else {
+            binding.textAvailability.setVisibility(View.GONE);
+        }
+    };
+
     private void listenMessages() {
-        database.collection(Constants.KEY_COLLECTION_CHAT)
-                .whereEqualTo(Constants.KEY_SENDER_ID, preferenceManager.getString(Constants.KEY_USER_ID))
-                .whereEqualTo(Constants.KEY_RECEIVER_ID, receiverUser.getId())
-                .addSnapshotListener(eventListener);
-        database.collection(Constants.KEY_COLLECTION_CHAT)
-                .whereEqualTo(Constants.KEY_SENDER_ID, receiverUser.getId())
-                .whereEqualTo(Constants.KEY_RECEIVER_ID, preferenceManager.getString(Constants.KEY_USER_ID))
-                .addSnapshotListener(eventListener);
+        messageStream = new ConversationMessageStream(database, conversationKey, MESSAGE_PAGE_SIZE);
+        // Show what is stored locally first, then only ask Firestore for what is newer
+        AppExecutors.getInstance().diskIO().execute(() -> {
+            List<ChatMessage> cachedMessages = chatDao.getLatestMessages(conversationKey, MESSAGE_PAGE_SIZE);
+            long since = chatSync.messagesSince(conversationKey, !cachedMessages.isEmpty());
+            // Messages still in the outbox are shown with their send state
+            for (OutgoingMessage outgoingMessage : outboxDao.getOutgoing(conversationKey)) {
+                cachedMessages.add(outgoingMessage.getChatMessage());
+            }
+            for (ChatMessage chatMessage : cachedMessages) {
+                chatMessage.setDateTime(TimestampFormatter.formatDateTime(chatMessage.getDateObject()));
+            }
+            AppExecutors.getInstance().mainThread().execute(() -> {
+                if (isDestroyed()) {
+                    return;
+                }
+                if (!cachedMessages.isEmpty()) {
+                    chatMessageStore.upsertAll(cachedMessages);
+                    binding.chatRecyclerView.setVisibility(View.VISIBLE);
+                    binding.progressBar.setVisibility(View.GONE);
+                }
+                messageStream.start(since, eventListener);
+            });
+        });
+        binding.chatRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                if (dy >= 0 || isLoadingOlder) {
+                    return;
+                }
+                LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+                if (layoutManager != null
+                        && layoutManager.findFirstVisibleItemPosition() <= LOAD_OLDER_THRESHOLD) {
+                    loadOlderMessages();
+                }
+            }
+        });
+    }
+
+    // Older history comes from the local store while it lasts, then from Firestore
+    private void loadOlderMessages() {
+        if (chatMessageStore.size() == 0) {
+            return;
+        }
+        ChatMessage oldest = chatMessageStore.get(0);
+        if (isLocalHistoryExhausted) {
+            // Does nothing once Firestore has no more either
+            messageStream.loadOlder(oldest.getDateObject(), oldest.getId(), eventListener);
+            return;
+        }
+        if (oldest.getDateObject() == null) {
+            return;
+        }
+        isLoadingOlder = true;
+        long oldestTime = oldest.getDateObject().getTime();
+        String oldestId = oldest.getId();
+        AppExecutors.getInstance().diskIO().execute(() -> {
+            List<ChatMessage> cachedMessages = chatDao.getMessagesBefore(
+                    conversationKey, oldestTime, oldestId, MESSAGE_PAGE_SIZE);
+            for (ChatMessage chatMessage : cachedMessages) {
+                chatMessage.setDateTime(TimestampFormatter.formatDateTime(chatMessage.getDateObject()));
+            }
+            AppExecutors.getInstance().mainThread().execute(() -> {
+                isLoadingOlder = false;
+                if (isDestroyed()) {
+                    return;
+                }
+                if (cachedMessages.size() < MESSAGE_PAGE_SIZE) {
+                    isLocalHistoryExhausted = true;
+                }
+                if (!cachedMessages.isEmpty()) {
+                    chatMessageStore.upsertAll(cachedMessages);
+                } else {
+                    messageStream.loadOlder(oldest.getDateObject(), oldest.getId(), eventListener);
+                }
+            });
+        });
     }
 
     private final EventListener<QuerySnapshot> eventListener = (value, error) -> {
@@ -150,44 +295,80 @@ public class ChatActivity extends BaseActivity {
             return;
         }
         if (value != null) {
-            int count = chatMessages.size();
-            for(DocumentChange documentChange : value.getDocumentChanges()) {
-                if (documentChange.getType() == DocumentChange.Type.ADDED) {
-                    ChatMessage chatMessage = new ChatMessage();
-                    chatMessage.setSenderId(documentChange.getDocument().getString(Constants.KEY_SENDER_ID));
-                    chatMessage.setReceiverId(documentChange.getDocument().getString(Constants.KEY_RECEIVER_ID));
-                    chatMessage.setMessage(documentChange.getDocument().getString(Constants.KEY_MESSAGE));
-
-                    String type = documentChange.getDocument().getString("type");
-                    chatMessage.setType(type != null ? type : "text");
-
-                    chatMessage.setFileName(documentChange.getDocument().getString("fileName"));
-
-                    chatMessage.setDateTime(getReadableDateTime(documentChange.getDocument().getDate(Constants.KEY_TIMESTAMP)));
-                    chatMessage.setDateObject(documentChange.getDocument().getDate(Constants.KEY_TIMESTAMP));
-                    chatMessages.add(chatMessage);
-                }
-            }
-            Collections.sort(chatMessages,
-                    Comparator.comparing(ChatMessage::getDateObject));
-//                    (obj1, obj2) -> obj1.getDateObject().compareTo(obj2.getDateObject()));
-            if (count == 0) {
-                chatAdapter.notifyDataSetChanged();
-            } else {
-                chatAdapter.notifyItemRangeInserted(chatMessages.size(), chatMessages.size());
-                binding.chatRecyclerView.smoothScrollToPosition(chatMessages.size() - 1);
-            }
-            binding.chatRecyclerView.setVisibility(View.VISIBLE);
+            messageProcessor.submit(value);
+        }
+    };
+
+    // Runs on the snapshot parsing thread
+    private ChatMessage parseMessage(DocumentChange documentChange) {
+        // REMOVED only means the message scrolled out of the newest page
+        if (documentChange.getType() == DocumentChange.Type.REMOVED) {
+            return null;
+        }
+        return parseDocument(documentChange.getDocument());
+    }
+
+    private static ChatMessage parseDocument(DocumentSnapshot document) {
+        ChatMessage chatMessage = new ChatMessage();
+        chatMessage.setId(document.getId());
+        chatMessage.setSenderId(document.getString(Constants.KEY_SENDER_ID));
+        chatMessage.setReceiverId(document.getString(Constants.KEY_RECEIVER_ID));
+        chatMessage.setMessage(document.getString(Constants.KEY_MESSAGE));
+
+        String type = document.getString("type");
+        chatMessage.setType(type != null ? type : "text");
+
+        chatMessage.setFileName(document.getString("fileName"));
+        Long imageWidth = document.getLong(Constants.KEY_IMAGE_WIDTH);
+        Long imageHeight = document.getLong(Constants.KEY_IMAGE_HEIGHT);
+        if (imageWidth != null && imageHeight != null) {
+            chatMessage.setImageWidth(imageWidth.intValue());
+            chatMessage.setImageHeight(imageHeight.intValue());
+        }
+        chatMessage.setBlurHash(document.getString(Constants.KEY_BLUR_HASH));
+
+        chatMessage.setDateTime(TimestampFormatter.formatDateTime(document.getDate(Constants.KEY_TIMESTAMP)));
+        chatMessage.setDateObject(document.getDate(Constants.KEY_TIMESTAMP));
+        Date updatedAt = document.getDate(Constants.KEY_UPDATED_AT);
+        chatMessage.setUpdatedAt(updatedAt != null ? updatedAt.getTime() : 0);
+        if (document.getMetadata().hasPendingWrites()) {
+            chatMessage.setSendState(ChatMessage.SEND_STATE_SENDING);
+        }
+        return chatMessage;
+    }
+
+    private void publishMessages(List<ChatMessage> changedMessages) {
+        ChatMessage lastMessage = chatMessageStore.getLast();
+        chatMessageStore.upsertAll(changedMessages);
+        saveMessages(changedMessages);
+        // Only follow the conversation when something arrived at the bottom
+        if (lastMessage != null && chatMessageStore.getLast() != lastMessage) {
+            binding.chatRecyclerView.smoothScrollToPosition(chatMessageStore.size() - 1);
         }
+        binding.chatRecyclerView.setVisibility(View.VISIBLE);
         binding.progressBar.setVisibility(View.GONE);
-        if (conversionId == null) {
-            checkForConversion();
+    }
+
+    private void saveMessages(List<ChatMessage> changedMessages) {
+        if (changedMessages.isEmpty()) {
+            return;
         }
-    };
+        AppExecutors.getInstance().diskIO().execute(() -> {
+            chatSync.saveMessages(conversationKey, changedMessages);
+            chatDao.trimMessages(conversationKey, MAX_STORED_MESSAGES);
+        });
+    }
 
-    private Bitmap getBitmapFromEncodedString(String encodedImage) {
-        byte[] bytes = Base64.decode(encodedImage, Base64.DEFAULT);
-        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+    private void loadReceiverImage() {
+        AvatarCache.getInstance(getApplicationContext()).get(
+                receiverUser.getId(),
+                receiverUser.getImage(),
+                getResources().getDimensionPixelSize(com.intuit.sdp.R.dimen._25sdp),
+                bitmap -> {
+                    if (bitmap != null && !isDestroyed()) {
+                        chatAdapter.setReceiverProfileImage(bitmap);
+                    }
+                });
     }
 
     private void loadReceiverDetails() {
@@ -197,6 +378,7 @@ public class ChatActivity extends BaseActivity {
 
     private void setListeners() {
         binding.imageBack.setOnClickListener(v -> getOnBackPressedDispatcher().onBackPressed());
+        binding.textUploadStatus.setOnClickListener(v -> cancelUpload());
         binding.layoutSend.setOnClickListener(v -> sendMessage());
 
         // Add attachment button click listener
@@ -248,256 +430,107 @@ public class ChatActivity extends BaseActivity {
         }
     }
 
+    // Images are downscaled and re-encoded first, the original is only sent if that fails
     private void handleImageUpload(Uri imageUri) {
-        // Implement image upload logic here
-//        Toast.makeText(this, "Image upload coming soon!", Toast.LENGTH_SHORT).show();
-        uploadImageToCloudinary(imageUri);
-    }
-
-    private void handleFileUpload(Uri fileUri) {
-        try {
-            InputStream inputStream = getContentResolver().openInputStream(fileUri);
-            byte[] fileBytes = new byte[inputStream.available()];
-            inputStream.read(fileBytes);
-            String base64File = Base64.encodeToString(fileBytes, Base64.NO_WRAP);
-
-            String originalFileName = FileUtils.getFileNameFromUri(this, fileUri);
-            String fileName = originalFileName.replaceAll("[^a-zA-Z0-9._-]", "_");
-
-            RequestQueue requestQueue = Volley.newRequestQueue(this);
-            String uploadUrl = CloudinaryConfig.getUploadUrl("raw");
-
-            JSONObject params = new JSONObject();
-            String mimeType = getContentResolver().getType(fileUri);
-            if (mimeType == null) {
-                mimeType = "application/octet-stream"; // fallback for unknown
-            }
-            params.put("file", "data:" + mimeType + ";base64," + base64File);
-            params.put("upload_preset", CloudinaryConfig.PRESET_FILE);
-            params.put("public_id", fileName);
-
-            Toast.makeText(this, "Uploading: " + CloudinaryConfig.PRESET_FILE, Toast.LENGTH_SHORT).show();
-
-            JsonObjectRequest request = new JsonObjectRequest(Request.Method.POST, uploadUrl, params,
-                    response -> {
-                        try {
-                            String fileUrl = response.getString("secure_url");
-                            sendFileMessage(fileUrl, fileName);
-                        } catch (JSONException e) {
-                            e.printStackTrace();
-                        }
-                    },
-                    error -> {
-                        String errorMsg = "Unknown error";
-                        if (error.networkResponse != null && error.networkResponse.data != null) {
-                            errorMsg = new String(error.networkResponse.data);
-                        } else if (error.getMessage() != null) {
-                            errorMsg = error.getMessage();
-                        }
-                        Log.e("FILE_UPLOAD", "Upload failed: " + errorMsg);
-                        Toast.makeText(this, "Upload failed:\n" + errorMsg, Toast.LENGTH_LONG).show();
-                    }
-            );
-            requestQueue.add(request);
-        } catch (Exception e) {
-            e.printStackTrace();
-            Toast.makeText(this, "Upload error: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+        if (currentUploadId != null) {
+            Toast.makeText(this, "Please wait for the current upload to finish", Toast.LENGTH_SHORT).show();
+            return;
         }
+        binding.textUploadStatus.setText(R.string.preparing_image);
+        binding.textUploadStatus.setVisibility(View.VISIBLE);
+        ImageCompressor.Config config = new ImageCompressor.Config();
+        config.blurHash = true;
+        ImageCompressor.compress(this, imageUri, config, result -> {
+            // After a configuration change the new screen shows the upload
+            if (isFinishing()) {
+                return;
+            }
+            Uri uploadUri = result != null ? result.uri : imageUri;
+            sendImageMessage(uploadUri, result);
+        });
     }
 
-    private String getReadableDateTime(Date date) {
-        SimpleDateFormat sdf = new SimpleDateFormat("MMMM dd, yyyy - hh:mm a", Locale.ENGLISH);
-        sdf.setTimeZone(TimeZone.getDefault()); // Giữ nguyên múi giờ của hệ thống
-        return sdf.format(date);
-    }
-
-    private void addConversion(HashMap<String, Object> conversion) {
-        database.collection(Constants.KEY_COLLECTION_CONVERSATIONS)
-                .add(conversion)
-                .addOnSuccessListener(documentReference -> conversionId = documentReference.getId());
+    private void handleFileUpload(Uri fileUri) {
+        String originalFileName = FileUtils.getFileNameFromUri(this, fileUri);
+        String fileName = originalFileName.replaceAll("[^a-zA-Z0-9._-]", "_");
+        sendFileMessage(fileUri, fileName);
     }
 
-    private void updateConversion(String message) {
-        DocumentReference documentReference =
-                database.collection(Constants.KEY_COLLECTION_CONVERSATIONS).document(conversionId);
-        documentReference.update(
-                Constants.KEY_LAST_MESSAGE, message,
-                Constants.KEY_TIMESTAMP, new Date()
-        );
+    // The upload outlives this screen; the message is sent once it completes
+    private void uploadAttachment(ChatMessage chatMessage, String conversationLabel, Uri uri,
+                                  String resourceType, String preset, String publicId) {
+        if (currentUploadId != null) {
+            Toast.makeText(this, "Please wait for the current upload to finish", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        attachmentOutbox.send(newOutgoingMessage(chatMessage, conversationLabel), uri, resourceType, preset, publicId);
     }
 
-    private void checkForConversion() {
-        if (chatMessages.size() != 0) {
-            checkForConversionRemotely(
-                    preferenceManager.getString(Constants.KEY_USER_ID),
-                    receiverUser.getId()
-            );
-            checkForConversionRemotely(
-                    receiverUser.getId(),
-                    preferenceManager.getString(Constants.KEY_USER_ID)
-            );
+    private void cancelUpload() {
+        if (currentUploadId != null) {
+            attachmentOutbox.cancel(currentUploadId);
+            hideUploadProgress();
+            Toast.makeText(this, "Upload cancelled", Toast.LENGTH_SHORT).show();
         }
     }
 
-    private void checkForConversionRemotely(String senderId, String receiverId) {
-        database.collection(Constants.KEY_COLLECTION_CONVERSATIONS)
-                .whereEqualTo(Constants.KEY_SENDER_ID, senderId)
-                .whereEqualTo(Constants.KEY_RECEIVER_ID, receiverId)
-                .get()
-                .addOnCompleteListener(conversionOnCompleteListener);
+    private void showUploadProgress(long bytesSent, long totalBytes) {
+        String progress = totalBytes > 0
+                ? (bytesSent * 100 / totalBytes) + "%"
+                : (bytesSent / 1024) + " KB";
+        binding.textUploadStatus.setText(getString(R.string.uploading_tap_to_cancel, progress));
+        binding.textUploadStatus.setVisibility(View.VISIBLE);
     }
 
-    // determine conversionId if conversation already exists, 2-way
-    private final OnCompleteListener<QuerySnapshot> conversionOnCompleteListener = task -> {
-      if(task.isSuccessful() && task.getResult() != null && task.getResult().getDocuments().size() > 0) {
-          DocumentSnapshot documentSnapshot = task.getResult().getDocuments().get(0);
-          conversionId = documentSnapshot.getId();
-      }
-    };
+    private void hideUploadProgress() {
+        currentUploadId = null;
+        binding.textUploadStatus.setVisibility(View.GONE);
+    }
 
     @Override
     protected void onResume() {
         super.onResume();
-        listenAvailabilityOfReceiver();
+        PresenceService.getInstance().watch(receiverUser.getId(), receiverPresenceListener);
     }
 
-    private void sendImageMessage(String imageUrl) {
-        HashMap<String, Object> message = new HashMap<>();
-        message.put(Constants.KEY_SENDER_ID, preferenceManager.getString(Constants.KEY_USER_ID));
-        message.put(Constants.KEY_RECEIVER_ID, receiverUser.getId());
-        message.put(Constants.KEY_MESSAGE, imageUrl); // Lưu URL ảnh thay vì text
-        message.put(Constants.KEY_TIMESTAMP, new Date());
-        message.put("type", "image"); // Thêm type để phân biệt text/image
-        database.collection(Constants.KEY_COLLECTION_CHAT).add(message);
-
-        if(conversionId != null) {
-            updateConversion("Image");
-        } else {
-            HashMap<String, Object> conversion = new HashMap<>();
-            conversion.put(Constants.KEY_SENDER_ID, preferenceManager.getString(Constants.KEY_USER_ID));
-            conversion.put(Constants.KEY_SENDER_NAME, preferenceManager.getString(Constants.KEY_NAME));
-            conversion.put(Constants.KEY_SENDER_IMAGE, preferenceManager.getString(Constants.KEY_IMAGE));
-            conversion.put(Constants.KEY_RECEIVER_ID, receiverUser.getId());
-            conversion.put(Constants.KEY_RECEIVER_NAME, receiverUser.getName());
-            conversion.put(Constants.KEY_RECEIVER_IMAGE, receiverUser.getImage());
-            conversion.put(Constants.KEY_LAST_MESSAGE, "Image");
-            conversion.put(Constants.KEY_TIMESTAMP, new Date());
-            addConversion(conversion);
-        }
+    @Override
+    protected void onPause() {
+        super.onPause();
+        PresenceService.getInstance().unwatch(receiverUser.getId(), receiverPresenceListener);
     }
 
-    private void uploadImageToCloudinary(Uri imageUri) {
-        try {
-            InputStream inputStream = getContentResolver().openInputStream(imageUri);
-            byte[] imageBytes = new byte[inputStream.available()];
-            inputStream.read(imageBytes);
-            String base64Image = Base64.encodeToString(imageBytes, Base64.NO_WRAP);
-
-            RequestQueue requestQueue = Volley.newRequestQueue(this);
-            String uploadUrl = CloudinaryConfig.getUploadUrl("image");
-
-            JSONObject params = new JSONObject();
-            params.put("file", "data:image/jpeg;base64," + base64Image);
-            params.put("upload_preset", CloudinaryConfig.PRESET_IMAGE);
-
-            JsonObjectRequest request = new JsonObjectRequest(Request.Method.POST, uploadUrl, params,
-                    response -> {
-                        try {
-                            String imageUrl = response.getString("secure_url");
-                            sendImageMessage(imageUrl); // Gửi tin nhắn chứa ảnh
-                        } catch (JSONException e) {
-                            e.printStackTrace();
-                        }
-                    },
-                    error -> {
-                        String errorMsg = "Unknown error";
-                        if (error.networkResponse != null && error.networkResponse.data != null) {
-                            errorMsg = new String(error.networkResponse.data);
-                        } else if (error.getMessage() != null) {
-                            errorMsg = error.getMessage();
-                        }
-                        Log.e("CLOUDINARY_UPLOAD", "Upload failed: " + errorMsg, error);
-                        Toast.makeText(this, "Upload failed:\n" + errorMsg, Toast.LENGTH_LONG).show();
-                    }
-            );
-
-            requestQueue.add(request);
-
-        } catch (Exception e) {
-            e.printStackTrace();
-            Toast.makeText(this, "Upload error: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (messageStream != null) {
+            messageStream.stop();
+        }
+        messageProcessor.release();
+        Log.d(TAG, "Image preloading: " + imagePreloader.getStats());
+        imagePreloader.release();
+        outboxManager.removeListener(conversationKey, outboxListener);
+        attachmentOutbox.removeListener(conversationKey, attachmentListener);
+        // Leaving the chat drops the upload, a configuration change keeps it
+        if (isFinishing() && currentUploadId != null) {
+            attachmentOutbox.cancel(currentUploadId);
         }
     }
 
-    private void uploadFileToCloudinary(Uri fileUri, String fileName) {
-        try {
-            InputStream inputStream = getContentResolver().openInputStream(fileUri);
-            byte[] fileBytes = new byte[inputStream.available()];
-            inputStream.read(fileBytes);
-            String base64File = Base64.encodeToString(fileBytes, Base64.NO_WRAP);
-
-            RequestQueue requestQueue = Volley.newRequestQueue(this);
-            String uploadUrl = CloudinaryConfig.getUploadUrl("raw");
-
-            JSONObject params = new JSONObject();
-            params.put("file", "data:application/octet-stream;base64," + base64File);
-            params.put("upload_preset", CloudinaryConfig.PRESET_FILE);
-            params.put("public_id", fileName);
-
-            JsonObjectRequest request = new JsonObjectRequest(Request.Method.POST, uploadUrl, params,
-                    response -> {
-                        try {
-                            String fileUrl = response.getString("secure_url");
-                            sendFileMessage(fileUrl, fileName);
-                        } catch (JSONException e) {
-                            e.printStackTrace();
-                        }
-                    },
-                    error -> {
-                        String errorMsg = "Unknown error";
-                        if (error.networkResponse != null && error.networkResponse.data != null) {
-                            errorMsg = new String(error.networkResponse.data);
-                        } else if (error.getMessage() != null) {
-                            errorMsg = error.getMessage();
-                        }
-                        Log.e("UPLOAD_FILE", "Upload failed: " + errorMsg, error);
-                        Toast.makeText(this, "Upload failed:\n" + errorMsg, Toast.LENGTH_LONG).show();
-                    }
-            );
-
-            requestQueue.add(request);
-
-        } catch (Exception e) {
-            e.printStackTrace();
-            Toast.makeText(this, "Upload error: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+    // The size and placeholder let every bubble draw something of the right shape at once
+    private void sendImageMessage(Uri imageUri, @Nullable ImageCompressor.Result image) {
+        ChatMessage chatMessage = newMessage("image", null);
+        if (image != null) {
+            chatMessage.setImageWidth(image.width);
+            chatMessage.setImageHeight(image.height);
+            chatMessage.setBlurHash(image.blurHash);
         }
+        uploadAttachment(chatMessage, "Image", imageUri, "image", CloudinaryConfig.PRESET_IMAGE, null);
     }
 
-    private void sendFileMessage(String fileUrl, String fileName) {
-        HashMap<String, Object> message = new HashMap<>();
-        message.put(Constants.KEY_SENDER_ID, preferenceManager.getString(Constants.KEY_USER_ID));
-        message.put(Constants.KEY_RECEIVER_ID, receiverUser.getId());
-        message.put(Constants.KEY_MESSAGE, fileUrl);
-        message.put("fileName", fileName);
-        message.put("type", "file");
-        message.put(Constants.KEY_TIMESTAMP, new Date());
-
-        database.collection(Constants.KEY_COLLECTION_CHAT).add(message);
-
-        if (conversionId != null) {
-            updateConversion("File: " + fileName);
-        } else {
-            HashMap<String, Object> conversion = new HashMap<>();
-            conversion.put(Constants.KEY_SENDER_ID, preferenceManager.getString(Constants.KEY_USER_ID));
-            conversion.put(Constants.KEY_SENDER_NAME, preferenceManager.getString(Constants.KEY_NAME));
-            conversion.put(Constants.KEY_SENDER_IMAGE, preferenceManager.getString(Constants.KEY_IMAGE));
-            conversion.put(Constants.KEY_RECEIVER_ID, receiverUser.getId());
-            conversion.put(Constants.KEY_RECEIVER_NAME, receiverUser.getName());
-            conversion.put(Constants.KEY_RECEIVER_IMAGE, receiverUser.getImage());
-            conversion.put(Constants.KEY_LAST_MESSAGE, "File: " + fileName);
-            conversion.put(Constants.KEY_TIMESTAMP, new Date());
-            addConversion(conversion);
-        }
+    private void sendFileMessage(Uri fileUri, String fileName) {
+        ChatMessage chatMessage = newMessage("file", null);
+        chatMessage.setFileName(fileName);
+        uploadAttachment(chatMessage, "File: " + fileName, fileUri, "raw", CloudinaryConfig.PRESET_FILE, fileName);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,68 @@
+package com.hgb7725.botchattyapp.activities;
+
+import android.graphics.drawable.Drawable;
+import android.os.Bundle;
+import android.view.View;
+import android.widget.Toast;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.load.DataSource;
+import com.bumptech.glide.load.engine.DiskCacheStrategy;
+import com.bumptech.glide.load.engine.GlideException;
+import com.bumptech.glide.request.RequestListener;
+import com.bumptech.glide.request.target.Target;
+import com.hgb7725.botchattyapp.databinding.ActivityImageViewerBinding;
+import com.hgb7725.botchattyapp.utilities.Constants;
+import com.hgb7725.botchattyapp.utilities.ImageUrls;
+
+/*
+ * Shows a chat image at its original resolution. The bubble variant is already cached,
+ * so it is drawn right away while the full image loads.
+ */
+public class ImageViewerActivity extends BaseActivity {
+
+    private ActivityImageViewerBinding binding;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        binding = ActivityImageViewerBinding.inflate(getLayoutInflater());
+        setContentView(binding.getRoot());
+        binding.imageBack.setOnClickListener(v -> getOnBackPressedDispatcher().onBackPressed());
+        loadImage();
+    }
+
+    private void loadImage() {
+        String url = getIntent().getStringExtra(Constants.KEY_IMAGE_URL);
+        String previewUrl = getIntent().getStringExtra(Constants.KEY_PREVIEW_URL);
+        if (url == null) {
+            finish();
+            return;
+        }
+        Glide.with(this)
+                .load(ImageUrls.full(url))
+                .diskCacheStrategy(DiskCacheStrategy.DATA)
+                .thumbnail(Glide.with(this).load(previewUrl).diskCacheStrategy(DiskCacheStrategy.DATA))
+                .listener(new RequestListener<Drawable>() {
+                    @Override
+                    public boolean onLoadFailed(@Nullable GlideException e, Object model,
+                                                @NonNull Target<Drawable> target, boolean isFirstResource) {
+                        binding.progressBar.setVisibility(View.GONE);
+                        Toast.makeText(getApplicationContext(), "Unable to load image", Toast.LENGTH_SHORT).show();
+                        return false;
+                    }
+
+                    @Override
+                    public boolean onResourceReady(@NonNull Drawable resource, @NonNull Object model,
+                                                   Target<Drawable> target, @NonNull DataSource dataSource,
+                                                   boolean isFirstResource) {
+                        binding.progressBar.setVisibility(View.GONE);
+                        return false;
+                    }
+                })
+                .into(binding.imageFull);
+    }
+}
@@ -1,10 +1,9 @@
 package com.hgb7725.botchattyapp.activities;
 
 import android.content.Intent;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Bundle;
-import android.util.Base64;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.view.View;
 import android.widget.Toast;
@@ -14,24 +13,41 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.graphics.Insets;
 import androidx.core.view.ViewCompat;
 import androidx.core.view.WindowInsetsCompat;
+import androidx.recyclerview.widget.LinearLayoutManager;
 
 import com.google.firebase.firestore.DocumentChange;
 import com.google.firebase.firestore.DocumentReference;
 import com.google.firebase.firestore.EventListener;
 import com.google.firebase.firestore.FieldValue;
 import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.ListenerRegistration;
+import com.google.firebase.firestore.Query;
 import com.google.firebase.firestore.QuerySnapshot;
 import com.google.firebase.messaging.FirebaseMessaging;
 import com.hgb7725.botchattyapp.R;
+import com.hgb7725.botchattyapp.database.ChatDao;
+import com.hgb7725.botchattyapp.database.ChatDatabase;
+import com.hgb7725.botchattyapp.database.ChatSync;
 import com.hgb7725.botchattyapp.databinding.ActivityMainBinding;
+import com.hgb7725.botchattyapp.firebase.AttachmentOutbox;
+import com.hgb7725.botchattyapp.firebase.AvailabilityManager;
+import com.hgb7725.botchattyapp.firebase.AvatarMigration;
+import com.hgb7725.botchattyapp.firebase.ConversationMigration;
+import com.hgb7725.botchattyapp.firebase.OutboxManager;
 import com.hgb7725.botchattyapp.listeners.ConversionListener;
 import com.hgb7725.botchattyapp.models.ChatMessage;
 import com.hgb7725.botchattyapp.models.User;
+import com.hgb7725.botchattyapp.utilities.AppExecutors;
+import com.hgb7725.botchattyapp.utilities.AvatarCache;
 import com.hgb7725.botchattyapp.utilities.Constants;
+import com.hgb7725.botchattyapp.utilities.NameKeys;
 import com.hgb7725.botchattyapp.utilities.PreferenceManager;
+import com.hgb7725.botchattyapp.utilities.SnapshotProcessor;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import com.hgb7725.botchattyapp.adapters.RencentConversationsAdapter;
@@ -40,9 +56,30 @@ public class MainActivity extends BaseActivity implements ConversionListener {
 
     private ActivityMainBinding binding;
     private PreferenceManager preferenceManager;
-    private List<ChatMessage> conversations;
+    // Keyed by the other participant: older conversations may still exist under a random document id
+    private final HashMap<String, ChatMessage> conversationsByUser = new HashMap<>();
     private RencentConversationsAdapter conversationsAdapter;
     private FirebaseFirestore database;
+    private ChatDao chatDao;
+    private ChatSync chatSync;
+    private SnapshotProcessor<ChatMessage> conversationProcessor;
+    private ListenerRegistration conversationsRegistration;
+    private String currentUserId;
+
+    // Keeps "5 min ago" style labels current while the list is on screen
+    private final Handler dateTimeRefreshHandler = new Handler(Looper.getMainLooper());
+    private final Runnable dateTimeRefresher = new Runnable() {
+        @Override
+        public void run() {
+            conversationsAdapter.refreshVisibleDateTimes(binding.conversationsRecyclerView);
+            dateTimeRefreshHandler.postDelayed(this, DATE_TIME_REFRESH_INTERVAL_MS);
+        }
+    };
+
+    private static final int MAX_CACHED_CONVERSATIONS = 50;
+    private static final Comparator<ChatMessage> RECENT_FIRST = Comparator.comparing(
+            ChatMessage::getDateObject, Comparator.nullsLast(Comparator.reverseOrder()));
+    private static final long DATE_TIME_REFRESH_INTERVAL_MS = 30 * 1000;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -55,13 +92,19 @@ public class MainActivity extends BaseActivity implements ConversionListener {
         getToken();
         setListeners();
         listenConversations();
+        OutboxManager.getInstance(getApplicationContext()).resume();
+        AttachmentOutbox.getInstance(getApplicationContext()).resume();
     }
 
     private void init() {
-        conversations = new ArrayList<>();
-        conversationsAdapter = new RencentConversationsAdapter(conversations, this);
+        conversationsAdapter = new RencentConversationsAdapter(this);
         binding.conversationsRecyclerView.setAdapter(conversationsAdapter);
         database = FirebaseFirestore.getInstance();
+        chatDao = ChatDatabase.getInstance(getApplicationContext());
+        chatSync = new ChatSync(chatDao);
+        currentUserId = preferenceManager.getString(Constants.KEY_USER_ID);
+        conversationProcessor = new SnapshotProcessor<>(
+                "conversations", this::parseConversation, this::publishConversations);
     }
 
     private void setListeners() {
@@ -72,9 +115,11 @@ public class MainActivity extends BaseActivity implements ConversionListener {
 
     private void loadUserDetails() {
         binding.textName.setText(preferenceManager.getString(Constants.KEY_NAME));
-        byte[] bytes = Base64.decode(preferenceManager.getString(Constants.KEY_IMAGE), Base64.DEFAULT);
-        Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
-        binding.imageProfile.setImageBitmap(bitmap);
+        AvatarCache.getInstance(getApplicationContext()).load(
+                binding.imageProfile,
+                preferenceManager.getString(Constants.KEY_USER_ID),
+                preferenceManager.getString(Constants.KEY_IMAGE)
+        );
     }
 
     private void showToast(String message) {
@@ -82,12 +127,39 @@ public class MainActivity extends BaseActivity implements ConversionListener {
     }
 
     private void listenConversations() {
-        database.collection(Constants.KEY_COLLECTION_CONVERSATIONS)
-                .whereEqualTo(Constants.KEY_SENDER_ID, preferenceManager.getString(Constants.KEY_USER_ID))
-                .addSnapshotListener(eventListener);
-        database.collection(Constants.KEY_COLLECTION_CONVERSATIONS)
-                .whereEqualTo(Constants.KEY_RECEIVER_ID, preferenceManager.getString(Constants.KEY_USER_ID))
-                .addSnapshotListener(eventListener);
+        // Render the stored list right away, then only listen for conversations updated since
+        AppExecutors.getInstance().diskIO().execute(() -> {
+            chatDao.compact(currentUserId, MAX_CACHED_CONVERSATIONS);
+            List<ChatMessage> cachedConversations = chatDao.getConversations(currentUserId);
+            long since = chatSync.conversationsSince(currentUserId, !cachedConversations.isEmpty());
+            AppExecutors.getInstance().mainThread().execute(() -> {
+                if (isDestroyed()) {
+                    return;
+                }
+                if (!cachedConversations.isEmpty()) {
+                    for (ChatMessage chatMessage : cachedConversations) {
+                        putConversation(chatMessage);
+                    }
+                    submitConversations();
+                }
+                // Conversations written before the participants field existed are moved first,
+                // otherwise the listener below would not see them
+                ConversationMigration.runIfNeeded(getApplicationContext(), currentUserId)
+                        .addOnCompleteListener(task -> {
+                            if (isDestroyed()) {
+                                return;
+                            }
+                            Query query = database.collection(Constants.KEY_COLLECTION_CONVERSATIONS)
+                                    .whereArrayContains(Constants.KEY_PARTICIPANTS, currentUserId);
+                            if (since > 0) {
+                                // Requires a composite index on conversations(participants ARRAY_CONTAINS, updatedAt ASC)
+                                query = query.whereGreaterThan(Constants.KEY_UPDATED_AT, new Date(since));
+                            }
+                            conversationsRegistration = query.addSnapshotListener(eventListener);
+                            AvatarMigration.runIfNeeded(getApplicationContext(), currentUserId);
+                        });
+            });
+        });
     }
 
     private final EventListener<QuerySnapshot> eventListener = (value, error) -> {
@@ -95,61 +167,133 @@ public class MainActivity extends BaseActivity implements ConversionListener {
             return;
         }
         if (value != null) {
-            for (DocumentChange documentChange : value.getDocumentChanges()) {
-                ChatMessage chatMessage = null;
-                if (documentChange.getType() == DocumentChange.Type.ADDED) {
-                    String senderId = documentChange.getDocument().getString(Constants.KEY_SENDER_ID);
-                    String receiverId = documentChange.getDocument().getString(Constants.KEY_RECEIVER_ID);
-                    chatMessage = new ChatMessage();
-                    chatMessage.setSenderId(senderId);
-                    chatMessage.setReceiverId(receiverId);
-
-                    if (preferenceManager.getString(Constants.KEY_USER_ID).equals(senderId)) {
-                        chatMessage.setConversionImage(documentChange.getDocument().getString(Constants.KEY_RECEIVER_IMAGE));
-                        chatMessage.setConversionName(documentChange.getDocument().getString(Constants.KEY_RECEIVER_NAME));
-                        chatMessage.setConversionId(documentChange.getDocument().getString(Constants.KEY_RECEIVER_ID));
-                    } else {
-                        chatMessage.setConversionImage(documentChange.getDocument().getString(Constants.KEY_SENDER_IMAGE));
-                        chatMessage.setConversionName(documentChange.getDocument().getString(Constants.KEY_SENDER_NAME));
-                        chatMessage.setConversionId(documentChange.getDocument().getString(Constants.KEY_SENDER_ID));
-                    }
+            conversationProcessor.submit(value);
+        }
+    };
 
-                    chatMessage.setMessage(documentChange.getDocument().getString(Constants.KEY_LAST_MESSAGE));
-                    chatMessage.setDateObject(documentChange.getDocument().getDate(Constants.KEY_TIMESTAMP));
-                    conversations.add(chatMessage);
-                } else if (documentChange.getType() == DocumentChange.Type.MODIFIED) {
-                    for (int i = 0; i < conversations.size(); i++) {
-                        String senderId = documentChange.getDocument().getString(Constants.KEY_SENDER_ID);
-                        String receiverId = documentChange.getDocument().getString(Constants.KEY_RECEIVER_ID);
-                        if (conversations.get(i).getSenderId().equals(senderId) && conversations.get(i).getReceiverId().equals(receiverId)) {
-                            conversations.get(i).setMessage(documentChange.getDocument().getString(Constants.KEY_LAST_MESSAGE));
-                            conversations.get(i).setDateObject(documentChange.getDocument().getDate(Constants.KEY_TIMESTAMP));
-                            break;
-                        }
-                    }
-                }
+    // Runs on the snapshot parsing thread
+    private ChatMessage parseConversation(DocumentChange documentChange) {
+        if (documentChange.getType() == DocumentChange.Type.REMOVED) {
+            return null;
+        }
+        String senderId = documentChange.getDocument().getString(Constants.KEY_SENDER_ID);
+        String receiverId = documentChange.getDocument().getString(Constants.KEY_RECEIVER_ID);
+        ChatMessage chatMessage = new ChatMessage();
+        chatMessage.setId(documentChange.getDocument().getId());
+        chatMessage.setSenderId(senderId);
+        chatMessage.setReceiverId(receiverId);
+
+        if (currentUserId.equals(senderId)) {
+            chatMessage.setConversionImage(documentChange.getDocument().getString(Constants.KEY_RECEIVER_IMAGE));
+            chatMessage.setConversionName(documentChange.getDocument().getString(Constants.KEY_RECEIVER_NAME));
+            chatMessage.setConversionId(documentChange.getDocument().getString(Constants.KEY_RECEIVER_ID));
+        } else {
+            chatMessage.setConversionImage(documentChange.getDocument().getString(Constants.KEY_SENDER_IMAGE));
+            chatMessage.setConversionName(documentChange.getDocument().getString(Constants.KEY_SENDER_NAME));
+            chatMessage.setConversionId(documentChange.getDocument().getString(Constants.KEY_SENDER_ID));
+        }
+
+        chatMessage.setMessage(documentChange.getDocument().getString(Constants.KEY_LAST_MESSAGE));
+        chatMessage.setDateObject(documentChange.getDocument().getDate(Constants.KEY_TIMESTAMP));
+        Date updatedAt = documentChange.getDocument().getDate(Constants.KEY_UPDATED_AT);
+        chatMessage.setUpdatedAt(updatedAt != null ? updatedAt.getTime() : 0);
+        return chatMessage;
+    }
+
+    private void publishConversations(List<ChatMessage> changedConversations) {
+        for (ChatMessage chatMessage : changedConversations) {
+            putConversation(chatMessage);
+        }
+        if (!changedConversations.isEmpty()) {
+            AppExecutors.getInstance().diskIO().execute(() ->
+                    chatSync.saveConversations(currentUserId, changedConversations));
+        }
+        submitConversations();
+    }
+
+    // Keeps the most recent summary when the same chat has more than one conversation document
+    private void putConversation(ChatMessage chatMessage) {
+        ChatMessage existing = conversationsByUser.get(chatMessage.getConversionId());
+        if (existing == null || existing.getId().equals(chatMessage.getId())
+                || RECENT_FIRST.compare(chatMessage, existing) <= 0) {
+            conversationsByUser.put(chatMessage.getConversionId(), chatMessage);
+        }
+    }
+
+    // Hands a sorted snapshot to the adapter, which diffs it off the main thread
+    private void submitConversations() {
+        List<ChatMessage> sorted = new ArrayList<>(conversationsByUser.values());
+        Collections.sort(sorted, RECENT_FIRST);
+        LinearLayoutManager layoutManager =
+                (LinearLayoutManager) binding.conversationsRecyclerView.getLayoutManager();
+        boolean isAtTop = layoutManager == null || layoutManager.findFirstCompletelyVisibleItemPosition() <= 0;
+        conversationsAdapter.submitList(sorted, () -> {
+            // Only follow a conversation moving to the top if the user was already looking there
+            if (isAtTop && !isDestroyed()) {
+                binding.conversationsRecyclerView.scrollToPosition(0);
             }
-            Collections.sort(conversations, (obj1, obj2) ->
-                    obj2.getDateObject().compareTo(obj1.getDateObject()));
-            conversationsAdapter.notifyDataSetChanged();
-            binding.conversationsRecyclerView.smoothScrollToPosition(0);
-            binding.conversationsRecyclerView.setVisibility(View.VISIBLE);
-            binding.progressBar.setVisibility(View.INVISIBLE);
+        });
+        binding.conversationsRecyclerView.setVisibility(View.VISIBLE);
+        binding.progressBar.setVisibility(View.INVISIBLE);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        dateTimeRefreshHandler.postDelayed(dateTimeRefresher, DATE_TIME_REFRESH_INTERVAL_MS);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        dateTimeRefreshHandler.removeCallbacks(dateTimeRefresher);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (conversationsRegistration != null) {
+            conversationsRegistration.remove();
         }
-    };
+        conversationProcessor.release();
+        // Lets the adapter release the presence subscriptions of its rows
+        binding.conversationsRecyclerView.setAdapter(null);
+    }
 
     private void getToken() {
         FirebaseMessaging.getInstance().getToken().addOnSuccessListener(this::updateToken);
     }
 
+    /*
+     * Only writes what changed since the last successful write. The name key is written along
+     * for accounts created before the user directory was indexed; only that bumps updatedAt,
+     * a new token alone must not bring the user back into everyone's directory sync.
+     */
     private void updateToken(String token) {
+        String nameKey = NameKeys.of(preferenceManager.getString(Constants.KEY_NAME));
+        boolean tokenChanged = !token.equals(preferenceManager.getString(Constants.KEY_WRITTEN_FCM_TOKEN));
+        boolean nameKeyChanged = !nameKey.equals(preferenceManager.getString(Constants.KEY_WRITTEN_NAME_KEY));
+        if (!tokenChanged && !nameKeyChanged) {
+            return;
+        }
+        HashMap<String, Object> updates = new HashMap<>();
+        if (tokenChanged) {
+            updates.put(Constants.KEY_FCM_TOKEN, token);
+        }
+        if (nameKeyChanged) {
+            updates.put(Constants.KEY_NAME_KEY, nameKey);
+            updates.put(Constants.KEY_UPDATED_AT, FieldValue.serverTimestamp());
+        }
         FirebaseFirestore database = FirebaseFirestore.getInstance();
         DocumentReference documentReference =
                 database.collection(Constants.KEY_COLLECTION_USERS).document(
                         preferenceManager.getString(Constants.KEY_USER_ID)
                 );
-        documentReference.update(Constants.KEY_FCM_TOKEN, token)
-                //.addOnSuccessListener(unused -> showToast("Token updated Successfully"))
+        documentReference.update(updates)
+                .addOnSuccessListener(unused -> {
+                    preferenceManager.putString(Constants.KEY_WRITTEN_FCM_TOKEN, token);
+                    preferenceManager.putString(Constants.KEY_WRITTEN_NAME_KEY, nameKey);
+                })
                 .addOnFailureListener(e -> showToast("Unable to update token"));
     }
 
@@ -163,7 +307,9 @@ public class MainActivity extends BaseActivity implements ConversionListener {
         updates.put(Constants.KEY_FCM_TOKEN, FieldValue.delete());
         documentReference.update(updates)
                 .addOnSuccessListener(unused -> {
+                    AvailabilityManager.getInstance(getApplicationContext()).signOut();
                     preferenceManager.clear();
+                    AppExecutors.getInstance().diskIO().execute(chatDao::clear);
                     startActivity(new Intent(getApplicationContext(), SignInActivity.class));
                     finish();
                 })
@@ -1,14 +1,11 @@
 package com.hgb7725.botchattyapp.activities;
 
 import android.content.Intent;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.MediaStore;
 import android.text.method.HideReturnsTransformationMethod;
 import android.text.method.PasswordTransformationMethod;
-import android.util.Base64;
 import android.util.Patterns;
 import android.view.View;
 import android.widget.Toast;
@@ -17,22 +14,24 @@ import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.appcompat.app.AppCompatActivity;
 
+import com.bumptech.glide.Glide;
+import com.google.firebase.firestore.FieldValue;
 import com.google.firebase.firestore.FirebaseFirestore;
 import com.hgb7725.botchattyapp.R;
 import com.hgb7725.botchattyapp.databinding.ActivitySignUpBinding;
+import com.hgb7725.botchattyapp.network.AvatarUploader;
+import com.hgb7725.botchattyapp.utilities.AvatarUrls;
 import com.hgb7725.botchattyapp.utilities.Constants;
+import com.hgb7725.botchattyapp.utilities.NameKeys;
 import com.hgb7725.botchattyapp.utilities.PreferenceManager;
 
-import java.io.ByteArrayOutputStream;
-import java.io.FileNotFoundException;
-import java.io.InputStream;
 import java.util.HashMap;
 
 public class SignUpActivity extends AppCompatActivity {
 
     private ActivitySignUpBinding binding;
     private PreferenceManager preferenceManager;
-    private String encodedImage;
+    private Uri selectedImageUri;
     private boolean isPasswordVisible = false;
     private boolean isConfirmPasswordVisible = false;
 
@@ -97,12 +96,33 @@ public class SignUpActivity extends AppCompatActivity {
 
     private void signUp() {
         loading(true);
+        // Only the URL of the uploaded picture is stored in the user document
+        AvatarUploader.upload(this, selectedImageUri, new AvatarUploader.Callback() {
+            @Override
+            public void onAvatarUploaded(String url) {
+                createUser(url);
+            }
+
+            @Override
+            public void onAvatarUploadFailed(String errorMessage) {
+                loading(false);
+                showToast(errorMessage);
+            }
+        });
+    }
+
+    private void createUser(String imageUrl) {
         FirebaseFirestore database = FirebaseFirestore.getInstance();
         HashMap<String, Object> user = new HashMap<>();
         user.put(Constants.KEY_NAME, binding.inputName.getText().toString());
+        user.put(Constants.KEY_NAME_KEY, NameKeys.of(binding.inputName.getText().toString()));
         user.put(Constants.KEY_EMAIL, binding.inputEmail.getText().toString());
         user.put(Constants.KEY_PASSWORD, binding.inputPassword.getText().toString());
-        user.put(Constants.KEY_IMAGE, encodedImage);
+        user.put(Constants.KEY_IMAGE, imageUrl);
+        user.put(Constants.KEY_IMAGE_VERSION, AvatarUrls.version(imageUrl));
+        user.put(Constants.KEY_UPDATED_AT, FieldValue.serverTimestamp());
+        // A new account has no data from before conversation keys
+        user.put(Constants.KEY_CONVERSATIONS_MIGRATED, true);
         database.collection(Constants.KEY_COLLECTION_USERS)
                 .add(user)
                 .addOnSuccessListener(documentReference -> {
@@ -110,7 +130,8 @@ public class SignUpActivity extends AppCompatActivity {
                     preferenceManager.putBoolean(Constants.KEY_IS_SIGNED_IN, true);
                     preferenceManager.putString(Constants.KEY_USER_ID, documentReference.getId());
                     preferenceManager.putString(Constants.KEY_NAME, binding.inputName.getText().toString());
-                    preferenceManager.putString(Constants.KEY_IMAGE, encodedImage);
+                    preferenceManager.putString(Constants.KEY_WRITTEN_NAME_KEY, (String) user.get(Constants.KEY_NAME_KEY));
+                    preferenceManager.putString(Constants.KEY_IMAGE, imageUrl);
                     Intent intent = new Intent(getApplicationContext(), MainActivity.class);
                     intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
                     startActivity(intent);
@@ -127,38 +148,21 @@ public class SignUpActivity extends AppCompatActivity {
         return email.matches(regexPattern);
     }
 
-    private String encodeImage(Bitmap bitmap) {
-        int previewWidth = 150;
-        int previewHeight = bitmap.getHeight() * previewWidth / bitmap.getWidth();
-        Bitmap previewBitmap = Bitmap.createScaledBitmap(bitmap, previewWidth, previewHeight, false);
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        previewBitmap.compress(Bitmap.CompressFormat.JPEG, 50, byteArrayOutputStream);
-        byte[] bytes = byteArrayOutputStream.toByteArray();
-        return Base64.encodeToString(bytes, Base64.DEFAULT);
-    }
-    
     private final ActivityResultLauncher<Intent> pickImage = registerForActivityResult(
             new ActivityResultContracts.StartActivityForResult(),
             result -> {
                 if (result.getResultCode() == RESULT_OK) {
                     if(result.getData() != null) {
-                        Uri imageUri = result.getData().getData();
-                        try {
-                            InputStream inputStream = getContentResolver().openInputStream(imageUri);
-                            Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
-                            binding.imageProfile.setImageBitmap(bitmap);
-                            binding.textAddImage.setVisibility(View.GONE);
-                            encodedImage = encodeImage(bitmap);
-                        } catch (FileNotFoundException e) {
-                            e.printStackTrace();
-                        }
+                        selectedImageUri = result.getData().getData();
+                        Glide.with(this).load(selectedImageUri).dontAnimate().into(binding.imageProfile);
+                        binding.textAddImage.setVisibility(View.GONE);
                     }
                 }
             }
     );
 
     private Boolean isValidSignUpDetails() {
-        if (encodedImage == null) {
+        if (selectedImageUri == null) {
             showToast("Please Select Profile Image");
             return false;
         } else if (binding.inputName.getText().toString().trim().isEmpty()) {
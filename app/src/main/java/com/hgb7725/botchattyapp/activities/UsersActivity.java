@@ -2,18 +2,28 @@ package com.hgb7725.botchattyapp.activities;
 
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.Log;
 import android.view.View;
 
-import androidx.appcompat.app.AppCompatActivity;
-
 import com.google.firebase.firestore.FirebaseFirestore;
-import com.google.firebase.firestore.QueryDocumentSnapshot;
 import com.hgb7725.botchattyapp.adapters.UsersAdapter;
+import com.hgb7725.botchattyapp.database.ChatDatabase;
+import com.hgb7725.botchattyapp.database.UserDao;
 import com.hgb7725.botchattyapp.databinding.ActivityUsersBinding;
+import com.hgb7725.botchattyapp.firebase.UserDirectory;
+import com.hgb7725.botchattyapp.firebase.UserSync;
 import com.hgb7725.botchattyapp.listeners.UserListener;
 import com.hgb7725.botchattyapp.models.User;
+import com.hgb7725.botchattyapp.utilities.AppExecutors;
 import com.hgb7725.botchattyapp.utilities.Constants;
+import com.hgb7725.botchattyapp.utilities.NameKeys;
 import com.hgb7725.botchattyapp.utilities.PreferenceManager;
+import com.hgb7725.botchattyapp.utilities.UserPrefixIndex;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -24,8 +34,31 @@ import java.util.List;
      */
 public class UsersActivity extends BaseActivity implements UserListener {
 
+    private static final String TAG = "UsersActivity";
+    private static final int SEARCH_PAGE_SIZE = 30;
+    private static final int MAX_SEARCH_RESULTS = 50;
+    // Typing only hits the server once it pauses this long
+    private static final long SEARCH_DEBOUNCE_MS = 300;
+
     private ActivityUsersBinding binding;
     private PreferenceManager preferenceManager;
+    private UsersAdapter usersAdapter;
+    private UserDirectory userDirectory;
+    private UserDao userDao;
+    private String currentUserId;
+    // Every user known so far, from the local directory and from server searches
+    private UserPrefixIndex userIndex = new UserPrefixIndex();
+    // Local directory in name order, shown while the search box is empty
+    private List<User> directoryUsers = new ArrayList<>();
+    // Until the first sync completes, searches also ask the server
+    private boolean isDirectorySynced = false;
+    private String searchQuery = "";
+
+    private final Handler searchHandler = new Handler(Looper.getMainLooper());
+    private final Runnable serverSearch = this::searchOnServer;
+    private long keystrokeCount = 0;
+    private long keystrokeTotalMicros = 0;
+    private long keystrokeMaxMicros = 0;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -33,52 +66,157 @@ public class UsersActivity extends BaseActivity implements UserListener {
         binding = ActivityUsersBinding.inflate(getLayoutInflater());
         setContentView(binding.getRoot());
         preferenceManager = new PreferenceManager(getApplicationContext());
-        getUsers();
+        init();
         setListeners();
+        loadDirectory(true);
+    }
+
+    private void init() {
+        usersAdapter = new UsersAdapter(this);
+        binding.usersRecyclerView.setAdapter(usersAdapter);
+        currentUserId = preferenceManager.getString(Constants.KEY_USER_ID);
+        userDao = ChatDatabase.getInstance(getApplicationContext());
+        userDirectory = new UserDirectory(FirebaseFirestore.getInstance(), currentUserId, SEARCH_PAGE_SIZE);
     }
 
     private void setListeners() {
         binding.imageBack.setOnClickListener(v -> getOnBackPressedDispatcher().onBackPressed());
+        binding.inputSearch.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                onSearchChanged(s.toString());
+            }
+        });
+    }
+
+    // Shows the stored directory, then syncs whatever changed since the last visit
+    private void loadDirectory(boolean syncAfterwards) {
+        AppExecutors.getInstance().diskIO().execute(() -> {
+            boolean isSynced = userDao.getUserWatermark() > 0;
+            List<User> users = new ArrayList<>();
+            for (User user : userDao.getUsers()) {
+                if (!user.getId().equals(currentUserId)) {
+                    users.add(user);
+                }
+            }
+            UserPrefixIndex index = new UserPrefixIndex();
+            index.putAll(users);
+            AppExecutors.getInstance().mainThread().execute(() -> {
+                if (isDestroyed()) {
+                    return;
+                }
+                isDirectorySynced = isSynced;
+                directoryUsers = users;
+                userIndex = index;
+                if (!users.isEmpty() || isSynced) {
+                    loading(false);
+                    showResults();
+                } else {
+                    loading(true);
+                }
+                if (syncAfterwards) {
+                    syncDirectory();
+                }
+            });
+        });
     }
 
-    private void getUsers() {
-        loading(true);
-        FirebaseFirestore database = FirebaseFirestore.getInstance();
-        database.collection(Constants.KEY_COLLECTION_USERS)
-                .get()
-                .addOnCompleteListener(task -> {
+    private void syncDirectory() {
+        UserSync.getInstance(getApplicationContext()).sync(new UserSync.Listener() {
+            @Override
+            public void onUsersSynced(int changedCount) {
+                Log.d(TAG, "User directory synced, " + changedCount + " changes");
+                if (isDestroyed()) {
+                    return;
+                }
+                if (changedCount > 0 || !isDirectorySynced) {
+                    loadDirectory(false);
+                }
+            }
+
+            @Override
+            public void onUserSyncFailed(Exception e) {
+                Log.w(TAG, "User directory sync failed", e);
+                if (!isDestroyed() && directoryUsers.isEmpty()) {
                     loading(false);
-                    String currentUserId = preferenceManager.getString(Constants.KEY_USER_ID);
-                    if (task.isSuccessful() && task.getResult() != null) {
-                        List<User> users = new ArrayList<>();
-                        for (QueryDocumentSnapshot queryDocumentSnapshot : task.getResult()) {
-                            if (currentUserId.equals(queryDocumentSnapshot.getId())) {
-                                continue;
-                            }
-                            User user = new User();
-                            user.setName(queryDocumentSnapshot.getString(Constants.KEY_NAME));
-                            user.setEmail(queryDocumentSnapshot.getString(Constants.KEY_EMAIL));
-                            user.setImage(queryDocumentSnapshot.getString(Constants.KEY_IMAGE));
-                            user.setToken(queryDocumentSnapshot.getString(Constants.KEY_FCM_TOKEN));
-                            user.setId(queryDocumentSnapshot.getId());
-                            users.add(user);
-                        }
-                        if (users.size() > 0) {
-                            UsersAdapter usersAdapter = new UsersAdapter(users, this);
-                            // attach adapter to RecyclerView and display list of users
-                            binding.usersRecyclerView.setAdapter(usersAdapter);
-                            binding.usersRecyclerView.setVisibility(View.VISIBLE);
-                        } else {
-                            showErrorMessage();
-                        }
-                    } else {
-                        showErrorMessage();
-                    }
-                });
+                    showErrorMessage();
+                }
+            }
+        });
+    }
+
+    private void showResults() {
+        if (searchQuery.isEmpty()) {
+            showUsers(directoryUsers);
+        } else {
+            showUsers(userIndex.search(searchQuery, MAX_SEARCH_RESULTS));
+        }
+    }
+
+    // Filters the local directory right away; before it is synced the server is asked once typing pauses
+    private void onSearchChanged(String text) {
+        long startTime = SystemClock.elapsedRealtimeNanos();
+        searchQuery = NameKeys.of(text);
+        searchHandler.removeCallbacks(serverSearch);
+        if (searchQuery.isEmpty()) {
+            showUsers(directoryUsers);
+            return;
+        }
+        showUsers(userIndex.search(searchQuery, MAX_SEARCH_RESULTS));
+        recordKeystroke((SystemClock.elapsedRealtimeNanos() - startTime) / 1000);
+        if (!isDirectorySynced) {
+            searchHandler.postDelayed(serverSearch, SEARCH_DEBOUNCE_MS);
+        }
+    }
+
+    private void searchOnServer() {
+        String query = searchQuery;
+        userDirectory.search(query, new UserDirectory.Callback() {
+            @Override
+            public void onUsersLoaded(List<User> users) {
+                userIndex.putAll(users);
+                // Results for a query the user has typed past are only kept in the index
+                if (!isDestroyed() && query.equals(searchQuery)) {
+                    showUsers(userIndex.search(searchQuery, MAX_SEARCH_RESULTS));
+                }
+            }
+
+            @Override
+            public void onUsersFailed(Exception e) {
+            }
+        });
+    }
+
+    private void recordKeystroke(long micros) {
+        keystrokeCount++;
+        keystrokeTotalMicros += micros;
+        keystrokeMaxMicros = Math.max(keystrokeMaxMicros, micros);
+        Log.d(TAG, "Local search \"" + searchQuery + "\" over " + userIndex.size() + " users took "
+                + micros + " us (avg " + keystrokeTotalMicros / keystrokeCount + " us, max "
+                + keystrokeMaxMicros + " us)");
+    }
+
+    private void showUsers(List<User> users) {
+        usersAdapter.submitList(new ArrayList<>(users));
+        if (users.isEmpty()) {
+            showErrorMessage();
+            binding.usersRecyclerView.setVisibility(View.GONE);
+        } else {
+            binding.textErrorMessage.setVisibility(View.GONE);
+            binding.usersRecyclerView.setVisibility(View.VISIBLE);
+        }
     }
 
     private void showErrorMessage() {
-        binding.textErrorMessage.setText(String.format("%s", "No User Available!"));
+        binding.textErrorMessage.setText(String.format("%s", searchQuery.isEmpty() ? "No User Available!" : "No User Found!"));
         binding.textErrorMessage.setVisibility(View.VISIBLE);
     }
 
@@ -90,6 +228,12 @@ public class UsersActivity extends BaseActivity implements UserListener {
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        searchHandler.removeCallbacks(serverSearch);
+    }
+
     @Override
     public void onUserClicked(User user) {
         Intent intent = new Intent(getApplicationContext(), ChatActivity.class);
@@ -97,4 +241,4 @@ public class UsersActivity extends BaseActivity implements UserListener {
         startActivity(intent);
         finish();
     }
-}
\ No newline at end of file
+}
@@ -3,31 +3,55 @@ package com.hgb7725.botchattyapp.adapters;
 import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.Context;
+import android.content.Intent;
 import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
 import android.view.LayoutInflater;
+import android.view.View;
 import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.bumptech.glide.Glide;
+import com.bumptech.glide.RequestBuilder;
+import com.hgb7725.botchattyapp.R;
+import com.hgb7725.botchattyapp.activities.ImageViewerActivity;
 import com.hgb7725.botchattyapp.databinding.ItemContainerReceivedFileBinding;
 import com.hgb7725.botchattyapp.databinding.ItemContainerReceivedImageBinding;
 import com.hgb7725.botchattyapp.databinding.ItemContainerReceivedMessageBinding;
 import com.hgb7725.botchattyapp.databinding.ItemContainerSentFileBinding;
 import com.hgb7725.botchattyapp.databinding.ItemContainerSentImageBinding;
 import com.hgb7725.botchattyapp.databinding.ItemContainerSentMessageBinding;
+import com.hgb7725.botchattyapp.firebase.OutboxManager;
 import com.hgb7725.botchattyapp.models.ChatMessage;
+import com.hgb7725.botchattyapp.utilities.Constants;
 import com.hgb7725.botchattyapp.utilities.FileUtils;
 
+import java.util.HashMap;
 import java.util.List;
-
+import java.util.Map;
+
+/*
+ * Binding a text or file row allocates nothing of its own (image rows still build a Glide
+ * request): the view type, shortened file name, file icon and status line are derived once
+ * per message and kept on it, and every listener is created with its ViewHolder and reads
+ * the message the holder currently shows.
+ */
 public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
 
     private final List<ChatMessage> chatMessageList;
-    private final Bitmap receiverProfileImage;
+    private Bitmap receiverProfileImage;
     private final String senderId;
+    @Nullable
+    private ChatImagePreloader imagePreloader;
+    // Stable item ids handed out by message id, in the order messages are first seen
+    private final Map<String, Long> itemIds = new HashMap<>();
+    private long nextItemId = 0;
 
     public static final int VIEW_TYPE_SENT_TEXT = 1;
     public static final int VIEW_TYPE_RECEIVED_TEXT = 2;
@@ -40,6 +64,17 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
         this.chatMessageList = chatMessageList;
         this.receiverProfileImage = receiverProfileImage;
         this.senderId = senderId;
+        setHasStableIds(true);
+    }
+
+    // The avatar is decoded in the background, so it may arrive after the first messages
+    public void setReceiverProfileImage(Bitmap receiverProfileImage) {
+        this.receiverProfileImage = receiverProfileImage;
+        notifyItemRangeChanged(0, getItemCount());
+    }
+
+    public void setImagePreloader(@Nullable ChatImagePreloader imagePreloader) {
+        this.imagePreloader = imagePreloader;
     }
 
     @NonNull
@@ -67,7 +102,7 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
     @Override
     public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position) {
         ChatMessage chatMessage = chatMessageList.get(position);
-        switch (getItemViewType(position)) {
+        switch (holder.getItemViewType()) {
             case VIEW_TYPE_SENT_TEXT:
                 ((SentTextViewHolder) holder).setData(chatMessage);
                 break;
@@ -75,10 +110,10 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
                 ((ReceivedTextViewHolder) holder).setData(chatMessage, receiverProfileImage);
                 break;
             case VIEW_TYPE_SENT_IMAGE:
-                ((SentImageViewHolder) holder).setData(chatMessage);
+                ((SentImageViewHolder) holder).setData(chatMessage, imagePreloader);
                 break;
             case VIEW_TYPE_RECEIVED_IMAGE:
-                ((ReceivedImageViewHolder) holder).setData(chatMessage, receiverProfileImage);
+                ((ReceivedImageViewHolder) holder).setData(chatMessage, receiverProfileImage, imagePreloader);
                 break;
             case VIEW_TYPE_SENT_FILE:
                 ((SentFileViewHolder) holder).setData(chatMessage);
@@ -89,14 +124,47 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
         }
     }
 
+    @Override
+    public void onViewRecycled(@NonNull RecyclerView.ViewHolder holder) {
+        if (imagePreloader == null) {
+            return;
+        }
+        if (holder instanceof SentImageViewHolder) {
+            imagePreloader.untrack(((SentImageViewHolder) holder).imageMessage);
+        } else if (holder instanceof ReceivedImageViewHolder) {
+            imagePreloader.untrack(((ReceivedImageViewHolder) holder).imageMessage);
+        }
+    }
+
     @Override
     public int getItemCount() {
         return chatMessageList.size();
     }
 
+    // Message ids never change, so rows keep their views across inserts and updates
+    @Override
+    public long getItemId(int position) {
+        String messageId = chatMessageList.get(position).getId();
+        Long itemId = itemIds.get(messageId);
+        if (itemId == null) {
+            itemId = nextItemId++;
+            itemIds.put(messageId, itemId);
+        }
+        return itemId;
+    }
+
     @Override
     public int getItemViewType(int position) {
         ChatMessage message = chatMessageList.get(position);
+        int viewType = message.getViewType();
+        if (viewType == 0) {
+            viewType = viewTypeOf(message);
+            message.setViewType(viewType);
+        }
+        return viewType;
+    }
+
+    private int viewTypeOf(ChatMessage message) {
         boolean isSender = message.getSenderId().equals(senderId);
         boolean isImage = "image".equals(message.getType());
         boolean isFile = "file".equals(message.getType());
@@ -108,122 +176,311 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
         return isSender ? VIEW_TYPE_SENT_TEXT : VIEW_TYPE_RECEIVED_TEXT;
     }
 
+    private static void copyText(View view, String text) {
+        ClipboardManager clipboard = (ClipboardManager) view.getContext().getSystemService(Context.CLIPBOARD_SERVICE);
+        ClipData clip = ClipData.newPlainText("Copied Text", text);
+        clipboard.setPrimaryClip(clip);
+        Toast.makeText(view.getContext(), "Text copied!", Toast.LENGTH_SHORT).show();
+    }
+
+    // The avatar of a received row, only set again when it changed: setImageBitmap wraps the
+    // bitmap in a new drawable every time
+    private static final class ProfileImage {
+        private final ImageView imageView;
+        private boolean isSet = false;
+        private Bitmap bitmap;
+
+        ProfileImage(ImageView imageView) {
+            this.imageView = imageView;
+        }
+
+        void set(Bitmap receiverProfileImage) {
+            if (isSet && bitmap == receiverProfileImage) {
+                return;
+            }
+            if (receiverProfileImage != null) {
+                imageView.setImageBitmap(receiverProfileImage);
+            } else {
+                imageView.setImageResource(R.drawable.default_avatar);
+            }
+            bitmap = receiverProfileImage;
+            isSet = true;
+        }
+    }
+
+    // The bubble loads a variant of its own size, tapping it opens the original in the viewer
+    private static void setImageMessage(ImageView imageView, ChatMessage chatMessage,
+                                        @Nullable ChatImagePreloader imagePreloader) {
+        Context context = imageView.getContext();
+        int width = ChatImages.width(context);
+        int height = ChatImages.height(width, chatMessage);
+        ViewGroup.LayoutParams params = imageView.getLayoutParams();
+        if (params.width != width || params.height != height) {
+            params.width = width;
+            params.height = height;
+            imageView.setLayoutParams(params);
+        }
+        RequestBuilder<Drawable> request = ChatImages.request(Glide.with(imageView), context, chatMessage);
+        Drawable placeholder = ChatImages.placeholder(context, chatMessage, width, height);
+        if (placeholder != null) {
+            request = ChatImages.withPlaceholder(request, placeholder);
+        }
+        if (imagePreloader != null) {
+            imagePreloader.track(imageView, chatMessage.getId(), placeholder != null, request).into(imageView);
+            imagePreloader.onTracked();
+        } else {
+            request.into(imageView);
+        }
+    }
+
+    private static void openImage(View view, ChatMessage chatMessage) {
+        Context context = view.getContext();
+        int width = ChatImages.width(context);
+        int height = ChatImages.height(width, chatMessage);
+        Intent intent = new Intent(context, ImageViewerActivity.class);
+        intent.putExtra(Constants.KEY_IMAGE_URL, chatMessage.getMessage());
+        intent.putExtra(Constants.KEY_PREVIEW_URL, ChatImages.url(context, chatMessage, width, height));
+        context.startActivity(intent);
+    }
+
+    // Until Firestore acknowledges a sent message, its state is shown next to the time
+    private static void setSentDateTime(TextView textDateTime, ChatMessage chatMessage) {
+        textDateTime.setText(sentDateTime(chatMessage));
+        textDateTime.setClickable(chatMessage.getSendState() == ChatMessage.SEND_STATE_FAILED);
+    }
+
+    // Built again only when the send state changed since the last bind
+    static String sentDateTime(ChatMessage chatMessage) {
+        int sendState = chatMessage.getSendState();
+        String text = chatMessage.getDisplayDateTime();
+        if (text == null || chatMessage.getDisplayDateTimeState() != sendState) {
+            text = sentDateTimeText(chatMessage.getDateTime(), sendState);
+            chatMessage.setDisplayDateTime(text, sendState);
+        }
+        return text;
+    }
+
+    private static String sentDateTimeText(String dateTime, int sendState) {
+        switch (sendState) {
+            case ChatMessage.SEND_STATE_QUEUED:
+                return dateTime + " · Waiting for network";
+            case ChatMessage.SEND_STATE_SENDING:
+                return dateTime + " · Sending…";
+            case ChatMessage.SEND_STATE_FAILED:
+                return dateTime + " · Not sent, tap to retry";
+            default:
+                return dateTime;
+        }
+    }
+
+    // Only failed messages are clickable, see setSentDateTime
+    private static void retry(View view, ChatMessage chatMessage) {
+        if (chatMessage.getSendState() == ChatMessage.SEND_STATE_FAILED) {
+            OutboxManager.getInstance(view.getContext()).retry(chatMessage.getId());
+        }
+    }
+
+    private static void setFileName(TextView textFileName, ChatMessage chatMessage) {
+        textFileName.setText(displayFileName(chatMessage));
+    }
+
+    static String displayFileName(ChatMessage chatMessage) {
+        String displayFileName = chatMessage.getDisplayFileName();
+        if (displayFileName == null) {
+            displayFileName = FileUtils.shortenMiddleToFit(chatMessage.getFileName(), 15);
+            chatMessage.setDisplayFileName(displayFileName);
+        }
+        return displayFileName;
+    }
+
+    static int fileIconRes(ChatMessage chatMessage) {
+        int fileIconRes = chatMessage.getFileIconRes();
+        if (fileIconRes == 0) {
+            fileIconRes = FileUtils.getFileIconRes(chatMessage.getFileName());
+            chatMessage.setFileIconRes(fileIconRes);
+        }
+        return fileIconRes;
+    }
+
+    private static void openFile(View view, ChatMessage chatMessage) {
+        FileUtils.confirmAndDownloadFile(view.getContext(), chatMessage.getMessage(), chatMessage.getFileName());
+    }
+
+    // Each holder also takes its views one by one, which lets JVM tests bind into stub views
+
     static class SentTextViewHolder extends RecyclerView.ViewHolder {
-        private final ItemContainerSentMessageBinding binding;
+        private final TextView textMessage;
+        private final TextView textDateTime;
+        private ChatMessage chatMessage;
 
         SentTextViewHolder(ItemContainerSentMessageBinding binding) {
-            super(binding.getRoot());
-            this.binding = binding;
+            this(binding.getRoot(), binding.textMessage, binding.textDateTime);
         }
 
-        void setData(ChatMessage chatMessage) {
-            binding.textMessage.setText(chatMessage.getMessage());
-            binding.textDateTime.setText(chatMessage.getDateTime());
-            binding.textMessage.setOnLongClickListener(v -> {
-                ClipboardManager clipboard = (ClipboardManager) v.getContext().getSystemService(Context.CLIPBOARD_SERVICE);
-                ClipData clip = ClipData.newPlainText("Copied Text", chatMessage.getMessage());
-                clipboard.setPrimaryClip(clip);
-                Toast.makeText(v.getContext(), "Text copied!", Toast.LENGTH_SHORT).show();
+        SentTextViewHolder(View itemView, TextView textMessage, TextView textDateTime) {
+            super(itemView);
+            this.textMessage = textMessage;
+            this.textDateTime = textDateTime;
+            textMessage.setOnLongClickListener(v -> {
+                copyText(v, chatMessage.getMessage());
                 return true;
             });
+            textDateTime.setOnClickListener(v -> retry(v, chatMessage));
+        }
+
+        void setData(ChatMessage chatMessage) {
+            this.chatMessage = chatMessage;
+            textMessage.setText(chatMessage.getMessage());
+            setSentDateTime(textDateTime, chatMessage);
         }
     }
 
     static class ReceivedTextViewHolder extends RecyclerView.ViewHolder {
-        private final ItemContainerReceivedMessageBinding binding;
+        private final TextView textMessage;
+        private final TextView textDateTime;
+        private ChatMessage chatMessage;
+        private final ProfileImage profileImage;
 
         ReceivedTextViewHolder(ItemContainerReceivedMessageBinding binding) {
-            super(binding.getRoot());
-            this.binding = binding;
+            this(binding.getRoot(), binding.textMessage, binding.textDateTime, binding.imageProfile);
         }
 
-        void setData(ChatMessage chatMessage, Bitmap receiverProfileImage) {
-            binding.textMessage.setText(chatMessage.getMessage());
-            binding.textDateTime.setText(chatMessage.getDateTime());
-            binding.imageProfile.setImageBitmap(receiverProfileImage);
-            binding.textMessage.setOnLongClickListener(v -> {
-                ClipboardManager clipboard = (ClipboardManager) v.getContext().getSystemService(Context.CLIPBOARD_SERVICE);
-                ClipData clip = ClipData.newPlainText("Copied Text", chatMessage.getMessage());
-                clipboard.setPrimaryClip(clip);
-                Toast.makeText(v.getContext(), "Text copied!", Toast.LENGTH_SHORT).show();
+        ReceivedTextViewHolder(View itemView, TextView textMessage, TextView textDateTime, ImageView imageProfile) {
+            super(itemView);
+            this.textMessage = textMessage;
+            this.textDateTime = textDateTime;
+            this.profileImage = new ProfileImage(imageProfile);
+            textMessage.setOnLongClickListener(v -> {
+                copyText(v, chatMessage.getMessage());
                 return true;
             });
         }
+
+        void setData(ChatMessage chatMessage, Bitmap receiverProfileImage) {
+            this.chatMessage = chatMessage;
+            textMessage.setText(chatMessage.getMessage());
+            textDateTime.setText(chatMessage.getDateTime());
+            profileImage.set(receiverProfileImage);
+        }
     }
 
     static class SentImageViewHolder extends RecyclerView.ViewHolder {
-        private final ItemContainerSentImageBinding binding;
+        private final ImageView imageMessage;
+        private final TextView textDateTime;
+        private ChatMessage chatMessage;
 
         SentImageViewHolder(ItemContainerSentImageBinding binding) {
-            super(binding.getRoot());
-            this.binding = binding;
+            this(binding.getRoot(), binding.imageMessage, binding.textDateTime);
         }
 
-        void setData(ChatMessage chatMessage) {
-            Glide.with(binding.imageMessage.getContext())
-                    .load(chatMessage.getMessage())
-                    .into(binding.imageMessage);
-            binding.textDateTime.setText(chatMessage.getDateTime());
+        SentImageViewHolder(View itemView, ImageView imageMessage, TextView textDateTime) {
+            super(itemView);
+            this.imageMessage = imageMessage;
+            this.textDateTime = textDateTime;
+            imageMessage.setOnClickListener(v -> openImage(v, chatMessage));
+            textDateTime.setOnClickListener(v -> retry(v, chatMessage));
+        }
+
+        void setData(ChatMessage chatMessage, @Nullable ChatImagePreloader imagePreloader) {
+            this.chatMessage = chatMessage;
+            setImageMessage(imageMessage, chatMessage, imagePreloader);
+            setSentDateTime(textDateTime, chatMessage);
         }
     }
 
     static class ReceivedImageViewHolder extends RecyclerView.ViewHolder {
-        private final ItemContainerReceivedImageBinding binding;
+        private final ImageView imageMessage;
+        private final TextView textDateTime;
+        private ChatMessage chatMessage;
+        private final ProfileImage profileImage;
 
         ReceivedImageViewHolder(ItemContainerReceivedImageBinding binding) {
-            super(binding.getRoot());
-            this.binding = binding;
+            this(binding.getRoot(), binding.imageMessage, binding.textDateTime, binding.imageProfile);
         }
 
-        void setData(ChatMessage chatMessage, Bitmap receiverProfileImage) {
-            Glide.with(binding.imageMessage.getContext())
-                    .load(chatMessage.getMessage())
-                    .into(binding.imageMessage);
-            binding.textDateTime.setText(chatMessage.getDateTime());
-            binding.imageProfile.setImageBitmap(receiverProfileImage);
+        ReceivedImageViewHolder(View itemView, ImageView imageMessage, TextView textDateTime, ImageView imageProfile) {
+            super(itemView);
+            this.imageMessage = imageMessage;
+            this.textDateTime = textDateTime;
+            this.profileImage = new ProfileImage(imageProfile);
+            imageMessage.setOnClickListener(v -> openImage(v, chatMessage));
+        }
+
+        void setData(ChatMessage chatMessage, Bitmap receiverProfileImage,
+                     @Nullable ChatImagePreloader imagePreloader) {
+            this.chatMessage = chatMessage;
+            setImageMessage(imageMessage, chatMessage, imagePreloader);
+            textDateTime.setText(chatMessage.getDateTime());
+            profileImage.set(receiverProfileImage);
         }
     }
 
     static class SentFileViewHolder extends RecyclerView.ViewHolder {
-        private final ItemContainerSentFileBinding binding;
+        private final TextView textFileName;
+        private final TextView textDateTime;
+        private final ImageView iconFile;
+        private ChatMessage chatMessage;
+        private int iconRes;
 
         SentFileViewHolder(ItemContainerSentFileBinding binding) {
-            super(binding.getRoot());
-            this.binding = binding;
+            this(binding.getRoot(), binding.fileContainer, binding.textFileName, binding.textDateTime, binding.iconFile);
+        }
+
+        SentFileViewHolder(View itemView, View fileContainer, TextView textFileName, TextView textDateTime,
+                           ImageView iconFile) {
+            super(itemView);
+            this.textFileName = textFileName;
+            this.textDateTime = textDateTime;
+            this.iconFile = iconFile;
+            fileContainer.setOnClickListener(v -> openFile(v, chatMessage));
+            textDateTime.setOnClickListener(v -> retry(v, chatMessage));
         }
 
         void setData(ChatMessage chatMessage) {
-            binding.textFileName.setText(
-                    FileUtils.shortenMiddleToFit(chatMessage.getFileName(), 15)
-            );
-            binding.textDateTime.setText(chatMessage.getDateTime());
-            binding.iconFile.setImageResource(FileUtils.getFileIconRes(chatMessage.getFileName()));
-
-            binding.fileContainer.setOnClickListener(v -> {
-                FileUtils.confirmAndDownloadFile(v.getContext(), chatMessage.getMessage(), chatMessage.getFileName());
-            });
+            this.chatMessage = chatMessage;
+            setFileName(textFileName, chatMessage);
+            setSentDateTime(textDateTime, chatMessage);
+            int fileIconRes = fileIconRes(chatMessage);
+            if (fileIconRes != iconRes) {
+                iconFile.setImageResource(fileIconRes);
+                iconRes = fileIconRes;
+            }
         }
     }
 
     static class ReceivedFileViewHolder extends RecyclerView.ViewHolder {
-        private final ItemContainerReceivedFileBinding binding;
+        private final TextView textFileName;
+        private final TextView textDateTime;
+        private final ImageView iconFile;
+        private ChatMessage chatMessage;
+        private int iconRes;
+        private final ProfileImage profileImage;
 
         ReceivedFileViewHolder(ItemContainerReceivedFileBinding binding) {
-            super(binding.getRoot());
-            this.binding = binding;
+            this(binding.getRoot(), binding.fileContainer, binding.textFileName, binding.textDateTime,
+                    binding.iconFile, binding.imageProfile);
+        }
+
+        ReceivedFileViewHolder(View itemView, View fileContainer, TextView textFileName, TextView textDateTime,
+                               ImageView iconFile, ImageView imageProfile) {
+            super(itemView);
+            this.textFileName = textFileName;
+            this.textDateTime = textDateTime;
+            this.iconFile = iconFile;
+            this.profileImage = new ProfileImage(imageProfile);
+            fileContainer.setOnClickListener(v -> openFile(v, chatMessage));
         }
 
         void setData(ChatMessage chatMessage, Bitmap receiverProfileImage) {
-            binding.textFileName.setText(
-                    FileUtils.shortenMiddleToFit(chatMessage.getFileName(), 15)
-            );
-            binding.textDateTime.setText(chatMessage.getDateTime());
-            binding.iconFile.setImageResource(FileUtils.getFileIconRes(chatMessage.getFileName()));
-            binding.imageProfile.setImageBitmap(receiverProfileImage);
-
-            binding.fileContainer.setOnClickListener(v -> {
-                FileUtils.confirmAndDownloadFile(v.getContext(), chatMessage.getMessage(), chatMessage.getFileName());
-            });
+            this.chatMessage = chatMessage;
+            setFileName(textFileName, chatMessage);
+            textDateTime.setText(chatMessage.getDateTime());
+            int fileIconRes = fileIconRes(chatMessage);
+            if (fileIconRes != iconRes) {
+                iconFile.setImageResource(fileIconRes);
+                iconRes = fileIconRes;
+            }
+            profileImage.set(receiverProfileImage);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,260 @@
+package com.hgb7725.botchattyapp.adapters;
+
+import android.content.Context;
+import android.graphics.drawable.Drawable;
+import android.view.Choreographer;
+import android.widget.ImageView;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.RequestBuilder;
+import com.bumptech.glide.RequestManager;
+import com.bumptech.glide.load.DataSource;
+import com.bumptech.glide.load.engine.GlideException;
+import com.bumptech.glide.request.RequestListener;
+import com.bumptech.glide.request.target.CustomTarget;
+import com.bumptech.glide.request.target.Target;
+import com.bumptech.glide.request.transition.Transition;
+import com.hgb7725.botchattyapp.models.ChatMessage;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Loads and decodes the images of the rows about to scroll into view, so they bind from
+ * Glide's memory cache instead of showing an empty bubble. The window follows the scroll
+ * direction and grows with the scroll speed, up to the configured number of rows; preloads
+ * that fall out of it are cancelled. Everything runs on the main thread.
+ */
+public class ChatImagePreloader extends RecyclerView.OnScrollListener implements Choreographer.FrameCallback {
+
+    // Scrolling this many pixels in one frame preloads the full window
+    private static final int FAST_SCROLL_PX_PER_FRAME = 120;
+
+    /*
+     * Counters since the chat was opened, for logging.
+     */
+    public static class Stats {
+        public final long preloadsStarted;
+        public final long preloadsCancelled;
+        // Bound images that were already decoded in memory
+        public final long hits;
+        public final long misses;
+        // Frames drawn while a visible bubble had neither its image nor a placeholder
+        public final long blankFrames;
+
+        Stats(long preloadsStarted, long preloadsCancelled, long hits, long misses, long blankFrames) {
+            this.preloadsStarted = preloadsStarted;
+            this.preloadsCancelled = preloadsCancelled;
+            this.hits = hits;
+            this.misses = misses;
+            this.blankFrames = blankFrames;
+        }
+
+        public double getHitRatio() {
+            long binds = hits + misses;
+            return binds > 0 ? (double) hits / binds : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "preloads=" + preloadsStarted
+                    + " cancelled=" + preloadsCancelled
+                    + " hits=" + hits
+                    + " misses=" + misses
+                    + " hitRatio=" + Math.round(getHitRatio() * 100) + "%"
+                    + " blankFrames=" + blankFrames;
+        }
+    }
+
+    private static class PreloadTarget extends CustomTarget<Drawable> {
+        boolean isDone = false;
+
+        PreloadTarget(int width, int height) {
+            super(width, height);
+        }
+
+        @Override
+        public void onResourceReady(@NonNull Drawable resource, @Nullable Transition<? super Drawable> transition) {
+            isDone = true;
+        }
+
+        @Override
+        public void onLoadFailed(@Nullable Drawable errorDrawable) {
+            isDone = true;
+        }
+
+        @Override
+        public void onLoadCleared(@Nullable Drawable placeholder) {
+        }
+    }
+
+    private final RecyclerView recyclerView;
+    private final List<ChatMessage> chatMessages;
+    private final RequestManager requestManager;
+    private final int maxRowsAhead;
+    // Preloads of the rows in the current window, by message id
+    private final Map<String, PreloadTarget> preloads = new HashMap<>();
+    // Bound bubbles still waiting for their image, with the message they show
+    private final Map<ImageView, String> blankViews = new HashMap<>();
+    // Chats open at the bottom and are mostly read upwards
+    private int direction = -1;
+    private boolean isFrameCallbackPosted = false;
+
+    private long preloadsStarted = 0;
+    private long preloadsCancelled = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long blankFrames = 0;
+
+    public ChatImagePreloader(RecyclerView recyclerView, List<ChatMessage> chatMessages, int maxRowsAhead) {
+        this.recyclerView = recyclerView;
+        this.chatMessages = chatMessages;
+        this.requestManager = Glide.with(recyclerView);
+        this.maxRowsAhead = maxRowsAhead;
+    }
+
+    public Stats getStats() {
+        return new Stats(preloadsStarted, preloadsCancelled, hits, misses, blankFrames);
+    }
+
+    @Override
+    public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+        // Also called with 0 after every layout, e.g. when the first messages arrive
+        if (dy != 0) {
+            direction = dy > 0 ? 1 : -1;
+        }
+        int rowsAhead = Math.min(maxRowsAhead, 1 + Math.abs(dy) * maxRowsAhead / FAST_SCROLL_PX_PER_FRAME);
+        preload(rowsAhead);
+    }
+
+    private void preload(int rowsAhead) {
+        if (!(recyclerView.getLayoutManager() instanceof LinearLayoutManager)) {
+            return;
+        }
+        LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+        int first = layoutManager.findFirstVisibleItemPosition();
+        int last = layoutManager.findLastVisibleItemPosition();
+        if (first == RecyclerView.NO_POSITION) {
+            return;
+        }
+        int from = direction > 0 ? last + 1 : Math.max(0, first - rowsAhead);
+        int to = direction > 0 ? Math.min(chatMessages.size() - 1, last + rowsAhead) : first - 1;
+
+        Context context = recyclerView.getContext();
+        Set<String> inWindow = new HashSet<>();
+        for (int position = from; position <= to; position++) {
+            ChatMessage chatMessage = chatMessages.get(position);
+            if (!"image".equals(chatMessage.getType()) || chatMessage.getMessage() == null) {
+                continue;
+            }
+            inWindow.add(chatMessage.getId());
+            if (!preloads.containsKey(chatMessage.getId())) {
+                int width = ChatImages.width(context);
+                PreloadTarget target = new PreloadTarget(width, ChatImages.height(width, chatMessage));
+                preloads.put(chatMessage.getId(), ChatImages.request(requestManager, context, chatMessage).into(target));
+                preloadsStarted++;
+            }
+        }
+
+        // A finished preload that is cleared leaves its image in the memory cache
+        Iterator<Map.Entry<String, PreloadTarget>> iterator = preloads.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, PreloadTarget> entry = iterator.next();
+            if (!inWindow.contains(entry.getKey())) {
+                if (!entry.getValue().isDone) {
+                    preloadsCancelled++;
+                }
+                requestManager.clear(entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    /*
+     * Counts the bind as a hit or miss, and the bubble as blank until its image is shown.
+     * A bubble drawing a placeholder is not blank.
+     */
+    RequestBuilder<Drawable> track(ImageView imageView, String messageId, boolean hasPlaceholder,
+                                   RequestBuilder<Drawable> request) {
+        if (hasPlaceholder) {
+            blankViews.remove(imageView);
+        } else {
+            blankViews.put(imageView, messageId);
+        }
+        return request.listener(new RequestListener<Drawable>() {
+            @Override
+            public boolean onLoadFailed(@Nullable GlideException e, Object model,
+                                        @NonNull Target<Drawable> target, boolean isFirstResource) {
+                misses++;
+                shown(imageView, messageId);
+                return false;
+            }
+
+            @Override
+            public boolean onResourceReady(@NonNull Drawable resource, @NonNull Object model,
+                                           Target<Drawable> target, @NonNull DataSource dataSource,
+                                           boolean isFirstResource) {
+                if (dataSource == DataSource.MEMORY_CACHE) {
+                    hits++;
+                } else {
+                    misses++;
+                }
+                shown(imageView, messageId);
+                return false;
+            }
+        });
+    }
+
+    // Called after the request was started: memory cache hits have completed by then
+    void onTracked() {
+        if (!blankViews.isEmpty() && !isFrameCallbackPosted) {
+            isFrameCallbackPosted = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    void untrack(ImageView imageView) {
+        blankViews.remove(imageView);
+    }
+
+    private void shown(ImageView imageView, String messageId) {
+        if (messageId.equals(blankViews.get(imageView))) {
+            blankViews.remove(imageView);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        isFrameCallbackPosted = false;
+        if (blankViews.isEmpty()) {
+            return;
+        }
+        for (ImageView imageView : blankViews.keySet()) {
+            if (imageView.isShown()) {
+                blankFrames++;
+                break;
+            }
+        }
+        isFrameCallbackPosted = true;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    public void release() {
+        for (PreloadTarget target : preloads.values()) {
+            requestManager.clear(target);
+        }
+        preloads.clear();
+        blankViews.clear();
+        Choreographer.getInstance().removeFrameCallback(this);
+        isFrameCallbackPosted = false;
+    }
+}
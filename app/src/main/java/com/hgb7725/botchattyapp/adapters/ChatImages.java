@@ -0,0 +1,103 @@
+package com.hgb7725.botchattyapp.adapters;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.LruCache;
+
+import androidx.annotation.Nullable;
+
+import com.bumptech.glide.RequestBuilder;
+import com.bumptech.glide.RequestManager;
+import com.bumptech.glide.load.engine.DiskCacheStrategy;
+import com.bumptech.glide.load.resource.drawable.DrawableTransitionOptions;
+import com.bumptech.glide.request.transition.DrawableCrossFadeFactory;
+import com.hgb7725.botchattyapp.models.ChatMessage;
+import com.hgb7725.botchattyapp.utilities.BlurHash;
+import com.hgb7725.botchattyapp.utilities.ImageUrls;
+
+/*
+ * Size and request of an image bubble. The adapter and the preloader build the same request,
+ * so an image preloaded ahead of the scroll is found in Glide's memory cache when its row binds.
+ * Bubbles have a fixed width and the height of the stored aspect ratio, within limits, so the
+ * row has its final size before the image arrives, and shows the BlurHash sent with the
+ * message until then.
+ */
+final class ChatImages {
+
+    private static final float MIN_ASPECT = 0.5f;
+    private static final float MAX_ASPECT = 1.5f;
+    // Placeholders are decoded this small and stretched by the ImageView, the blur hides it
+    private static final int PLACEHOLDER_EDGE_PX = 32;
+    private static final float PLACEHOLDER_PUNCH = 1f;
+
+    // Decoded placeholders by BlurHash, so rebinding a row does not decode again
+    private static final LruCache<String, Bitmap> placeholders = new LruCache<>(100);
+    private static final DrawableTransitionOptions crossFade = DrawableTransitionOptions.with(
+            new DrawableCrossFadeFactory.Builder().setCrossFadeEnabled(true).build());
+
+    private ChatImages() {
+    }
+
+    static int width(Context context) {
+        return context.getResources().getDimensionPixelSize(com.intuit.sdp.R.dimen._150sdp);
+    }
+
+    // Square for messages sent before the size was recorded
+    static int height(int widthPx, ChatMessage chatMessage) {
+        if (chatMessage.getImageWidth() <= 0 || chatMessage.getImageHeight() <= 0) {
+            return widthPx;
+        }
+        float aspect = (float) chatMessage.getImageHeight() / chatMessage.getImageWidth();
+        return Math.round(widthPx * Math.max(MIN_ASPECT, Math.min(MAX_ASPECT, aspect)));
+    }
+
+    static String url(Context context, ChatMessage chatMessage, int widthPx, int heightPx) {
+        return ImageUrls.bubble(chatMessage.getMessage(), widthPx, heightPx,
+                context.getResources().getDisplayMetrics());
+    }
+
+    static RequestBuilder<Drawable> request(RequestManager requestManager, Context context, ChatMessage chatMessage) {
+        int width = width(context);
+        int height = height(width, chatMessage);
+        return requestManager
+                .load(url(context, chatMessage, width, height))
+                .override(width, height)
+                .centerCrop()
+                .diskCacheStrategy(DiskCacheStrategy.DATA);
+    }
+
+    /**
+     * The message's BlurHash drawn at the bubble's aspect ratio, or null when it has none or
+     * it cannot be decoded.
+     */
+    @Nullable
+    static Drawable placeholder(Context context, ChatMessage chatMessage, int widthPx, int heightPx) {
+        String hash = chatMessage.getBlurHash();
+        if (hash == null) {
+            return null;
+        }
+        Bitmap bitmap = placeholders.get(hash);
+        if (bitmap == null) {
+            int width = widthPx >= heightPx ? PLACEHOLDER_EDGE_PX
+                    : Math.max(1, PLACEHOLDER_EDGE_PX * widthPx / heightPx);
+            int height = heightPx >= widthPx ? PLACEHOLDER_EDGE_PX
+                    : Math.max(1, PLACEHOLDER_EDGE_PX * heightPx / widthPx);
+            try {
+                int[] pixels = BlurHash.decode(hash, width, height, PLACEHOLDER_PUNCH);
+                bitmap = Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            placeholders.put(hash, bitmap);
+        }
+        // A drawable per view: drawables carry bounds and state of the view drawing them
+        return new BitmapDrawable(context.getResources(), bitmap);
+    }
+
+    // Fades from the placeholder to the image; images from the memory cache appear at once
+    static RequestBuilder<Drawable> withPlaceholder(RequestBuilder<Drawable> request, Drawable placeholder) {
+        return request.placeholder(placeholder).transition(crossFade);
+    }
+}
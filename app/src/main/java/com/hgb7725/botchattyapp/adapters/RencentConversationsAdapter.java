@@ -1,37 +1,78 @@
 package com.hgb7725.botchattyapp.adapters;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.view.LayoutInflater;
 import android.view.ViewGroup;
 
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
-import com.google.firebase.firestore.FirebaseFirestore;
 import com.hgb7725.botchattyapp.R;
 import com.hgb7725.botchattyapp.databinding.ItemContainerRecentConversionBinding;
+import com.hgb7725.botchattyapp.firebase.PresenceService;
 import com.hgb7725.botchattyapp.listeners.ConversionListener;
+import com.hgb7725.botchattyapp.listeners.PresenceListener;
 import com.hgb7725.botchattyapp.models.ChatMessage;
 import com.hgb7725.botchattyapp.models.User;
-import com.hgb7725.botchattyapp.utilities.Constants;
+import com.hgb7725.botchattyapp.utilities.AvatarCache;
+import com.hgb7725.botchattyapp.utilities.TimestampFormatter;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
 import java.util.Objects;
+import java.util.Set;
 
 public class RencentConversationsAdapter extends RecyclerView.Adapter<RencentConversationsAdapter.ConversionViewHolder> {
 
-    private final List<ChatMessage> chatMessages;
+    private final AsyncListDiffer<ChatMessage> differ = new AsyncListDiffer<>(this, DIFF_CALLBACK);
     private final ConversionListener conversionListener;
-    private final FirebaseFirestore database;
+    private final Set<ConversionViewHolder> watchingHolders = new HashSet<>();
 
-    public RencentConversationsAdapter(List<ChatMessage> chatMessages, ConversionListener conversionListener) {
-        this.chatMessages = chatMessages;
+    private static final Object PAYLOAD_DATE_TIME = new Object();
+    private static final Object PAYLOAD_LAST_MESSAGE = new Object();
+
+    // Conversations are matched by document id; a new message only rebinds its texts
+    private static final DiffUtil.ItemCallback<ChatMessage> DIFF_CALLBACK = new DiffUtil.ItemCallback<ChatMessage>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull ChatMessage oldItem, @NonNull ChatMessage newItem) {
+            return Objects.equals(oldItem.getId(), newItem.getId());
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull ChatMessage oldItem, @NonNull ChatMessage newItem) {
+            return isSameParticipant(oldItem, newItem)
+                    && Objects.equals(oldItem.getMessage(), newItem.getMessage())
+                    && Objects.equals(oldItem.getDateObject(), newItem.getDateObject());
+        }
+
+        @Override
+        public Object getChangePayload(@NonNull ChatMessage oldItem, @NonNull ChatMessage newItem) {
+            return isSameParticipant(oldItem, newItem) ? PAYLOAD_LAST_MESSAGE : null;
+        }
+
+        private boolean isSameParticipant(ChatMessage oldItem, ChatMessage newItem) {
+            return Objects.equals(oldItem.getConversionId(), newItem.getConversionId())
+                    && Objects.equals(oldItem.getConversionName(), newItem.getConversionName())
+                    && Objects.equals(oldItem.getConversionImage(), newItem.getConversionImage());
+        }
+    };
+
+    public RencentConversationsAdapter(ConversionListener conversionListener) {
         this.conversionListener = conversionListener;
-        this.database = FirebaseFirestore.getInstance();
+    }
+
+    /**
+     * Replaces the list; the difference is computed on a background thread and
+     * dispatched as precise moves and changes. The callback runs once it is applied.
+     */
+    public void submitList(List<ChatMessage> conversations, Runnable commitCallback) {
+        differ.submitList(conversations, commitCallback);
+    }
+
+    public List<ChatMessage> getCurrentList() {
+        return differ.getCurrentList();
     }
 
     @NonNull
@@ -48,16 +89,64 @@ public class RencentConversationsAdapter extends RecyclerView.Adapter<RencentCon
 
     @Override
     public void onBindViewHolder(@NonNull ConversionViewHolder holder, int position) {
-        holder.setData(chatMessages.get(position));
+        holder.setData(differ.getCurrentList().get(position));
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ConversionViewHolder holder, int position, @NonNull List<Object> payloads) {
+        ChatMessage chatMessage = differ.getCurrentList().get(position);
+        if (payloads.contains(PAYLOAD_LAST_MESSAGE)) {
+            holder.setLastMessage(chatMessage);
+        } else if (payloads.contains(PAYLOAD_DATE_TIME)) {
+            holder.setDateTime(chatMessage);
+        } else {
+            super.onBindViewHolder(holder, position, payloads);
+        }
     }
 
     @Override
     public int getItemCount() {
-        return chatMessages.size();
+        return differ.getCurrentList().size();
     }
 
-    class ConversionViewHolder extends RecyclerView.ViewHolder {
+    @Override
+    public void onViewRecycled(@NonNull ConversionViewHolder holder) {
+        holder.stopWatching();
+    }
+
+    // Releases presence subscriptions of rows that are still bound
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        for (ConversionViewHolder holder : new ArrayList<>(watchingHolders)) {
+            holder.stopWatching();
+        }
+    }
+
+    /**
+     * Re-renders the relative time ("5 min ago") of the rows on screen,
+     * rebinding only the rows whose label actually changed.
+     */
+    public void refreshVisibleDateTimes(RecyclerView recyclerView) {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < recyclerView.getChildCount(); i++) {
+            ConversionViewHolder holder =
+                    (ConversionViewHolder) recyclerView.getChildViewHolder(recyclerView.getChildAt(i));
+            int position = holder.getAdapterPosition();
+            if (position == RecyclerView.NO_POSITION) {
+                continue;
+            }
+            String dateTime = TimestampFormatter.formatRelative(
+                    differ.getCurrentList().get(position).getDateObject(), now);
+            if (!dateTime.equals(holder.boundDateTime)) {
+                notifyItemChanged(position, PAYLOAD_DATE_TIME);
+            }
+        }
+    }
+
+    class ConversionViewHolder extends RecyclerView.ViewHolder implements PresenceListener {
         ItemContainerRecentConversionBinding binding;
+        String boundDateTime;
+        String watchedUserId;
 
         ConversionViewHolder(ItemContainerRecentConversionBinding itemContainerRecentConversionBinding) {
             super(itemContainerRecentConversionBinding.getRoot());
@@ -65,11 +154,11 @@ public class RencentConversationsAdapter extends RecyclerView.Adapter<RencentCon
         }
 
         void setData(ChatMessage chatMessage) {
-            binding.imageProfile.setImageBitmap(getConversionImage(chatMessage.getConversionImage()));
+            AvatarCache.getInstance(binding.getRoot().getContext()).load(
+                    binding.imageProfile, chatMessage.getConversionId(), chatMessage.getConversionImage());
             binding.textName.setText(chatMessage.getConversionName());
-            binding.textRecentMessage.setText(chatMessage.getMessage());
-            binding.textDateTime.setText(getReadableDateTime(chatMessage.getDateObject()));
-            
+            setLastMessage(chatMessage);
+
             binding.getRoot().setOnClickListener(v -> {
                 User user = new User();
                 user.setId(chatMessage.getConversionId());
@@ -78,34 +167,41 @@ public class RencentConversationsAdapter extends RecyclerView.Adapter<RencentCon
                 conversionListener.onConversionClicked(user);
             });
 
-            // Check availability status like in ChatActivity
-            database.collection(Constants.KEY_COLLECTION_USERS).document(
-                    chatMessage.getConversionId()
-            ).addSnapshotListener((value, error) -> {
-                if (error != null) {
-                    return;
-                }
-                if (value != null) {
-                    if (value.getLong(Constants.KEY_AVAILABILITY) != null) {
-                        int availability = Objects.requireNonNull(
-                                value.getLong(Constants.KEY_AVAILABILITY)
-                        ).intValue();
-                        boolean isOnline = availability == 1;
-                        binding.viewOnlineStatus.setBackgroundResource(
-                                isOnline ? R.drawable.background_online_status : R.drawable.background_offline_status
-                        );
-                    }
-                }
-            });
+            // Availability is shared with every other row and screen watching the same user
+            if (!chatMessage.getConversionId().equals(watchedUserId)) {
+                stopWatching();
+                binding.viewOnlineStatus.setBackgroundResource(R.drawable.background_offline_status);
+                watchedUserId = chatMessage.getConversionId();
+                watchingHolders.add(this);
+                PresenceService.getInstance().watch(watchedUserId, this);
+            }
+        }
+
+        void stopWatching() {
+            if (watchedUserId != null) {
+                PresenceService.getInstance().unwatch(watchedUserId, this);
+                watchedUserId = null;
+            }
+            watchingHolders.remove(this);
+        }
+
+        @Override
+        public void onPresenceChanged(String userId, boolean isOnline) {
+            if (userId.equals(watchedUserId)) {
+                binding.viewOnlineStatus.setBackgroundResource(
+                        isOnline ? R.drawable.background_online_status : R.drawable.background_offline_status
+                );
+            }
         }
 
-        private Bitmap getConversionImage(String encodedImage) {
-            byte[] bytes = android.util.Base64.decode(encodedImage, android.util.Base64.DEFAULT);
-            return BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+        void setLastMessage(ChatMessage chatMessage) {
+            binding.textRecentMessage.setText(chatMessage.getMessage());
+            setDateTime(chatMessage);
         }
 
-        private String getReadableDateTime(Date date) {
-            return new SimpleDateFormat("MMMM dd, yyyy - hh:mm a", Locale.getDefault()).format(date);
+        void setDateTime(ChatMessage chatMessage) {
+            boundDateTime = TimestampFormatter.formatRelative(chatMessage.getDateObject(), System.currentTimeMillis());
+            binding.textDateTime.setText(boundDateTime);
         }
     }
 }
@@ -1,33 +1,52 @@
 package com.hgb7725.botchattyapp.adapters;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.util.Base64;
 import android.view.LayoutInflater;
 import android.view.ViewGroup;
 
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.hgb7725.botchattyapp.databinding.ItemContainerUserBinding;
 import com.hgb7725.botchattyapp.listeners.UserListener;
 import com.hgb7725.botchattyapp.models.User;
+import com.hgb7725.botchattyapp.utilities.AvatarCache;
 
 import java.util.List;
+import java.util.Objects;
 
     /*
      * provide and store data to item container users
      */
 public class UsersAdapter extends RecyclerView.Adapter<UsersAdapter.UserViewHolder>{
 
-    private final List<User> users;
+    private final AsyncListDiffer<User> differ = new AsyncListDiffer<>(this, DIFF_CALLBACK);
     private final UserListener userListener;
 
-    public UsersAdapter(List<User> users, UserListener userListener) {
-        this.users = users;
+    private static final DiffUtil.ItemCallback<User> DIFF_CALLBACK = new DiffUtil.ItemCallback<User>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull User oldItem, @NonNull User newItem) {
+            return Objects.equals(oldItem.getId(), newItem.getId());
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull User oldItem, @NonNull User newItem) {
+            return Objects.equals(oldItem.getName(), newItem.getName())
+                    && Objects.equals(oldItem.getEmail(), newItem.getEmail())
+                    && Objects.equals(oldItem.getImage(), newItem.getImage());
+        }
+    };
+
+    public UsersAdapter(UserListener userListener) {
         this.userListener = userListener;
     }
 
+    // Next page or search results; the difference is computed on a background thread
+    public void submitList(List<User> users) {
+        differ.submitList(users);
+    }
+
     @NonNull
     @Override
     public UserViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
@@ -39,12 +58,12 @@ public class UsersAdapter extends RecyclerView.Adapter<UsersAdapter.UserViewHold
 
     @Override // bind data to views in ViewHolder
     public void onBindViewHolder(@NonNull UserViewHolder holder, int position) {
-        holder.setUserData(users.get(position));
+        holder.setUserData(differ.getCurrentList().get(position));
     }
 
     @Override
     public int getItemCount() {
-        return users.size();
+        return differ.getCurrentList().size();
     }
 
     // Stores references to views in each item's layout.
@@ -58,13 +77,9 @@ public class UsersAdapter extends RecyclerView.Adapter<UsersAdapter.UserViewHold
         void setUserData(User user) {
             binding.textName.setText(user.getName());
             binding.textEmail.setText(user.getEmail());
-            binding.imageProfile.setImageBitmap(getUserImage(user.getImage()));
+            AvatarCache.getInstance(binding.getRoot().getContext())
+                    .load(binding.imageProfile, user.getId(), user.getImage());
             binding.getRoot().setOnClickListener(v -> userListener.onUserClicked(user));
         }
     }
-
-    private Bitmap getUserImage(String encodedImage) {
-        byte[] bytes = Base64.decode(encodedImage, Base64.DEFAULT);
-        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
-    }
 }
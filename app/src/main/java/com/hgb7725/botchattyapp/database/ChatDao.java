@@ -0,0 +1,38 @@
+package com.hgb7725.botchattyapp.database;
+
+import com.hgb7725.botchattyapp.models.ChatMessage;
+
+import java.util.List;
+
+/*
+ * Local copy of messages and conversations, so screens can render before Firestore answers.
+ * Implementations are called from a background thread.
+ */
+public interface ChatDao {
+
+    // Newest messages of a conversation, oldest first
+    List<ChatMessage> getLatestMessages(String conversationKey, int limit);
+
+    // Messages before the given one, ordered by time then id, oldest first
+    List<ChatMessage> getMessagesBefore(String conversationKey, long beforeTime, String beforeId, int limit);
+
+    // Stores messages, replacing those with the same id; see ChatSync for the watermark
+    void saveMessages(String conversationKey, List<ChatMessage> chatMessages);
+
+    // Server updatedAt (ms) the synced data is current up to, 0 if nothing was synced yet
+    long getWatermark(String syncKey);
+
+    void setWatermark(String syncKey, long watermark);
+
+    List<ChatMessage> getConversations(String userId);
+
+    void saveConversations(String userId, List<ChatMessage> conversations);
+
+    // Keeps at most the given number of newest messages per conversation
+    void trimMessages(String conversationKey, int keepNewest);
+
+    // Drops cached messages of conversations that are not among the most recently active ones
+    void compact(String userId, int keepConversations);
+
+    void clear();
+}
@@ -0,0 +1,502 @@
+package com.hgb7725.botchattyapp.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import com.hgb7725.botchattyapp.models.ChatMessage;
+import com.hgb7725.botchattyapp.models.OutgoingMessage;
+import com.hgb7725.botchattyapp.models.User;
+import com.hgb7725.botchattyapp.utilities.ConversationKeys;
+import com.hgb7725.botchattyapp.utilities.NameKeys;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+public class ChatDatabase extends SQLiteOpenHelper implements ChatDao, OutboxDao, UserDao {
+
+    private static final String DATABASE_NAME = "botchatty.db";
+    private static final int DATABASE_VERSION = 6;
+
+    private static final String TABLE_MESSAGES = "messages";
+    private static final String TABLE_CONVERSATIONS = "conversations";
+    private static final String TABLE_SYNC_STATE = "sync_state";
+    private static final String TABLE_OUTBOX = "outbox";
+    private static final String TABLE_USERS = "users";
+
+    private static final String CONVERSATIONS_SYNC_PREFIX = "conversations_";
+    private static final String USERS_SYNC_KEY = "users_directory";
+
+    private static volatile ChatDatabase instance;
+
+    private ChatDatabase(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    public static ChatDatabase getInstance(Context context) {
+        if (instance == null) {
+            synchronized (ChatDatabase.class) {
+                if (instance == null) {
+                    instance = new ChatDatabase(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    public static String conversationsSyncKey(String userId) {
+        return CONVERSATIONS_SYNC_PREFIX + userId;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_MESSAGES + " ("
+                + "id TEXT PRIMARY KEY, "
+                + "conversation_key TEXT NOT NULL, "
+                + "sender_id TEXT, "
+                + "receiver_id TEXT, "
+                + "message TEXT, "
+                + "type TEXT, "
+                + "file_name TEXT, "
+                + "image_width INTEGER NOT NULL DEFAULT 0, "
+                + "image_height INTEGER NOT NULL DEFAULT 0, "
+                + "blur_hash TEXT, "
+                + "timestamp INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX index_messages_conversation_time ON "
+                + TABLE_MESSAGES + " (conversation_key, timestamp)");
+        db.execSQL("CREATE TABLE " + TABLE_CONVERSATIONS + " ("
+                + "id TEXT PRIMARY KEY, "
+                + "owner_id TEXT NOT NULL, "
+                + "sender_id TEXT, "
+                + "receiver_id TEXT, "
+                + "conversion_id TEXT, "
+                + "conversion_name TEXT, "
+                + "conversion_image TEXT, "
+                + "last_message TEXT, "
+                + "timestamp INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX index_conversations_owner_time ON "
+                + TABLE_CONVERSATIONS + " (owner_id, timestamp)");
+        db.execSQL("CREATE TABLE " + TABLE_SYNC_STATE + " ("
+                + "sync_key TEXT PRIMARY KEY, "
+                + "watermark INTEGER NOT NULL)");
+        createOutbox(db);
+        createUsers(db);
+    }
+
+    private static void createOutbox(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_OUTBOX + " ("
+                + "id TEXT PRIMARY KEY, "
+                + "conversation_key TEXT NOT NULL, "
+                + "sender_id TEXT, "
+                + "sender_name TEXT, "
+                + "sender_image TEXT, "
+                + "receiver_id TEXT, "
+                + "receiver_name TEXT, "
+                + "receiver_image TEXT, "
+                + "message TEXT, "
+                + "type TEXT, "
+                + "file_name TEXT, "
+                + "image_width INTEGER NOT NULL DEFAULT 0, "
+                + "image_height INTEGER NOT NULL DEFAULT 0, "
+                + "blur_hash TEXT, "
+                + "conversation_label TEXT, "
+                + "timestamp INTEGER NOT NULL, "
+                + "send_state INTEGER NOT NULL, "
+                + "attempts INTEGER NOT NULL DEFAULT 0, "
+                + "next_attempt_at INTEGER NOT NULL DEFAULT 0)");
+        db.execSQL("CREATE INDEX index_outbox_state_time ON "
+                + TABLE_OUTBOX + " (send_state, timestamp)");
+    }
+
+    private static void createUsers(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_USERS + " ("
+                + "id TEXT PRIMARY KEY, "
+                + "name TEXT, "
+                + "name_key TEXT NOT NULL, "
+                + "email TEXT, "
+                + "image TEXT, "
+                + "token TEXT)");
+        db.execSQL("CREATE INDEX index_users_name_key ON " + TABLE_USERS + " (name_key)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Version 2 adds the outbox, version 3 the user directory, 4 image sizes and 5 BlurHashes.
+        // Version 6 watermarks are server times, those taken from senders' clocks are dropped
+        if (oldVersion < 2) {
+            createOutbox(db);
+        }
+        if (oldVersion < 3) {
+            createUsers(db);
+        }
+        if (oldVersion < 4) {
+            db.execSQL("ALTER TABLE " + TABLE_MESSAGES + " ADD COLUMN image_width INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + TABLE_MESSAGES + " ADD COLUMN image_height INTEGER NOT NULL DEFAULT 0");
+            // An outbox created above already has the columns
+            if (oldVersion >= 2) {
+                db.execSQL("ALTER TABLE " + TABLE_OUTBOX + " ADD COLUMN image_width INTEGER NOT NULL DEFAULT 0");
+                db.execSQL("ALTER TABLE " + TABLE_OUTBOX + " ADD COLUMN image_height INTEGER NOT NULL DEFAULT 0");
+            }
+        }
+        if (oldVersion < 5) {
+            db.execSQL("ALTER TABLE " + TABLE_MESSAGES + " ADD COLUMN blur_hash TEXT");
+            if (oldVersion >= 2) {
+                db.execSQL("ALTER TABLE " + TABLE_OUTBOX + " ADD COLUMN blur_hash TEXT");
+            }
+        }
+        if (oldVersion < 6) {
+            db.delete(TABLE_SYNC_STATE, "sync_key != ?", new String[]{USERS_SYNC_KEY});
+        }
+    }
+
+    @Override
+    public List<ChatMessage> getLatestMessages(String conversationKey, int limit) {
+        List<ChatMessage> chatMessages = queryMessages(
+                "conversation_key = ?", new String[]{conversationKey}, limit);
+        Collections.reverse(chatMessages);
+        return chatMessages;
+    }
+
+    @Override
+    public List<ChatMessage> getMessagesBefore(String conversationKey, long beforeTime, String beforeId, int limit) {
+        List<ChatMessage> chatMessages = queryMessages(
+                "conversation_key = ? AND (timestamp < ? OR (timestamp = ? AND id < ?))",
+                new String[]{conversationKey, String.valueOf(beforeTime), String.valueOf(beforeTime), beforeId},
+                limit);
+        Collections.reverse(chatMessages);
+        return chatMessages;
+    }
+
+    private List<ChatMessage> queryMessages(String selection, String[] selectionArgs, int limit) {
+        List<ChatMessage> chatMessages = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().query(TABLE_MESSAGES, null, selection, selectionArgs,
+                null, null, "timestamp DESC, id DESC", String.valueOf(limit))) {
+            while (cursor.moveToNext()) {
+                ChatMessage chatMessage = new ChatMessage();
+                chatMessage.setId(cursor.getString(cursor.getColumnIndexOrThrow("id")));
+                chatMessage.setSenderId(cursor.getString(cursor.getColumnIndexOrThrow("sender_id")));
+                chatMessage.setReceiverId(cursor.getString(cursor.getColumnIndexOrThrow("receiver_id")));
+                chatMessage.setMessage(cursor.getString(cursor.getColumnIndexOrThrow("message")));
+                chatMessage.setType(cursor.getString(cursor.getColumnIndexOrThrow("type")));
+                chatMessage.setFileName(cursor.getString(cursor.getColumnIndexOrThrow("file_name")));
+                chatMessage.setImageWidth(cursor.getInt(cursor.getColumnIndexOrThrow("image_width")));
+                chatMessage.setImageHeight(cursor.getInt(cursor.getColumnIndexOrThrow("image_height")));
+                chatMessage.setBlurHash(cursor.getString(cursor.getColumnIndexOrThrow("blur_hash")));
+                chatMessage.setDateObject(new Date(cursor.getLong(cursor.getColumnIndexOrThrow("timestamp"))));
+                chatMessages.add(chatMessage);
+            }
+        }
+        return chatMessages;
+    }
+
+    @Override
+    public void saveMessages(String conversationKey, List<ChatMessage> chatMessages) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (ChatMessage chatMessage : chatMessages) {
+                if (chatMessage.getDateObject() == null) {
+                    continue;
+                }
+                ContentValues values = new ContentValues();
+                values.put("id", chatMessage.getId());
+                values.put("conversation_key", conversationKey);
+                values.put("sender_id", chatMessage.getSenderId());
+                values.put("receiver_id", chatMessage.getReceiverId());
+                values.put("message", chatMessage.getMessage());
+                values.put("type", chatMessage.getType());
+                values.put("file_name", chatMessage.getFileName());
+                values.put("image_width", chatMessage.getImageWidth());
+                values.put("image_height", chatMessage.getImageHeight());
+                values.put("blur_hash", chatMessage.getBlurHash());
+                values.put("timestamp", chatMessage.getDateObject().getTime());
+                db.insertWithOnConflict(TABLE_MESSAGES, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public long getWatermark(String syncKey) {
+        try (Cursor cursor = getReadableDatabase().query(TABLE_SYNC_STATE, new String[]{"watermark"},
+                "sync_key = ?", new String[]{syncKey}, null, null, null)) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        }
+    }
+
+    @Override
+    public void setWatermark(String syncKey, long watermark) {
+        ContentValues values = new ContentValues();
+        values.put("sync_key", syncKey);
+        values.put("watermark", watermark);
+        getWritableDatabase().insertWithOnConflict(TABLE_SYNC_STATE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    private void advanceWatermark(SQLiteDatabase db, String syncKey, long timestamp) {
+        if (timestamp <= getWatermark(syncKey)) {
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put("sync_key", syncKey);
+        values.put("watermark", timestamp);
+        db.insertWithOnConflict(TABLE_SYNC_STATE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    @Override
+    public List<ChatMessage> getConversations(String userId) {
+        List<ChatMessage> conversations = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().query(TABLE_CONVERSATIONS, null, "owner_id = ?",
+                new String[]{userId}, null, null, "timestamp DESC")) {
+            while (cursor.moveToNext()) {
+                ChatMessage conversation = new ChatMessage();
+                conversation.setId(cursor.getString(cursor.getColumnIndexOrThrow("id")));
+                conversation.setSenderId(cursor.getString(cursor.getColumnIndexOrThrow("sender_id")));
+                conversation.setReceiverId(cursor.getString(cursor.getColumnIndexOrThrow("receiver_id")));
+                conversation.setConversionId(cursor.getString(cursor.getColumnIndexOrThrow("conversion_id")));
+                conversation.setConversionName(cursor.getString(cursor.getColumnIndexOrThrow("conversion_name")));
+                conversation.setConversionImage(cursor.getString(cursor.getColumnIndexOrThrow("conversion_image")));
+                conversation.setMessage(cursor.getString(cursor.getColumnIndexOrThrow("last_message")));
+                conversation.setDateObject(new Date(cursor.getLong(cursor.getColumnIndexOrThrow("timestamp"))));
+                conversations.add(conversation);
+            }
+        }
+        return conversations;
+    }
+
+    @Override
+    public void saveConversations(String userId, List<ChatMessage> conversations) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (ChatMessage conversation : conversations) {
+                if (conversation.getDateObject() == null) {
+                    continue;
+                }
+                ContentValues values = new ContentValues();
+                values.put("id", conversation.getId());
+                values.put("owner_id", userId);
+                values.put("sender_id", conversation.getSenderId());
+                values.put("receiver_id", conversation.getReceiverId());
+                values.put("conversion_id", conversation.getConversionId());
+                values.put("conversion_name", conversation.getConversionName());
+                values.put("conversion_image", conversation.getConversionImage());
+                values.put("last_message", conversation.getMessage());
+                values.put("timestamp", conversation.getDateObject().getTime());
+                db.insertWithOnConflict(TABLE_CONVERSATIONS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public void trimMessages(String conversationKey, int keepNewest) {
+        getWritableDatabase().execSQL("DELETE FROM " + TABLE_MESSAGES
+                        + " WHERE conversation_key = ? AND id NOT IN (SELECT id FROM " + TABLE_MESSAGES
+                        + " WHERE conversation_key = ? ORDER BY timestamp DESC LIMIT " + keepNewest + ")",
+                new Object[]{conversationKey, conversationKey});
+    }
+
+    @Override
+    public void compact(String userId, int keepConversations) {
+        List<String> keepKeys = new ArrayList<>();
+        List<ChatMessage> conversations = getConversations(userId);
+        for (int i = 0; i < conversations.size() && keepKeys.size() < keepConversations; i++) {
+            if (conversations.get(i).getConversionId() != null) {
+                keepKeys.add(ConversationKeys.of(userId, conversations.get(i).getConversionId()));
+            }
+        }
+
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < keepKeys.size(); i++) {
+            placeholders.append(i == 0 ? "?" : ", ?");
+        }
+        String[] args = keepKeys.toArray(new String[0]);
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(TABLE_MESSAGES, "conversation_key NOT IN (" + placeholders + ")", args);
+            // Without its messages a watermark would make the next sync skip history
+            db.delete(TABLE_SYNC_STATE, "sync_key NOT LIKE '" + CONVERSATIONS_SYNC_PREFIX + "%'"
+                    + " AND sync_key != '" + USERS_SYNC_KEY + "'"
+                    + " AND sync_key NOT IN (" + placeholders + ")", args);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public void clear() {
+        SQLiteDatabase db = getWritableDatabase();
+        db.delete(TABLE_MESSAGES, null, null);
+        db.delete(TABLE_CONVERSATIONS, null, null);
+        db.delete(TABLE_SYNC_STATE, null, null);
+        db.delete(TABLE_USERS, null, null);
+        // Unsent messages belong to the user signing out
+        db.delete(TABLE_OUTBOX, null, null);
+    }
+
+    @Override
+    public void insertOutgoing(OutgoingMessage outgoingMessage) {
+        ChatMessage chatMessage = outgoingMessage.getChatMessage();
+        ContentValues values = new ContentValues();
+        values.put("id", chatMessage.getId());
+        values.put("conversation_key", outgoingMessage.getConversationKey());
+        values.put("sender_id", chatMessage.getSenderId());
+        values.put("sender_name", outgoingMessage.getSenderName());
+        values.put("sender_image", outgoingMessage.getSenderImage());
+        values.put("receiver_id", chatMessage.getReceiverId());
+        values.put("receiver_name", outgoingMessage.getReceiverName());
+        values.put("receiver_image", outgoingMessage.getReceiverImage());
+        values.put("message", chatMessage.getMessage());
+        values.put("type", chatMessage.getType());
+        values.put("file_name", chatMessage.getFileName());
+        values.put("image_width", chatMessage.getImageWidth());
+        values.put("image_height", chatMessage.getImageHeight());
+        values.put("blur_hash", chatMessage.getBlurHash());
+        values.put("conversation_label", outgoingMessage.getConversationLabel());
+        values.put("timestamp", chatMessage.getDateObject().getTime());
+        values.put("send_state", chatMessage.getSendState());
+        values.put("attempts", outgoingMessage.getAttempts());
+        values.put("next_attempt_at", outgoingMessage.getNextAttemptAt());
+        getWritableDatabase().insertWithOnConflict(TABLE_OUTBOX, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    @Override
+    public List<OutgoingMessage> getDueOutgoing(long now, int limit) {
+        return queryOutgoing(
+                "(send_state = ? AND next_attempt_at <= ?) OR send_state = ?",
+                new String[]{
+                        String.valueOf(ChatMessage.SEND_STATE_QUEUED),
+                        String.valueOf(now),
+                        String.valueOf(ChatMessage.SEND_STATE_SENDING)
+                },
+                String.valueOf(limit));
+    }
+
+    @Override
+    public List<OutgoingMessage> getOutgoing(String conversationKey) {
+        return queryOutgoing("conversation_key = ?", new String[]{conversationKey}, null);
+    }
+
+    private List<OutgoingMessage> queryOutgoing(String selection, String[] selectionArgs, String limit) {
+        List<OutgoingMessage> outgoingMessages = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().query(TABLE_OUTBOX, null, selection, selectionArgs,
+                null, null, "timestamp ASC", limit)) {
+            while (cursor.moveToNext()) {
+                ChatMessage chatMessage = new ChatMessage();
+                chatMessage.setId(cursor.getString(cursor.getColumnIndexOrThrow("id")));
+                chatMessage.setSenderId(cursor.getString(cursor.getColumnIndexOrThrow("sender_id")));
+                chatMessage.setReceiverId(cursor.getString(cursor.getColumnIndexOrThrow("receiver_id")));
+                chatMessage.setMessage(cursor.getString(cursor.getColumnIndexOrThrow("message")));
+                chatMessage.setType(cursor.getString(cursor.getColumnIndexOrThrow("type")));
+                chatMessage.setFileName(cursor.getString(cursor.getColumnIndexOrThrow("file_name")));
+                chatMessage.setImageWidth(cursor.getInt(cursor.getColumnIndexOrThrow("image_width")));
+                chatMessage.setImageHeight(cursor.getInt(cursor.getColumnIndexOrThrow("image_height")));
+                chatMessage.setBlurHash(cursor.getString(cursor.getColumnIndexOrThrow("blur_hash")));
+                chatMessage.setDateObject(new Date(cursor.getLong(cursor.getColumnIndexOrThrow("timestamp"))));
+                chatMessage.setSendState(cursor.getInt(cursor.getColumnIndexOrThrow("send_state")));
+
+                OutgoingMessage outgoingMessage = new OutgoingMessage(
+                        chatMessage, cursor.getString(cursor.getColumnIndexOrThrow("conversation_key")));
+                outgoingMessage.setSenderName(cursor.getString(cursor.getColumnIndexOrThrow("sender_name")));
+                outgoingMessage.setSenderImage(cursor.getString(cursor.getColumnIndexOrThrow("sender_image")));
+                outgoingMessage.setReceiverName(cursor.getString(cursor.getColumnIndexOrThrow("receiver_name")));
+                outgoingMessage.setReceiverImage(cursor.getString(cursor.getColumnIndexOrThrow("receiver_image")));
+                outgoingMessage.setConversationLabel(
+                        cursor.getString(cursor.getColumnIndexOrThrow("conversation_label")));
+                outgoingMessage.setAttempts(cursor.getInt(cursor.getColumnIndexOrThrow("attempts")));
+                outgoingMessage.setNextAttemptAt(cursor.getLong(cursor.getColumnIndexOrThrow("next_attempt_at")));
+                outgoingMessages.add(outgoingMessage);
+            }
+        }
+        return outgoingMessages;
+    }
+
+    @Override
+    public void updateOutgoing(String id, int sendState, int attempts, long nextAttemptAt) {
+        ContentValues values = new ContentValues();
+        values.put("send_state", sendState);
+        values.put("attempts", attempts);
+        values.put("next_attempt_at", nextAttemptAt);
+        getWritableDatabase().update(TABLE_OUTBOX, values, "id = ?", new String[]{id});
+    }
+
+    @Override
+    public void deleteOutgoing(List<String> ids) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (String id : ids) {
+                db.delete(TABLE_OUTBOX, "id = ?", new String[]{id});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public long getNextOutgoingAttempt() {
+        try (Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT MIN(next_attempt_at) FROM " + TABLE_OUTBOX + " WHERE send_state = ?",
+                new String[]{String.valueOf(ChatMessage.SEND_STATE_QUEUED)})) {
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : -1;
+        }
+    }
+
+    @Override
+    public List<User> getUsers() {
+        List<User> users = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().query(TABLE_USERS, null, null, null,
+                null, null, "name_key ASC")) {
+            while (cursor.moveToNext()) {
+                users.add(new User(
+                        cursor.getString(cursor.getColumnIndexOrThrow("id")),
+                        cursor.getString(cursor.getColumnIndexOrThrow("name")),
+                        cursor.getString(cursor.getColumnIndexOrThrow("image")),
+                        cursor.getString(cursor.getColumnIndexOrThrow("email")),
+                        cursor.getString(cursor.getColumnIndexOrThrow("token"))));
+            }
+        }
+        return users;
+    }
+
+    @Override
+    public void applyUserChanges(List<User> changedUsers, List<String> deletedIds, long watermark) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (User user : changedUsers) {
+                ContentValues values = new ContentValues();
+                values.put("id", user.getId());
+                values.put("name", user.getName());
+                values.put("name_key", NameKeys.of(user.getName()));
+                values.put("email", user.getEmail());
+                values.put("image", user.getImage());
+                values.put("token", user.getToken());
+                db.insertWithOnConflict(TABLE_USERS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            for (String id : deletedIds) {
+                db.delete(TABLE_USERS, "id = ?", new String[]{id});
+            }
+            advanceWatermark(db, USERS_SYNC_KEY, watermark);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public long getUserWatermark() {
+        return getWatermark(USERS_SYNC_KEY);
+    }
+}
@@ -0,0 +1,72 @@
+package com.hgb7725.botchattyapp.database;
+
+import com.hgb7725.botchattyapp.models.ChatMessage;
+
+import java.util.List;
+
+/*
+ * Stores what the message and conversation listeners deliver and keeps their watermarks.
+ * A watermark is the newest updatedAt stored. updatedAt is written by the server, so unlike
+ * the timestamp (the sender's clock) a late clock cannot hide writes behind it. Documents
+ * without updatedAt, still pending or written by an older client, are stored but never move
+ * a watermark. Called from a background thread.
+ */
+public class ChatSync {
+
+    // A commit can become visible after a later one, so listeners re-read a little before the watermark
+    static final long WATERMARK_OVERLAP_MS = 5 * 60 * 1000;
+
+    private final ChatDao chatDao;
+
+    public ChatSync(ChatDao chatDao) {
+        this.chatDao = chatDao;
+    }
+
+    /**
+     * updatedAt the message listener of a conversation starts after, or 0 to listen to the
+     * newest page instead. Without stored messages a watermark is no use.
+     */
+    public long messagesSince(String conversationKey, boolean hasStoredMessages) {
+        return hasStoredMessages ? since(chatDao.getWatermark(conversationKey)) : 0;
+    }
+
+    // Same for the conversation list, 0 to read every conversation
+    public long conversationsSince(String userId, boolean hasStoredConversations) {
+        return hasStoredConversations ? since(chatDao.getWatermark(ChatDatabase.conversationsSyncKey(userId))) : 0;
+    }
+
+    public void saveMessages(String conversationKey, List<ChatMessage> chatMessages) {
+        if (chatMessages.isEmpty()) {
+            return;
+        }
+        chatDao.saveMessages(conversationKey, chatMessages);
+        // Stored first: a watermark ahead of the stored messages would skip them for good
+        advance(conversationKey, newestUpdatedAt(chatMessages));
+    }
+
+    public void saveConversations(String userId, List<ChatMessage> conversations) {
+        if (conversations.isEmpty()) {
+            return;
+        }
+        chatDao.saveConversations(userId, conversations);
+        advance(ChatDatabase.conversationsSyncKey(userId), newestUpdatedAt(conversations));
+    }
+
+    private void advance(String syncKey, long updatedAt) {
+        if (updatedAt > chatDao.getWatermark(syncKey)) {
+            chatDao.setWatermark(syncKey, updatedAt);
+        }
+    }
+
+    static long since(long watermark) {
+        return watermark > 0 ? Math.max(1, watermark - WATERMARK_OVERLAP_MS) : 0;
+    }
+
+    private static long newestUpdatedAt(List<ChatMessage> chatMessages) {
+        long newest = 0;
+        for (ChatMessage chatMessage : chatMessages) {
+            newest = Math.max(newest, chatMessage.getUpdatedAt());
+        }
+        return newest;
+    }
+}
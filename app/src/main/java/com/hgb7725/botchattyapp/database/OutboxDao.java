@@ -0,0 +1,28 @@
+package com.hgb7725.botchattyapp.database;
+
+import com.hgb7725.botchattyapp.models.OutgoingMessage;
+
+import java.util.List;
+
+/*
+ * Messages written on this device that Firestore has not acknowledged yet.
+ * Unlike the rest of the local database this is not a cache: it must survive restarts.
+ * Implementations are called from a background thread.
+ */
+public interface OutboxDao {
+
+    void insertOutgoing(OutgoingMessage outgoingMessage);
+
+    // Queued messages whose next attempt is due, and messages interrupted while sending, oldest first
+    List<OutgoingMessage> getDueOutgoing(long now, int limit);
+
+    // Everything not yet sent in a conversation, including failed messages, oldest first
+    List<OutgoingMessage> getOutgoing(String conversationKey);
+
+    void updateOutgoing(String id, int sendState, int attempts, long nextAttemptAt);
+
+    void deleteOutgoing(List<String> ids);
+
+    // Earliest next attempt among queued messages, -1 if nothing is waiting
+    long getNextOutgoingAttempt();
+}
@@ -0,0 +1,21 @@
+package com.hgb7725.botchattyapp.database;
+
+import com.hgb7725.botchattyapp.models.User;
+
+import java.util.List;
+
+/*
+ * Local copy of the user directory, kept current by UserSync.
+ * Implementations are called from a background thread.
+ */
+public interface UserDao {
+
+    // Every stored user, ordered by name key
+    List<User> getUsers();
+
+    // Stores changed users, drops deleted ones and moves the watermark, all or nothing
+    void applyUserChanges(List<User> changedUsers, List<String> deletedIds, long watermark);
+
+    // updatedAt (ms) the directory is known to be current up to, 0 before the first full sync
+    long getUserWatermark();
+}
@@ -6,19 +6,34 @@ import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 
-import com.android.volley.Request;
-import com.android.volley.RequestQueue;
-import com.android.volley.toolbox.JsonObjectRequest;
-import com.android.volley.toolbox.Volley;
+import com.hgb7725.botchattyapp.network.HttpClientProvider;
+import com.hgb7725.botchattyapp.utilities.AppExecutors;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.Random;
+import java.util.concurrent.Executor;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
 
 public class EmailJsService {
 
     private static final String TAG = "EmailJsService";
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+    // Outcome of a send, delivered on the result executor
+    interface SendListener {
+        void onResult(boolean sent);
+    }
 
     /**
      * Sends an OTP email to the specified address using EmailJS
@@ -33,54 +48,72 @@ public class EmailJsService {
                                     @NonNull String otpCode,
                                     @NonNull Runnable onSuccess) {
 
-        JSONObject requestBody = new JSONObject();
+        Request request;
         try {
-            requestBody.put("service_id", EmailJsConfig.SERVICE_ID);
-            requestBody.put("template_id", EmailJsConfig.TEMPLATE_ID);
-            requestBody.put("user_id", EmailJsConfig.PUBLIC_KEY);
-
-            JSONObject templateParams = new JSONObject();
-            templateParams.put("user_email", toEmail);
-            templateParams.put("passcode", otpCode);
-            requestBody.put("template_params", templateParams);
-
-            Log.d(TAG, "Sending JSON: " + requestBody.toString());
-
+            request = buildRequest(EmailJsConfig.EMAIL_JS_API_URL, toEmail, otpCode);
         } catch (JSONException e) {
             Log.e(TAG, "Failed to build JSON request", e);
             Toast.makeText(context, "Failed to build email request", Toast.LENGTH_SHORT).show();
             return;
         }
 
-        JsonObjectRequest request = new JsonObjectRequest(
-                Request.Method.POST,
-                EmailJsConfig.EMAIL_JS_API_URL,
-                requestBody,
-                response -> {
-                    Log.d(TAG, "EmailJS response: " + response.toString());
-                    Toast.makeText(context, "OTP sent successfully", Toast.LENGTH_SHORT).show();
-                    onSuccess.run();
-                },
-                error -> {
-                    error.printStackTrace();
-
-                    // If server gives no response, it's possibly 204 No Content → still success
-                    if (error.networkResponse == null) {
-                        Log.w(TAG, "No response from server. Assuming success.");
-                        Toast.makeText(context, "OTP may have been sent. Check your email.", Toast.LENGTH_SHORT).show();
-                        onSuccess.run();
-                        return;
-                    }
+        send(HttpClientProvider.getInstance().getClient(), request, AppExecutors.getInstance().mainThread(), sent -> {
+            if (sent) {
+                Toast.makeText(context, "OTP sent successfully", Toast.LENGTH_SHORT).show();
+                onSuccess.run();
+            } else {
+                Toast.makeText(context, "Failed to send OTP email", Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    static Request buildRequest(@NonNull String apiUrl, @NonNull String toEmail,
+                                @NonNull String otpCode) throws JSONException {
+        JSONObject requestBody = new JSONObject();
+        requestBody.put("service_id", EmailJsConfig.SERVICE_ID);
+        requestBody.put("template_id", EmailJsConfig.TEMPLATE_ID);
+        requestBody.put("user_id", EmailJsConfig.PUBLIC_KEY);
+
+        JSONObject templateParams = new JSONObject();
+        templateParams.put("user_email", toEmail);
+        templateParams.put("passcode", otpCode);
+        requestBody.put("template_params", templateParams);
+
+        Log.d(TAG, "Sending JSON: " + requestBody.toString());
+
+        return new Request.Builder()
+                .url(apiUrl)
+                .post(RequestBody.create(requestBody.toString(), JSON))
+                .build();
+    }
 
+    // Callbacks run on a network thread, the result is handed to resultExecutor
+    static void send(@NonNull OkHttpClient client, @NonNull Request request,
+                     @NonNull Executor resultExecutor, @NonNull SendListener listener) {
+        client.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                Log.e(TAG, "EmailJS request failed", e);
+                resultExecutor.execute(() -> listener.onResult(false));
+            }
+
+            @Override
+            public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
+                // EmailJS answers with plain text ("OK"), not JSON
+                String responseData;
+                try (ResponseBody body = response.body()) {
+                    responseData = body != null ? body.string() : "";
+                }
+                if (response.isSuccessful()) {
+                    Log.d(TAG, "EmailJS response: " + responseData);
+                } else {
                     // Server returned an error
-                    int statusCode = error.networkResponse.statusCode;
-                    String responseData = new String(error.networkResponse.data);
-                    Log.e(TAG, "Status: " + statusCode + " | Response: " + responseData);
-                    Toast.makeText(context, "Failed to send OTP email", Toast.LENGTH_SHORT).show();
-                });
-
-        RequestQueue queue = Volley.newRequestQueue(context);
-        queue.add(request);
+                    Log.e(TAG, "Status: " + response.code() + " | Response: " + responseData);
+                }
+                boolean sent = response.isSuccessful();
+                resultExecutor.execute(() -> listener.onResult(sent));
+            }
+        });
     }
 
     /**
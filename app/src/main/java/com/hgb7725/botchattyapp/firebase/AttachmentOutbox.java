@@ -0,0 +1,372 @@
+package com.hgb7725.botchattyapp.firebase;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.hgb7725.botchattyapp.models.ChatMessage;
+import com.hgb7725.botchattyapp.models.OutgoingMessage;
+import com.hgb7725.botchattyapp.network.AttachmentUploader;
+import com.hgb7725.botchattyapp.utilities.AppExecutors;
+import com.hgb7725.botchattyapp.utilities.CloudinaryConfig;
+import com.hgb7725.botchattyapp.utilities.FileUtils;
+import com.hgb7725.botchattyapp.utilities.TimestampFormatter;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Attachments on their way to Cloudinary, kept apart from the screen that picked them so an
+ * upload survives rotation and the chat screen being closed. The picked content is copied into
+ * the app's files together with the message it belongs to, which keeps the URI, and with it the
+ * resume state of a chunked upload (see AttachmentUploader), the same after the process dies.
+ * Once uploaded, the message goes to the OutboxManager like any other. Uploads a previous process
+ * did not finish are started again by resume(), up to MAX_ATTEMPTS times.
+ * All methods must be called on the main thread.
+ */
+public class AttachmentOutbox {
+
+    private static final String TAG = "AttachmentOutbox";
+    private static final String PREFERENCES = "attachment_outbox";
+    private static final String DIRECTORY = "pending_attachments";
+    private static final int MAX_ATTEMPTS = 3;
+
+    public interface Listener {
+        void onUploadProgress(String messageId, long bytesSent, long totalBytes);
+
+        // errorMessage is null once the message is in the outbox
+        void onUploadFinished(String messageId, @Nullable String errorMessage);
+    }
+
+    private static class PendingAttachment {
+        final OutgoingMessage outgoingMessage;
+        final String resourceType;
+        final String preset;
+        final String publicId;
+        File file;
+        int attempts;
+        AttachmentUploader.Upload upload;
+        long bytesSent;
+        long totalBytes = -1;
+
+        PendingAttachment(OutgoingMessage outgoingMessage, String resourceType, String preset, String publicId) {
+            this.outgoingMessage = outgoingMessage;
+            this.resourceType = resourceType;
+            this.preset = preset;
+            this.publicId = publicId;
+        }
+
+        String getId() {
+            return outgoingMessage.getChatMessage().getId();
+        }
+    }
+
+    private static AttachmentOutbox instance;
+
+    private final Context context;
+    private final SharedPreferences pendingState;
+    private final File directory;
+    // In the order they were sent, by message id
+    private final LinkedHashMap<String, PendingAttachment> active = new LinkedHashMap<>();
+    private final HashMap<String, List<Listener>> listeners = new HashMap<>();
+    private boolean isResumed = false;
+
+    private AttachmentOutbox(Context context) {
+        this.context = context;
+        pendingState = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        directory = new File(context.getFilesDir(), DIRECTORY);
+    }
+
+    public static AttachmentOutbox getInstance(Context context) {
+        if (instance == null) {
+            instance = new AttachmentOutbox(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    // A new listener hears about the uploads of its conversation that are already running
+    public void addListener(String conversationKey, Listener listener) {
+        List<Listener> conversationListeners = listeners.get(conversationKey);
+        if (conversationListeners == null) {
+            conversationListeners = new ArrayList<>();
+            listeners.put(conversationKey, conversationListeners);
+        }
+        conversationListeners.add(listener);
+        for (PendingAttachment pending : active.values()) {
+            if (conversationKey.equals(pending.outgoingMessage.getConversationKey())) {
+                listener.onUploadProgress(pending.getId(), pending.bytesSent, pending.totalBytes);
+            }
+        }
+    }
+
+    public void removeListener(String conversationKey, Listener listener) {
+        List<Listener> conversationListeners = listeners.get(conversationKey);
+        if (conversationListeners != null) {
+            conversationListeners.remove(listener);
+            if (conversationListeners.isEmpty()) {
+                listeners.remove(conversationKey);
+            }
+        }
+    }
+
+    /**
+     * Uploads the content of the URI and sends the message with the resulting URL as its content.
+     * The message is not shown before the upload completes.
+     */
+    public void send(@NonNull OutgoingMessage outgoingMessage, @NonNull Uri source, @NonNull String resourceType,
+                     @NonNull String preset, @Nullable String publicId) {
+        PendingAttachment pending = new PendingAttachment(outgoingMessage, resourceType, preset, publicId);
+        pending.attempts = 1;
+        active.put(pending.getId(), pending);
+        notifyProgress(pending);
+        AppExecutors.getInstance().diskIO().execute(() -> {
+            String errorMessage = null;
+            try {
+                pending.file = copy(source, pending.getId());
+                pendingState.edit().putString(pending.getId(), toJson(pending).toString()).apply();
+            } catch (IOException | JSONException | SecurityException e) {
+                Log.e(TAG, "Could not keep the attachment of " + pending.getId(), e);
+                errorMessage = e.getMessage() != null ? e.getMessage() : "Could not read the file";
+            }
+            String copyError = errorMessage;
+            AppExecutors.getInstance().mainThread().execute(() -> {
+                if (active.get(pending.getId()) != pending) {
+                    // Cancelled while copying
+                    discard(pending);
+                } else if (copyError != null) {
+                    active.remove(pending.getId());
+                    discard(pending);
+                    notifyFinished(pending, copyError);
+                } else {
+                    start(pending);
+                }
+            });
+        });
+    }
+
+    public void cancel(String messageId) {
+        PendingAttachment pending = active.remove(messageId);
+        if (pending == null) {
+            return;
+        }
+        if (pending.upload != null) {
+            pending.upload.cancel();
+        }
+        discard(pending);
+    }
+
+    // Starts again whatever a previous process left behind
+    public void resume() {
+        if (isResumed) {
+            return;
+        }
+        isResumed = true;
+        AppExecutors.getInstance().diskIO().execute(() -> {
+            List<PendingAttachment> restored = new ArrayList<>();
+            SharedPreferences.Editor editor = pendingState.edit();
+            for (Map.Entry<String, ?> entry : pendingState.getAll().entrySet()) {
+                PendingAttachment pending = null;
+                try {
+                    pending = fromJson(new JSONObject(String.valueOf(entry.getValue())));
+                } catch (JSONException e) {
+                    Log.w(TAG, "Dropping unreadable attachment " + entry.getKey(), e);
+                }
+                if (pending == null || !pending.file.isFile() || pending.attempts >= MAX_ATTEMPTS) {
+                    editor.remove(entry.getKey());
+                    deleteFiles(entry.getKey());
+                    continue;
+                }
+                pending.attempts++;
+                try {
+                    editor.putString(entry.getKey(), toJson(pending).toString());
+                } catch (JSONException e) {
+                    continue;
+                }
+                restored.add(pending);
+            }
+            editor.apply();
+            AppExecutors.getInstance().mainThread().execute(() -> {
+                for (PendingAttachment pending : restored) {
+                    if (!active.containsKey(pending.getId())) {
+                        Log.d(TAG, "Resuming the upload of " + pending.getId() + ", attempt " + pending.attempts);
+                        active.put(pending.getId(), pending);
+                        start(pending);
+                    }
+                }
+            });
+        });
+    }
+
+    private void start(PendingAttachment pending) {
+        HashMap<String, String> params = new HashMap<>();
+        params.put("upload_preset", pending.preset);
+        params.put("public_id", pending.publicId);
+        pending.upload = AttachmentUploader.getInstance(context).upload(
+                Uri.fromFile(pending.file), CloudinaryConfig.getUploadUrl(pending.resourceType), params,
+                new AttachmentUploader.Callback() {
+                    @Override
+                    public void onProgress(long bytesSent, long totalBytes) {
+                        pending.bytesSent = bytesSent;
+                        pending.totalBytes = totalBytes;
+                        notifyProgress(pending);
+                    }
+
+                    @Override
+                    public void onSuccess(String secureUrl) {
+                        active.remove(pending.getId());
+                        pending.outgoingMessage.getChatMessage().setMessage(secureUrl);
+                        OutboxManager.getInstance(context).enqueue(pending.outgoingMessage);
+                        discard(pending);
+                        notifyFinished(pending, null);
+                    }
+
+                    @Override
+                    public void onFailure(String errorMessage) {
+                        // The copy stays, the next start tries again
+                        active.remove(pending.getId());
+                        notifyFinished(pending, errorMessage);
+                    }
+                });
+    }
+
+    // The content of the source, under its own name so the upload keeps its type
+    private File copy(Uri source, String messageId) throws IOException {
+        String name = FileUtils.getFileNameFromUri(context, source).replaceAll("[^a-zA-Z0-9._-]", "_");
+        File messageDirectory = new File(directory, messageId);
+        if (!messageDirectory.isDirectory() && !messageDirectory.mkdirs()) {
+            throw new IOException("Could not create " + messageDirectory);
+        }
+        File file = new File(messageDirectory, name);
+        try (InputStream inputStream = context.getContentResolver().openInputStream(source)) {
+            if (inputStream == null) {
+                throw new FileNotFoundException("Unable to open " + source);
+            }
+            try (OutputStream outputStream = new FileOutputStream(file)) {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, read);
+                }
+            }
+        }
+        return file;
+    }
+
+    private void discard(PendingAttachment pending) {
+        String messageId = pending.getId();
+        AppExecutors.getInstance().diskIO().execute(() -> {
+            pendingState.edit().remove(messageId).apply();
+            deleteFiles(messageId);
+        });
+    }
+
+    private void deleteFiles(String messageId) {
+        File messageDirectory = new File(directory, messageId);
+        File[] files = messageDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    Log.w(TAG, "Could not delete " + file);
+                }
+            }
+        }
+        if (messageDirectory.exists() && !messageDirectory.delete()) {
+            Log.w(TAG, "Could not delete " + messageDirectory);
+        }
+    }
+
+    private static JSONObject toJson(PendingAttachment pending) throws JSONException {
+        OutgoingMessage outgoingMessage = pending.outgoingMessage;
+        ChatMessage chatMessage = outgoingMessage.getChatMessage();
+        JSONObject json = new JSONObject();
+        json.put("file", pending.file.getPath());
+        json.put("resourceType", pending.resourceType);
+        json.put("preset", pending.preset);
+        json.put("publicId", pending.publicId);
+        json.put("attempts", pending.attempts);
+        json.put("conversationKey", outgoingMessage.getConversationKey());
+        json.put("senderName", outgoingMessage.getSenderName());
+        json.put("senderImage", outgoingMessage.getSenderImage());
+        json.put("receiverName", outgoingMessage.getReceiverName());
+        json.put("receiverImage", outgoingMessage.getReceiverImage());
+        json.put("conversationLabel", outgoingMessage.getConversationLabel());
+        json.put("id", chatMessage.getId());
+        json.put("senderId", chatMessage.getSenderId());
+        json.put("receiverId", chatMessage.getReceiverId());
+        json.put("type", chatMessage.getType());
+        json.put("fileName", chatMessage.getFileName());
+        json.put("imageWidth", chatMessage.getImageWidth());
+        json.put("imageHeight", chatMessage.getImageHeight());
+        json.put("blurHash", chatMessage.getBlurHash());
+        json.put("date", chatMessage.getDateObject() != null ? chatMessage.getDateObject().getTime() : 0);
+        return json;
+    }
+
+    private static PendingAttachment fromJson(JSONObject json) throws JSONException {
+        ChatMessage chatMessage = new ChatMessage();
+        chatMessage.setId(json.getString("id"));
+        chatMessage.setSenderId(optString(json, "senderId"));
+        chatMessage.setReceiverId(optString(json, "receiverId"));
+        chatMessage.setType(optString(json, "type"));
+        chatMessage.setFileName(optString(json, "fileName"));
+        chatMessage.setImageWidth(json.optInt("imageWidth"));
+        chatMessage.setImageHeight(json.optInt("imageHeight"));
+        chatMessage.setBlurHash(optString(json, "blurHash"));
+        chatMessage.setDateObject(new Date(json.optLong("date")));
+        chatMessage.setDateTime(TimestampFormatter.formatDateTime(chatMessage.getDateObject()));
+
+        OutgoingMessage outgoingMessage = new OutgoingMessage(chatMessage, json.getString("conversationKey"));
+        outgoingMessage.setSenderName(optString(json, "senderName"));
+        outgoingMessage.setSenderImage(optString(json, "senderImage"));
+        outgoingMessage.setReceiverName(optString(json, "receiverName"));
+        outgoingMessage.setReceiverImage(optString(json, "receiverImage"));
+        outgoingMessage.setConversationLabel(optString(json, "conversationLabel"));
+
+        PendingAttachment pending = new PendingAttachment(outgoingMessage,
+                json.getString("resourceType"), json.getString("preset"), optString(json, "publicId"));
+        pending.file = new File(json.getString("file"));
+        pending.attempts = json.optInt("attempts");
+        return pending;
+    }
+
+    // A null put removes the key, so missing and null read back the same
+    @Nullable
+    private static String optString(JSONObject json, String key) {
+        return json.isNull(key) ? null : json.optString(key);
+    }
+
+    private void notifyProgress(PendingAttachment pending) {
+        List<Listener> conversationListeners = listeners.get(pending.outgoingMessage.getConversationKey());
+        if (conversationListeners != null) {
+            for (Listener listener : new ArrayList<>(conversationListeners)) {
+                listener.onUploadProgress(pending.getId(), pending.bytesSent, pending.totalBytes);
+            }
+        }
+    }
+
+    private void notifyFinished(PendingAttachment pending, @Nullable String errorMessage) {
+        List<Listener> conversationListeners = listeners.get(pending.outgoingMessage.getConversationKey());
+        if (conversationListeners != null) {
+            for (Listener listener : new ArrayList<>(conversationListeners)) {
+                listener.onUploadFinished(pending.getId(), errorMessage);
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.hgb7725.botchattyapp.firebase;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.hgb7725.botchattyapp.utilities.Constants;
+import com.hgb7725.botchattyapp.utilities.PreferenceManager;
+
+import java.util.HashMap;
+
+/*
+ * Publishes the signed in user's availability for the whole app rather than per screen.
+ * Activities report resume / pause; the user only goes offline when no screen has been
+ * visible for a short while, so moving between screens writes nothing. While online a
+ * heartbeat refreshes lastSeen, which lets watchers spot a stale "online" after a crash.
+ * All methods must be called on the main thread.
+ */
+public class AvailabilityManager {
+
+    private static final String TAG = "AvailabilityManager";
+    private static final long OFFLINE_DELAY_MS = 3 * 1000;
+    public static final long HEARTBEAT_INTERVAL_MS = 60 * 1000;
+    // Watchers treat an online user as offline when lastSeen is older than this
+    public static final long STALE_AFTER_MS = 3 * HEARTBEAT_INTERVAL_MS;
+
+    private static AvailabilityManager instance;
+
+    private final PreferenceManager preferenceManager;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private int resumedActivities = 0;
+    private Boolean publishedOnline = null;
+
+    // A session lasts from the first visible screen until the user goes offline
+    private int sessionTransitions = 0;
+    // Every write, heartbeats included
+    private int sessionWrites = 0;
+    private int sessionHeartbeats = 0;
+    private int totalWritesSaved = 0;
+
+    private final Runnable goOffline = () -> publish(false);
+
+    private final Runnable heartbeat = new Runnable() {
+        @Override
+        public void run() {
+            if (Boolean.TRUE.equals(publishedOnline)) {
+                write(true);
+                sessionHeartbeats++;
+                handler.postDelayed(this, HEARTBEAT_INTERVAL_MS);
+            }
+        }
+    };
+
+    private AvailabilityManager(Context context) {
+        preferenceManager = new PreferenceManager(context.getApplicationContext());
+    }
+
+    public static AvailabilityManager getInstance(Context context) {
+        if (instance == null) {
+            instance = new AvailabilityManager(context);
+        }
+        return instance;
+    }
+
+    public void onActivityResumed() {
+        resumedActivities++;
+        sessionTransitions++;
+        handler.removeCallbacks(goOffline);
+        publish(true);
+    }
+
+    public void onActivityPaused() {
+        resumedActivities = Math.max(0, resumedActivities - 1);
+        sessionTransitions++;
+        if (resumedActivities == 0) {
+            handler.removeCallbacks(goOffline);
+            handler.postDelayed(goOffline, OFFLINE_DELAY_MS);
+        }
+    }
+
+    // Marks the user offline right away, before the user id is cleared
+    public void signOut() {
+        handler.removeCallbacks(goOffline);
+        publish(false);
+        resumedActivities = 0;
+        publishedOnline = null;
+    }
+
+    // Against one write per screen transition; negative when heartbeats cost more than that saved
+    public int getSessionWritesSaved() {
+        return sessionTransitions - sessionWrites;
+    }
+
+    public int getTotalWritesSaved() {
+        return totalWritesSaved + getSessionWritesSaved();
+    }
+
+    private void publish(boolean isOnline) {
+        if (publishedOnline != null && publishedOnline == isOnline) {
+            return;
+        }
+        publishedOnline = isOnline;
+        write(isOnline);
+        handler.removeCallbacks(heartbeat);
+        if (isOnline) {
+            handler.postDelayed(heartbeat, HEARTBEAT_INTERVAL_MS);
+        } else {
+            endSession();
+        }
+    }
+
+    private void write(boolean isOnline) {
+        String userId = preferenceManager.getString(Constants.KEY_USER_ID);
+        if (userId == null) {
+            return;
+        }
+        sessionWrites++;
+        HashMap<String, Object> updates = new HashMap<>();
+        updates.put(Constants.KEY_AVAILABILITY, isOnline ? 1 : 0);
+        updates.put(Constants.KEY_LAST_SEEN, FieldValue.serverTimestamp());
+        FirebaseFirestore.getInstance()
+                .collection(Constants.KEY_COLLECTION_USERS)
+                .document(userId)
+                .update(updates);
+    }
+
+    private void endSession() {
+        int saved = getSessionWritesSaved();
+        totalWritesSaved += saved;
+        Log.d(TAG, "Session ended: transitions=" + sessionTransitions
+                + " writes=" + sessionWrites
+                + " heartbeats=" + sessionHeartbeats
+                + " saved=" + saved
+                + " totalSaved=" + totalWritesSaved);
+        sessionTransitions = 0;
+        sessionWrites = 0;
+        sessionHeartbeats = 0;
+    }
+}
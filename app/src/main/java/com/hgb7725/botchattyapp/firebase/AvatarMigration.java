@@ -0,0 +1,106 @@
+package com.hgb7725.botchattyapp.firebase;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Base64;
+import android.util.Log;
+
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Source;
+import com.hgb7725.botchattyapp.network.AvatarUploader;
+import com.hgb7725.botchattyapp.utilities.AppExecutors;
+import com.hgb7725.botchattyapp.utilities.AvatarUrls;
+import com.hgb7725.botchattyapp.utilities.Constants;
+import com.hgb7725.botchattyapp.utilities.PreferenceManager;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/*
+ * Moves the signed in user's avatar from a base64 string in Firestore to Cloudinary.
+ * The picture is uploaded once, then the user document and every conversation summary
+ * holding the old copy are rewritten with the URL, in batches. Each user migrates their
+ * own avatar the next time they open the app; until then lists still decode the base64.
+ */
+public class AvatarMigration {
+
+    private static final String TAG = "AvatarMigration";
+    private static final String TEMP_FILE = "avatar_migration.jpg";
+
+    private static boolean isRunning = false;
+
+    // Must be called on the main thread
+    public static void runIfNeeded(Context context, String userId) {
+        Context appContext = context.getApplicationContext();
+        PreferenceManager preferenceManager = new PreferenceManager(appContext);
+        String encodedImage = preferenceManager.getString(Constants.KEY_IMAGE);
+        if (isRunning || userId == null || encodedImage == null || AvatarUrls.isRemote(encodedImage)) {
+            return;
+        }
+        isRunning = true;
+        AppExecutors.getInstance().diskIO().execute(() -> {
+            File file = new File(appContext.getCacheDir(), TEMP_FILE);
+            try (FileOutputStream outputStream = new FileOutputStream(file)) {
+                outputStream.write(Base64.decode(encodedImage, Base64.DEFAULT));
+            } catch (IOException | IllegalArgumentException e) {
+                Log.w(TAG, "Unable to decode the stored avatar", e);
+                file.delete();
+                AppExecutors.getInstance().mainThread().execute(() -> isRunning = false);
+                return;
+            }
+            AppExecutors.getInstance().mainThread().execute(() ->
+                    AvatarUploader.upload(appContext, Uri.fromFile(file), new AvatarUploader.Callback() {
+                        @Override
+                        public void onAvatarUploaded(String url) {
+                            file.delete();
+                            rewriteDocuments(preferenceManager, userId, url);
+                        }
+
+                        @Override
+                        public void onAvatarUploadFailed(String errorMessage) {
+                            Log.w(TAG, "Avatar upload failed: " + errorMessage);
+                            file.delete();
+                            isRunning = false;
+                        }
+                    }));
+        });
+    }
+
+    private static void rewriteDocuments(PreferenceManager preferenceManager, String userId, String url) {
+        FirebaseFirestore database = FirebaseFirestore.getInstance();
+        database.collection(Constants.KEY_COLLECTION_CONVERSATIONS)
+                .whereArrayContains(Constants.KEY_PARTICIPANTS, userId)
+                .get(Source.SERVER)
+                .continueWithTask(task -> {
+                    if (!task.isSuccessful()) {
+                        throw task.getException();
+                    }
+                    BatchWriter writer = new BatchWriter(database);
+                    writer.update(database.collection(Constants.KEY_COLLECTION_USERS).document(userId),
+                            Constants.KEY_IMAGE, url,
+                            Constants.KEY_IMAGE_VERSION, AvatarUrls.version(url),
+                            Constants.KEY_UPDATED_AT, FieldValue.serverTimestamp());
+                    for (DocumentSnapshot document : task.getResult().getDocuments()) {
+                        if (userId.equals(document.getString(Constants.KEY_SENDER_ID))) {
+                            writer.update(document.getReference(), Constants.KEY_SENDER_IMAGE, url);
+                        }
+                        if (userId.equals(document.getString(Constants.KEY_RECEIVER_ID))) {
+                            writer.update(document.getReference(), Constants.KEY_RECEIVER_IMAGE, url);
+                        }
+                    }
+                    return writer.commit();
+                })
+                .addOnCompleteListener(task -> {
+                    isRunning = false;
+                    if (task.isSuccessful()) {
+                        preferenceManager.putString(Constants.KEY_IMAGE, url);
+                    } else {
+                        // The upload is repeated next time; the orphaned copy on Cloudinary is harmless
+                        Log.w(TAG, "Unable to store the avatar URL", task.getException());
+                    }
+                });
+    }
+}
@@ -0,0 +1,62 @@
+package com.hgb7725.botchattyapp.firebase;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Splits an arbitrary number of writes into WriteBatches under the Firestore limit
+ * and commits them together. Used by the one-off data migrations.
+ */
+class BatchWriter {
+
+    // Firestore rejects batches of more than 500 writes
+    private static final int MAX_WRITES_PER_BATCH = 450;
+
+    private final FirebaseFirestore database;
+    private final List<WriteBatch> batches = new ArrayList<>();
+    private int writesInBatch = MAX_WRITES_PER_BATCH;
+
+    BatchWriter(FirebaseFirestore database) {
+        this.database = database;
+    }
+
+    void set(DocumentReference reference, Map<String, Object> data) {
+        current().set(reference, data);
+    }
+
+    void update(DocumentReference reference, String field, Object value, Object... moreFieldsAndValues) {
+        current().update(reference, field, value, moreFieldsAndValues);
+    }
+
+    void delete(DocumentReference reference) {
+        current().delete(reference);
+    }
+
+    int batchCount() {
+        return batches.size();
+    }
+
+    Task<Void> commit() {
+        List<Task<Void>> commits = new ArrayList<>();
+        for (WriteBatch batch : batches) {
+            commits.add(batch.commit());
+        }
+        return Tasks.whenAll(commits);
+    }
+
+    private WriteBatch current() {
+        if (writesInBatch == MAX_WRITES_PER_BATCH) {
+            batches.add(database.batch());
+            writesInBatch = 0;
+        }
+        writesInBatch++;
+        return batches.get(batches.size() - 1);
+    }
+}
@@ -0,0 +1,109 @@
+package com.hgb7725.botchattyapp.firebase;
+
+import com.google.firebase.firestore.EventListener;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.ListenerRegistration;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QuerySnapshot;
+import com.hgb7725.botchattyapp.utilities.Constants;
+
+import java.util.Date;
+
+/*
+ * Streams the messages of one conversation, newest page first.
+ * A single listener follows the latest messages; older pages are fetched on demand
+ * with a startAfter cursor, so reads grow with what the user scrolls through. The cursor is
+ * the time and document id of the oldest message shown, so messages sharing that time are
+ * not skipped.
+ *
+ * Requires composite indexes on chat(conversationKey ASC, timeStamp DESC)
+ * and chat(conversationKey ASC, updatedAt ASC).
+ */
+public class ConversationMessageStream {
+
+    private final FirebaseFirestore database;
+    private final String conversationKey;
+    private final int pageSize;
+
+    private ListenerRegistration latestRegistration;
+    private boolean hasMore = true;
+    private boolean isLoadingOlder = false;
+
+    public ConversationMessageStream(FirebaseFirestore database, String conversationKey, int pageSize) {
+        this.database = database;
+        this.conversationKey = conversationKey;
+        this.pageSize = pageSize;
+    }
+
+    private Query newestFirst() {
+        return database.collection(Constants.KEY_COLLECTION_CHAT)
+                .whereEqualTo(Constants.KEY_CONVERSATION_KEY, conversationKey)
+                .orderBy(Constants.KEY_TIMESTAMP, Query.Direction.DESCENDING);
+    }
+
+    /**
+     * Starts listening for new messages.
+     * With a time (see ChatSync.messagesSince) only documents the server wrote after it are
+     * read, the rest is in the local store; with 0 the newest page is listened to. Messages
+     * that get pushed out of that page are reported as REMOVED changes, callers should ignore those.
+     */
+    public void start(long since, EventListener<QuerySnapshot> listener) {
+        stop();
+        Query query;
+        if (since > 0) {
+            query = database.collection(Constants.KEY_COLLECTION_CHAT)
+                    .whereEqualTo(Constants.KEY_CONVERSATION_KEY, conversationKey)
+                    .whereGreaterThan(Constants.KEY_UPDATED_AT, new Date(since))
+                    .orderBy(Constants.KEY_UPDATED_AT, Query.Direction.ASCENDING);
+        } else {
+            query = newestFirst().limit(pageSize);
+        }
+        latestRegistration = query.addSnapshotListener((value, error) -> {
+            // A short page read from the local cache does not mean the history ends there
+            if (since == 0 && value != null && !value.getMetadata().isFromCache()
+                    && value.size() < pageSize) {
+                hasMore = false;
+            }
+            listener.onEvent(value, error);
+        });
+    }
+
+    /**
+     * Fetches the page right before the given message (the oldest one shown).
+     * Returns false if there is nothing more to load or a page is already on its way.
+     */
+    public boolean loadOlder(Date before, String beforeId, EventListener<QuerySnapshot> listener) {
+        if (!hasMore || isLoadingOlder || before == null || beforeId == null) {
+            return false;
+        }
+        isLoadingOlder = true;
+        // The index on timeStamp DESC already orders ties by document id DESC
+        newestFirst()
+                .orderBy(FieldPath.documentId(), Query.Direction.DESCENDING)
+                .startAfter(before, beforeId)
+                .limit(pageSize)
+                .get()
+                .addOnCompleteListener(task -> {
+                    isLoadingOlder = false;
+                    if (task.isSuccessful() && task.getResult() != null) {
+                        if (task.getResult().size() < pageSize) {
+                            hasMore = false;
+                        }
+                        listener.onEvent(task.getResult(), null);
+                    }
+                });
+        return true;
+    }
+
+    public boolean hasMore() {
+        return hasMore;
+    }
+
+    public void stop() {
+        if (latestRegistration != null) {
+            latestRegistration.remove();
+            latestRegistration = null;
+        }
+    }
+}
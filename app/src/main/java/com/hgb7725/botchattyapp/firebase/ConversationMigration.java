@@ -0,0 +1,183 @@
+package com.hgb7725.botchattyapp.firebase;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.QuerySnapshot;
+import com.google.firebase.firestore.Source;
+import com.hgb7725.botchattyapp.utilities.Constants;
+import com.hgb7725.botchattyapp.utilities.ConversationKeys;
+import com.hgb7725.botchattyapp.utilities.PreferenceManager;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * One-off rewrite of the data a user wrote before conversations had deterministic ids:
+ * every conversation document with a random id is moved to the document named after its
+ * conversation key (keeping the newest summary when there are several) and gets the
+ * participants field, and the messages the user sent or received get their conversationKey.
+ * Messages are read in pages and writes are committed in batches. Documents read from the
+ * local cache are never trusted, so an offline start simply tries again next time.
+ *
+ * A finished migration is marked on the user document, so a new device or a new sign-in
+ * costs one document read instead of another pass over the whole history. The local flag
+ * only saves that read.
+ */
+public class ConversationMigration {
+
+    private static final String TAG = "ConversationMigration";
+    private static final String KEY_MIGRATED_PREFIX = "conversationsMigrated_";
+
+    private final FirebaseFirestore database;
+    private final String userId;
+
+    private ConversationMigration(FirebaseFirestore database, String userId) {
+        this.database = database;
+        this.userId = userId;
+    }
+
+    /**
+     * Migrates the user's data unless it was migrated before, on any device. The returned
+     * task always succeeds; a failed migration is logged and retried on the next call.
+     */
+    public static Task<Void> runIfNeeded(Context context, String userId) {
+        PreferenceManager preferenceManager = new PreferenceManager(context);
+        String migratedKey = KEY_MIGRATED_PREFIX + userId;
+        if (preferenceManager.getBoolean(migratedKey)) {
+            return Tasks.forResult(null);
+        }
+        FirebaseFirestore database = FirebaseFirestore.getInstance();
+        DocumentReference userDocument = database.collection(Constants.KEY_COLLECTION_USERS).document(userId);
+        ConversationMigration migration = new ConversationMigration(database, userId);
+        return userDocument.get()
+                .continueWithTask(task -> {
+                    if (!task.isSuccessful()) {
+                        return Tasks.forException(task.getException());
+                    }
+                    if (Boolean.TRUE.equals(task.getResult().getBoolean(Constants.KEY_CONVERSATIONS_MIGRATED))) {
+                        return Tasks.forResult(null);
+                    }
+                    return migration.migrateConversations()
+                            .onSuccessTask(unused -> migration.backfillMessageKeys())
+                            // Not part of the user's profile, so updatedAt is left alone
+                            .onSuccessTask(unused -> userDocument.update(Constants.KEY_CONVERSATIONS_MIGRATED, true));
+                })
+                .continueWith(task -> {
+                    if (task.isSuccessful()) {
+                        preferenceManager.putBoolean(migratedKey, true);
+                    } else {
+                        Log.w(TAG, "Migration failed, it will run again next time", task.getException());
+                    }
+                    return null;
+                });
+    }
+
+    private Task<Void> migrateConversations() {
+        Task<QuerySnapshot> sent = database.collection(Constants.KEY_COLLECTION_CONVERSATIONS)
+                .whereEqualTo(Constants.KEY_SENDER_ID, userId)
+                .get(Source.SERVER);
+        Task<QuerySnapshot> received = database.collection(Constants.KEY_COLLECTION_CONVERSATIONS)
+                .whereEqualTo(Constants.KEY_RECEIVER_ID, userId)
+                .get(Source.SERVER);
+        return Tasks.whenAllSuccess(sent, received).continueWithTask(task -> {
+            if (!task.isSuccessful()) {
+                return Tasks.forException(task.getException());
+            }
+            HashMap<String, DocumentSnapshot> canonicalByKey = new HashMap<>();
+            HashMap<String, DocumentSnapshot> newestLegacyByKey = new HashMap<>();
+            HashMap<String, List<DocumentReference>> legacyByKey = new HashMap<>();
+            LinkedHashSet<String> keys = new LinkedHashSet<>();
+            for (DocumentSnapshot document : documentsOf(sent, received)) {
+                String senderId = document.getString(Constants.KEY_SENDER_ID);
+                String receiverId = document.getString(Constants.KEY_RECEIVER_ID);
+                if (senderId == null || receiverId == null) {
+                    continue;
+                }
+                String key = ConversationKeys.of(senderId, receiverId);
+                keys.add(key);
+                if (document.getId().equals(MessageSender.conversationDocumentId(key))) {
+                    canonicalByKey.put(key, document);
+                    continue;
+                }
+                List<DocumentReference> legacy = legacyByKey.get(key);
+                if (legacy == null) {
+                    legacy = new ArrayList<>();
+                    legacyByKey.put(key, legacy);
+                }
+                legacy.add(document.getReference());
+                if (isNewer(document, newestLegacyByKey.get(key))) {
+                    newestLegacyByKey.put(key, document);
+                }
+            }
+
+            BatchWriter writer = new BatchWriter(database);
+            for (String key : keys) {
+                DocumentSnapshot canonical = canonicalByKey.get(key);
+                DocumentSnapshot source = isNewer(newestLegacyByKey.get(key), canonical)
+                        ? newestLegacyByKey.get(key)
+                        : canonical;
+                if (source != canonical || !canonical.contains(Constants.KEY_PARTICIPANTS)) {
+                    Map<String, Object> conversation = new HashMap<>(source.getData());
+                    conversation.put(Constants.KEY_CONVERSATION_KEY, key);
+                    conversation.put(Constants.KEY_UPDATED_AT, FieldValue.serverTimestamp());
+                    conversation.put(Constants.KEY_PARTICIPANTS, ConversationKeys.participants(
+                            source.getString(Constants.KEY_SENDER_ID), source.getString(Constants.KEY_RECEIVER_ID)));
+                    writer.set(database.collection(Constants.KEY_COLLECTION_CONVERSATIONS)
+                            .document(MessageSender.conversationDocumentId(key)), conversation);
+                }
+                List<DocumentReference> legacy = legacyByKey.get(key);
+                if (legacy != null) {
+                    for (DocumentReference reference : legacy) {
+                        writer.delete(reference);
+                    }
+                }
+            }
+            Log.d(TAG, "Rewriting " + keys.size() + " conversations in " + writer.batchCount() + " batches");
+            return writer.commit();
+        });
+    }
+
+    // Sent and received, a message left to the other participant would stay hidden until they migrate
+    private Task<Void> backfillMessageKeys() {
+        Task<Void> sent = MessageKeyBackfill.backfill(database, database.collection(Constants.KEY_COLLECTION_CHAT)
+                .whereEqualTo(Constants.KEY_SENDER_ID, userId));
+        Task<Void> received = MessageKeyBackfill.backfill(database, database.collection(Constants.KEY_COLLECTION_CHAT)
+                .whereEqualTo(Constants.KEY_RECEIVER_ID, userId));
+        return Tasks.whenAll(sent, received);
+    }
+
+    private static List<DocumentSnapshot> documentsOf(Task<QuerySnapshot> first, Task<QuerySnapshot> second) {
+        // A conversation with oneself shows up in both results
+        HashMap<String, DocumentSnapshot> documents = new HashMap<>();
+        for (DocumentSnapshot document : first.getResult().getDocuments()) {
+            documents.put(document.getId(), document);
+        }
+        for (DocumentSnapshot document : second.getResult().getDocuments()) {
+            documents.put(document.getId(), document);
+        }
+        return new ArrayList<>(documents.values());
+    }
+
+    private static boolean isNewer(DocumentSnapshot document, DocumentSnapshot than) {
+        if (document == null) {
+            return false;
+        }
+        if (than == null) {
+            return true;
+        }
+        Date date = document.getDate(Constants.KEY_TIMESTAMP);
+        Date thanDate = than.getDate(Constants.KEY_TIMESTAMP);
+        return date != null && (thanDate == null || date.after(thanDate));
+    }
+}
@@ -0,0 +1,71 @@
+package com.hgb7725.botchattyapp.firebase;
+
+import androidx.annotation.Nullable;
+
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.Source;
+import com.hgb7725.botchattyapp.models.User;
+import com.hgb7725.botchattyapp.utilities.Constants;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/*
+ * Reads user changes for UserSync: the full pass is ordered by document id, so documents
+ * without updatedAt are included; deltas are a range on updatedAt.
+ */
+class FirestoreUserSource implements UserSync.Source {
+
+    private final FirebaseFirestore database;
+
+    FirestoreUserSource(FirebaseFirestore database) {
+        this.database = database;
+    }
+
+    @Override
+    public void fetchChanges(long since, @Nullable Object from, int limit, UserSync.PageCallback callback) {
+        Query query = database.collection(Constants.KEY_COLLECTION_USERS);
+        if (since > 0) {
+            query = query.whereGreaterThan(Constants.KEY_UPDATED_AT, new Date(since))
+                    .orderBy(Constants.KEY_UPDATED_AT);
+        } else {
+            query = query.orderBy(FieldPath.documentId());
+        }
+        if (from != null) {
+            query = query.startAfter((DocumentSnapshot) from);
+        }
+        // A page from the local cache could miss changes and would still move the watermark
+        query.limit(limit).get(Source.SERVER).addOnCompleteListener(task -> {
+            if (!task.isSuccessful() || task.getResult() == null) {
+                callback.onError(task.getException());
+                return;
+            }
+            List<DocumentSnapshot> documents = task.getResult().getDocuments();
+            List<User> users = new ArrayList<>();
+            List<String> deletedIds = new ArrayList<>();
+            long newestUpdatedAt = 0;
+            for (DocumentSnapshot document : documents) {
+                Date updatedAt = document.getDate(Constants.KEY_UPDATED_AT);
+                if (updatedAt != null) {
+                    newestUpdatedAt = Math.max(newestUpdatedAt, updatedAt.getTime());
+                }
+                if (Boolean.TRUE.equals(document.getBoolean(Constants.KEY_DELETED))) {
+                    deletedIds.add(document.getId());
+                    continue;
+                }
+                users.add(new User(
+                        document.getId(),
+                        document.getString(Constants.KEY_NAME),
+                        document.getString(Constants.KEY_IMAGE),
+                        document.getString(Constants.KEY_EMAIL),
+                        document.getString(Constants.KEY_FCM_TOKEN)));
+            }
+            Object next = documents.size() == limit ? documents.get(documents.size() - 1) : null;
+            callback.onPage(new UserSync.Page(users, deletedIds, newestUpdatedAt, next));
+        });
+    }
+}
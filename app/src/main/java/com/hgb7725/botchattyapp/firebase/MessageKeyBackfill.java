@@ -0,0 +1,57 @@
+package com.hgb7725.botchattyapp.firebase;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.Source;
+import com.hgb7725.botchattyapp.utilities.Constants;
+import com.hgb7725.botchattyapp.utilities.ConversationKeys;
+
+import java.util.List;
+
+/*
+ * Adds the conversationKey to messages written before messages carried one, so the
+ * conversation query can see them. Runs as part of ConversationMigration, once per user.
+ * Reads are paged by document id and every page is written through a BatchWriter before the
+ * next one is read. Pages are read from the server only, a cached page may be missing documents.
+ */
+class MessageKeyBackfill {
+
+    private static final int PAGE_SIZE = 200;
+
+    private MessageKeyBackfill() {
+    }
+
+    // Keys every message the query matches that has no key yet
+    static Task<Void> backfill(FirebaseFirestore database, Query query) {
+        return backfillPage(database, query.orderBy(FieldPath.documentId()), null);
+    }
+
+    private static Task<Void> backfillPage(FirebaseFirestore database, Query ordered,
+                                           @Nullable DocumentSnapshot after) {
+        Query page = after != null ? ordered.startAfter(after) : ordered;
+        return page.limit(PAGE_SIZE).get(Source.SERVER).onSuccessTask(snapshot -> {
+            List<DocumentSnapshot> documents = snapshot.getDocuments();
+            BatchWriter writer = new BatchWriter(database);
+            for (DocumentSnapshot document : documents) {
+                String senderId = document.getString(Constants.KEY_SENDER_ID);
+                String receiverId = document.getString(Constants.KEY_RECEIVER_ID);
+                if (senderId == null || receiverId == null || document.contains(Constants.KEY_CONVERSATION_KEY)) {
+                    continue;
+                }
+                writer.update(document.getReference(),
+                        Constants.KEY_CONVERSATION_KEY, ConversationKeys.of(senderId, receiverId));
+            }
+            Task<Void> commit = writer.commit();
+            if (documents.size() < PAGE_SIZE) {
+                return commit;
+            }
+            DocumentSnapshot last = documents.get(documents.size() - 1);
+            return commit.onSuccessTask(unused -> backfillPage(database, ordered, last));
+        });
+    }
+}
@@ -0,0 +1,123 @@
+package com.hgb7725.botchattyapp.firebase;
+
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.WriteBatch;
+import com.hgb7725.botchattyapp.models.ChatMessage;
+import com.hgb7725.botchattyapp.models.OutgoingMessage;
+import com.hgb7725.botchattyapp.utilities.Constants;
+import com.hgb7725.botchattyapp.utilities.ConversationKeys;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Writes messages together with the conversation summaries they change, in a single WriteBatch.
+ * The summary document id is the conversation key, so both participants address the same
+ * document without looking it up first and a first message can never create two conversations.
+ */
+public class MessageSender {
+
+    /*
+     * Where the writes of one send go. In the app they are one WriteBatch, committed in a
+     * single round trip; tests record them in memory.
+     */
+    interface Writes {
+        void setMessage(String messageId, Map<String, Object> message);
+
+        // Merged so fields written by others (e.g. a migration) are kept
+        void mergeConversation(String conversationId, Map<String, Object> conversation);
+    }
+
+    private final FirebaseFirestore database;
+
+    public MessageSender(FirebaseFirestore database) {
+        this.database = database;
+    }
+
+    public static String conversationDocumentId(String conversationKey) {
+        return conversationKey;
+    }
+
+    /**
+     * Commits the messages and one summary per conversation (from its newest message)
+     * in one round trip. Either everything is written or nothing is.
+     */
+    public Task<Void> send(List<OutgoingMessage> outgoingMessages) {
+        WriteBatch batch = database.batch();
+        write(outgoingMessages, new Writes() {
+            @Override
+            public void setMessage(String messageId, Map<String, Object> message) {
+                batch.set(database.collection(Constants.KEY_COLLECTION_CHAT).document(messageId), message);
+            }
+
+            @Override
+            public void mergeConversation(String conversationId, Map<String, Object> conversation) {
+                batch.set(database.collection(Constants.KEY_COLLECTION_CONVERSATIONS).document(conversationId),
+                        conversation, SetOptions.merge());
+            }
+        });
+        return batch.commit();
+    }
+
+    // One write per message and one per conversation, from its newest message
+    static void write(List<OutgoingMessage> outgoingMessages, Writes writes) {
+        LinkedHashMap<String, OutgoingMessage> latestByConversation = new LinkedHashMap<>();
+        for (OutgoingMessage outgoingMessage : outgoingMessages) {
+            writes.setMessage(outgoingMessage.getChatMessage().getId(), toMessageDocument(outgoingMessage));
+            latestByConversation.put(outgoingMessage.getConversationKey(), outgoingMessage);
+        }
+        for (OutgoingMessage outgoingMessage : latestByConversation.values()) {
+            writes.mergeConversation(conversationDocumentId(outgoingMessage.getConversationKey()),
+                    toConversationDocument(outgoingMessage));
+        }
+    }
+
+    static HashMap<String, Object> toMessageDocument(OutgoingMessage outgoingMessage) {
+        ChatMessage chatMessage = outgoingMessage.getChatMessage();
+        HashMap<String, Object> message = new HashMap<>();
+        message.put(Constants.KEY_SENDER_ID, chatMessage.getSenderId());
+        message.put(Constants.KEY_RECEIVER_ID, chatMessage.getReceiverId());
+        message.put(Constants.KEY_CONVERSATION_KEY, outgoingMessage.getConversationKey());
+        message.put(Constants.KEY_MESSAGE, chatMessage.getMessage());
+        message.put(Constants.KEY_TIMESTAMP, chatMessage.getDateObject());
+        // Listeners sync on this, the timestamp above is the sender's clock
+        message.put(Constants.KEY_UPDATED_AT, FieldValue.serverTimestamp());
+        if (!"text".equals(chatMessage.getType())) {
+            message.put("type", chatMessage.getType());
+        }
+        if (chatMessage.getFileName() != null) {
+            message.put("fileName", chatMessage.getFileName());
+        }
+        if (chatMessage.getImageWidth() > 0 && chatMessage.getImageHeight() > 0) {
+            message.put(Constants.KEY_IMAGE_WIDTH, chatMessage.getImageWidth());
+            message.put(Constants.KEY_IMAGE_HEIGHT, chatMessage.getImageHeight());
+        }
+        if (chatMessage.getBlurHash() != null) {
+            message.put(Constants.KEY_BLUR_HASH, chatMessage.getBlurHash());
+        }
+        return message;
+    }
+
+    static HashMap<String, Object> toConversationDocument(OutgoingMessage outgoingMessage) {
+        ChatMessage chatMessage = outgoingMessage.getChatMessage();
+        HashMap<String, Object> conversation = new HashMap<>();
+        conversation.put(Constants.KEY_CONVERSATION_KEY, outgoingMessage.getConversationKey());
+        conversation.put(Constants.KEY_PARTICIPANTS,
+                ConversationKeys.participants(chatMessage.getSenderId(), chatMessage.getReceiverId()));
+        conversation.put(Constants.KEY_SENDER_ID, chatMessage.getSenderId());
+        conversation.put(Constants.KEY_SENDER_NAME, outgoingMessage.getSenderName());
+        conversation.put(Constants.KEY_SENDER_IMAGE, outgoingMessage.getSenderImage());
+        conversation.put(Constants.KEY_RECEIVER_ID, chatMessage.getReceiverId());
+        conversation.put(Constants.KEY_RECEIVER_NAME, outgoingMessage.getReceiverName());
+        conversation.put(Constants.KEY_RECEIVER_IMAGE, outgoingMessage.getReceiverImage());
+        conversation.put(Constants.KEY_LAST_MESSAGE, outgoingMessage.getConversationLabel());
+        conversation.put(Constants.KEY_TIMESTAMP, chatMessage.getDateObject());
+        conversation.put(Constants.KEY_UPDATED_AT, FieldValue.serverTimestamp());
+        return conversation;
+    }
+}
@@ -0,0 +1,248 @@
+package com.hgb7725.botchattyapp.firebase;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.hgb7725.botchattyapp.database.ChatDatabase;
+import com.hgb7725.botchattyapp.database.OutboxDao;
+import com.hgb7725.botchattyapp.models.ChatMessage;
+import com.hgb7725.botchattyapp.models.OutgoingMessage;
+import com.hgb7725.botchattyapp.utilities.AppExecutors;
+import com.hgb7725.botchattyapp.utilities.Constants;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * Durable queue for outgoing messages. A message is stored locally with a client generated
+ * document id before anything is sent, then flushed in order: messages sent in a burst go out
+ * together in one WriteBatch. Failed batches are retried with exponential backoff, and the
+ * queue is flushed as soon as the device is back online. Each batch also carries the
+ * conversation summaries (see MessageSender), so a send is a single round trip.
+ * Screens follow the state of their messages (queued, sending, sent, failed) through a listener.
+ * All methods must be called on the main thread.
+ */
+public class OutboxManager {
+
+    private static final String TAG = "OutboxManager";
+    // Sends made within this window share a batch
+    private static final long COALESCE_DELAY_MS = 200;
+    private static final int MAX_MESSAGES_PER_BATCH = 100;
+    private static final long INITIAL_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 5 * 60 * 1000;
+    private static final int MAX_ATTEMPTS = 8;
+
+    public interface Listener {
+        // The message carries its new send state
+        void onOutgoingMessageChanged(ChatMessage chatMessage);
+    }
+
+    private static OutboxManager instance;
+
+    private final OutboxDao outboxDao;
+    private final FirebaseFirestore database = FirebaseFirestore.getInstance();
+    private final MessageSender messageSender = new MessageSender(database);
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final HashMap<String, List<Listener>> listeners = new HashMap<>();
+    private final Runnable flush = this::flush;
+
+    private boolean isFlushing = false;
+    private boolean isNetworkAvailable = true;
+    private long scheduledFlushAt = -1;
+
+    private OutboxManager(Context context) {
+        outboxDao = ChatDatabase.getInstance(context);
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager != null) {
+            isNetworkAvailable = connectivityManager.getActiveNetwork() != null;
+            connectivityManager.registerDefaultNetworkCallback(new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(@NonNull Network network) {
+                    handler.post(() -> {
+                        isNetworkAvailable = true;
+                        // Back online: everything waiting for a retry may go now
+                        scheduleFlush(0);
+                    });
+                }
+
+                @Override
+                public void onLost(@NonNull Network network) {
+                    handler.post(() -> isNetworkAvailable = false);
+                }
+            });
+        }
+    }
+
+    public static OutboxManager getInstance(Context context) {
+        if (instance == null) {
+            instance = new OutboxManager(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    // Document id assigned on the device, so a resent message overwrites itself instead of duplicating
+    public String newMessageId() {
+        return database.collection(Constants.KEY_COLLECTION_CHAT).document().getId();
+    }
+
+    public void addListener(String conversationKey, Listener listener) {
+        List<Listener> conversationListeners = listeners.get(conversationKey);
+        if (conversationListeners == null) {
+            conversationListeners = new ArrayList<>();
+            listeners.put(conversationKey, conversationListeners);
+        }
+        conversationListeners.add(listener);
+    }
+
+    public void removeListener(String conversationKey, Listener listener) {
+        List<Listener> conversationListeners = listeners.get(conversationKey);
+        if (conversationListeners != null) {
+            conversationListeners.remove(listener);
+            if (conversationListeners.isEmpty()) {
+                listeners.remove(conversationKey);
+            }
+        }
+    }
+
+    public void enqueue(OutgoingMessage outgoingMessage) {
+        outgoingMessage.getChatMessage().setSendState(ChatMessage.SEND_STATE_QUEUED);
+        notifyChanged(outgoingMessage);
+        AppExecutors.getInstance().diskIO().execute(() -> {
+            outboxDao.insertOutgoing(outgoingMessage);
+            AppExecutors.getInstance().mainThread().execute(() -> scheduleFlush(COALESCE_DELAY_MS));
+        });
+    }
+
+    // Puts a failed message back in the queue
+    public void retry(String messageId) {
+        AppExecutors.getInstance().diskIO().execute(() -> {
+            outboxDao.updateOutgoing(messageId, ChatMessage.SEND_STATE_QUEUED, 0, 0);
+            AppExecutors.getInstance().mainThread().execute(() -> scheduleFlush(0));
+        });
+    }
+
+    // Sends whatever a previous process left behind
+    public void resume() {
+        scheduleFlush(0);
+    }
+
+    private void scheduleFlush(long delayMs) {
+        long flushAt = SystemClock.uptimeMillis() + delayMs;
+        if (scheduledFlushAt >= 0 && scheduledFlushAt <= flushAt) {
+            return;
+        }
+        handler.removeCallbacks(flush);
+        scheduledFlushAt = flushAt;
+        handler.postAtTime(flush, flushAt);
+    }
+
+    private void flush() {
+        scheduledFlushAt = -1;
+        // One batch at a time keeps messages in order; the next flush starts when it completes
+        if (isFlushing || !isNetworkAvailable) {
+            return;
+        }
+        isFlushing = true;
+        AppExecutors.getInstance().diskIO().execute(() -> {
+            List<OutgoingMessage> due = outboxDao.getDueOutgoing(System.currentTimeMillis(), MAX_MESSAGES_PER_BATCH);
+            for (OutgoingMessage outgoingMessage : due) {
+                outboxDao.updateOutgoing(outgoingMessage.getChatMessage().getId(), ChatMessage.SEND_STATE_SENDING,
+                        outgoingMessage.getAttempts(), outgoingMessage.getNextAttemptAt());
+            }
+            long nextAttemptAt = due.isEmpty() ? outboxDao.getNextOutgoingAttempt() : -1;
+            AppExecutors.getInstance().mainThread().execute(() -> {
+                if (due.isEmpty()) {
+                    isFlushing = false;
+                    scheduleRetry(nextAttemptAt);
+                } else {
+                    send(due);
+                }
+            });
+        });
+    }
+
+    private void send(List<OutgoingMessage> batchMessages) {
+        for (OutgoingMessage outgoingMessage : batchMessages) {
+            outgoingMessage.getChatMessage().setSendState(ChatMessage.SEND_STATE_SENDING);
+            notifyChanged(outgoingMessage);
+        }
+        messageSender.send(batchMessages)
+                .addOnSuccessListener(unused -> onBatchSent(batchMessages))
+                .addOnFailureListener(e -> onBatchFailed(batchMessages, e));
+    }
+
+    private void onBatchSent(List<OutgoingMessage> batchMessages) {
+        List<String> ids = new ArrayList<>();
+        for (OutgoingMessage outgoingMessage : batchMessages) {
+            ids.add(outgoingMessage.getChatMessage().getId());
+        }
+        AppExecutors.getInstance().diskIO().execute(() -> {
+            outboxDao.deleteOutgoing(ids);
+            AppExecutors.getInstance().mainThread().execute(() -> {
+                for (OutgoingMessage outgoingMessage : batchMessages) {
+                    outgoingMessage.getChatMessage().setSendState(ChatMessage.SEND_STATE_SENT);
+                    notifyChanged(outgoingMessage);
+                }
+                isFlushing = false;
+                flush();
+            });
+        });
+    }
+
+    private void onBatchFailed(List<OutgoingMessage> batchMessages, Exception e) {
+        Log.w(TAG, "Sending " + batchMessages.size() + " messages failed", e);
+        long now = System.currentTimeMillis();
+        for (OutgoingMessage outgoingMessage : batchMessages) {
+            int attempts = outgoingMessage.getAttempts() + 1;
+            outgoingMessage.setAttempts(attempts);
+            outgoingMessage.setNextAttemptAt(now + backoff(attempts));
+            outgoingMessage.getChatMessage().setSendState(attempts >= MAX_ATTEMPTS
+                    ? ChatMessage.SEND_STATE_FAILED
+                    : ChatMessage.SEND_STATE_QUEUED);
+        }
+        AppExecutors.getInstance().diskIO().execute(() -> {
+            for (OutgoingMessage outgoingMessage : batchMessages) {
+                outboxDao.updateOutgoing(outgoingMessage.getChatMessage().getId(),
+                        outgoingMessage.getChatMessage().getSendState(),
+                        outgoingMessage.getAttempts(), outgoingMessage.getNextAttemptAt());
+            }
+            long nextAttemptAt = outboxDao.getNextOutgoingAttempt();
+            AppExecutors.getInstance().mainThread().execute(() -> {
+                for (OutgoingMessage outgoingMessage : batchMessages) {
+                    notifyChanged(outgoingMessage);
+                }
+                isFlushing = false;
+                scheduleRetry(nextAttemptAt);
+            });
+        });
+    }
+
+    static long backoff(int attempts) {
+        return Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << Math.min(attempts - 1, 20));
+    }
+
+    private void scheduleRetry(long nextAttemptAt) {
+        if (nextAttemptAt >= 0) {
+            scheduleFlush(Math.max(0, nextAttemptAt - System.currentTimeMillis()));
+        }
+    }
+
+    private void notifyChanged(OutgoingMessage outgoingMessage) {
+        List<Listener> conversationListeners = listeners.get(outgoingMessage.getConversationKey());
+        if (conversationListeners != null) {
+            for (Listener listener : new ArrayList<>(conversationListeners)) {
+                listener.onOutgoingMessageChanged(outgoingMessage.getChatMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.hgb7725.botchattyapp.firebase;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.firebase.firestore.DocumentChange;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.ListenerRegistration;
+import com.hgb7725.botchattyapp.listeners.PresenceListener;
+import com.hgb7725.botchattyapp.utilities.Constants;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * Watches the availability of other users with at most one Firestore listener per user.
+ * Rows and screens register while they show a user; ids requested close together are
+ * grouped into whereIn listeners, and a user is only released after a grace period
+ * without watchers, so scrolling back and forth does not re-subscribe.
+ * A user counts as online only while their lastSeen heartbeat is recent.
+ * All methods must be called on the main thread.
+ */
+public class PresenceService {
+
+    // Firestore limit for whereIn
+    private static final int MAX_IDS_PER_QUERY = 10;
+    private static final long SUBSCRIBE_DELAY_MS = 100;
+    private static final long RELEASE_GRACE_MS = 10 * 1000;
+
+    private static PresenceService instance;
+
+    private static class Subscription {
+        final List<String> userIds;
+        final Set<String> activeUserIds;
+        ListenerRegistration registration;
+
+        Subscription(List<String> userIds) {
+            this.userIds = userIds;
+            this.activeUserIds = new HashSet<>(userIds);
+        }
+    }
+
+    private final FirebaseFirestore database = FirebaseFirestore.getInstance();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private final HashMap<String, List<PresenceListener>> listeners = new HashMap<>();
+    private final HashMap<String, Boolean> availability = new HashMap<>();
+    private final HashMap<String, Boolean> reportedOnline = new HashMap<>();
+    private final HashMap<String, Long> lastSeen = new HashMap<>();
+    private final HashMap<String, String> fcmTokens = new HashMap<>();
+    private final HashMap<String, Subscription> subscriptions = new HashMap<>();
+    private final HashMap<String, Runnable> pendingReleases = new HashMap<>();
+    private final List<String> pendingUserIds = new ArrayList<>();
+    private final Runnable subscribePending = this::subscribePending;
+
+    // Re-checks heartbeats locally, so a user whose app died turns offline without extra reads
+    private final Runnable checkStaleness = new Runnable() {
+        @Override
+        public void run() {
+            for (String userId : new ArrayList<>(availability.keySet())) {
+                notifyIfChanged(userId);
+            }
+            if (!availability.isEmpty()) {
+                handler.postDelayed(this, AvailabilityManager.HEARTBEAT_INTERVAL_MS);
+            }
+        }
+    };
+
+    private PresenceService() {
+    }
+
+    public static PresenceService getInstance() {
+        if (instance == null) {
+            instance = new PresenceService();
+        }
+        return instance;
+    }
+
+    public void watch(String userId, PresenceListener listener) {
+        if (userId == null) {
+            return;
+        }
+        List<PresenceListener> userListeners = listeners.get(userId);
+        if (userListeners == null) {
+            userListeners = new ArrayList<>();
+            listeners.put(userId, userListeners);
+        }
+        userListeners.add(listener);
+
+        Runnable pendingRelease = pendingReleases.remove(userId);
+        if (pendingRelease != null) {
+            handler.removeCallbacks(pendingRelease);
+        }
+
+        Subscription subscription = subscriptions.get(userId);
+        if (subscription != null) {
+            subscription.activeUserIds.add(userId);
+            Boolean isOnline = reportedOnline.get(userId);
+            if (isOnline != null) {
+                listener.onPresenceChanged(userId, isOnline);
+            }
+        } else if (!pendingUserIds.contains(userId)) {
+            pendingUserIds.add(userId);
+            handler.removeCallbacks(subscribePending);
+            handler.postDelayed(subscribePending, SUBSCRIBE_DELAY_MS);
+        }
+    }
+
+    public void unwatch(String userId, PresenceListener listener) {
+        List<PresenceListener> userListeners = listeners.get(userId);
+        if (userListeners == null || !userListeners.remove(listener) || !userListeners.isEmpty()) {
+            return;
+        }
+        listeners.remove(userId);
+        Runnable release = () -> release(userId);
+        pendingReleases.put(userId, release);
+        handler.postDelayed(release, RELEASE_GRACE_MS);
+    }
+
+    public String getFcmToken(String userId) {
+        return fcmTokens.get(userId);
+    }
+
+    private void subscribePending() {
+        for (int start = 0; start < pendingUserIds.size(); start += MAX_IDS_PER_QUERY) {
+            List<String> userIds = new ArrayList<>(pendingUserIds.subList(
+                    start, Math.min(start + MAX_IDS_PER_QUERY, pendingUserIds.size())));
+            Subscription subscription = new Subscription(userIds);
+            for (String userId : userIds) {
+                subscriptions.put(userId, subscription);
+            }
+            subscription.registration = database.collection(Constants.KEY_COLLECTION_USERS)
+                    .whereIn(FieldPath.documentId(), userIds)
+                    .addSnapshotListener((value, error) -> {
+                        if (error != null || value == null) {
+                            return;
+                        }
+                        for (DocumentChange documentChange : value.getDocumentChanges()) {
+                            onUserChanged(documentChange.getDocument());
+                        }
+                    });
+        }
+        pendingUserIds.clear();
+    }
+
+    private void onUserChanged(DocumentSnapshot document) {
+        String userId = document.getId();
+        fcmTokens.put(userId, document.getString(Constants.KEY_FCM_TOKEN));
+        Long value = document.getLong(Constants.KEY_AVAILABILITY);
+        if (value == null) {
+            return;
+        }
+        if (availability.isEmpty()) {
+            handler.removeCallbacks(checkStaleness);
+            handler.postDelayed(checkStaleness, AvailabilityManager.HEARTBEAT_INTERVAL_MS);
+        }
+        availability.put(userId, value.intValue() == 1);
+        Date seen = document.getDate(Constants.KEY_LAST_SEEN);
+        if (seen != null) {
+            lastSeen.put(userId, seen.getTime());
+        } else {
+            lastSeen.remove(userId);
+        }
+        notifyIfChanged(userId);
+    }
+
+    private boolean isOnline(String userId) {
+        if (!Boolean.TRUE.equals(availability.get(userId))) {
+            return false;
+        }
+        // Users on older app versions have no heartbeat, trust their flag
+        Long seen = lastSeen.get(userId);
+        return seen == null || System.currentTimeMillis() - seen < AvailabilityManager.STALE_AFTER_MS;
+    }
+
+    private void notifyIfChanged(String userId) {
+        boolean isOnline = isOnline(userId);
+        Boolean previous = reportedOnline.put(userId, isOnline);
+        if (previous != null && previous == isOnline) {
+            return;
+        }
+        List<PresenceListener> userListeners = listeners.get(userId);
+        if (userListeners != null) {
+            for (PresenceListener listener : new ArrayList<>(userListeners)) {
+                listener.onPresenceChanged(userId, isOnline);
+            }
+        }
+    }
+
+    private void release(String userId) {
+        pendingReleases.remove(userId);
+        if (listeners.containsKey(userId)) {
+            return;
+        }
+        pendingUserIds.remove(userId);
+        Subscription subscription = subscriptions.get(userId);
+        if (subscription == null) {
+            return;
+        }
+        subscription.activeUserIds.remove(userId);
+        // A whereIn listener stays until none of its users is watched any more
+        if (subscription.activeUserIds.isEmpty()) {
+            subscription.registration.remove();
+            for (String subscribedUserId : subscription.userIds) {
+                subscriptions.remove(subscribedUserId);
+                availability.remove(subscribedUserId);
+                reportedOnline.remove(subscribedUserId);
+                lastSeen.remove(subscribedUserId);
+            }
+        }
+    }
+}
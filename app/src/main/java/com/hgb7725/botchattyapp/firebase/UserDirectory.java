@@ -0,0 +1,78 @@
+package com.hgb7725.botchattyapp.firebase;
+
+import android.util.Log;
+
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.QuerySnapshot;
+import com.hgb7725.botchattyapp.models.User;
+import com.hgb7725.botchattyapp.utilities.Constants;
+import com.hgb7725.botchattyapp.utilities.NameKeys;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Answers prefix searches on the users collection with a range on the normalized name key,
+ * for when the local directory (see UserSync) has not been synced yet. The signed in user is
+ * left out. Users written before the name key existed only show up once they open the app
+ * again (MainActivity backfills it with the FCM token).
+ */
+public class UserDirectory {
+
+    private static final String TAG = "UserDirectory";
+    // Sorts after every character a name key can contain
+    private static final String PREFIX_END = "\uf8ff";
+
+    public interface Callback {
+        void onUsersLoaded(List<User> users);
+
+        void onUsersFailed(Exception e);
+    }
+
+    private final FirebaseFirestore database;
+    private final String currentUserId;
+    private final int pageSize;
+
+    public UserDirectory(FirebaseFirestore database, String currentUserId, int pageSize) {
+        this.database = database;
+        this.currentUserId = currentUserId;
+        this.pageSize = pageSize;
+    }
+
+    // First page of users whose name key starts with the query
+    public void search(String query, Callback callback) {
+        String prefix = NameKeys.of(query);
+        database.collection(Constants.KEY_COLLECTION_USERS)
+                .orderBy(Constants.KEY_NAME_KEY)
+                .startAt(prefix)
+                .endAt(prefix + PREFIX_END)
+                .limit(pageSize)
+                .get()
+                .addOnCompleteListener(task -> {
+                    if (!task.isSuccessful() || task.getResult() == null) {
+                        Log.w(TAG, "Unable to search users for " + prefix, task.getException());
+                        callback.onUsersFailed(task.getException());
+                        return;
+                    }
+                    callback.onUsersLoaded(toUsers(task.getResult()));
+                });
+    }
+
+    private List<User> toUsers(QuerySnapshot result) {
+        List<User> users = new ArrayList<>();
+        for (DocumentSnapshot document : result.getDocuments()) {
+            if (document.getId().equals(currentUserId)) {
+                continue;
+            }
+            User user = new User();
+            user.setName(document.getString(Constants.KEY_NAME));
+            user.setEmail(document.getString(Constants.KEY_EMAIL));
+            user.setImage(document.getString(Constants.KEY_IMAGE));
+            user.setToken(document.getString(Constants.KEY_FCM_TOKEN));
+            user.setId(document.getId());
+            users.add(user);
+        }
+        return users;
+    }
+}
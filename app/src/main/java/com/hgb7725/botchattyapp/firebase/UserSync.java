@@ -0,0 +1,134 @@
+package com.hgb7725.botchattyapp.firebase;
+
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.hgb7725.botchattyapp.database.ChatDatabase;
+import com.hgb7725.botchattyapp.database.UserDao;
+import com.hgb7725.botchattyapp.models.User;
+import com.hgb7725.botchattyapp.utilities.AppExecutors;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/*
+ * Keeps the local user directory current. The first sync pages through every user, later ones
+ * only read documents whose updatedAt is past the stored watermark. A deleted account is a
+ * tombstone (deleted = true) rather than a missing document, so it shows up in the delta too.
+ * Delta pages come oldest change first and are applied with their watermark in one
+ * transaction, so an interrupted sync resumes where it stopped. The full sync only sets the
+ * watermark once it has seen every document, to the newest updatedAt it read: a server time,
+ * unlike the device clock, which can run ahead and skip changes.
+ *
+ * The data source and the executors are injected, so the engine runs against an in-memory
+ * source with direct executors as well as against Firestore.
+ */
+public class UserSync {
+
+    // updatedAt is set by the server, but a write still in flight can land with an earlier time
+    static final long WATERMARK_OVERLAP_MS = 5 * 60 * 1000;
+    static final int PAGE_SIZE = 500;
+
+    public static class Page {
+        public final List<User> users;
+        public final List<String> deletedIds;
+        // Newest updatedAt in the page, 0 if no document had one
+        public final long newestUpdatedAt;
+        // Opaque position to continue from, null on the last page
+        @Nullable
+        public final Object next;
+
+        public Page(List<User> users, List<String> deletedIds, long newestUpdatedAt, @Nullable Object next) {
+            this.users = users;
+            this.deletedIds = deletedIds;
+            this.newestUpdatedAt = newestUpdatedAt;
+            this.next = next;
+        }
+    }
+
+    public interface Source {
+        /**
+         * Delivers one page of users changed after the given time (every user when it is 0),
+         * oldest change first, starting at the position of a previous page.
+         */
+        void fetchChanges(long since, @Nullable Object from, int limit, PageCallback callback);
+    }
+
+    public interface PageCallback {
+        void onPage(Page page);
+
+        void onError(Exception e);
+    }
+
+    public interface Listener {
+        // Number of users stored or removed by this sync
+        void onUsersSynced(int changedCount);
+
+        void onUserSyncFailed(Exception e);
+    }
+
+    private static UserSync instance;
+
+    private final Source source;
+    private final UserDao userDao;
+    private final Executor diskExecutor;
+    private final Executor callbackExecutor;
+
+    public UserSync(Source source, UserDao userDao, Executor diskExecutor, Executor callbackExecutor) {
+        this.source = source;
+        this.userDao = userDao;
+        this.diskExecutor = diskExecutor;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    public static synchronized UserSync getInstance(Context context) {
+        if (instance == null) {
+            instance = new UserSync(
+                    new FirestoreUserSource(FirebaseFirestore.getInstance()),
+                    ChatDatabase.getInstance(context),
+                    AppExecutors.getInstance().diskIO(),
+                    AppExecutors.getInstance().mainThread());
+        }
+        return instance;
+    }
+
+    public void sync(Listener listener) {
+        diskExecutor.execute(() -> {
+            long watermark = userDao.getUserWatermark();
+            long since = watermark > 0 ? Math.max(1, watermark - WATERMARK_OVERLAP_MS) : 0;
+            fetch(since, null, 0, 0, listener);
+        });
+    }
+
+    // newestSoFar is the newest updatedAt of the pages before this one
+    private void fetch(long since, @Nullable Object from, long newestSoFar, int changedSoFar, Listener listener) {
+        source.fetchChanges(since, from, PAGE_SIZE, new PageCallback() {
+            @Override
+            public void onPage(Page page) {
+                diskExecutor.execute(() -> {
+                    long newest = Math.max(newestSoFar, page.newestUpdatedAt);
+                    long watermark = page.newestUpdatedAt;
+                    if (since == 0) {
+                        // Pages of the full sync are not in updatedAt order, and documents written
+                        // before updatedAt existed have none: only a complete pass is a watermark
+                        watermark = page.next == null ? newest : 0;
+                    }
+                    userDao.applyUserChanges(page.users, page.deletedIds, watermark);
+                    int changed = changedSoFar + page.users.size() + page.deletedIds.size();
+                    if (page.next != null) {
+                        fetch(since, page.next, newest, changed, listener);
+                    } else {
+                        callbackExecutor.execute(() -> listener.onUsersSynced(changed));
+                    }
+                });
+            }
+
+            @Override
+            public void onError(Exception e) {
+                callbackExecutor.execute(() -> listener.onUserSyncFailed(e));
+            }
+        });
+    }
+}
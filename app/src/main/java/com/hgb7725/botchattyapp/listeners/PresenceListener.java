@@ -0,0 +1,5 @@
+package com.hgb7725.botchattyapp.listeners;
+
+public interface PresenceListener {
+    void onPresenceChanged(String userId, boolean isOnline);
+}
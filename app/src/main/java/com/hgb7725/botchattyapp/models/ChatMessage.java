@@ -3,6 +3,14 @@ package com.hgb7725.botchattyapp.models;
 import java.util.Date;
 
 public class ChatMessage {
+
+    // Delivery state of messages written by this device; everything read from Firestore is sent
+    public static final int SEND_STATE_SENT = 0;
+    public static final int SEND_STATE_QUEUED = 1;
+    public static final int SEND_STATE_SENDING = 2;
+    public static final int SEND_STATE_FAILED = 3;
+
+    private String id;
     private String senderId;
     private String receiverId;
     private String message;
@@ -15,9 +23,32 @@ public class ChatMessage {
 
     private String type = "text";
     private String fileName;
+    // Pixel size of an image message, 0 when the sender did not record it
+    private int imageWidth;
+    private int imageHeight;
+    // BlurHash of an image message, shown until the image itself is loaded
+    private String blurHash;
+    private int sendState = SEND_STATE_SENT;
+    // Server time (ms) of the document's last write, 0 while it is pending or when unknown
+    private long updatedAt;
+
+    // Display values the chat adapter derives on first bind; 0 / null until then
+    private int viewType;
+    private String displayFileName;
+    private int fileIconRes;
+    private String displayDateTime;
+    private int displayDateTimeState;
 
     public ChatMessage() {};
 
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
     public String getConversionId() {
         return conversionId;
     }
@@ -56,6 +87,7 @@ public class ChatMessage {
 
     public void setSenderId(String senderId) {
         this.senderId = senderId;
+        this.viewType = 0;
     }
 
     public String getReceiverId() {
@@ -80,6 +112,7 @@ public class ChatMessage {
 
     public void setDateTime(String dateTime) {
         this.dateTime = dateTime;
+        this.displayDateTime = null;
     }
 
     public String getType() {
@@ -88,6 +121,7 @@ public class ChatMessage {
 
     public void setType(String type) {
         this.type = type;
+        this.viewType = 0;
     }
 
     public String getFileName() {
@@ -96,5 +130,85 @@ public class ChatMessage {
 
     public void setFileName(String fileName) {
         this.fileName = fileName;
+        this.displayFileName = null;
+        this.fileIconRes = 0;
+    }
+
+    public int getImageWidth() {
+        return imageWidth;
+    }
+
+    public void setImageWidth(int imageWidth) {
+        this.imageWidth = imageWidth;
+    }
+
+    public int getImageHeight() {
+        return imageHeight;
+    }
+
+    public void setImageHeight(int imageHeight) {
+        this.imageHeight = imageHeight;
+    }
+
+    public String getBlurHash() {
+        return blurHash;
+    }
+
+    public void setBlurHash(String blurHash) {
+        this.blurHash = blurHash;
+    }
+
+    public long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(long updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+
+    public int getSendState() {
+        return sendState;
+    }
+
+    public void setSendState(int sendState) {
+        this.sendState = sendState;
+    }
+
+    public int getViewType() {
+        return viewType;
+    }
+
+    public void setViewType(int viewType) {
+        this.viewType = viewType;
+    }
+
+    public String getDisplayFileName() {
+        return displayFileName;
+    }
+
+    public void setDisplayFileName(String displayFileName) {
+        this.displayFileName = displayFileName;
+    }
+
+    public int getFileIconRes() {
+        return fileIconRes;
+    }
+
+    public void setFileIconRes(int fileIconRes) {
+        this.fileIconRes = fileIconRes;
+    }
+
+    // The time as shown under a sent message, together with the send state it was written for
+    public String getDisplayDateTime() {
+        return displayDateTime;
+    }
+
+    public int getDisplayDateTimeState() {
+        return displayDateTimeState;
+    }
+
+    public void setDisplayDateTime(String displayDateTime, int sendState) {
+        this.displayDateTime = displayDateTime;
+        this.displayDateTimeState = sendState;
     }
 }
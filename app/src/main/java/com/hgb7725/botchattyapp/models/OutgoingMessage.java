@@ -0,0 +1,87 @@
+package com.hgb7725.botchattyapp.models;
+
+/*
+ * A message waiting in the outbox, with what is needed to write it and its conversation
+ * summary without the chat screen being open.
+ */
+public class OutgoingMessage {
+    private final ChatMessage chatMessage;
+    private final String conversationKey;
+    private String senderName;
+    private String senderImage;
+    private String receiverName;
+    private String receiverImage;
+    // Text shown in the conversation list, e.g. "Image" or "File: report.pdf"
+    private String conversationLabel;
+    private int attempts;
+    private long nextAttemptAt;
+
+    public OutgoingMessage(ChatMessage chatMessage, String conversationKey) {
+        this.chatMessage = chatMessage;
+        this.conversationKey = conversationKey;
+    }
+
+    public ChatMessage getChatMessage() {
+        return chatMessage;
+    }
+
+    public String getConversationKey() {
+        return conversationKey;
+    }
+
+    public String getSenderName() {
+        return senderName;
+    }
+
+    public void setSenderName(String senderName) {
+        this.senderName = senderName;
+    }
+
+    public String getSenderImage() {
+        return senderImage;
+    }
+
+    public void setSenderImage(String senderImage) {
+        this.senderImage = senderImage;
+    }
+
+    public String getReceiverName() {
+        return receiverName;
+    }
+
+    public void setReceiverName(String receiverName) {
+        this.receiverName = receiverName;
+    }
+
+    public String getReceiverImage() {
+        return receiverImage;
+    }
+
+    public void setReceiverImage(String receiverImage) {
+        this.receiverImage = receiverImage;
+    }
+
+    public String getConversationLabel() {
+        return conversationLabel;
+    }
+
+    public void setConversationLabel(String conversationLabel) {
+        this.conversationLabel = conversationLabel;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public long getNextAttemptAt() {
+        return nextAttemptAt;
+    }
+
+    public void setNextAttemptAt(long nextAttemptAt) {
+        this.nextAttemptAt = nextAttemptAt;
+    }
+}
@@ -11,6 +11,7 @@ public class ApiClient {
         if (retrofit == null) {
             retrofit = new Retrofit.Builder()
                     .baseUrl("https://fcm.googleapis.com/fcm/")
+                    .client(HttpClientProvider.getInstance().getClient())
                     .addConverterFactory(ScalarsConverterFactory.create())
                     .build();
         }
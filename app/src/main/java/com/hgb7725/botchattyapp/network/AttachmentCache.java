@@ -0,0 +1,301 @@
+package com.hgb7725.botchattyapp.network;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.hgb7725.botchattyapp.utilities.AppExecutors;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+
+/*
+ * App managed cache of downloaded chat attachments. Files are stored by the SHA-256 of their
+ * content (attachments/<hash>/<file name>), and an index maps each URL to its file, so the
+ * same attachment sent twice is kept once. Opening a cached URL needs no network at all.
+ * The total size is kept under a budget by removing the least recently opened files.
+ * Requests for a URL that is already downloading wait for that download instead of
+ * starting another one. Downloads go through SegmentedDownloader, so large files arrive in
+ * parallel ranges and an interrupted download resumes. Callbacks run on the main thread;
+ * get() must be called there too.
+ */
+public class AttachmentCache {
+
+    private static final String TAG = "AttachmentCache";
+    private static final String DIRECTORY = "attachments";
+    private static final String INDEX_PREFERENCES = "attachmentCache";
+    private static final String TEMP_PREFIX = "download-";
+    private static final long MAX_CACHE_BYTES = 200L * 1024 * 1024;
+    private static final long STALE_DOWNLOAD_MS = 24 * 60 * 60 * 1000;
+    private static final int MAX_PARALLEL_DOWNLOADS = 2;
+    // Same as the per host limit of the shared client
+    private static final int MAX_PARALLEL_SEGMENTS = 4;
+
+    public interface Callback {
+        void onAttachmentReady(File file);
+
+        void onAttachmentFailed(String errorMessage);
+    }
+
+    /*
+     * Counters since the app started, for logging.
+     */
+    public static class Stats {
+        public final long hits;
+        public final long misses;
+        // Size of the files served from the cache instead of being downloaded again
+        public final long bytesSaved;
+        public final long bytesDownloaded;
+        public final long evictedFiles;
+
+        Stats(long hits, long misses, long bytesSaved, long bytesDownloaded, long evictedFiles) {
+            this.hits = hits;
+            this.misses = misses;
+            this.bytesSaved = bytesSaved;
+            this.bytesDownloaded = bytesDownloaded;
+            this.evictedFiles = evictedFiles;
+        }
+
+        public double getHitRatio() {
+            long requests = hits + misses;
+            return requests > 0 ? (double) hits / requests : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + hits
+                    + " misses=" + misses
+                    + " hitRatio=" + Math.round(getHitRatio() * 100) + "%"
+                    + " saved=" + bytesSaved + "B"
+                    + " downloaded=" + bytesDownloaded + "B"
+                    + " evicted=" + evictedFiles;
+        }
+    }
+
+    private static volatile AttachmentCache instance;
+
+    private final File directory;
+    private final SharedPreferences index;
+    private final OkHttpClient client;
+    private final SegmentedDownloader downloader;
+    // Each download blocks one of these while its segments run on the segment threads
+    private final ExecutorService downloadExecutor =
+            Executors.newFixedThreadPool(MAX_PARALLEL_DOWNLOADS, runnable -> new Thread(runnable, "attachment-download"));
+    private final ExecutorService segmentExecutor =
+            Executors.newFixedThreadPool(MAX_PARALLEL_SEGMENTS, runnable -> new Thread(runnable, "download-segment"));
+    // Callbacks waiting for each URL being downloaded, only touched on the main thread
+    private final Map<String, List<Callback>> inFlight = new HashMap<>();
+
+    private long hits = 0;
+    private long misses = 0;
+    private long bytesSaved = 0;
+    private long bytesDownloaded = 0;
+    private long evictedFiles = 0;
+
+    private AttachmentCache(Context context) {
+        directory = new File(context.getCacheDir(), DIRECTORY);
+        index = context.getSharedPreferences(INDEX_PREFERENCES, Context.MODE_PRIVATE);
+        client = HttpClientProvider.getInstance().getClient().newBuilder()
+                .readTimeout(60, TimeUnit.SECONDS)
+                .build();
+        downloader = new SegmentedDownloader(client, segmentExecutor);
+        // Partial downloads are kept for resuming, but not forever
+        AppExecutors.getInstance().diskIO().execute(this::deleteStaleDownloads);
+    }
+
+    public static AttachmentCache getInstance(Context context) {
+        if (instance == null) {
+            synchronized (AttachmentCache.class) {
+                if (instance == null) {
+                    instance = new AttachmentCache(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    public Stats getStats() {
+        return new Stats(hits, misses, bytesSaved, bytesDownloaded, evictedFiles);
+    }
+
+    // The stored file of the URL, or null when it has not been downloaded or was evicted
+    @Nullable
+    public File getCached(@NonNull String url) {
+        String path = index.getString(url, null);
+        if (path == null) {
+            return null;
+        }
+        File file = new File(directory, path);
+        if (!file.isFile()) {
+            index.edit().remove(url).apply();
+            return null;
+        }
+        return file;
+    }
+
+    public void get(@NonNull String url, @Nullable String fileName, @NonNull Callback callback) {
+        File cached = getCached(url);
+        if (cached != null) {
+            // The modification time is the LRU clock
+            cached.setLastModified(System.currentTimeMillis());
+            hits++;
+            bytesSaved += cached.length();
+            Log.d(TAG, "Opened " + fileName + " from the cache | " + getStats());
+            callback.onAttachmentReady(cached);
+            return;
+        }
+        List<Callback> waiting = inFlight.get(url);
+        if (waiting != null) {
+            waiting.add(callback);
+            return;
+        }
+        waiting = new ArrayList<>();
+        waiting.add(callback);
+        inFlight.put(url, waiting);
+        misses++;
+        download(url, fileName);
+    }
+
+    private void download(String url, String fileName) {
+        downloadExecutor.execute(() -> {
+            // Named after the URL, so a download interrupted earlier resumes in the same file
+            File partial = new File(directory, TEMP_PREFIX
+                    + UUID.nameUUIDFromBytes(url.getBytes(StandardCharsets.UTF_8)));
+            try {
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("Unable to create " + directory);
+                }
+                SegmentedDownloader.Result result = downloader.download(url, partial, null);
+                Log.d(TAG, "Fetched " + fileName + ": " + result);
+                File file = store(url, fileName, partial, result.sha256);
+                finish(url, file, result.bytesTransferred, null);
+            } catch (IOException e) {
+                Log.e(TAG, "Download of " + fileName + " failed", e);
+                finish(url, null, 0, e.getMessage() != null ? e.getMessage() : "Network error");
+            }
+        });
+    }
+
+    // Moves a finished download to its content address
+    private File store(String url, String fileName, File partial, String hash) throws IOException {
+        synchronized (this) {
+            File blobDirectory = new File(directory, hash);
+            File[] existing = blobDirectory.listFiles();
+            File file;
+            if (existing != null && existing.length > 0) {
+                // Same content under another URL, keep the copy that is already there
+                file = existing[0];
+                partial.delete();
+            } else {
+                file = new File(blobDirectory, safeFileName(fileName));
+                if ((!blobDirectory.isDirectory() && !blobDirectory.mkdirs()) || !partial.renameTo(file)) {
+                    partial.delete();
+                    throw new IOException("Unable to move the download into the cache");
+                }
+            }
+            file.setLastModified(System.currentTimeMillis());
+            index.edit().putString(url, hash + "/" + file.getName()).apply();
+            trim(file);
+            return file;
+        }
+    }
+
+    // Removes the least recently opened files until the cache fits its budget again
+    private void trim(File keep) {
+        File[] blobDirectories = directory.listFiles(File::isDirectory);
+        if (blobDirectories == null) {
+            return;
+        }
+        List<File> files = new ArrayList<>();
+        long totalBytes = 0;
+        for (File blobDirectory : blobDirectories) {
+            File[] blobFiles = blobDirectory.listFiles();
+            if (blobFiles != null) {
+                for (File file : blobFiles) {
+                    files.add(file);
+                    totalBytes += file.length();
+                }
+            }
+        }
+        if (totalBytes <= MAX_CACHE_BYTES) {
+            return;
+        }
+        File[] byAge = files.toArray(new File[0]);
+        Arrays.sort(byAge, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        int evicted = 0;
+        for (File file : byAge) {
+            if (totalBytes <= MAX_CACHE_BYTES) {
+                break;
+            }
+            if (file.equals(keep)) {
+                continue;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                // Index entries of the removed file are dropped the next time they are looked up
+                file.getParentFile().delete();
+                totalBytes -= length;
+                evicted++;
+            }
+        }
+        int evictedCount = evicted;
+        AppExecutors.getInstance().mainThread().execute(() -> evictedFiles += evictedCount);
+        Log.d(TAG, "Evicted " + evicted + " files, cache now " + totalBytes + "B");
+    }
+
+    private void finish(String url, @Nullable File file, long downloadedBytes, @Nullable String errorMessage) {
+        AppExecutors.getInstance().mainThread().execute(() -> {
+            List<Callback> waiting = inFlight.remove(url);
+            if (file != null) {
+                bytesDownloaded += downloadedBytes;
+                Log.d(TAG, "Downloaded " + file.getName() + " | " + getStats());
+            }
+            if (waiting == null) {
+                return;
+            }
+            for (Callback callback : waiting) {
+                if (file != null) {
+                    callback.onAttachmentReady(file);
+                } else {
+                    callback.onAttachmentFailed(errorMessage);
+                }
+            }
+        });
+    }
+
+    private void deleteStaleDownloads() {
+        long cutoff = System.currentTimeMillis() - STALE_DOWNLOAD_MS;
+        File[] temps = directory.listFiles((dir, name) -> name.startsWith(TEMP_PREFIX));
+        if (temps != null) {
+            for (File temp : temps) {
+                if (temp.lastModified() < cutoff) {
+                    temp.delete();
+                }
+            }
+        }
+    }
+
+    // Attachment names come from the sender, keep them inside the blob directory
+    private static String safeFileName(@Nullable String fileName) {
+        if (fileName == null) {
+            return "file";
+        }
+        String name = fileName.replace('/', '_').replace('\\', '_').trim();
+        return name.isEmpty() || name.equals(".") || name.equals("..") ? "file" : name;
+    }
+}
@@ -0,0 +1,581 @@
+package com.hgb7725.botchattyapp.network;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.OpenableColumns;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.hgb7725.botchattyapp.utilities.AppExecutors;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSink;
+
+/*
+ * Uploads attachments to Cloudinary as a binary multipart body. The content URI is streamed
+ * through a fixed size buffer while the request is written, so memory use does not grow with
+ * the file size. Large files are sent in chunks (X-Unique-Upload-Id / Content-Range); every
+ * acknowledged chunk is recorded, so an interrupted upload of the same file continues where it
+ * stopped, also after the process was killed. Progress and results are delivered on the main thread.
+ */
+public class AttachmentUploader {
+
+    private static final String TAG = "AttachmentUploader";
+    private static final int BUFFER_SIZE = 8 * 1024;
+    // Progress is reported at most this often when the total size is unknown
+    private static final long UNKNOWN_SIZE_REPORT_BYTES = 256 * 1024;
+    private static final MediaType OCTET_STREAM = MediaType.get("application/octet-stream");
+
+    // Cloudinary requires every chunk but the last one to be at least 5 MB
+    private static final long CHUNK_SIZE = 6 * 1024 * 1024;
+    private static final long CHUNKED_UPLOAD_THRESHOLD = 2 * CHUNK_SIZE;
+    private static final int MAX_CHUNK_ATTEMPTS = 4;
+    private static final long RETRY_DELAY_MS = 1000;
+    // Longest Retry-After of a busy server the upload waits for
+    private static final long MAX_RETRY_AFTER_MS = 60 * 1000;
+    // Cloudinary drops unfinished chunked uploads after a while, start over past this age
+    private static final long STATE_MAX_AGE_MS = 24 * 60 * 60 * 1000;
+    private static final String STATE_PREFERENCES = "chunkedUploads";
+
+    public interface Callback {
+        // totalBytes is -1 when the provider does not report a size
+        void onProgress(long bytesSent, long totalBytes);
+
+        void onSuccess(String secureUrl);
+
+        void onFailure(String errorMessage);
+    }
+
+    /*
+     * Handle of a running upload. Once cancelled, no further callbacks are delivered;
+     * the chunks already acknowledged are kept for the next attempt.
+     */
+    public static class Upload {
+        private volatile boolean cancelled = false;
+        private volatile Call call;
+
+        void setCall(Call call) {
+            this.call = call;
+            if (cancelled) {
+                call.cancel();
+            }
+        }
+
+        public void cancel() {
+            cancelled = true;
+            Call current = call;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /*
+     * Numbers of the last finished or interrupted chunked upload.
+     */
+    public static class UploadStats {
+        public final long totalBytes;
+        public final long resumedFromOffset;
+        public final long bytesSent;
+        public final long bytesRetransmitted;
+        public final long elapsedMs;
+
+        UploadStats(long totalBytes, long resumedFromOffset, long bytesSent, long bytesRetransmitted, long elapsedMs) {
+            this.totalBytes = totalBytes;
+            this.resumedFromOffset = resumedFromOffset;
+            this.bytesSent = bytesSent;
+            this.bytesRetransmitted = bytesRetransmitted;
+            this.elapsedMs = elapsedMs;
+        }
+
+        public long getThroughputBytesPerSecond() {
+            return elapsedMs > 0 ? bytesSent * 1000 / elapsedMs : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "total=" + totalBytes
+                    + " resumedFrom=" + resumedFromOffset
+                    + " sent=" + bytesSent
+                    + " retransmitted=" + bytesRetransmitted
+                    + " elapsedMs=" + elapsedMs
+                    + " throughput=" + getThroughputBytesPerSecond() + "B/s";
+        }
+    }
+
+    private static volatile AttachmentUploader instance;
+
+    private final ContentResolver contentResolver;
+    private final SharedPreferences uploadState;
+    private final OkHttpClient client;
+    private final Executor callbackExecutor;
+    private final ExecutorService chunkExecutor =
+            Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "chunked-upload"));
+    private volatile UploadStats lastStats;
+
+    private AttachmentUploader(Context context) {
+        // Same pool and dispatcher as every other request, with room for slow uploads
+        this(context.getContentResolver(),
+                context.getSharedPreferences(STATE_PREFERENCES, Context.MODE_PRIVATE),
+                HttpClientProvider.getInstance().getClient().newBuilder()
+                        .writeTimeout(60, TimeUnit.SECONDS)
+                        .readTimeout(60, TimeUnit.SECONDS)
+                        .build(),
+                AppExecutors.getInstance().mainThread());
+    }
+
+    // Tests pass a client pointed at a local server and run callbacks in place
+    AttachmentUploader(ContentResolver contentResolver, SharedPreferences uploadState,
+                       OkHttpClient client, Executor callbackExecutor) {
+        this.contentResolver = contentResolver;
+        this.uploadState = uploadState;
+        this.client = client;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    public static AttachmentUploader getInstance(Context context) {
+        if (instance == null) {
+            synchronized (AttachmentUploader.class) {
+                if (instance == null) {
+                    instance = new AttachmentUploader(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    @Nullable
+    public UploadStats getLastStats() {
+        return lastStats;
+    }
+
+    /**
+     * Posts the content of the URI as the "file" part, together with the given form fields
+     * (upload_preset, public_id, ...), to the upload URL and hands back Cloudinary's secure_url.
+     */
+    public Upload upload(@NonNull Uri uri, @NonNull String uploadUrl,
+                         @NonNull Map<String, String> params, @NonNull Callback callback) {
+        return upload(queryFileInfo(uri), uploadUrl, params, callback);
+    }
+
+    Upload upload(FileInfo fileInfo, String uploadUrl, Map<String, String> params, Callback callback) {
+        Upload upload = new Upload();
+        if (fileInfo.size >= CHUNKED_UPLOAD_THRESHOLD) {
+            chunkExecutor.execute(() -> uploadInChunks(upload, fileInfo, uploadUrl, params, callback));
+            return upload;
+        }
+
+        StreamingRequestBody fileBody = new StreamingRequestBody(fileInfo, 0, fileInfo.size, upload, callback);
+        Call call = client.newCall(buildRequest(uploadUrl, params, fileInfo, fileBody).build());
+        upload.setCall(call);
+        call.enqueue(new okhttp3.Callback() {
+            @Override
+            public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                if (upload.isCancelled()) {
+                    return;
+                }
+                Log.e(TAG, "Upload failed", e);
+                deliver(upload, () -> callback.onFailure(e.getMessage() != null ? e.getMessage() : "Network error"));
+            }
+
+            @Override
+            public void onResponse(@NonNull Call call, @NonNull Response response) {
+                deliverResult(upload, response, callback);
+            }
+        });
+        return upload;
+    }
+
+    // Runs on the chunk executor, one chunk request at a time
+    private void uploadInChunks(Upload upload, FileInfo fileInfo, String uploadUrl,
+                                Map<String, String> params, Callback callback) {
+        String stateKey = stateKey(fileInfo, uploadUrl, params);
+        ChunkState state = loadState(stateKey);
+        if (state == null) {
+            state = new ChunkState(UUID.randomUUID().toString(), 0);
+        }
+        long resumedFromOffset = state.offset;
+        long bytesSent = 0;
+        long bytesRetransmitted = 0;
+        long startTime = SystemClock.elapsedRealtime();
+        if (resumedFromOffset > 0) {
+            Log.d(TAG, "Resuming " + fileInfo.name + " at " + resumedFromOffset + "/" + fileInfo.size);
+        }
+
+        int attempt = 0;
+        boolean restarted = false;
+        while (!upload.isCancelled()) {
+            long start = state.offset;
+            long length = Math.min(CHUNK_SIZE, fileInfo.size - start);
+            StreamingRequestBody chunkBody = new StreamingRequestBody(fileInfo, start, length, upload, callback);
+            Request request = buildRequest(uploadUrl, params, fileInfo, chunkBody)
+                    .header("X-Unique-Upload-Id", state.uploadId)
+                    .header("Content-Range", "bytes " + start + "-" + (start + length - 1) + "/" + fileInfo.size)
+                    .build();
+            Call call = client.newCall(request);
+            upload.setCall(call);
+            long retryDelayMs = 0;
+            try (Response response = call.execute()) {
+                bytesSent += length;
+                if (attempt > 0) {
+                    bytesRetransmitted += length;
+                }
+                if (!response.isSuccessful() && isTransient(response.code())) {
+                    // Says nothing about the upload itself, so its state is kept like on a network error
+                    attempt++;
+                    if (attempt >= MAX_CHUNK_ATTEMPTS) {
+                        Log.e(TAG, "Chunked upload stopped at " + state.offset + "/" + fileInfo.size
+                                + " by HTTP " + response.code());
+                        finishStats(fileInfo, resumedFromOffset, bytesSent, bytesRetransmitted, startTime);
+                        deliverResult(upload, response, callback);
+                        return;
+                    }
+                    retryDelayMs = retryDelay(response, attempt);
+                } else if (!response.isSuccessful()) {
+                    // An unknown or expired upload id is rejected, begin a fresh upload once
+                    if (response.code() >= 400 && response.code() < 500 && start > 0 && !restarted) {
+                        Log.w(TAG, "Chunked upload " + state.uploadId + " rejected, starting over");
+                        state = new ChunkState(UUID.randomUUID().toString(), 0);
+                        saveState(stateKey, state);
+                        restarted = true;
+                        attempt = 0;
+                        continue;
+                    }
+                    // A definitive rejection, resuming would be rejected the same way
+                    clearState(stateKey);
+                    finishStats(fileInfo, resumedFromOffset, bytesSent, bytesRetransmitted, startTime);
+                    deliverResult(upload, response, callback);
+                    return;
+                } else {
+                    attempt = 0;
+                    if (start + length >= fileInfo.size) {
+                        clearState(stateKey);
+                        finishStats(fileInfo, resumedFromOffset, bytesSent, bytesRetransmitted, startTime);
+                        deliverResult(upload, response, callback);
+                        return;
+                    }
+                    state = new ChunkState(state.uploadId, start + length);
+                    saveState(stateKey, state);
+                }
+            } catch (IOException e) {
+                if (upload.isCancelled()) {
+                    break;
+                }
+                attempt++;
+                if (attempt >= MAX_CHUNK_ATTEMPTS) {
+                    // The acknowledged chunks stay recorded, picking the same file again resumes
+                    Log.e(TAG, "Chunked upload interrupted at " + state.offset + "/" + fileInfo.size, e);
+                    finishStats(fileInfo, resumedFromOffset, bytesSent, bytesRetransmitted, startTime);
+                    deliver(upload, () -> callback.onFailure(
+                            e.getMessage() != null ? e.getMessage() : "Network error"));
+                    return;
+                }
+                retryDelayMs = RETRY_DELAY_MS << (attempt - 1);
+            }
+            // Waits with the response closed, so the connection goes back to the pool
+            if (retryDelayMs > 0 && !upload.isCancelled()) {
+                SystemClock.sleep(retryDelayMs);
+            }
+        }
+        finishStats(fileInfo, resumedFromOffset, bytesSent, bytesRetransmitted, startTime);
+    }
+
+    // Server errors, rate limiting and timeouts pass, the chunk is sent again
+    private static boolean isTransient(int code) {
+        return code >= 500 || code == 429 || code == 408;
+    }
+
+    // The server's Retry-After when it gives one in seconds, exponential backoff otherwise
+    private static long retryDelay(Response response, int attempt) {
+        String retryAfter = response.header("Retry-After");
+        if (retryAfter != null) {
+            try {
+                return Math.min(MAX_RETRY_AFTER_MS, Math.max(0, Long.parseLong(retryAfter.trim()) * 1000));
+            } catch (NumberFormatException e) {
+                // An HTTP date, fall back to the backoff
+            }
+        }
+        return RETRY_DELAY_MS << (attempt - 1);
+    }
+
+    private void finishStats(FileInfo fileInfo, long resumedFromOffset, long bytesSent,
+                             long bytesRetransmitted, long startTime) {
+        lastStats = new UploadStats(fileInfo.size, resumedFromOffset, bytesSent, bytesRetransmitted,
+                SystemClock.elapsedRealtime() - startTime);
+        Log.d(TAG, "Chunked upload of " + fileInfo.name + ": " + lastStats
+                + " | " + HttpClientProvider.getInstance().getStats());
+    }
+
+    private Request.Builder buildRequest(String uploadUrl, Map<String, String> params,
+                                         FileInfo fileInfo, RequestBody fileBody) {
+        MultipartBody.Builder bodyBuilder = new MultipartBody.Builder().setType(MultipartBody.FORM);
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            if (param.getValue() != null) {
+                bodyBuilder.addFormDataPart(param.getKey(), param.getValue());
+            }
+        }
+        bodyBuilder.addFormDataPart("file", fileInfo.name, fileBody);
+        return new Request.Builder()
+                .url(uploadUrl)
+                .post(bodyBuilder.build());
+    }
+
+    private void deliverResult(Upload upload, Response response, Callback callback) {
+        String secureUrl = null;
+        String errorMessage;
+        try (ResponseBody body = response.body()) {
+            String content = body != null ? body.string() : "";
+            if (response.isSuccessful()) {
+                secureUrl = new JSONObject(content).getString("secure_url");
+                errorMessage = null;
+            } else {
+                errorMessage = content.isEmpty() ? "HTTP " + response.code() : content;
+            }
+        } catch (IOException | JSONException e) {
+            errorMessage = e.getMessage() != null ? e.getMessage() : "Invalid response";
+        }
+        if (secureUrl != null) {
+            String url = secureUrl;
+            deliver(upload, () -> callback.onSuccess(url));
+        } else {
+            Log.e(TAG, "Upload failed: " + errorMessage);
+            String message = errorMessage;
+            deliver(upload, () -> callback.onFailure(message));
+        }
+    }
+
+    private void deliver(Upload upload, Runnable result) {
+        callbackExecutor.execute(() -> {
+            if (!upload.isCancelled()) {
+                result.run();
+            }
+        });
+    }
+
+    // Opens the content from its start, once per request
+    interface ContentSource {
+        InputStream open() throws IOException;
+    }
+
+    static class FileInfo {
+        String name = "file";
+        long size = -1;
+        MediaType contentType = OCTET_STREAM;
+        // Identifies the content across attempts, part of the resume key
+        String id;
+        ContentSource source;
+    }
+
+    private FileInfo queryFileInfo(Uri uri) {
+        FileInfo fileInfo = new FileInfo();
+        fileInfo.id = uri.toString();
+        fileInfo.source = () -> {
+            InputStream inputStream = contentResolver.openInputStream(uri);
+            if (inputStream == null) {
+                throw new FileNotFoundException("Unable to open " + uri);
+            }
+            return inputStream;
+        };
+        String mimeType = contentResolver.getType(uri);
+        if (mimeType != null && MediaType.parse(mimeType) != null) {
+            fileInfo.contentType = MediaType.parse(mimeType);
+        }
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme()) && uri.getPath() != null) {
+            // Files prepared by the app itself, e.g. compressed images
+            File file = new File(uri.getPath());
+            fileInfo.name = file.getName();
+            fileInfo.size = file.length();
+            String extension = MimeTypeMap.getFileExtensionFromUrl(uri.toString());
+            String fileMimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+            if (fileMimeType != null && MediaType.parse(fileMimeType) != null) {
+                fileInfo.contentType = MediaType.parse(fileMimeType);
+            }
+            return fileInfo;
+        }
+        String[] projection = {OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE};
+        try (Cursor cursor = contentResolver.query(uri, projection, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                if (!cursor.isNull(0)) {
+                    fileInfo.name = cursor.getString(0);
+                }
+                if (!cursor.isNull(1)) {
+                    fileInfo.size = cursor.getLong(1);
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Unable to query metadata of " + uri, e);
+        }
+        return fileInfo;
+    }
+
+    private static class ChunkState {
+        final String uploadId;
+        final long offset;
+
+        ChunkState(String uploadId, long offset) {
+            this.uploadId = uploadId;
+            this.offset = offset;
+        }
+    }
+
+    // Same file, same size and same destination resume the same upload
+    private static String stateKey(FileInfo fileInfo, String uploadUrl, Map<String, String> params) {
+        return fileInfo.id + "|" + fileInfo.size + "|" + uploadUrl + "|" + new TreeMap<>(params);
+    }
+
+    @Nullable
+    private ChunkState loadState(String stateKey) {
+        String value = uploadState.getString(stateKey, null);
+        if (value == null) {
+            return null;
+        }
+        try {
+            JSONObject json = new JSONObject(value);
+            if (System.currentTimeMillis() - json.getLong("updatedAt") > STATE_MAX_AGE_MS) {
+                clearState(stateKey);
+                return null;
+            }
+            return new ChunkState(json.getString("uploadId"), json.getLong("offset"));
+        } catch (JSONException e) {
+            clearState(stateKey);
+            return null;
+        }
+    }
+
+    private void saveState(String stateKey, ChunkState state) {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("uploadId", state.uploadId);
+            json.put("offset", state.offset);
+            json.put("updatedAt", System.currentTimeMillis());
+            // commit() so the acknowledged offset is on disk before the next chunk starts
+            uploadState.edit().putString(stateKey, json.toString()).commit();
+        } catch (JSONException e) {
+            Log.w(TAG, "Unable to store upload state", e);
+        }
+    }
+
+    private void clearState(String stateKey) {
+        uploadState.edit().remove(stateKey).apply();
+    }
+
+    private static void skipFully(InputStream inputStream, long bytes) throws IOException {
+        long remaining = bytes;
+        while (remaining > 0) {
+            long skipped = inputStream.skip(remaining);
+            if (skipped <= 0) {
+                if (inputStream.read() == -1) {
+                    throw new IOException("File is shorter than the resume offset");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
+    /*
+     * Reads a range of the content only while OkHttp writes the request, one buffer at a time.
+     */
+    private class StreamingRequestBody extends RequestBody {
+        private final FileInfo fileInfo;
+        private final long offset;
+        // -1 reads to the end of the stream
+        private final long length;
+        private final Upload upload;
+        private final Callback callback;
+
+        StreamingRequestBody(FileInfo fileInfo, long offset, long length, Upload upload, Callback callback) {
+            this.fileInfo = fileInfo;
+            this.offset = offset;
+            this.length = length;
+            this.upload = upload;
+            this.callback = callback;
+        }
+
+        @Nullable
+        @Override
+        public MediaType contentType() {
+            return fileInfo.contentType;
+        }
+
+        @Override
+        public long contentLength() {
+            return length;
+        }
+
+        @Override
+        public void writeTo(@NonNull BufferedSink sink) throws IOException {
+            try (InputStream inputStream = fileInfo.source.open()) {
+                skipFully(inputStream, offset);
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long written = 0;
+                long lastReported = -1;
+                while (length < 0 || written < length) {
+                    int toRead = length < 0 ? buffer.length : (int) Math.min(buffer.length, length - written);
+                    int read = inputStream.read(buffer, 0, toRead);
+                    if (read == -1) {
+                        break;
+                    }
+                    sink.write(buffer, 0, read);
+                    written += read;
+                    long position = offset + written;
+                    if (shouldReport(position, lastReported)) {
+                        lastReported = position;
+                        deliver(upload, () -> callback.onProgress(position, fileInfo.size));
+                    }
+                }
+                if (length >= 0 && written < length) {
+                    throw new IOException("File ended at " + (offset + written) + " of " + fileInfo.size);
+                }
+                long position = offset + written;
+                if (position != lastReported) {
+                    deliver(upload, () -> callback.onProgress(position, fileInfo.size));
+                }
+            }
+        }
+
+        // One update per percent, so a large file does not flood the main thread
+        private boolean shouldReport(long position, long lastReported) {
+            if (lastReported < 0) {
+                return true;
+            }
+            if (fileInfo.size <= 0) {
+                return position - lastReported >= UNKNOWN_SIZE_REPORT_BYTES;
+            }
+            return position * 100 / fileInfo.size != lastReported * 100 / fileInfo.size;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.hgb7725.botchattyapp.network;
+
+import android.content.Context;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+
+import com.hgb7725.botchattyapp.utilities.AvatarUrls;
+import com.hgb7725.botchattyapp.utilities.CloudinaryConfig;
+import com.hgb7725.botchattyapp.utilities.ImageCompressor;
+
+import java.util.HashMap;
+
+/*
+ * Uploads a profile picture once to Cloudinary. The image is first scaled down to the largest
+ * variant lists ever ask for; every smaller size is then derived by Cloudinary from the URL.
+ */
+public class AvatarUploader {
+
+    private static final int MAX_EDGE_PX = 512;
+
+    public interface Callback {
+        void onAvatarUploaded(String url);
+
+        void onAvatarUploadFailed(String errorMessage);
+    }
+
+    public static void upload(@NonNull Context context, @NonNull Uri image, @NonNull Callback callback) {
+        Context appContext = context.getApplicationContext();
+        ImageCompressor.Config config = new ImageCompressor.Config();
+        config.maxEdgePx = MAX_EDGE_PX;
+        config.quality = 85;
+        ImageCompressor.compress(appContext, image, config, result -> {
+            if (result == null) {
+                callback.onAvatarUploadFailed("Unable to read the selected image");
+                return;
+            }
+            HashMap<String, String> params = new HashMap<>();
+            params.put("upload_preset", CloudinaryConfig.PRESET_IMAGE);
+            params.put("folder", AvatarUrls.FOLDER);
+            AttachmentUploader.getInstance(appContext).upload(result.uri,
+                    CloudinaryConfig.getUploadUrl("image"), params, new AttachmentUploader.Callback() {
+                        @Override
+                        public void onProgress(long bytesSent, long totalBytes) {
+                        }
+
+                        @Override
+                        public void onSuccess(String secureUrl) {
+                            callback.onAvatarUploaded(secureUrl);
+                        }
+
+                        @Override
+                        public void onFailure(String errorMessage) {
+                            callback.onAvatarUploadFailed(errorMessage);
+                        }
+                    });
+        });
+    }
+}
@@ -0,0 +1,147 @@
+package com.hgb7725.botchattyapp.network;
+
+import androidx.annotation.NonNull;
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.EventListener;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+/*
+ * The one HTTP stack of the app. Every request (uploads, EmailJS, FCM) shares its
+ * connection pool and dispatcher, so connections are kept alive and reused across
+ * screens, HTTP/2 multiplexes calls to the same host, and the number of network
+ * threads stays bounded no matter how many requests are made.
+ */
+public class HttpClientProvider {
+
+    private static final int MAX_REQUESTS = 8;
+    private static final int MAX_REQUESTS_PER_HOST = 4;
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+    private static final long THREAD_KEEP_ALIVE_SECONDS = 60;
+
+    private static volatile HttpClientProvider instance;
+
+    /*
+     * Snapshot of the shared stack, for logging and diagnostics.
+     */
+    public static class Stats {
+        public final int openConnections;
+        public final int idleConnections;
+        public final int runningCalls;
+        public final int queuedCalls;
+        public final int networkThreads;
+        public final int largestNetworkThreads;
+        public final long connectionsOpened;
+        public final long callsCompleted;
+
+        Stats(int openConnections, int idleConnections, int runningCalls, int queuedCalls,
+              int networkThreads, int largestNetworkThreads, long connectionsOpened, long callsCompleted) {
+            this.openConnections = openConnections;
+            this.idleConnections = idleConnections;
+            this.runningCalls = runningCalls;
+            this.queuedCalls = queuedCalls;
+            this.networkThreads = networkThreads;
+            this.largestNetworkThreads = largestNetworkThreads;
+            this.connectionsOpened = connectionsOpened;
+            this.callsCompleted = callsCompleted;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "connections=" + openConnections + " (idle " + idleConnections + ")"
+                    + " calls=" + runningCalls + " running/" + queuedCalls + " queued"
+                    + " threads=" + networkThreads + " (max " + largestNetworkThreads + ")"
+                    + " opened=" + connectionsOpened
+                    + " completed=" + callsCompleted;
+        }
+    }
+
+    private final OkHttpClient client;
+    private final ThreadPoolExecutor networkExecutor;
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    private final AtomicLong callsCompleted = new AtomicLong();
+
+    private HttpClientProvider() {
+        // The dispatcher never runs more than MAX_REQUESTS calls, so this many threads is enough
+        AtomicInteger threadNumber = new AtomicInteger();
+        networkExecutor = new ThreadPoolExecutor(
+                MAX_REQUESTS, MAX_REQUESTS,
+                THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                runnable -> new Thread(runnable, "http-" + threadNumber.incrementAndGet()));
+        networkExecutor.allowCoreThreadTimeOut(true);
+
+        Dispatcher dispatcher = new Dispatcher(networkExecutor);
+        dispatcher.setMaxRequests(MAX_REQUESTS);
+        dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+
+        client = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectTimeout(15, TimeUnit.SECONDS)
+                .readTimeout(30, TimeUnit.SECONDS)
+                .writeTimeout(30, TimeUnit.SECONDS)
+                .eventListener(new EventListener() {
+                    @Override
+                    public void connectEnd(@NonNull Call call, @NonNull InetSocketAddress inetSocketAddress,
+                                           @NonNull Proxy proxy, Protocol protocol) {
+                        connectionsOpened.incrementAndGet();
+                    }
+
+                    @Override
+                    public void callEnd(@NonNull Call call) {
+                        callsCompleted.incrementAndGet();
+                    }
+                })
+                .build();
+    }
+
+    public static HttpClientProvider getInstance() {
+        if (instance == null) {
+            synchronized (HttpClientProvider.class) {
+                if (instance == null) {
+                    instance = new HttpClientProvider();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * The shared client. Callers needing other timeouts derive one with newBuilder(),
+     * which keeps the same pool and dispatcher.
+     */
+    public OkHttpClient getClient() {
+        return client;
+    }
+
+    public Stats getStats() {
+        ConnectionPool connectionPool = client.connectionPool();
+        Dispatcher dispatcher = client.dispatcher();
+        return new Stats(
+                connectionPool.connectionCount(),
+                connectionPool.idleConnectionCount(),
+                dispatcher.runningCallsCount(),
+                dispatcher.queuedCallsCount(),
+                networkExecutor.getPoolSize(),
+                networkExecutor.getLargestPoolSize(),
+                connectionsOpened.get(),
+                callsCompleted.get()
+        );
+    }
+}
@@ -0,0 +1,484 @@
+package com.hgb7725.botchattyapp.network;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/*
+ * Downloads a file with HTTP Range requests, several segments at a time, into a file that is
+ * preallocated to its final size. The progress of every segment is written to a small state
+ * file next to the download, so an interrupted download of the same URL continues where each
+ * segment stopped, also after the process was killed. The ETag (or Last-Modified) is sent as
+ * If-Range, so a file that changed on the server is started over instead of being mixed.
+ * The assembled file is checked against the announced size, and against the ETag when it is
+ * an MD5 of the content. Servers without range support get a single plain stream.
+ *
+ * download() blocks, call it off the main thread. The HTTP client and the segment executor
+ * are injected, so the downloader runs against any local range capable server as well.
+ */
+public class SegmentedDownloader {
+
+    private static final int MAX_SEGMENTS = 4;
+    // Smaller files are not worth the extra requests
+    private static final long MIN_SEGMENT_SIZE = 2 * 1024 * 1024;
+    private static final int MAX_ATTEMPTS = 4;
+    private static final long RETRY_DELAY_MS = 1000;
+    // Progress is flushed to disk and recorded at most this often per segment
+    private static final long SAVE_EVERY_BYTES = 1024 * 1024;
+    private static final int BUFFER_SIZE = 32 * 1024;
+    private static final String STATE_SUFFIX = ".state";
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+    private static final Pattern MD5_ETAG = Pattern.compile("\"?([0-9a-fA-F]{32})\"?");
+
+    public interface ProgressListener {
+        // Called from the segment threads
+        void onProgress(long bytesDone, long totalBytes);
+    }
+
+    public static class Result {
+        public final File file;
+        public final String sha256;
+        public final long totalBytes;
+        // Bytes that were already on disk from an earlier attempt
+        public final long resumedBytes;
+        public final long bytesTransferred;
+        public final int segments;
+        public final long elapsedMs;
+
+        Result(File file, String sha256, long totalBytes, long resumedBytes, long bytesTransferred,
+               int segments, long elapsedMs) {
+            this.file = file;
+            this.sha256 = sha256;
+            this.totalBytes = totalBytes;
+            this.resumedBytes = resumedBytes;
+            this.bytesTransferred = bytesTransferred;
+            this.segments = segments;
+            this.elapsedMs = elapsedMs;
+        }
+
+        public long getThroughputBytesPerSecond() {
+            return elapsedMs > 0 ? bytesTransferred * 1000 / elapsedMs : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "total=" + totalBytes
+                    + " resumed=" + resumedBytes
+                    + " transferred=" + bytesTransferred
+                    + " segments=" + segments
+                    + " elapsedMs=" + elapsedMs
+                    + " throughput=" + getThroughputBytesPerSecond() + "B/s";
+        }
+    }
+
+    // The server answered If-Range with the whole new file
+    private static class ContentChangedException extends IOException {
+        ContentChangedException() {
+            super("File changed on the server");
+        }
+    }
+
+    private static class Segment {
+        final long start;
+        final long end;
+        // Only written by the thread fetching the segment
+        volatile long done;
+
+        Segment(long start, long end, long done) {
+            this.start = start;
+            this.end = end;
+            this.done = done;
+        }
+
+        long length() {
+            return end - start + 1;
+        }
+    }
+
+    private static class Download {
+        final String url;
+        final File target;
+        final long totalBytes;
+        @Nullable
+        final String validator;
+        final List<Segment> segments;
+        final AtomicLong bytesDone = new AtomicLong();
+        final AtomicLong bytesTransferred = new AtomicLong();
+        @Nullable
+        final ProgressListener listener;
+        volatile boolean failed = false;
+
+        Download(String url, File target, long totalBytes, @Nullable String validator,
+                 List<Segment> segments, @Nullable ProgressListener listener) {
+            this.url = url;
+            this.target = target;
+            this.totalBytes = totalBytes;
+            this.validator = validator;
+            this.segments = segments;
+            this.listener = listener;
+        }
+    }
+
+    private final OkHttpClient client;
+    private final ExecutorService segmentExecutor;
+
+    public SegmentedDownloader(OkHttpClient client, ExecutorService segmentExecutor) {
+        this.client = client;
+        this.segmentExecutor = segmentExecutor;
+    }
+
+    public Result download(@NonNull String url, @NonNull File target,
+                           @Nullable ProgressListener listener) throws IOException {
+        long startTime = System.currentTimeMillis();
+        try {
+            return downloadOnce(url, target, listener, startTime);
+        } catch (ContentChangedException e) {
+            deleteState(target);
+            return downloadOnce(url, target, listener, startTime);
+        }
+    }
+
+    private Result downloadOnce(String url, File target, @Nullable ProgressListener listener,
+                                long startTime) throws IOException {
+        Request probe = new Request.Builder().url(url).header("Range", "bytes=0-0").build();
+        long totalBytes;
+        String validator;
+        try (Response response = client.newCall(probe).execute()) {
+            Matcher range = CONTENT_RANGE.matcher(headerOrEmpty(response, "Content-Range"));
+            if (response.code() != 206 || !range.matches()) {
+                if (!response.isSuccessful()) {
+                    throw new IOException("HTTP " + response.code());
+                }
+                // No range support: the probe already carries the whole file
+                deleteState(target);
+                return downloadStream(response, target, listener, startTime);
+            }
+            totalBytes = Long.parseLong(range.group(3));
+            validator = response.header("ETag");
+            if (validator == null || validator.startsWith("W/")) {
+                validator = response.header("Last-Modified");
+            }
+        }
+
+        Download download = loadState(url, target, totalBytes, validator, listener);
+        long resumedBytes = 0;
+        if (download == null) {
+            download = new Download(url, target, totalBytes, validator, split(totalBytes), listener);
+            try (RandomAccessFile file = new RandomAccessFile(target, "rw")) {
+                file.setLength(totalBytes);
+            }
+            saveState(download);
+        } else {
+            for (Segment segment : download.segments) {
+                resumedBytes += segment.done;
+            }
+            download.bytesDone.set(resumedBytes);
+        }
+
+        fetchSegments(download);
+
+        String sha256 = verify(download);
+        deleteState(target);
+        return new Result(target, sha256, totalBytes, resumedBytes, download.bytesTransferred.get(),
+                download.segments.size(), System.currentTimeMillis() - startTime);
+    }
+
+    private static List<Segment> split(long totalBytes) {
+        int count = (int) Math.max(1, Math.min(MAX_SEGMENTS, totalBytes / MIN_SEGMENT_SIZE));
+        long size = (totalBytes + count - 1) / count;
+        List<Segment> segments = new ArrayList<>();
+        for (long start = 0; start < totalBytes; start += size) {
+            segments.add(new Segment(start, Math.min(start + size, totalBytes) - 1, 0));
+        }
+        return segments;
+    }
+
+    private void fetchSegments(Download download) throws IOException {
+        List<Future<?>> futures = new ArrayList<>();
+        for (Segment segment : download.segments) {
+            if (segment.done < segment.length()) {
+                futures.add(segmentExecutor.submit(() -> {
+                    try {
+                        fetchSegment(download, segment);
+                    } catch (IOException e) {
+                        // Stop the other segments, their progress is kept for the next attempt
+                        download.failed = true;
+                        throw e;
+                    }
+                    return null;
+                }));
+            }
+        }
+        IOException failure = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                download.failed = true;
+                if (failure == null || e.getCause() instanceof ContentChangedException) {
+                    failure = e.getCause() instanceof IOException
+                            ? (IOException) e.getCause()
+                            : new IOException(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                download.failed = true;
+                Thread.currentThread().interrupt();
+                failure = new InterruptedIOException("Download interrupted");
+            }
+        }
+        saveState(download);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // Runs on the segment executor
+    private void fetchSegment(Download download, Segment segment) throws IOException {
+        int attempt = 0;
+        while (true) {
+            long from = segment.start + segment.done;
+            Request.Builder request = new Request.Builder()
+                    .url(download.url)
+                    .header("Range", "bytes=" + from + "-" + segment.end);
+            if (download.validator != null) {
+                request.header("If-Range", download.validator);
+            }
+            try (Response response = client.newCall(request.build()).execute();
+                 RandomAccessFile file = new RandomAccessFile(download.target, "rw")) {
+                if (response.code() == 200) {
+                    throw new ContentChangedException();
+                }
+                Matcher range = CONTENT_RANGE.matcher(headerOrEmpty(response, "Content-Range"));
+                if (response.code() != 206 || !range.matches() || Long.parseLong(range.group(1)) != from) {
+                    throw new IOException("Unexpected response for segment at " + from + ": HTTP " + response.code());
+                }
+                ResponseBody body = response.body();
+                if (body == null) {
+                    throw new IOException("Empty response for segment at " + from);
+                }
+                file.seek(from);
+                InputStream inputStream = body.byteStream();
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long unsaved = 0;
+                int read;
+                while (segment.done < segment.length() && (read = inputStream.read(buffer,
+                        0, (int) Math.min(buffer.length, segment.length() - segment.done))) != -1) {
+                    if (download.failed) {
+                        throw new InterruptedIOException("Another segment failed");
+                    }
+                    file.write(buffer, 0, read);
+                    segment.done += read;
+                    unsaved += read;
+                    download.bytesTransferred.addAndGet(read);
+                    long done = download.bytesDone.addAndGet(read);
+                    if (download.listener != null) {
+                        download.listener.onProgress(done, download.totalBytes);
+                    }
+                    if (unsaved >= SAVE_EVERY_BYTES) {
+                        // The data has to be on disk before the state claims it
+                        file.getChannel().force(false);
+                        saveState(download);
+                        unsaved = 0;
+                    }
+                }
+                if (segment.done < segment.length()) {
+                    throw new IOException("Segment at " + segment.start + " ended early");
+                }
+                file.getChannel().force(false);
+                return;
+            } catch (IOException e) {
+                if (e instanceof ContentChangedException || download.failed) {
+                    throw e;
+                }
+                attempt++;
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                try {
+                    Thread.sleep(RETRY_DELAY_MS << (attempt - 1));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Download interrupted");
+                }
+            }
+        }
+    }
+
+    private Result downloadStream(Response response, File target, @Nullable ProgressListener listener,
+                                  long startTime) throws IOException {
+        ResponseBody body = response.body();
+        if (body == null) {
+            throw new IOException("Empty response");
+        }
+        long totalBytes = body.contentLength();
+        MessageDigest digest = newDigest("SHA-256");
+        long written = 0;
+        try (InputStream inputStream = body.byteStream();
+             OutputStream outputStream = new FileOutputStream(target)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+                digest.update(buffer, 0, read);
+                written += read;
+                if (listener != null) {
+                    listener.onProgress(written, totalBytes);
+                }
+            }
+        }
+        if (totalBytes >= 0 && written != totalBytes) {
+            target.delete();
+            throw new IOException("Received " + written + " of " + totalBytes + " bytes");
+        }
+        return new Result(target, toHex(digest.digest()), written, 0, written, 1,
+                System.currentTimeMillis() - startTime);
+    }
+
+    // Checks the assembled file and returns its SHA-256
+    private String verify(Download download) throws IOException {
+        if (download.target.length() != download.totalBytes) {
+            discard(download.target);
+            throw new IOException("Assembled file has " + download.target.length()
+                    + " of " + download.totalBytes + " bytes");
+        }
+        MessageDigest sha256 = newDigest("SHA-256");
+        MessageDigest md5 = newDigest("MD5");
+        try (InputStream inputStream = new FileInputStream(download.target)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                sha256.update(buffer, 0, read);
+                md5.update(buffer, 0, read);
+            }
+        }
+        Matcher etag = MD5_ETAG.matcher(download.validator != null ? download.validator : "");
+        if (etag.matches() && !etag.group(1).equalsIgnoreCase(toHex(md5.digest()))) {
+            discard(download.target);
+            throw new IOException("Downloaded file does not match its ETag");
+        }
+        return toHex(sha256.digest());
+    }
+
+    @Nullable
+    private Download loadState(String url, File target, long totalBytes, @Nullable String validator,
+                               @Nullable ProgressListener listener) {
+        File stateFile = stateFile(target);
+        if (!stateFile.isFile() || target.length() != totalBytes) {
+            return null;
+        }
+        try (InputStream inputStream = new FileInputStream(stateFile)) {
+            byte[] content = new byte[(int) stateFile.length()];
+            int offset = 0;
+            while (offset < content.length) {
+                int read = inputStream.read(content, offset, content.length - offset);
+                if (read == -1) {
+                    return null;
+                }
+                offset += read;
+            }
+            JSONObject json = new JSONObject(new String(content, StandardCharsets.UTF_8));
+            String savedValidator = json.optString("validator", null);
+            if (!url.equals(json.getString("url")) || json.getLong("totalBytes") != totalBytes
+                    || validator == null || !validator.equals(savedValidator)) {
+                return null;
+            }
+            JSONArray array = json.getJSONArray("segments");
+            List<Segment> segments = new ArrayList<>();
+            for (int i = 0; i < array.length(); i++) {
+                JSONArray item = array.getJSONArray(i);
+                segments.add(new Segment(item.getLong(0), item.getLong(1), item.getLong(2)));
+            }
+            return new Download(url, target, totalBytes, validator, segments, listener);
+        } catch (IOException | JSONException e) {
+            return null;
+        }
+    }
+
+    // Segment threads save concurrently; the state is written aside and then renamed into place
+    private synchronized void saveState(Download download) throws IOException {
+        try {
+            JSONArray segments = new JSONArray();
+            for (Segment segment : download.segments) {
+                segments.put(new JSONArray().put(segment.start).put(segment.end).put(segment.done));
+            }
+            JSONObject json = new JSONObject();
+            json.put("url", download.url);
+            json.put("totalBytes", download.totalBytes);
+            json.put("validator", download.validator);
+            json.put("segments", segments);
+            File stateFile = stateFile(download.target);
+            File temp = new File(stateFile.getPath() + ".tmp");
+            try (OutputStream outputStream = new FileOutputStream(temp)) {
+                outputStream.write(json.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            if (!temp.renameTo(stateFile)) {
+                throw new IOException("Unable to save download state");
+            }
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void deleteState(File target) {
+        stateFile(target).delete();
+    }
+
+    private static void discard(File target) {
+        target.delete();
+        deleteState(target);
+    }
+
+    public static File stateFile(File target) {
+        return new File(target.getPath() + STATE_SUFFIX);
+    }
+
+    private static String headerOrEmpty(Response response, String name) {
+        String value = response.header(name);
+        return value != null ? value : "";
+    }
+
+    private static MessageDigest newDigest(String algorithm) throws IOException {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+            builder.append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+}
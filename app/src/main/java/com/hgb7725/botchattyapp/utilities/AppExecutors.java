@@ -0,0 +1,59 @@
+package com.hgb7725.botchattyapp.utilities;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * Shared executors so background work does not create its own threads everywhere.
+ */
+public class AppExecutors {
+
+    private static volatile AppExecutors instance;
+
+    private final ExecutorService diskIO;
+    private final ExecutorService snapshotParsing;
+    private final ExecutorService imageProcessing;
+    private final Executor mainThread;
+
+    private AppExecutors() {
+        diskIO = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "disk-io"));
+        snapshotParsing = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "snapshot-parsing"));
+        imageProcessing = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "image-processing"));
+        Handler mainHandler = new Handler(Looper.getMainLooper());
+        mainThread = mainHandler::post;
+    }
+
+    public static AppExecutors getInstance() {
+        if (instance == null) {
+            synchronized (AppExecutors.class) {
+                if (instance == null) {
+                    instance = new AppExecutors();
+                }
+            }
+        }
+        return instance;
+    }
+
+    // Single thread, so local database reads and writes stay in submission order
+    public ExecutorService diskIO() {
+        return diskIO;
+    }
+
+    // Single thread, so snapshots of a listener are parsed in the order they arrived
+    public ExecutorService snapshotParsing() {
+        return snapshotParsing;
+    }
+
+    // Single thread, so at most one full size image is decoded at a time
+    public ExecutorService imageProcessing() {
+        return imageProcessing;
+    }
+
+    public Executor mainThread() {
+        return mainThread;
+    }
+}
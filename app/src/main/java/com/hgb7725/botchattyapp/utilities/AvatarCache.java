@@ -0,0 +1,324 @@
+package com.hgb7725.botchattyapp.utilities;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.Drawable;
+import android.util.Base64;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.load.engine.DiskCacheStrategy;
+import com.bumptech.glide.request.target.CustomTarget;
+import com.bumptech.glide.request.transition.Transition;
+import com.hgb7725.botchattyapp.R;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * Decoded avatars, keyed by user id + SHA-1 of the base64 image + display size.
+ * First tier is an in-memory LRU bounded in bytes, second tier is a folder of thumbnails
+ * already scaled to display size, also bounded in bytes. When a user's image changes, the
+ * thumbnails of the old one are deleted. Decoding never happens on the main thread.
+ * Avatars stored as URLs are handed to Glide instead, which fetches a variant sized for
+ * the view and keeps it in its own memory and disk caches.
+ */
+public class AvatarCache {
+
+    private static final String TAG = "AvatarCache";
+    private static final String DISK_DIRECTORY = "avatars";
+    private static final int DEFAULT_SIZE_PX = 128;
+    // Least recently used thumbnails beyond this are deleted
+    private static final long DISK_BUDGET_BYTES = 8 * 1024 * 1024;
+    // <user id>_<SHA-1>_<size>.jpg, the user id may itself contain underscores
+    private static final Pattern THUMBNAIL_NAME = Pattern.compile("(.+_)([0-9a-f]{40})_\\d+\\.jpg");
+
+    public interface Callback {
+        void onAvatarLoaded(@Nullable Bitmap bitmap);
+    }
+
+    private static volatile AvatarCache instance;
+
+    private final Context context;
+    private final LruCache<String, Bitmap> memoryCache;
+    private final File diskDirectory;
+    private final ExecutorService decodeExecutor =
+            Executors.newFixedThreadPool(2, runnable -> new Thread(runnable, "avatar-decode"));
+    // Requests waiting for a decode already in progress, only touched on the main thread
+    private final HashMap<String, List<Callback>> pendingRequests = new HashMap<>();
+    // Digest of each base64 image, computed once per string; entries go with the models holding it.
+    // Only touched on the main thread
+    private final WeakHashMap<String, String> imageDigests = new WeakHashMap<>();
+
+    private AvatarCache(Context context) {
+        this.context = context;
+        int budgetBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 16, Integer.MAX_VALUE);
+        memoryCache = new LruCache<String, Bitmap>(budgetBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+        diskDirectory = new File(context.getCacheDir(), DISK_DIRECTORY);
+    }
+
+    public static AvatarCache getInstance(Context context) {
+        if (instance == null) {
+            synchronized (AvatarCache.class) {
+                if (instance == null) {
+                    instance = new AvatarCache(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Shows the avatar in the view, with the default avatar until it is decoded.
+     * Safe to call from onBindViewHolder: a recycled view only receives the image it asked for last.
+     */
+    public void load(@NonNull ImageView imageView, String userId, String encodedImage) {
+        int sizePx = imageView.getLayoutParams() != null && imageView.getLayoutParams().width > 0
+                ? imageView.getLayoutParams().width
+                : DEFAULT_SIZE_PX;
+        if (AvatarUrls.isRemote(encodedImage)) {
+            imageView.setTag(null);
+            Glide.with(imageView)
+                    .load(AvatarUrls.sized(encodedImage, sizePx))
+                    .diskCacheStrategy(DiskCacheStrategy.DATA)
+                    .placeholder(R.drawable.default_avatar)
+                    .error(R.drawable.default_avatar)
+                    .dontAnimate()
+                    .into(imageView);
+            return;
+        }
+        // The view may have been showing a URL avatar before being recycled
+        Glide.with(imageView).clear(imageView);
+        String key = cacheKey(userId, encodedImage, sizePx);
+        imageView.setTag(key);
+        Bitmap cached = key != null ? memoryCache.get(key) : null;
+        if (cached != null) {
+            imageView.setImageBitmap(cached);
+            return;
+        }
+        imageView.setImageResource(R.drawable.default_avatar);
+        if (key == null) {
+            return;
+        }
+        WeakReference<ImageView> viewReference = new WeakReference<>(imageView);
+        get(userId, encodedImage, sizePx, bitmap -> {
+            ImageView view = viewReference.get();
+            if (view != null && bitmap != null && key.equals(view.getTag())) {
+                view.setImageBitmap(bitmap);
+            }
+        });
+    }
+
+    /**
+     * Delivers the avatar scaled to the given size on the main thread (null if it cannot be decoded).
+     */
+    public void get(String userId, String encodedImage, int sizePx, @NonNull Callback callback) {
+        if (AvatarUrls.isRemote(encodedImage)) {
+            Glide.with(context)
+                    .asBitmap()
+                    .load(AvatarUrls.sized(encodedImage, sizePx))
+                    .diskCacheStrategy(DiskCacheStrategy.DATA)
+                    .into(new CustomTarget<Bitmap>(sizePx, sizePx) {
+                        @Override
+                        public void onResourceReady(@NonNull Bitmap bitmap, @Nullable Transition<? super Bitmap> transition) {
+                            callback.onAvatarLoaded(bitmap);
+                        }
+
+                        @Override
+                        public void onLoadFailed(@Nullable Drawable errorDrawable) {
+                            callback.onAvatarLoaded(null);
+                        }
+
+                        @Override
+                        public void onLoadCleared(@Nullable Drawable placeholder) {
+                        }
+                    });
+            return;
+        }
+        String key = cacheKey(userId, encodedImage, sizePx);
+        if (key == null) {
+            callback.onAvatarLoaded(null);
+            return;
+        }
+        Bitmap cached = memoryCache.get(key);
+        if (cached != null) {
+            callback.onAvatarLoaded(cached);
+            return;
+        }
+        List<Callback> waiting = pendingRequests.get(key);
+        if (waiting != null) {
+            waiting.add(callback);
+            return;
+        }
+        waiting = new ArrayList<>();
+        waiting.add(callback);
+        pendingRequests.put(key, waiting);
+
+        decodeExecutor.execute(() -> {
+            Bitmap bitmap = decode(key, encodedImage, sizePx);
+            if (bitmap != null) {
+                memoryCache.put(key, bitmap);
+            }
+            AppExecutors.getInstance().mainThread().execute(() -> {
+                List<Callback> callbacks = pendingRequests.remove(key);
+                if (callbacks != null) {
+                    for (Callback waitingCallback : callbacks) {
+                        waitingCallback.onAvatarLoaded(bitmap);
+                    }
+                }
+            });
+        });
+    }
+
+    @Nullable
+    private String cacheKey(String userId, String encodedImage, int sizePx) {
+        if (encodedImage == null || encodedImage.isEmpty()) {
+            return null;
+        }
+        String digest = imageDigests.get(encodedImage);
+        if (digest == null) {
+            digest = sha1(encodedImage);
+            imageDigests.put(encodedImage, digest);
+        }
+        return (userId != null ? userId : "unknown") + "_" + digest + "_" + sizePx;
+    }
+
+    private static String sha1(String encodedImage) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(encodedImage.getBytes(StandardCharsets.US_ASCII));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit(b >> 4 & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Runs on the decode executor
+    @Nullable
+    private Bitmap decode(String key, String encodedImage, int sizePx) {
+        File thumbnail = new File(diskDirectory, key + ".jpg");
+        if (thumbnail.exists()) {
+            Bitmap bitmap = BitmapFactory.decodeFile(thumbnail.getPath());
+            if (bitmap != null) {
+                // Recently used, see trimDisk
+                thumbnail.setLastModified(System.currentTimeMillis());
+                return bitmap;
+            }
+        }
+
+        byte[] bytes;
+        try {
+            bytes = Base64.decode(encodedImage, Base64.DEFAULT);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Invalid avatar data for " + key);
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        options.inSampleSize = 1;
+        while (options.outWidth / (options.inSampleSize * 2) >= sizePx
+                && options.outHeight / (options.inSampleSize * 2) >= sizePx) {
+            options.inSampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        Bitmap decoded = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        if (decoded == null) {
+            return null;
+        }
+
+        // Scale the short edge to the display size, the view crops the rest
+        Bitmap scaled = decoded;
+        int shortEdge = Math.min(decoded.getWidth(), decoded.getHeight());
+        if (shortEdge > sizePx) {
+            float scale = (float) sizePx / shortEdge;
+            scaled = Bitmap.createScaledBitmap(decoded,
+                    Math.round(decoded.getWidth() * scale), Math.round(decoded.getHeight() * scale), true);
+        }
+
+        if (diskDirectory.exists() || diskDirectory.mkdirs()) {
+            try (FileOutputStream outputStream = new FileOutputStream(thumbnail)) {
+                scaled.compress(Bitmap.CompressFormat.JPEG, 90, outputStream);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to store thumbnail " + key, e);
+                thumbnail.delete();
+            }
+            trimDisk(thumbnail);
+        }
+        return scaled;
+    }
+
+    /*
+     * Deletes the thumbnails of the same user made from another image, and files from older key
+     * formats, then the least recently used thumbnails until the folder fits DISK_BUDGET_BYTES.
+     */
+    private void trimDisk(File written) {
+        Matcher writtenName = THUMBNAIL_NAME.matcher(written.getName());
+        if (!writtenName.matches()) {
+            return;
+        }
+        String user = writtenName.group(1);
+        String digest = writtenName.group(2);
+        synchronized (diskDirectory) {
+            File[] files = diskDirectory.listFiles();
+            if (files == null) {
+                return;
+            }
+            List<File> kept = new ArrayList<>(files.length);
+            long totalBytes = 0;
+            for (File file : files) {
+                Matcher name = THUMBNAIL_NAME.matcher(file.getName());
+                boolean isStale = !name.matches()
+                        || (name.group(1).equals(user) && !name.group(2).equals(digest));
+                if (isStale && file.delete()) {
+                    continue;
+                }
+                kept.add(file);
+                totalBytes += file.length();
+            }
+            if (totalBytes <= DISK_BUDGET_BYTES) {
+                return;
+            }
+            File[] byAge = kept.toArray(new File[0]);
+            Arrays.sort(byAge, Comparator.comparingLong(File::lastModified));
+            for (File file : byAge) {
+                if (totalBytes <= DISK_BUDGET_BYTES) {
+                    break;
+                }
+                long length = file.length();
+                if (!file.equals(written) && file.delete()) {
+                    totalBytes -= length;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.hgb7725.botchattyapp.utilities;
+
+import androidx.annotation.Nullable;
+
+/*
+ * Avatars are stored on Cloudinary and referenced by their secure_url, older accounts may
+ * still hold a base64 JPEG in the same field. Lists ask Cloudinary for a variant cropped to
+ * the size they draw, snapped to a few buckets so rows of different sizes share cached files.
+ */
+public class AvatarUrls {
+
+    public static final String FOLDER = "avatars";
+    private static final String UPLOAD_SEGMENT = "/image/upload/";
+    private static final int[] SIZE_BUCKETS_PX = {64, 128, 256, 512};
+
+    public static boolean isRemote(@Nullable String image) {
+        return image != null && (image.startsWith("https://") || image.startsWith("http://"));
+    }
+
+    /**
+     * URL of a square variant at least sizePx wide, centered on the face when one is found.
+     * URLs that are not Cloudinary uploads are returned unchanged.
+     */
+    public static String sized(String url, int sizePx) {
+        int index = url.indexOf(UPLOAD_SEGMENT);
+        if (index < 0) {
+            return url;
+        }
+        int bucket = bucket(sizePx);
+        int insertAt = index + UPLOAD_SEGMENT.length();
+        return url.substring(0, insertAt)
+                + "c_fill,g_face,w_" + bucket + ",h_" + bucket + ",q_auto,f_auto/"
+                + url.substring(insertAt);
+    }
+
+    /**
+     * The version segment of a Cloudinary URL ("v1712345678"), which changes with every upload.
+     */
+    @Nullable
+    public static String version(@Nullable String url) {
+        if (url == null) {
+            return null;
+        }
+        int index = url.indexOf(UPLOAD_SEGMENT);
+        if (index < 0) {
+            return null;
+        }
+        for (String segment : url.substring(index + UPLOAD_SEGMENT.length()).split("/")) {
+            if (segment.length() > 1 && segment.charAt(0) == 'v' && isDigits(segment.substring(1))) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    static int bucket(int sizePx) {
+        for (int bucket : SIZE_BUCKETS_PX) {
+            if (sizePx <= bucket) {
+                return bucket;
+            }
+        }
+        return SIZE_BUCKETS_PX[SIZE_BUCKETS_PX.length - 1];
+    }
+
+    private static boolean isDigits(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isDigit(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,221 @@
+package com.hgb7725.botchattyapp.utilities;
+
+/*
+ * BlurHash (https://blurha.sh) encoder and decoder in plain Java. An image is reduced to a few
+ * cosine components and written as a short base 83 string (about 30 characters for 4x3
+ * components), small enough to travel inside the message document. Pixels are ARGB ints as
+ * used by Bitmap.getPixels / setPixels; the alpha channel is ignored.
+ */
+public final class BlurHash {
+
+    private static final String CHARACTERS =
+            "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz#$%*+,-.:;=?@[]^_{|}~";
+    private static final int MAX_COMPONENTS = 9;
+
+    private BlurHash() {
+    }
+
+    /**
+     * Encodes the pixels with the given number of horizontal and vertical components (1 to 9).
+     * The input is best kept small, around 32 pixels on the longest edge: the cost grows with
+     * pixels times components, and the result does not get more detailed with larger input.
+     */
+    public static String encode(int[] pixels, int width, int height, int componentsX, int componentsY) {
+        if (componentsX < 1 || componentsX > MAX_COMPONENTS || componentsY < 1 || componentsY > MAX_COMPONENTS) {
+            throw new IllegalArgumentException("Components must be between 1 and " + MAX_COMPONENTS);
+        }
+        if (width <= 0 || height <= 0 || pixels.length < width * height) {
+            throw new IllegalArgumentException("Pixels do not match " + width + "x" + height);
+        }
+
+        // Linear channels are computed once per pixel instead of once per pixel and component
+        int count = width * height;
+        float[] red = new float[count];
+        float[] green = new float[count];
+        float[] blue = new float[count];
+        for (int i = 0; i < count; i++) {
+            int pixel = pixels[i];
+            red[i] = srgbToLinear((pixel >> 16) & 0xff);
+            green[i] = srgbToLinear((pixel >> 8) & 0xff);
+            blue[i] = srgbToLinear(pixel & 0xff);
+        }
+        float[][] cosinesX = cosines(componentsX, width);
+        float[][] cosinesY = cosines(componentsY, height);
+
+        float[][] factors = new float[componentsX * componentsY][3];
+        for (int j = 0; j < componentsY; j++) {
+            for (int i = 0; i < componentsX; i++) {
+                float r = 0;
+                float g = 0;
+                float b = 0;
+                for (int y = 0; y < height; y++) {
+                    float cosineY = cosinesY[j][y];
+                    int row = y * width;
+                    for (int x = 0; x < width; x++) {
+                        float basis = cosinesX[i][x] * cosineY;
+                        r += basis * red[row + x];
+                        g += basis * green[row + x];
+                        b += basis * blue[row + x];
+                    }
+                }
+                float scale = (i == 0 && j == 0 ? 1f : 2f) / count;
+                float[] factor = factors[j * componentsX + i];
+                factor[0] = r * scale;
+                factor[1] = g * scale;
+                factor[2] = b * scale;
+            }
+        }
+
+        StringBuilder hash = new StringBuilder(4 + 2 * factors.length);
+        encode83(hash, (componentsX - 1) + (componentsY - 1) * 9, 1);
+        float maximumValue = 1;
+        if (factors.length > 1) {
+            float actualMaximum = 0;
+            for (int i = 1; i < factors.length; i++) {
+                for (float value : factors[i]) {
+                    actualMaximum = Math.max(actualMaximum, Math.abs(value));
+                }
+            }
+            int quantisedMaximum = (int) Math.max(0, Math.min(82, Math.floor(actualMaximum * 166 - 0.5)));
+            maximumValue = (quantisedMaximum + 1) / 166f;
+            encode83(hash, quantisedMaximum, 1);
+        } else {
+            encode83(hash, 0, 1);
+        }
+        encode83(hash, encodeDc(factors[0]), 4);
+        for (int i = 1; i < factors.length; i++) {
+            encode83(hash, encodeAc(factors[i], maximumValue), 2);
+        }
+        return hash.toString();
+    }
+
+    /**
+     * Renders the hash into width x height ARGB pixels. punch above 1 strengthens the contrast.
+     *
+     * @throws IllegalArgumentException when the hash is malformed
+     */
+    public static int[] decode(String hash, int width, int height, float punch) {
+        if (hash == null || hash.length() < 6) {
+            throw new IllegalArgumentException("BlurHash is too short");
+        }
+        int sizeFlag = decode83(hash, 0, 1);
+        int componentsY = sizeFlag / 9 + 1;
+        int componentsX = sizeFlag % 9 + 1;
+        if (hash.length() != 4 + 2 * componentsX * componentsY) {
+            throw new IllegalArgumentException("BlurHash length does not match its components");
+        }
+        float maximumValue = (decode83(hash, 1, 1) + 1) / 166f * punch;
+
+        float[][] colors = new float[componentsX * componentsY][];
+        colors[0] = decodeDc(decode83(hash, 2, 4));
+        for (int i = 1; i < colors.length; i++) {
+            colors[i] = decodeAc(decode83(hash, 4 + i * 2, 2), maximumValue);
+        }
+        float[][] cosinesX = cosines(componentsX, width);
+        float[][] cosinesY = cosines(componentsY, height);
+
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float r = 0;
+                float g = 0;
+                float b = 0;
+                for (int j = 0; j < componentsY; j++) {
+                    float cosineY = cosinesY[j][y];
+                    for (int i = 0; i < componentsX; i++) {
+                        float basis = cosinesX[i][x] * cosineY;
+                        float[] color = colors[j * componentsX + i];
+                        r += color[0] * basis;
+                        g += color[1] * basis;
+                        b += color[2] * basis;
+                    }
+                }
+                pixels[y * width + x] = 0xff000000
+                        | (linearToSrgb(r) << 16)
+                        | (linearToSrgb(g) << 8)
+                        | linearToSrgb(b);
+            }
+        }
+        return pixels;
+    }
+
+    private static float[][] cosines(int components, int size) {
+        float[][] cosines = new float[components][size];
+        for (int component = 0; component < components; component++) {
+            for (int position = 0; position < size; position++) {
+                cosines[component][position] = (float) Math.cos(Math.PI * component * position / size);
+            }
+        }
+        return cosines;
+    }
+
+    private static int encodeDc(float[] color) {
+        return (linearToSrgb(color[0]) << 16) + (linearToSrgb(color[1]) << 8) + linearToSrgb(color[2]);
+    }
+
+    private static int encodeAc(float[] color, float maximumValue) {
+        int r = quantiseAc(color[0] / maximumValue);
+        int g = quantiseAc(color[1] / maximumValue);
+        int b = quantiseAc(color[2] / maximumValue);
+        return r * 19 * 19 + g * 19 + b;
+    }
+
+    private static int quantiseAc(float value) {
+        return (int) Math.max(0, Math.min(18, Math.floor(signedPow(value, 0.5f) * 9 + 9.5)));
+    }
+
+    private static float[] decodeDc(int value) {
+        return new float[]{
+                srgbToLinear(value >> 16),
+                srgbToLinear((value >> 8) & 0xff),
+                srgbToLinear(value & 0xff)
+        };
+    }
+
+    private static float[] decodeAc(int value, float maximumValue) {
+        return new float[]{
+                signedPow((value / (19 * 19) - 9) / 9f, 2) * maximumValue,
+                signedPow((value / 19 % 19 - 9) / 9f, 2) * maximumValue,
+                signedPow((value % 19 - 9) / 9f, 2) * maximumValue
+        };
+    }
+
+    private static float srgbToLinear(int value) {
+        float v = value / 255f;
+        return v <= 0.04045f ? v / 12.92f : (float) Math.pow((v + 0.055f) / 1.055f, 2.4);
+    }
+
+    private static int linearToSrgb(float value) {
+        float v = Math.max(0, Math.min(1, value));
+        return v <= 0.0031308f
+                ? (int) (v * 12.92f * 255 + 0.5f)
+                : (int) ((1.055f * Math.pow(v, 1 / 2.4) - 0.055f) * 255 + 0.5f);
+    }
+
+    private static float signedPow(float value, float exponent) {
+        return Math.copySign((float) Math.pow(Math.abs(value), exponent), value);
+    }
+
+    private static void encode83(StringBuilder builder, int value, int length) {
+        int divisor = 1;
+        for (int i = 1; i < length; i++) {
+            divisor *= 83;
+        }
+        for (int i = 0; i < length; i++) {
+            builder.append(CHARACTERS.charAt((value / divisor) % 83));
+            divisor /= 83;
+        }
+    }
+
+    private static int decode83(String hash, int start, int length) {
+        int value = 0;
+        for (int i = start; i < start + length; i++) {
+            int digit = CHARACTERS.indexOf(hash.charAt(i));
+            if (digit < 0) {
+                throw new IllegalArgumentException("Invalid BlurHash character " + hash.charAt(i));
+            }
+            value = value * 83 + digit;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,166 @@
+package com.hgb7725.botchattyapp.utilities;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.BatchingListUpdateCallback;
+import androidx.recyclerview.widget.ListUpdateCallback;
+
+import com.hgb7725.botchattyapp.models.ChatMessage;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * Keeps chat messages ordered by timestamp (then document id) and indexed by document id.
+ * New messages are placed with a binary search instead of re-sorting the whole list,
+ * and every insert / move / change is reported with its exact position.
+ */
+public class ChatMessageStore {
+
+    private final List<ChatMessage> messages;
+    private final HashMap<String, ChatMessage> messagesById = new HashMap<>();
+    private final ListUpdateCallback updateCallback;
+
+    public ChatMessageStore(List<ChatMessage> messages, ListUpdateCallback updateCallback) {
+        this.messages = messages;
+        this.updateCallback = updateCallback;
+    }
+
+    public int size() {
+        return messages.size();
+    }
+
+    public ChatMessage get(int position) {
+        return messages.get(position);
+    }
+
+    public ChatMessage getLast() {
+        return messages.isEmpty() ? null : messages.get(messages.size() - 1);
+    }
+
+    public ChatMessage getById(String id) {
+        return messagesById.get(id);
+    }
+
+    public boolean contains(String id) {
+        return messagesById.containsKey(id);
+    }
+
+    /**
+     * Inserts or replaces every message of a snapshot. Adjacent notifications are merged,
+     * so a page of history arriving at once becomes a single range insert.
+     */
+    public void upsertAll(@NonNull List<ChatMessage> chatMessages) {
+        BatchingListUpdateCallback batchingCallback = new BatchingListUpdateCallback(updateCallback);
+        for (ChatMessage chatMessage : chatMessages) {
+            upsert(chatMessage, batchingCallback);
+        }
+        batchingCallback.dispatchLastEvent();
+    }
+
+    public void upsert(@NonNull ChatMessage chatMessage) {
+        upsert(chatMessage, updateCallback);
+    }
+
+    public void remove(String id) {
+        ChatMessage existing = messagesById.remove(id);
+        if (existing == null) {
+            return;
+        }
+        int position = indexOf(existing);
+        messages.remove(position);
+        updateCallback.onRemoved(position, 1);
+    }
+
+    private void upsert(ChatMessage chatMessage, ListUpdateCallback callback) {
+        ChatMessage existing = messagesById.put(chatMessage.getId(), chatMessage);
+        if (existing == null) {
+            int position = insertionPoint(chatMessage);
+            messages.add(position, chatMessage);
+            callback.onInserted(position, 1);
+            return;
+        }
+
+        int oldPosition = indexOf(existing);
+        if (compare(existing, chatMessage) == 0) {
+            messages.set(oldPosition, chatMessage);
+            callback.onChanged(oldPosition, 1, null);
+            return;
+        }
+
+        // Timestamp changed (e.g. a pending write got its final time): move it to its new slot
+        messages.remove(oldPosition);
+        int newPosition = insertionPoint(chatMessage);
+        messages.add(newPosition, chatMessage);
+        if (newPosition != oldPosition) {
+            callback.onMoved(oldPosition, newPosition);
+        }
+        callback.onChanged(newPosition, 1, null);
+    }
+
+    // Position of a message already in the list, found with the same ordering used to insert it
+    private int indexOf(ChatMessage chatMessage) {
+        int low = 0;
+        int high = messages.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int result = compare(messages.get(middle), chatMessage);
+            if (result < 0) {
+                low = middle + 1;
+            } else if (result > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        throw new IllegalStateException("Message " + chatMessage.getId() + " is indexed but not in the list");
+    }
+
+    private int insertionPoint(ChatMessage chatMessage) {
+        int size = messages.size();
+        // Live messages almost always belong at the end
+        if (size == 0 || compare(messages.get(size - 1), chatMessage) <= 0) {
+            return size;
+        }
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (compare(messages.get(middle), chatMessage) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private static int compare(ChatMessage first, ChatMessage second) {
+        int result = compareDates(first.getDateObject(), second.getDateObject());
+        if (result != 0) {
+            return result;
+        }
+        return compareIds(first.getId(), second.getId());
+    }
+
+    // Messages without a timestamp yet sort after everything else
+    private static int compareDates(Date first, Date second) {
+        if (first == null) {
+            return second == null ? 0 : 1;
+        }
+        if (second == null) {
+            return -1;
+        }
+        return first.compareTo(second);
+    }
+
+    private static int compareIds(String first, String second) {
+        if (first == null) {
+            return second == null ? 0 : -1;
+        }
+        if (second == null) {
+            return 1;
+        }
+        return first.compareTo(second);
+    }
+}
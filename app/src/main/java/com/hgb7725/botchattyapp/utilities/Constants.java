@@ -3,26 +3,42 @@ package com.hgb7725.botchattyapp.utilities;
 public class Constants {
     public static final String KEY_COLLECTION_USERS = "users";
     public static final String KEY_NAME = "name";
+    public static final String KEY_NAME_KEY = "nameKey";
+    public static final String KEY_UPDATED_AT = "updatedAt";
+    public static final String KEY_DELETED = "deleted";
+    public static final String KEY_CONVERSATIONS_MIGRATED = "conversationsMigrated";
     public static final String KEY_EMAIL = "email";
     public static final String KEY_PASSWORD = "password";
     public static final String KEY_PREFERENCE_NAME = "chatAppPreference";
     public static final String KEY_IS_SIGNED_IN = "isSignedIn";
     public static final String KEY_USER_ID = "userId";
     public static final String KEY_IMAGE = "image";
+    public static final String KEY_IMAGE_VERSION = "imageVersion";
     public static final String KEY_FCM_TOKEN = "fcmToken";
+    // What was last written to the user document, so unchanged values are not written again
+    public static final String KEY_WRITTEN_FCM_TOKEN = "writtenFcmToken";
+    public static final String KEY_WRITTEN_NAME_KEY = "writtenNameKey";
     public static final String KEY_USER = "user";
+    public static final String KEY_IMAGE_URL = "imageUrl";
+    public static final String KEY_PREVIEW_URL = "previewUrl";
     public static final String KEY_COLLECTION_CHAT = "chat";
     public static final String KEY_SENDER_ID = "senderId";
     public static final String KEY_RECEIVER_ID = "receiverId";
     public static final String KEY_MESSAGE = "message";
+    public static final String KEY_IMAGE_WIDTH = "imageWidth";
+    public static final String KEY_IMAGE_HEIGHT = "imageHeight";
+    public static final String KEY_BLUR_HASH = "blurHash";
     public static final String KEY_TIMESTAMP = "timeStamp";
+    public static final String KEY_CONVERSATION_KEY = "conversationKey";
     public static final String KEY_COLLECTION_CONVERSATIONS = "conversations";
     public static final String KEY_SENDER_NAME = "senderName";
     public static final String KEY_RECEIVER_NAME = "receiverName";
     public static final String KEY_SENDER_IMAGE = "senderImage";
     public static final String KEY_RECEIVER_IMAGE = "receiverImage";
     public static final String KEY_LAST_MESSAGE = "lastMessage";
+    public static final String KEY_PARTICIPANTS = "participants";
     public static final String KEY_AVAILABILITY = "availability";
+    public static final String KEY_LAST_SEEN = "lastSeen";
     public static final String REMOTE_MSG_AUTHORIZATION = "authorization";
     public static final String REMOTE_MSG_CONTENT_TYPE = "Content-Type";
 }
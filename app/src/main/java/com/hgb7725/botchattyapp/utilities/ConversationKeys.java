@@ -0,0 +1,26 @@
+package com.hgb7725.botchattyapp.utilities;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class ConversationKeys {
+
+    /**
+     * Builds the key shared by both participants of a one-to-one chat.
+     * The ids are sorted, so both sides compute the same value.
+     */
+    public static String of(String firstUserId, String secondUserId) {
+        if (firstUserId.compareTo(secondUserId) <= 0) {
+            return firstUserId + "_" + secondUserId;
+        }
+        return secondUserId + "_" + firstUserId;
+    }
+
+    // Both user ids in the same order as in the key, stored for array-contains queries
+    public static List<String> participants(String firstUserId, String secondUserId) {
+        if (firstUserId.compareTo(secondUserId) <= 0) {
+            return Arrays.asList(firstUserId, secondUserId);
+        }
+        return Arrays.asList(secondUserId, firstUserId);
+    }
+}
@@ -1,16 +1,10 @@
 package com.hgb7725.botchattyapp.utilities;
 
-import android.annotation.SuppressLint;
-import android.app.DownloadManager;
-import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.database.Cursor;
 import android.net.Uri;
-import android.os.Build;
-import android.os.Environment;
 import android.provider.OpenableColumns;
 import android.webkit.MimeTypeMap;
 import android.widget.Toast;
@@ -19,6 +13,7 @@ import androidx.appcompat.app.AlertDialog;
 import androidx.core.content.FileProvider;
 
 import com.hgb7725.botchattyapp.R;
+import com.hgb7725.botchattyapp.network.AttachmentCache;
 
 import java.io.File;
 
@@ -161,44 +156,30 @@ public class FileUtils {
         return shortened;
     }
 
-    @SuppressLint("UnspecifiedRegisterReceiverFlag")
+    // Downloads into the attachment cache unless it is already there, then opens the file
     public static void downloadAndOpenFile(Context context, String fileUrl, String fileName) {
-        DownloadManager.Request request = new DownloadManager.Request(Uri.parse(fileUrl));
-        request.setTitle(fileName);
-        request.setDescription("Downloading file...");
-        request.setNotificationVisibility(DownloadManager.Request.VISIBILITY_VISIBLE_NOTIFY_COMPLETED);
-        request.setDestinationInExternalPublicDir(Environment.DIRECTORY_DOWNLOADS, fileName);
-
-        DownloadManager dm = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
-        long downloadId = dm.enqueue(request);
-
-        BroadcastReceiver onComplete = new BroadcastReceiver() {
+        AttachmentCache.getInstance(context).get(fileUrl, fileName, new AttachmentCache.Callback() {
             @Override
-            public void onReceive(Context ctx, Intent intent) {
-                long id = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1);
-                if (id == downloadId) {
-                    File file = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS), fileName);
-                    Uri fileUri = FileProvider.getUriForFile(ctx, ctx.getPackageName() + ".provider", file);
-
-                    Intent openIntent = new Intent(Intent.ACTION_VIEW);
-                    openIntent.setDataAndType(fileUri, getMimeType(fileName));
-                    openIntent.setFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_ACTIVITY_NEW_TASK);
-                    try {
-                        ctx.startActivity(openIntent);
-                    } catch (Exception e) {
-                        Toast.makeText(ctx, "No app to open this file", Toast.LENGTH_SHORT).show();
-                    }
+            public void onAttachmentReady(File file) {
+                openFile(context, file, fileName);
+            }
 
-                    ctx.unregisterReceiver(this); // cleanup
-                }
+            @Override
+            public void onAttachmentFailed(String errorMessage) {
+                Toast.makeText(context, "Unable to download file", Toast.LENGTH_SHORT).show();
             }
-        };
+        });
+    }
 
-        IntentFilter filter = new IntentFilter(DownloadManager.ACTION_DOWNLOAD_COMPLETE);
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-            context.registerReceiver(onComplete, filter, Context.RECEIVER_NOT_EXPORTED);
-        } else {
-            context.registerReceiver(onComplete, filter);
+    public static void openFile(Context context, File file, String fileName) {
+        Uri fileUri = FileProvider.getUriForFile(context, context.getPackageName() + ".provider", file);
+        Intent openIntent = new Intent(Intent.ACTION_VIEW);
+        openIntent.setDataAndType(fileUri, getMimeType(fileName != null ? fileName : file.getName()));
+        openIntent.setFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_ACTIVITY_NEW_TASK);
+        try {
+            context.startActivity(openIntent);
+        } catch (Exception e) {
+            Toast.makeText(context, "No app to open this file", Toast.LENGTH_SHORT).show();
         }
     }
 
@@ -212,6 +193,11 @@ public class FileUtils {
     }
 
     public static void confirmAndDownloadFile(Context context, String fileUrl, String fileName) {
+        // Files downloaded before open right away, without asking again
+        if (AttachmentCache.getInstance(context).getCached(fileUrl) != null) {
+            downloadAndOpenFile(context, fileUrl, fileName);
+            return;
+        }
         new AlertDialog.Builder(context)
                 .setTitle("Download file")
                 .setMessage("Do you want to download this file?\n\n" + fileName)
@@ -0,0 +1,393 @@
+package com.hgb7725.botchattyapp.utilities;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/*
+ * Prepares gallery images for upload: decodes them already subsampled, applies the EXIF
+ * orientation, caps the longest edge and re-encodes them. A 12 MP photo of several MB becomes
+ * a few hundred KB. The full size image is never held in memory: the decoded bitmap is at most
+ * twice the target edge, so peak memory stays around 5 * maxEdge^2 * 4 bytes.
+ */
+public class ImageCompressor {
+
+    private static final String TAG = "ImageCompressor";
+    private static final String OUTPUT_DIRECTORY = "upload_images";
+    // Prepared files are removed once they are this old
+    private static final long OUTPUT_MAX_AGE_MS = 60 * 60 * 1000;
+    // BlurHash only keeps a few components, a larger input only costs time
+    private static final int BLUR_HASH_EDGE_PX = 32;
+
+    public enum Format {
+        JPEG, WEBP,
+        // Lossless formats, picked for images with transparency since JPEG has no alpha channel
+        PNG, WEBP_LOSSLESS
+    }
+
+    /*
+     * Target of the pipeline. The defaults keep chat images sharp on any phone screen.
+     */
+    public static class Config {
+        public int maxEdgePx = 2048;
+        public int quality = 80;
+        public Format format = Format.JPEG;
+        // Chat images carry a BlurHash placeholder, avatars do not need one
+        public boolean blurHash = false;
+    }
+
+    public static class Result {
+        public final Uri uri;
+        public final String mimeType;
+        public final int width;
+        public final int height;
+        public final long inputBytes;
+        public final long outputBytes;
+        public final long decodeMs;
+        public final long encodeMs;
+        public final double sourceMegapixels;
+        @Nullable
+        public final String blurHash;
+        public final long blurHashMs;
+
+        Result(Uri uri, String mimeType, int width, int height, long inputBytes, long outputBytes,
+               long decodeMs, long encodeMs, double sourceMegapixels,
+               @Nullable String blurHash, long blurHashMs) {
+            this.uri = uri;
+            this.mimeType = mimeType;
+            this.width = width;
+            this.height = height;
+            this.inputBytes = inputBytes;
+            this.outputBytes = outputBytes;
+            this.decodeMs = decodeMs;
+            this.encodeMs = encodeMs;
+            this.sourceMegapixels = sourceMegapixels;
+            this.blurHash = blurHash;
+            this.blurHashMs = blurHashMs;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            double megapixels = Math.max(sourceMegapixels, 0.01);
+            return width + "x" + height
+                    + " bytes=" + inputBytes + "->" + outputBytes
+                    + " decode=" + decodeMs + "ms (" + Math.round(decodeMs / megapixels) + "ms/MP)"
+                    + " encode=" + encodeMs + "ms"
+                    + (blurHash != null ? " blurHash=" + blurHashMs + "ms" : "");
+        }
+    }
+
+    public interface Callback {
+        // result is null when the image cannot be decoded
+        void onImageCompressed(@Nullable Result result);
+    }
+
+    /**
+     * Runs the pipeline on the image processing thread and delivers the result on the main thread.
+     */
+    public static void compress(@NonNull Context context, @NonNull Uri source,
+                                @NonNull Config config, @NonNull Callback callback) {
+        Context appContext = context.getApplicationContext();
+        AppExecutors.getInstance().imageProcessing().execute(() -> {
+            Result result = null;
+            try {
+                result = compressBlocking(appContext, source, config);
+                Log.d(TAG, "Compressed " + source + ": " + result);
+            } catch (IOException | OutOfMemoryError e) {
+                Log.e(TAG, "Unable to compress " + source, e);
+            }
+            Result compressed = result;
+            AppExecutors.getInstance().mainThread().execute(() -> callback.onImageCompressed(compressed));
+        });
+    }
+
+    @NonNull
+    public static Result compressBlocking(@NonNull Context context, @NonNull Uri source,
+                                          @NonNull Config config) throws IOException {
+        ContentResolver contentResolver = context.getContentResolver();
+        long startTime = SystemClock.elapsedRealtime();
+
+        // Bounds only, nothing is allocated for the pixels
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream inputStream = open(contentResolver, source)) {
+            BitmapFactory.decodeStream(inputStream, null, options);
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Not a decodable image");
+        }
+        int sourceWidth = options.outWidth;
+        int sourceHeight = options.outHeight;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateInSampleSize(sourceWidth, sourceHeight, config.maxEdgePx);
+        Bitmap decoded;
+        try (InputStream inputStream = open(contentResolver, source)) {
+            decoded = BitmapFactory.decodeStream(inputStream, null, options);
+        }
+        if (decoded == null) {
+            throw new IOException("Not a decodable image");
+        }
+
+        int orientation = readOrientation(contentResolver, source);
+        Bitmap transformed = transform(decoded, orientation, config.maxEdgePx);
+        if (transformed != decoded) {
+            decoded.recycle();
+        }
+        long decodeMs = SystemClock.elapsedRealtime() - startTime;
+
+        long encodeStart = SystemClock.elapsedRealtime();
+        File directory = new File(context.getCacheDir(), OUTPUT_DIRECTORY);
+        if (!directory.exists() && !directory.mkdirs()) {
+            transformed.recycle();
+            throw new IOException("Unable to create " + directory);
+        }
+        pruneOldFiles(directory);
+        int width = transformed.getWidth();
+        int height = transformed.getHeight();
+        String blurHash = null;
+        long blurHashMs = 0;
+        if (config.blurHash) {
+            long blurHashStart = SystemClock.elapsedRealtime();
+            blurHash = blurHashOf(transformed);
+            blurHashMs = SystemClock.elapsedRealtime() - blurHashStart;
+        }
+        Format format = outputFormat(config.format, transformed.hasAlpha(), Build.VERSION.SDK_INT);
+        File output = new File(directory, UUID.randomUUID() + extension(format));
+        try (OutputStream outputStream = new FileOutputStream(output)) {
+            if (!transformed.compress(compressFormat(format), config.quality, outputStream)) {
+                throw new IOException("Unable to encode image");
+            }
+        } catch (IOException e) {
+            output.delete();
+            throw e;
+        } finally {
+            transformed.recycle();
+        }
+        long encodeMs = SystemClock.elapsedRealtime() - encodeStart;
+
+        return new Result(
+                Uri.fromFile(output),
+                mimeType(format),
+                width,
+                height,
+                querySize(contentResolver, source),
+                output.length(),
+                decodeMs,
+                encodeMs,
+                sourceWidth * (double) sourceHeight / 1_000_000,
+                blurHash,
+                blurHashMs
+        );
+    }
+
+    // Largest power of two that still leaves the longest edge at or above the target
+    static int calculateInSampleSize(int width, int height, int maxEdgePx) {
+        int longestEdge = Math.max(width, height);
+        int inSampleSize = 1;
+        while (longestEdge / (inSampleSize * 2) >= maxEdgePx) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    // Factor bringing the longest edge down to maxEdgePx, 1 when it already fits
+    static float downscaleFactor(int width, int height, int maxEdgePx) {
+        int longestEdge = Math.max(width, height);
+        return longestEdge > maxEdgePx ? (float) maxEdgePx / longestEdge : 1f;
+    }
+
+    // Width and height of the uploaded image for a decoded bitmap, as transform() produces it
+    static int[] targetSize(int decodedWidth, int decodedHeight, int orientation, int maxEdgePx) {
+        float scale = downscaleFactor(decodedWidth, decodedHeight, maxEdgePx);
+        int width = Math.round(decodedWidth * scale);
+        int height = Math.round(decodedHeight * scale);
+        return isQuarterTurn(orientation) ? new int[]{height, width} : new int[]{width, height};
+    }
+
+    // The BlurHash input keeps the aspect ratio with its longest edge at BLUR_HASH_EDGE_PX
+    static int[] blurHashSize(int width, int height) {
+        float scale = (float) BLUR_HASH_EDGE_PX / Math.max(width, height);
+        return new int[]{Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale))};
+    }
+
+    private static boolean isQuarterTurn(int orientation) {
+        return orientation == ExifInterface.ORIENTATION_TRANSPOSE
+                || orientation == ExifInterface.ORIENTATION_ROTATE_90
+                || orientation == ExifInterface.ORIENTATION_TRANSVERSE
+                || orientation == ExifInterface.ORIENTATION_ROTATE_270;
+    }
+
+    // Components follow the orientation: 4x3 for landscape, 3x4 for portrait
+    private static String blurHashOf(Bitmap bitmap) {
+        int[] size = blurHashSize(bitmap.getWidth(), bitmap.getHeight());
+        int width = size[0];
+        int height = size[1];
+        Bitmap small = Bitmap.createScaledBitmap(bitmap, width, height, true);
+        int[] pixels = new int[width * height];
+        small.getPixels(pixels, 0, width, 0, 0, width, height);
+        if (small != bitmap) {
+            small.recycle();
+        }
+        boolean isLandscape = width >= height;
+        return BlurHash.encode(pixels, width, height, isLandscape ? 4 : 3, isLandscape ? 3 : 4);
+    }
+
+    // Rotation and the final downscale in a single pass
+    private static Bitmap transform(Bitmap bitmap, int orientation, int maxEdgePx) {
+        Matrix matrix = new Matrix();
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.setScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.setRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.setScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.setRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.setRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.setRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.setRotate(-90);
+                break;
+            default:
+                break;
+        }
+        float scale = downscaleFactor(bitmap.getWidth(), bitmap.getHeight(), maxEdgePx);
+        if (scale < 1f) {
+            matrix.postScale(scale, scale);
+        }
+        if (matrix.isIdentity()) {
+            return bitmap;
+        }
+        return Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+    }
+
+    private static int readOrientation(ContentResolver contentResolver, Uri source) {
+        try (InputStream inputStream = open(contentResolver, source)) {
+            return new ExifInterface(inputStream).getAttributeInt(
+                    ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException | RuntimeException e) {
+            // PNG and other formats without EXIF
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+    }
+
+    /*
+     * The requested format, unless the bitmap has transparency: JPEG would turn it black and
+     * lossy WebP would blur its edges, so it is kept lossless. WebP only encodes losslessly
+     * from API 30, older versions get PNG, also when WEBP_LOSSLESS was asked for.
+     */
+    static Format outputFormat(Format requested, boolean hasAlpha, int sdkInt) {
+        boolean lossless = hasAlpha || requested == Format.PNG || requested == Format.WEBP_LOSSLESS;
+        if (!lossless || requested == Format.PNG) {
+            return requested;
+        }
+        return sdkInt >= Build.VERSION_CODES.R ? Format.WEBP_LOSSLESS : Format.PNG;
+    }
+
+    static String extension(Format format) {
+        switch (format) {
+            case WEBP:
+            case WEBP_LOSSLESS:
+                return ".webp";
+            case PNG:
+                return ".png";
+            default:
+                return ".jpg";
+        }
+    }
+
+    static String mimeType(Format format) {
+        switch (format) {
+            case WEBP:
+            case WEBP_LOSSLESS:
+                return "image/webp";
+            case PNG:
+                return "image/png";
+            default:
+                return "image/jpeg";
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Bitmap.CompressFormat compressFormat(Format format) {
+        if (format == Format.PNG) {
+            return Bitmap.CompressFormat.PNG;
+        }
+        if (format == Format.WEBP_LOSSLESS) {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+                    ? Bitmap.CompressFormat.WEBP_LOSSLESS
+                    : Bitmap.CompressFormat.PNG;
+        }
+        if (format == Format.WEBP) {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+                    ? Bitmap.CompressFormat.WEBP_LOSSY
+                    : Bitmap.CompressFormat.WEBP;
+        }
+        return Bitmap.CompressFormat.JPEG;
+    }
+
+    private static InputStream open(ContentResolver contentResolver, Uri source) throws FileNotFoundException {
+        InputStream inputStream = contentResolver.openInputStream(source);
+        if (inputStream == null) {
+            throw new FileNotFoundException("Unable to open " + source);
+        }
+        return inputStream;
+    }
+
+    private static long querySize(ContentResolver contentResolver, Uri source) {
+        try (Cursor cursor = contentResolver.query(source, new String[]{OpenableColumns.SIZE}, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getLong(0);
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Unable to query size of " + source, e);
+        }
+        return -1;
+    }
+
+    private static void pruneOldFiles(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            if (now - file.lastModified() > OUTPUT_MAX_AGE_MS && !file.delete()) {
+                Log.w(TAG, "Unable to delete " + file);
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.hgb7725.botchattyapp.utilities;
+
+import android.util.DisplayMetrics;
+
+import java.util.Locale;
+
+/*
+ * Chat images are stored on Cloudinary at upload size. Bubbles ask for a variant cropped to
+ * the size they draw, in density independent pixels with the screen's DPR, snapped to a few
+ * buckets so bubbles of different sizes share cached files. Only the viewer loads the
+ * original pixels, still with automatic format and quality.
+ */
+public class ImageUrls {
+
+    private static final String UPLOAD_SEGMENT = "/image/upload/";
+    private static final int[] WIDTH_BUCKETS_DP = {100, 150, 200, 300, 400};
+    private static final float[] DPR_BUCKETS = {1f, 1.5f, 2f, 3f};
+
+    /**
+     * URL of a variant filling a view of widthPx by heightPx pixels on a screen of the given
+     * density. URLs that are not Cloudinary uploads are returned unchanged.
+     */
+    public static String bubble(String url, int widthPx, int heightPx, DisplayMetrics metrics) {
+        float dpr = dpr(metrics.density);
+        int widthDp = bucket(Math.round(widthPx / metrics.density));
+        int heightDp = Math.round(widthDp * (float) heightPx / widthPx);
+        return transform(url, String.format(Locale.US, "c_fill,g_auto,w_%d,h_%d,dpr_%.1f,q_auto,f_auto",
+                widthDp, heightDp, dpr));
+    }
+
+    // The original pixels, re-encoded in the best format the device accepts
+    public static String full(String url) {
+        return transform(url, "q_auto,f_auto");
+    }
+
+    private static String transform(String url, String transformation) {
+        int index = url != null ? url.indexOf(UPLOAD_SEGMENT) : -1;
+        if (index < 0) {
+            return url;
+        }
+        int insertAt = index + UPLOAD_SEGMENT.length();
+        return url.substring(0, insertAt) + transformation + "/" + url.substring(insertAt);
+    }
+
+    static int bucket(int widthDp) {
+        for (int bucket : WIDTH_BUCKETS_DP) {
+            if (widthDp <= bucket) {
+                return bucket;
+            }
+        }
+        return WIDTH_BUCKETS_DP[WIDTH_BUCKETS_DP.length - 1];
+    }
+
+    static float dpr(float density) {
+        for (float bucket : DPR_BUCKETS) {
+            if (density <= bucket) {
+                return bucket;
+            }
+        }
+        return DPR_BUCKETS[DPR_BUCKETS.length - 1];
+    }
+}
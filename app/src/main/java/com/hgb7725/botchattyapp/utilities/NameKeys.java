@@ -0,0 +1,25 @@
+package com.hgb7725.botchattyapp.utilities;
+
+import java.text.Normalizer;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+public class NameKeys {
+
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    /**
+     * Normalized form of a display name used for ordering and prefix search:
+     * lower case, without accents ("Hồ Gia Bảo" becomes "ho gia bao"), single spaces.
+     */
+    public static String of(String name) {
+        if (name == null) {
+            return "";
+        }
+        String withoutMarks = COMBINING_MARKS.matcher(Normalizer.normalize(name, Normalizer.Form.NFD)).replaceAll("");
+        // đ is a letter of its own, not d with a mark, so NFD leaves it alone
+        String key = withoutMarks.replace('đ', 'd').replace('Đ', 'D').toLowerCase(Locale.ROOT).trim();
+        return WHITESPACE.matcher(key).replaceAll(" ");
+    }
+}
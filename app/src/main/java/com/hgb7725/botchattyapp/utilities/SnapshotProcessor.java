@@ -0,0 +1,134 @@
+package com.hgb7725.botchattyapp.utilities;
+
+import android.util.Log;
+import android.view.Choreographer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.firebase.firestore.DocumentChange;
+import com.google.firebase.firestore.QuerySnapshot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Turns Firestore snapshots into models on a background thread and hands the result
+ * to the UI at most once per frame. Snapshots that arrive within the same frame are merged.
+ * Items keep the order their snapshots arrived in, so when a document changes twice before a
+ * frame its later version is published last; the publisher places items where they belong.
+ */
+public class SnapshotProcessor<T> {
+
+    private static final String TAG = "SnapshotProcessor";
+
+    public interface Parser<T> {
+        // Returns null for changes that should be skipped
+        @Nullable
+        T parse(@NonNull DocumentChange documentChange);
+    }
+
+    public interface Publisher<T> {
+        // Called on the main thread, once per frame, with everything parsed since the last call
+        void publish(@NonNull List<T> items);
+    }
+
+    public static class Timings {
+        public int snapshotCount;
+        public int itemCount;
+        public long parseNanos;
+        public long publishNanos;
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "snapshots=" + snapshotCount
+                    + " items=" + itemCount
+                    + " parse=" + parseNanos / 1000 + "us"
+                    + " publish=" + publishNanos / 1000 + "us";
+        }
+    }
+
+    private final String name;
+    private final Parser<T> parser;
+    private final Publisher<T> publisher;
+
+    private final Object lock = new Object();
+    private List<T> pendingItems = new ArrayList<>();
+    private Timings pendingTimings = new Timings();
+    private volatile Timings lastTimings = new Timings();
+
+    private boolean isFrameScheduled = false;
+    private boolean isReleased = false;
+
+    private final Choreographer.FrameCallback frameCallback = frameTimeNanos -> publishPending();
+
+    public SnapshotProcessor(String name, Parser<T> parser, Publisher<T> publisher) {
+        this.name = name;
+        this.parser = parser;
+        this.publisher = publisher;
+    }
+
+    // Must be called on the main thread, typically straight from a snapshot listener
+    public void submit(@NonNull QuerySnapshot snapshot) {
+        List<DocumentChange> documentChanges = snapshot.getDocumentChanges();
+        AppExecutors.getInstance().snapshotParsing().execute(() -> {
+            long parseStart = System.nanoTime();
+            List<T> parsedItems = new ArrayList<>(documentChanges.size());
+            for (DocumentChange documentChange : documentChanges) {
+                T item = parser.parse(documentChange);
+                if (item != null) {
+                    parsedItems.add(item);
+                }
+            }
+            long parseNanos = System.nanoTime() - parseStart;
+
+            synchronized (lock) {
+                pendingItems.addAll(parsedItems);
+                pendingTimings.parseNanos += parseNanos;
+                pendingTimings.snapshotCount++;
+            }
+            AppExecutors.getInstance().mainThread().execute(this::scheduleFrame);
+        });
+    }
+
+    public Timings getLastTimings() {
+        return lastTimings;
+    }
+
+    // Stops delivering results, call it when the screen goes away
+    public void release() {
+        isReleased = true;
+        Choreographer.getInstance().removeFrameCallback(frameCallback);
+    }
+
+    private void scheduleFrame() {
+        if (isReleased || isFrameScheduled) {
+            return;
+        }
+        isFrameScheduled = true;
+        Choreographer.getInstance().postFrameCallback(frameCallback);
+    }
+
+    private void publishPending() {
+        isFrameScheduled = false;
+        if (isReleased) {
+            return;
+        }
+        List<T> items;
+        Timings timings;
+        synchronized (lock) {
+            items = pendingItems;
+            timings = pendingTimings;
+            pendingItems = new ArrayList<>();
+            pendingTimings = new Timings();
+        }
+        timings.itemCount = items.size();
+        long publishStart = System.nanoTime();
+        publisher.publish(Collections.unmodifiableList(items));
+        timings.publishNanos = System.nanoTime() - publishStart;
+        lastTimings = timings;
+        Log.d(TAG, name + ": " + timings);
+    }
+}
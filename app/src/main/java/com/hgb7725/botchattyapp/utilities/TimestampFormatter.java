@@ -0,0 +1,125 @@
+package com.hgb7725.botchattyapp.utilities;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+ * Formats message timestamps for the chat and conversation lists.
+ * Formatters are created once per thread and rendered strings are cached per minute,
+ * since every label shown in the app only has minute precision. Plain Java, so it runs in
+ * JVM tests as it does on the device.
+ */
+public class TimestampFormatter {
+
+    private static final long MINUTE_MS = 60 * 1000;
+    private static final long HOUR_MS = 60 * MINUTE_MS;
+
+    private static final ThreadLocal<SimpleDateFormat> DATE_TIME_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("MMMM dd, yyyy - hh:mm a", Locale.ENGLISH);
+        }
+    };
+
+    private static final ThreadLocal<SimpleDateFormat> TIME_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("hh:mm a", Locale.ENGLISH);
+        }
+    };
+
+    // Keyed by minute since the epoch, used from the main and the snapshot parsing threads
+    private static final Map<Long, String> dateTimeLabels = Collections.synchronizedMap(new LabelCache(1024));
+    private static final Map<Long, String> timeLabels = Collections.synchronizedMap(new LabelCache(256));
+
+    // Bounds of "today" in local time, recomputed when the day changes
+    private static long todayStart;
+    private static long tomorrowStart;
+
+    // Least recently used labels are dropped past the capacity
+    private static class LabelCache extends LinkedHashMap<Long, String> {
+        private final int capacity;
+
+        LabelCache(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    /**
+     * Full label used in chat bubbles, e.g. "April 12, 2025 - 05:38 PM".
+     */
+    public static String formatDateTime(Date date) {
+        if (date == null) {
+            return "";
+        }
+        long minute = date.getTime() / MINUTE_MS;
+        String label = dateTimeLabels.get(minute);
+        if (label == null) {
+            label = DATE_TIME_FORMAT.get().format(new Date(minute * MINUTE_MS));
+            dateTimeLabels.put(minute, label);
+        }
+        return label;
+    }
+
+    /**
+     * Short label relative to now, used in the conversation list:
+     * "Just now", "5 min ago", "05:38 PM" (today), "Yesterday", then the full label.
+     */
+    public static String formatRelative(Date date, long now) {
+        if (date == null) {
+            return "";
+        }
+        long time = date.getTime();
+        long elapsed = now - time;
+        if (elapsed < MINUTE_MS) {
+            return "Just now";
+        }
+        if (elapsed < HOUR_MS) {
+            return elapsed / MINUTE_MS + " min ago";
+        }
+        updateDayBounds(now);
+        if (time >= todayStart) {
+            return formatTime(time);
+        }
+        if (time >= todayStart - 24 * HOUR_MS) {
+            return "Yesterday";
+        }
+        return formatDateTime(date);
+    }
+
+    private static String formatTime(long time) {
+        long minute = time / MINUTE_MS;
+        String label = timeLabels.get(minute);
+        if (label == null) {
+            label = TIME_FORMAT.get().format(new Date(minute * MINUTE_MS));
+            timeLabels.put(minute, label);
+        }
+        return label;
+    }
+
+    private static synchronized void updateDayBounds(long now) {
+        if (now >= todayStart && now < tomorrowStart) {
+            return;
+        }
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(now);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        todayStart = calendar.getTimeInMillis();
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        tomorrowStart = calendar.getTimeInMillis();
+    }
+}
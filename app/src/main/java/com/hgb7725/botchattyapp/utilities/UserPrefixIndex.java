@@ -0,0 +1,135 @@
+package com.hgb7725.botchattyapp.utilities;
+
+import com.hgb7725.botchattyapp.models.User;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * In-memory trie over the words of every loaded user's name key, so typing "bao" finds
+ * "Ho Gia Bao" without a round trip. A query of several words matches users having a word
+ * starting with each of them. Not thread safe: it is built in the background, then only
+ * used on the main thread.
+ */
+public class UserPrefixIndex {
+
+    private static final class Node {
+        final HashMap<Character, Node> children = new HashMap<>();
+        // Users having a word that ends at this node
+        final Set<String> userIds = new LinkedHashSet<>();
+    }
+
+    private final Node root = new Node();
+    private final HashMap<String, User> usersById = new HashMap<>();
+    private final HashMap<String, String> keysById = new HashMap<>();
+
+    public int size() {
+        return usersById.size();
+    }
+
+    public void putAll(List<User> users) {
+        for (User user : users) {
+            put(user);
+        }
+    }
+
+    public void put(User user) {
+        String key = NameKeys.of(user.getName());
+        String previousKey = keysById.put(user.getId(), key);
+        usersById.put(user.getId(), user);
+        if (key.equals(previousKey)) {
+            return;
+        }
+        if (previousKey != null) {
+            for (String word : words(previousKey)) {
+                Node node = find(word);
+                if (node != null) {
+                    node.userIds.remove(user.getId());
+                }
+            }
+        }
+        for (String word : words(key)) {
+            Node node = root;
+            for (int i = 0; i < word.length(); i++) {
+                Node child = node.children.get(word.charAt(i));
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(word.charAt(i), child);
+                }
+                node = child;
+            }
+            node.userIds.add(user.getId());
+        }
+    }
+
+    /**
+     * Users matching the query (any case or accents), ordered by name key like the directory.
+     */
+    public List<User> search(String query, int limit) {
+        String queryKey = NameKeys.of(query);
+        if (queryKey.isEmpty()) {
+            return Collections.emptyList();
+        }
+        String[] terms = words(queryKey);
+        Node node = find(terms[0]);
+        if (node == null) {
+            return Collections.emptyList();
+        }
+        LinkedHashSet<String> candidates = new LinkedHashSet<>();
+        collect(node, candidates);
+
+        List<User> results = new ArrayList<>();
+        for (String id : candidates) {
+            if (matchesAll(keysById.get(id), terms)) {
+                results.add(usersById.get(id));
+            }
+        }
+        Collections.sort(results, Comparator.comparing(user -> keysById.get(user.getId())));
+        return results.size() > limit ? new ArrayList<>(results.subList(0, limit)) : results;
+    }
+
+    private Node find(String prefix) {
+        Node node = root;
+        for (int i = 0; i < prefix.length() && node != null; i++) {
+            node = node.children.get(prefix.charAt(i));
+        }
+        return node;
+    }
+
+    private static void collect(Node node, Set<String> userIds) {
+        userIds.addAll(node.userIds);
+        for (Node child : node.children.values()) {
+            collect(child, userIds);
+        }
+    }
+
+    // Every term must start one of the words, the first one is already known to
+    private static boolean matchesAll(String key, String[] terms) {
+        if (terms.length == 1) {
+            return true;
+        }
+        String[] words = words(key);
+        for (int i = 1; i < terms.length; i++) {
+            boolean found = false;
+            for (String word : words) {
+                if (word.startsWith(terms[i])) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String[] words(String key) {
+        return key.isEmpty() ? new String[0] : key.split(" ");
+    }
+}
@@ -0,0 +1,212 @@
+package com.hgb7725.botchattyapp.adapters;
+
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.hgb7725.botchattyapp.models.ChatMessage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/*
+ * Binds the adapter's own holders into stub views, which accept every call and do nothing,
+ * so what a rebind allocates is what ChatAdapter itself allocates.
+ */
+public class ChatAdapterTest {
+
+    private static final String ME = "alice";
+    private static final String OTHER = "bob";
+    private static final int REBINDS = 10_000;
+    // Looked up once, reading the counter through it allocates nothing
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private List<ChatMessage> messages;
+    private ChatAdapter adapter;
+
+    /*
+     * Creates the holders from stub views instead of inflating them. Registering for stable
+     * ids goes through Android's Observable, which is a stub here as well.
+     */
+    private static class StubViewChatAdapter extends ChatAdapter {
+
+        StubViewChatAdapter(List<ChatMessage> chatMessages) {
+            super(chatMessages, null, ME);
+        }
+
+        @Override
+        public void setHasStableIds(boolean hasStableIds) {
+        }
+
+        @NonNull
+        @Override
+        public RecyclerView.ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+            switch (viewType) {
+                case VIEW_TYPE_SENT_TEXT:
+                    return new SentTextViewHolder(view(), textView(), textView());
+                case VIEW_TYPE_RECEIVED_TEXT:
+                    return new ReceivedTextViewHolder(view(), textView(), textView(), imageView());
+                case VIEW_TYPE_SENT_IMAGE:
+                    return new SentImageViewHolder(view(), imageView(), textView());
+                case VIEW_TYPE_RECEIVED_IMAGE:
+                    return new ReceivedImageViewHolder(view(), imageView(), textView(), imageView());
+                case VIEW_TYPE_SENT_FILE:
+                    return new SentFileViewHolder(view(), view(), textView(), textView(), imageView());
+                case VIEW_TYPE_RECEIVED_FILE:
+                    return new ReceivedFileViewHolder(view(), view(), textView(), textView(), imageView(), imageView());
+                default:
+                    throw new IllegalArgumentException("Unknown view type: " + viewType);
+            }
+        }
+    }
+
+    private static View view() {
+        return new View(null);
+    }
+
+    private static TextView textView() {
+        return new TextView(null);
+    }
+
+    private static ImageView imageView() {
+        return new ImageView(null);
+    }
+
+    @Before
+    public void setUp() {
+        messages = new ArrayList<>();
+        messages.add(message("m1", ME, null, null, ChatMessage.SEND_STATE_SENT));
+        messages.add(message("m2", OTHER, null, null, ChatMessage.SEND_STATE_SENT));
+        messages.add(message("m3", ME, "file", "quarterly-report-final-v2.pdf", ChatMessage.SEND_STATE_SENDING));
+        messages.add(message("m4", OTHER, "file", "photo.jpg", ChatMessage.SEND_STATE_SENT));
+        messages.add(message("m5", ME, "image", null, ChatMessage.SEND_STATE_FAILED));
+        adapter = new StubViewChatAdapter(messages);
+    }
+
+    private static ChatMessage message(String id, String senderId, String type, String fileName, int sendState) {
+        ChatMessage chatMessage = new ChatMessage();
+        chatMessage.setId(id);
+        chatMessage.setSenderId(senderId);
+        chatMessage.setMessage("Hello");
+        chatMessage.setType(type);
+        chatMessage.setFileName(fileName);
+        chatMessage.setDateTime("October 18, 2026 - 09:30 AM");
+        chatMessage.setSendState(sendState);
+        return chatMessage;
+    }
+
+    // A holder for each text and file row; image rows need Glide and are left out
+    private List<RecyclerView.ViewHolder> createHolders() {
+        ViewGroup parent = new FrameLayout(null);
+        List<RecyclerView.ViewHolder> holders = new ArrayList<>();
+        for (int position = 0; position < messages.size(); position++) {
+            int viewType = adapter.getItemViewType(position);
+            if (viewType != ChatAdapter.VIEW_TYPE_SENT_IMAGE && viewType != ChatAdapter.VIEW_TYPE_RECEIVED_IMAGE) {
+                holders.add(adapter.createViewHolder(parent, viewType));
+            }
+        }
+        return holders;
+    }
+
+    private void bindAll(List<RecyclerView.ViewHolder> holders) {
+        for (int position = 0; position < holders.size(); position++) {
+            adapter.onBindViewHolder(holders.get(position), position);
+        }
+    }
+
+    private static long allocatedBytes() {
+        return THREADS.getCurrentThreadAllocatedBytes();
+    }
+
+    @Test
+    public void viewTypes() {
+        assertEquals(ChatAdapter.VIEW_TYPE_SENT_TEXT, adapter.getItemViewType(0));
+        assertEquals(ChatAdapter.VIEW_TYPE_RECEIVED_TEXT, adapter.getItemViewType(1));
+        assertEquals(ChatAdapter.VIEW_TYPE_SENT_FILE, adapter.getItemViewType(2));
+        assertEquals(ChatAdapter.VIEW_TYPE_RECEIVED_FILE, adapter.getItemViewType(3));
+        assertEquals(ChatAdapter.VIEW_TYPE_SENT_IMAGE, adapter.getItemViewType(4));
+    }
+
+    @Test
+    public void derivedStateIsKeptOnTheMessage() {
+        bindAll(createHolders());
+        String dateTime = messages.get(2).getDisplayDateTime();
+        String fileName = messages.get(2).getDisplayFileName();
+
+        assertNotNull(dateTime);
+        assertTrue(fileName.length() <= 15);
+        assertNotEquals(0, messages.get(2).getFileIconRes());
+        assertEquals(ChatAdapter.VIEW_TYPE_SENT_FILE, messages.get(2).getViewType());
+        assertSame(dateTime, ChatAdapter.sentDateTime(messages.get(2)));
+        assertSame(fileName, ChatAdapter.displayFileName(messages.get(2)));
+    }
+
+    @Test
+    public void sentDateTime_followsTheSendState() {
+        ChatMessage chatMessage = messages.get(0);
+        assertEquals("October 18, 2026 - 09:30 AM", ChatAdapter.sentDateTime(chatMessage));
+
+        chatMessage.setSendState(ChatMessage.SEND_STATE_FAILED);
+        assertEquals("October 18, 2026 - 09:30 AM · Not sent, tap to retry", ChatAdapter.sentDateTime(chatMessage));
+
+        chatMessage.setSendState(ChatMessage.SEND_STATE_SENT);
+        assertEquals("October 18, 2026 - 09:30 AM", ChatAdapter.sentDateTime(chatMessage));
+    }
+
+    private void rebind(List<RecyclerView.ViewHolder> holders) {
+        for (int i = 0; i < REBINDS; i++) {
+            bindAll(holders);
+        }
+    }
+
+    // The same loop without binding anything
+    private static int walk(List<RecyclerView.ViewHolder> holders) {
+        int found = 0;
+        for (int i = 0; i < REBINDS; i++) {
+            for (int position = 0; position < holders.size(); position++) {
+                found += holders.get(position) != null ? 1 : 0;
+            }
+        }
+        return found;
+    }
+
+    @Test
+    public void rebindingAllocatesNothing() {
+        assumeTrue(THREADS.isThreadAllocatedMemorySupported() && THREADS.isThreadAllocatedMemoryEnabled());
+        List<RecyclerView.ViewHolder> holders = createHolders();
+
+        long before = allocatedBytes();
+        bindAll(holders);
+        long firstBind = allocatedBytes() - before;
+
+        // The JVM allocates a little the first time it runs a loop, so both run once unmeasured
+        rebind(holders);
+        int found = walk(holders);
+
+        before = allocatedBytes();
+        found += walk(holders);
+        long baseline = allocatedBytes() - before;
+
+        before = allocatedBytes();
+        rebind(holders);
+        long rebinds = allocatedBytes() - before - baseline;
+
+        assertEquals(2 * REBINDS * holders.size(), found);
+        // The first bind builds the status lines and file names
+        assertTrue("first bind allocated " + firstBind, firstBind > 0);
+        assertEquals(0, rebinds);
+    }
+}
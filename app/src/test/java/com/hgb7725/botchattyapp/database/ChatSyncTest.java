@@ -0,0 +1,140 @@
+package com.hgb7725.botchattyapp.database;
+
+import com.hgb7725.botchattyapp.models.ChatMessage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ChatSyncTest {
+
+    private static final String CONVERSATION = "alice_bob";
+    private static final long SERVER_NOW = 1_700_000_000_000L;
+    private static final long HOUR_MS = 60 * 60 * 1000;
+
+    private InMemoryChatDao chatDao;
+    private ChatSync chatSync;
+
+    @Before
+    public void setUp() {
+        chatDao = new InMemoryChatDao();
+        chatSync = new ChatSync(chatDao);
+    }
+
+    private static ChatMessage message(String id, long timestamp, long updatedAt) {
+        ChatMessage chatMessage = new ChatMessage();
+        chatMessage.setId(id);
+        chatMessage.setMessage("text of " + id);
+        chatMessage.setDateObject(new Date(timestamp));
+        chatMessage.setUpdatedAt(updatedAt);
+        return chatMessage;
+    }
+
+    @Test
+    public void messagesSince_isZeroWithoutStoredMessages() {
+        chatDao.setWatermark(CONVERSATION, SERVER_NOW);
+
+        assertEquals(0, chatSync.messagesSince(CONVERSATION, false));
+    }
+
+    @Test
+    public void messagesSince_isZeroBeforeTheFirstWatermark() {
+        assertEquals(0, chatSync.messagesSince(CONVERSATION, true));
+    }
+
+    @Test
+    public void messagesSince_startsAnOverlapBeforeTheWatermark() {
+        chatSync.saveMessages(CONVERSATION, Collections.singletonList(message("m1", SERVER_NOW, SERVER_NOW)));
+
+        assertEquals(SERVER_NOW - ChatSync.WATERMARK_OVERLAP_MS, chatSync.messagesSince(CONVERSATION, true));
+    }
+
+    @Test
+    public void saveMessages_watermarkFollowsServerTimeNotSenderClock() {
+        // The sender's clock runs an hour behind the server
+        chatSync.saveMessages(CONVERSATION, Collections.singletonList(
+                message("late-clock", SERVER_NOW - HOUR_MS, SERVER_NOW)));
+
+        assertEquals(SERVER_NOW, chatDao.getWatermark(CONVERSATION));
+
+        // Their next message is still after the listener's start, whatever its timestamp says
+        long since = chatSync.messagesSince(CONVERSATION, true);
+        ChatMessage next = message("late-clock-2", SERVER_NOW - HOUR_MS + 1_000, SERVER_NOW + 1_000);
+        assertTrue(next.getUpdatedAt() > since);
+        assertTrue(next.getDateObject().getTime() < since);
+    }
+
+    @Test
+    public void saveMessages_pendingAndLegacyMessagesAreStoredWithoutMovingTheWatermark() {
+        chatSync.saveMessages(CONVERSATION, Collections.singletonList(message("m1", SERVER_NOW, SERVER_NOW)));
+        // Still pending (no server time yet) and written by a client older than updatedAt
+        chatSync.saveMessages(CONVERSATION, Arrays.asList(
+                message("pending", SERVER_NOW + HOUR_MS, 0),
+                message("legacy", SERVER_NOW + 2 * HOUR_MS, 0)));
+
+        assertEquals(SERVER_NOW, chatDao.getWatermark(CONVERSATION));
+        assertEquals(3, chatDao.getLatestMessages(CONVERSATION, 10).size());
+    }
+
+    @Test
+    public void saveMessages_watermarkNeverMovesBack() {
+        chatSync.saveMessages(CONVERSATION, Collections.singletonList(message("new", SERVER_NOW, SERVER_NOW)));
+        // A page re-read through the overlap
+        chatSync.saveMessages(CONVERSATION, Collections.singletonList(
+                message("old", SERVER_NOW - 1_000, SERVER_NOW - 1_000)));
+
+        assertEquals(SERVER_NOW, chatDao.getWatermark(CONVERSATION));
+    }
+
+    @Test
+    public void saveMessages_usesTheNewestUpdatedAtOfTheBatch() {
+        chatSync.saveMessages(CONVERSATION, Arrays.asList(
+                message("a", SERVER_NOW, SERVER_NOW + 5_000),
+                message("b", SERVER_NOW + 1_000, SERVER_NOW + 2_000),
+                message("c", SERVER_NOW + 2_000, 0)));
+
+        assertEquals(SERVER_NOW + 5_000, chatDao.getWatermark(CONVERSATION));
+    }
+
+    @Test
+    public void saveMessages_mergesRedeliveredMessagesById() {
+        chatSync.saveMessages(CONVERSATION, Arrays.asList(
+                message("a", SERVER_NOW, SERVER_NOW),
+                message("b", SERVER_NOW + 1_000, SERVER_NOW + 1_000)));
+        ChatMessage edited = message("a", SERVER_NOW, SERVER_NOW + 3_000);
+        edited.setMessage("edited");
+        chatSync.saveMessages(CONVERSATION, Collections.singletonList(edited));
+
+        List<ChatMessage> stored = chatDao.getLatestMessages(CONVERSATION, 10);
+        assertEquals(2, stored.size());
+        assertEquals("a", stored.get(0).getId());
+        assertEquals("edited", stored.get(0).getMessage());
+        assertEquals(SERVER_NOW + 3_000, chatDao.getWatermark(CONVERSATION));
+    }
+
+    @Test
+    public void saveMessages_ignoresEmptyBatches() {
+        chatSync.saveMessages(CONVERSATION, Collections.emptyList());
+
+        assertTrue(chatDao.watermarks.isEmpty());
+        assertTrue(chatDao.messagesByConversation.isEmpty());
+    }
+
+    @Test
+    public void saveConversations_keepsItsOwnWatermark() {
+        chatSync.saveMessages(CONVERSATION, Collections.singletonList(message("m1", SERVER_NOW, SERVER_NOW)));
+        chatSync.saveConversations("alice", Collections.singletonList(
+                message(CONVERSATION, SERVER_NOW - HOUR_MS, SERVER_NOW + 10_000)));
+
+        assertEquals(SERVER_NOW, chatDao.getWatermark(CONVERSATION));
+        assertEquals(SERVER_NOW + 10_000 - ChatSync.WATERMARK_OVERLAP_MS, chatSync.conversationsSince("alice", true));
+        assertEquals(0, chatSync.conversationsSince("bob", true));
+        assertEquals(0, chatSync.conversationsSince("alice", false));
+    }
+}
@@ -0,0 +1,107 @@
+package com.hgb7725.botchattyapp.database;
+
+import com.hgb7725.botchattyapp.models.ChatMessage;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * ChatDao stand-in for JVM tests, with the same ordering and replace-by-id rules as ChatDatabase.
+ */
+class InMemoryChatDao implements ChatDao {
+
+    private static final Comparator<ChatMessage> OLDEST_FIRST =
+            Comparator.<ChatMessage>comparingLong(chatMessage -> chatMessage.getDateObject().getTime())
+                    .thenComparing(ChatMessage::getId);
+
+    final Map<String, Map<String, ChatMessage>> messagesByConversation = new HashMap<>();
+    final Map<String, Map<String, ChatMessage>> conversationsByUser = new HashMap<>();
+    final Map<String, Long> watermarks = new HashMap<>();
+
+    @Override
+    public List<ChatMessage> getLatestMessages(String conversationKey, int limit) {
+        List<ChatMessage> messages = sorted(conversationKey);
+        return new ArrayList<>(messages.subList(Math.max(0, messages.size() - limit), messages.size()));
+    }
+
+    @Override
+    public List<ChatMessage> getMessagesBefore(String conversationKey, long beforeTime, String beforeId, int limit) {
+        List<ChatMessage> older = new ArrayList<>();
+        for (ChatMessage chatMessage : sorted(conversationKey)) {
+            long time = chatMessage.getDateObject().getTime();
+            if (time < beforeTime || (time == beforeTime && chatMessage.getId().compareTo(beforeId) < 0)) {
+                older.add(chatMessage);
+            }
+        }
+        return new ArrayList<>(older.subList(Math.max(0, older.size() - limit), older.size()));
+    }
+
+    @Override
+    public void saveMessages(String conversationKey, List<ChatMessage> chatMessages) {
+        Map<String, ChatMessage> messages = messagesByConversation.computeIfAbsent(conversationKey, key -> new LinkedHashMap<>());
+        for (ChatMessage chatMessage : chatMessages) {
+            if (chatMessage.getDateObject() != null) {
+                messages.put(chatMessage.getId(), chatMessage);
+            }
+        }
+    }
+
+    @Override
+    public long getWatermark(String syncKey) {
+        Long watermark = watermarks.get(syncKey);
+        return watermark != null ? watermark : 0;
+    }
+
+    @Override
+    public void setWatermark(String syncKey, long watermark) {
+        watermarks.put(syncKey, watermark);
+    }
+
+    @Override
+    public List<ChatMessage> getConversations(String userId) {
+        Map<String, ChatMessage> conversations = conversationsByUser.get(userId);
+        List<ChatMessage> result = conversations != null ? new ArrayList<>(conversations.values()) : new ArrayList<>();
+        result.sort(OLDEST_FIRST.reversed());
+        return result;
+    }
+
+    @Override
+    public void saveConversations(String userId, List<ChatMessage> conversations) {
+        Map<String, ChatMessage> stored = conversationsByUser.computeIfAbsent(userId, key -> new LinkedHashMap<>());
+        for (ChatMessage conversation : conversations) {
+            if (conversation.getDateObject() != null) {
+                stored.put(conversation.getId(), conversation);
+            }
+        }
+    }
+
+    @Override
+    public void trimMessages(String conversationKey, int keepNewest) {
+        List<ChatMessage> messages = sorted(conversationKey);
+        for (int i = 0; i < messages.size() - keepNewest; i++) {
+            messagesByConversation.get(conversationKey).remove(messages.get(i).getId());
+        }
+    }
+
+    @Override
+    public void compact(String userId, int keepConversations) {
+    }
+
+    @Override
+    public void clear() {
+        messagesByConversation.clear();
+        conversationsByUser.clear();
+        watermarks.clear();
+    }
+
+    private List<ChatMessage> sorted(String conversationKey) {
+        Map<String, ChatMessage> messages = messagesByConversation.get(conversationKey);
+        List<ChatMessage> result = messages != null ? new ArrayList<>(messages.values()) : new ArrayList<>();
+        result.sort(OLDEST_FIRST);
+        return result;
+    }
+}
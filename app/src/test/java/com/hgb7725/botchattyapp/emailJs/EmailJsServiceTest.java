@@ -0,0 +1,104 @@
+package com.hgb7725.botchattyapp.emailJs;
+
+import com.hgb7725.botchattyapp.network.HttpClientProvider;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+
+import static org.junit.Assert.*;
+
+/*
+ * The OTP email request against a local stand-in for the EmailJS endpoint, through the shared client.
+ */
+public class EmailJsServiceTest {
+
+    private MockWebServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    // Sends the OTP and waits for the result
+    private boolean send(String toEmail, String otpCode) throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicBoolean result = new AtomicBoolean();
+        EmailJsService.send(HttpClientProvider.getInstance().getClient(),
+                EmailJsService.buildRequest(server.url("/api/v1.0/email/send").toString(), toEmail, otpCode),
+                Runnable::run, sent -> {
+                    result.set(sent);
+                    done.countDown();
+                });
+        assertTrue("no result", done.await(10, TimeUnit.SECONDS));
+        return result.get();
+    }
+
+    @Test
+    public void send_postsTheTemplateAsJson() throws Exception {
+        server.enqueue(new MockResponse().setBody("OK"));
+
+        assertTrue(send("user@example.com", "4821"));
+
+        RecordedRequest request = server.takeRequest();
+        assertEquals("POST", request.getMethod());
+        assertEquals("/api/v1.0/email/send", request.getPath());
+        assertEquals("application/json; charset=utf-8", request.getHeader("Content-Type"));
+        JSONObject body = new JSONObject(request.getBody().readUtf8());
+        assertEquals(EmailJsConfig.SERVICE_ID, body.getString("service_id"));
+        assertEquals(EmailJsConfig.TEMPLATE_ID, body.getString("template_id"));
+        assertEquals(EmailJsConfig.PUBLIC_KEY, body.getString("user_id"));
+        assertEquals("user@example.com", body.getJSONObject("template_params").getString("user_email"));
+        assertEquals("4821", body.getJSONObject("template_params").getString("passcode"));
+    }
+
+    @Test
+    public void send_errorStatusIsNotSent() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(400).setBody("The user_id parameter is required"));
+
+        assertFalse(send("user@example.com", "4821"));
+    }
+
+    @Test
+    public void send_droppedConnectionIsNotSent() throws Exception {
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+
+        assertFalse(send("user@example.com", "4821"));
+    }
+
+    @Test
+    public void send_reusesTheSharedConnection() throws Exception {
+        server.enqueue(new MockResponse().setBody("OK"));
+        server.enqueue(new MockResponse().setBody("OK"));
+
+        assertTrue(send("first@example.com", "1111"));
+        assertTrue(send("second@example.com", "2222"));
+
+        assertEquals(0, server.takeRequest().getSequenceNumber());
+        assertEquals(1, server.takeRequest().getSequenceNumber());
+    }
+
+    @Test
+    public void generateOtp_isDigitsOfTheGivenLength() {
+        for (int i = 0; i < 100; i++) {
+            assertTrue(EmailJsService.generateOtp(4).matches("\\d{4}"));
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.hgb7725.botchattyapp.firebase;
+
+import com.hgb7725.botchattyapp.models.OutgoingMessage;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Firestore stand-in for JVM tests: the chat and conversations collections as maps, with the
+ * writes and round trips of every send counted. A send is committed as one batch, like MessageSender.send.
+ */
+class InMemoryFirestore implements MessageSender.Writes {
+
+    final Map<String, Map<String, Object>> chat = new HashMap<>();
+    final Map<String, Map<String, Object>> conversations = new HashMap<>();
+    int writes;
+    int roundTrips;
+
+    // Writes of the batch being built, applied together on commit
+    private final Map<String, Map<String, Object>> pendingMessages = new HashMap<>();
+    private final Map<String, Map<String, Object>> pendingConversations = new HashMap<>();
+
+    void send(List<OutgoingMessage> outgoingMessages) {
+        MessageSender.write(outgoingMessages, this);
+        commit();
+    }
+
+    @Override
+    public void setMessage(String messageId, Map<String, Object> message) {
+        writes++;
+        pendingMessages.put(messageId, new HashMap<>(message));
+    }
+
+    @Override
+    public void mergeConversation(String conversationId, Map<String, Object> conversation) {
+        writes++;
+        Map<String, Object> merged = pendingConversations.get(conversationId);
+        if (merged == null) {
+            merged = new HashMap<>();
+            pendingConversations.put(conversationId, merged);
+        }
+        merged.putAll(conversation);
+    }
+
+    private void commit() {
+        roundTrips++;
+        chat.putAll(pendingMessages);
+        for (Map.Entry<String, Map<String, Object>> entry : pendingConversations.entrySet()) {
+            Map<String, Object> stored = conversations.get(entry.getKey());
+            if (stored == null) {
+                stored = new HashMap<>();
+                conversations.put(entry.getKey(), stored);
+            }
+            stored.putAll(entry.getValue());
+        }
+        pendingMessages.clear();
+        pendingConversations.clear();
+    }
+}
@@ -0,0 +1,154 @@
+package com.hgb7725.botchattyapp.firebase;
+
+import com.google.firebase.firestore.FieldValue;
+import com.hgb7725.botchattyapp.models.ChatMessage;
+import com.hgb7725.botchattyapp.models.OutgoingMessage;
+import com.hgb7725.botchattyapp.utilities.Constants;
+import com.hgb7725.botchattyapp.utilities.ConversationKeys;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MessageSenderTest {
+
+    private static final String ALICE = "alice";
+    private static final String BOB = "bob";
+    private static final String CAROL = "carol";
+
+    private InMemoryFirestore firestore;
+    private int nextId;
+
+    @Before
+    public void setUp() {
+        firestore = new InMemoryFirestore();
+        nextId = 0;
+    }
+
+    private OutgoingMessage message(String senderId, String receiverId, String text) {
+        ChatMessage chatMessage = new ChatMessage();
+        chatMessage.setId("m" + nextId);
+        chatMessage.setSenderId(senderId);
+        chatMessage.setReceiverId(receiverId);
+        chatMessage.setMessage(text);
+        chatMessage.setDateObject(new Date(1_700_000_000_000L + nextId * 1_000L));
+        nextId++;
+        OutgoingMessage outgoingMessage = new OutgoingMessage(chatMessage, ConversationKeys.of(senderId, receiverId));
+        outgoingMessage.setSenderName(senderId + " name");
+        outgoingMessage.setReceiverName(receiverId + " name");
+        outgoingMessage.setConversationLabel(text);
+        return outgoingMessage;
+    }
+
+    @Test
+    public void send_isOneRoundTripOfTwoWrites() {
+        firestore.send(Collections.singletonList(message(ALICE, BOB, "Hi")));
+
+        // The old flow was add() to chat, then a second write for the conversation
+        assertEquals(1, firestore.roundTrips);
+        assertEquals(2, firestore.writes);
+        assertEquals(1, firestore.chat.size());
+        assertEquals(1, firestore.conversations.size());
+    }
+
+    @Test
+    public void send_writesTheConversationUnderItsKey() {
+        firestore.send(Collections.singletonList(message(BOB, ALICE, "Hi")));
+
+        Map<String, Object> conversation = firestore.conversations.get("alice_bob");
+        assertNotNull(conversation);
+        assertEquals("alice_bob", conversation.get(Constants.KEY_CONVERSATION_KEY));
+        assertEquals(Arrays.asList(ALICE, BOB), conversation.get(Constants.KEY_PARTICIPANTS));
+        assertEquals(BOB, conversation.get(Constants.KEY_SENDER_ID));
+        assertEquals("Hi", conversation.get(Constants.KEY_LAST_MESSAGE));
+        assertSame(FieldValue.serverTimestamp(), conversation.get(Constants.KEY_UPDATED_AT));
+    }
+
+    @Test
+    public void bothParticipantsShareOneConversation() {
+        // The first replies race the first message: neither side looked the conversation up
+        firestore.send(Collections.singletonList(message(ALICE, BOB, "Hi Bob")));
+        firestore.send(Collections.singletonList(message(BOB, ALICE, "Hi Alice")));
+        firestore.send(Collections.singletonList(message(ALICE, BOB, "How are you?")));
+
+        assertEquals(1, firestore.conversations.size());
+        Map<String, Object> conversation = firestore.conversations.get(ConversationKeys.of(ALICE, BOB));
+        assertEquals("How are you?", conversation.get(Constants.KEY_LAST_MESSAGE));
+        assertEquals(3, firestore.chat.size());
+        assertEquals(3, firestore.roundTrips);
+        assertEquals(6, firestore.writes);
+    }
+
+    @Test
+    public void send_flushOfSeveralMessagesWritesOneSummaryPerConversation() {
+        List<OutgoingMessage> outbox = new ArrayList<>();
+        outbox.add(message(ALICE, BOB, "one"));
+        outbox.add(message(ALICE, CAROL, "to carol"));
+        outbox.add(message(ALICE, BOB, "two"));
+        outbox.add(message(ALICE, BOB, "three"));
+
+        firestore.send(outbox);
+
+        assertEquals(1, firestore.roundTrips);
+        assertEquals(4 + 2, firestore.writes);
+        assertEquals("three", firestore.conversations.get("alice_bob").get(Constants.KEY_LAST_MESSAGE));
+        assertEquals("to carol", firestore.conversations.get("alice_carol").get(Constants.KEY_LAST_MESSAGE));
+    }
+
+    @Test
+    public void send_keepsConversationFieldsWrittenByOthers() {
+        firestore.send(Collections.singletonList(message(ALICE, BOB, "Hi")));
+        firestore.conversations.get("alice_bob").put("migratedFrom", "legacyId");
+
+        firestore.send(Collections.singletonList(message(BOB, ALICE, "Hello")));
+
+        Map<String, Object> conversation = firestore.conversations.get("alice_bob");
+        assertEquals("legacyId", conversation.get("migratedFrom"));
+        assertEquals("Hello", conversation.get(Constants.KEY_LAST_MESSAGE));
+    }
+
+    @Test
+    public void messageDocument_carriesTheKeyAndOnlyTheFieldsItNeeds() {
+        OutgoingMessage text = message(ALICE, BOB, "Hi");
+        OutgoingMessage image = message(ALICE, BOB, "https://res.cloudinary.com/demo/photo.jpg");
+        image.getChatMessage().setType("image");
+        image.getChatMessage().setImageWidth(2048);
+        image.getChatMessage().setImageHeight(1536);
+        image.getChatMessage().setBlurHash("LEHV6nWB2yk8pyo0adR*.7kCMdnj");
+
+        firestore.send(Arrays.asList(text, image));
+
+        Map<String, Object> textDocument = firestore.chat.get(text.getChatMessage().getId());
+        assertEquals("alice_bob", textDocument.get(Constants.KEY_CONVERSATION_KEY));
+        assertEquals(text.getChatMessage().getDateObject(), textDocument.get(Constants.KEY_TIMESTAMP));
+        assertSame(FieldValue.serverTimestamp(), textDocument.get(Constants.KEY_UPDATED_AT));
+        assertFalse(textDocument.containsKey("type"));
+        assertFalse(textDocument.containsKey(Constants.KEY_IMAGE_WIDTH));
+        assertFalse(textDocument.containsKey(Constants.KEY_BLUR_HASH));
+
+        Map<String, Object> imageDocument = firestore.chat.get(image.getChatMessage().getId());
+        assertEquals("image", imageDocument.get("type"));
+        assertEquals(2048, imageDocument.get(Constants.KEY_IMAGE_WIDTH));
+        assertEquals(1536, imageDocument.get(Constants.KEY_IMAGE_HEIGHT));
+        assertEquals("LEHV6nWB2yk8pyo0adR*.7kCMdnj", imageDocument.get(Constants.KEY_BLUR_HASH));
+    }
+
+    @Test
+    public void retriedSendOverwritesTheSameMessageDocument() {
+        OutgoingMessage outgoingMessage = message(ALICE, BOB, "Hi");
+
+        firestore.send(Collections.singletonList(outgoingMessage));
+        firestore.send(Collections.singletonList(outgoingMessage));
+
+        assertEquals(1, firestore.chat.size());
+        assertEquals(1, firestore.conversations.size());
+    }
+}
@@ -0,0 +1,288 @@
+package com.hgb7725.botchattyapp.firebase;
+
+import com.hgb7725.botchattyapp.database.UserDao;
+import com.hgb7725.botchattyapp.models.User;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class UserSyncTest {
+
+    private static final long SERVER_NOW = 1_700_000_000_000L;
+    private static final long MINUTE_MS = 60 * 1000;
+
+    // A users document as the source sees it; updatedAt 0 for documents written before it existed
+    private static class UserDocument {
+        final String id;
+        final String name;
+        final long updatedAt;
+        final boolean deleted;
+
+        UserDocument(String id, String name, long updatedAt, boolean deleted) {
+            this.id = id;
+            this.name = name;
+            this.updatedAt = updatedAt;
+            this.deleted = deleted;
+        }
+    }
+
+    /*
+     * The users collection in memory, paged like FirestoreUserSource: by id for the full pass,
+     * by updatedAt for deltas.
+     */
+    private static class InMemoryUserSource implements UserSync.Source {
+        final Map<String, UserDocument> documents = new HashMap<>();
+        final List<Long> requestedSince = new ArrayList<>();
+        // Fails the request with this index, -1 for none
+        int failRequest = -1;
+
+        void put(String id, String name, long updatedAt) {
+            documents.put(id, new UserDocument(id, name, updatedAt, false));
+        }
+
+        void delete(String id, long updatedAt) {
+            documents.put(id, new UserDocument(id, null, updatedAt, true));
+        }
+
+        @Override
+        public void fetchChanges(long since, Object from, int limit, UserSync.PageCallback callback) {
+            int request = requestedSince.size();
+            requestedSince.add(since);
+            if (request == failRequest) {
+                callback.onError(new Exception("UNAVAILABLE"));
+                return;
+            }
+            List<UserDocument> matching = new ArrayList<>();
+            for (UserDocument document : documents.values()) {
+                if (since == 0 || document.updatedAt > since) {
+                    matching.add(document);
+                }
+            }
+            matching.sort(since == 0
+                    ? Comparator.comparing((UserDocument document) -> document.id)
+                    : Comparator.comparingLong((UserDocument document) -> document.updatedAt)
+                    .thenComparing(document -> document.id));
+            int start = from == null ? 0 : matching.indexOf(from) + 1;
+            List<UserDocument> page = matching.subList(start, Math.min(matching.size(), start + limit));
+
+            List<User> users = new ArrayList<>();
+            List<String> deletedIds = new ArrayList<>();
+            long newestUpdatedAt = 0;
+            for (UserDocument document : page) {
+                newestUpdatedAt = Math.max(newestUpdatedAt, document.updatedAt);
+                if (document.deleted) {
+                    deletedIds.add(document.id);
+                } else {
+                    users.add(new User(document.id, document.name, null, document.id + "@example.com", null));
+                }
+            }
+            Object next = page.size() == limit ? page.get(page.size() - 1) : null;
+            callback.onPage(new UserSync.Page(users, deletedIds, newestUpdatedAt, next));
+        }
+    }
+
+    // Same all-or-nothing and forward-only watermark rules as ChatDatabase
+    private static class InMemoryUserDao implements UserDao {
+        final Map<String, User> users = new HashMap<>();
+        final List<Long> appliedWatermarks = new ArrayList<>();
+        long watermark;
+
+        @Override
+        public List<User> getUsers() {
+            return new ArrayList<>(users.values());
+        }
+
+        @Override
+        public void applyUserChanges(List<User> changedUsers, List<String> deletedIds, long watermark) {
+            for (User user : changedUsers) {
+                users.put(user.getId(), user);
+            }
+            for (String id : deletedIds) {
+                users.remove(id);
+            }
+            appliedWatermarks.add(watermark);
+            this.watermark = Math.max(this.watermark, watermark);
+        }
+
+        @Override
+        public long getUserWatermark() {
+            return watermark;
+        }
+    }
+
+    private static class RecordingListener implements UserSync.Listener {
+        Integer changedCount;
+        Exception error;
+
+        @Override
+        public void onUsersSynced(int changedCount) {
+            this.changedCount = changedCount;
+        }
+
+        @Override
+        public void onUserSyncFailed(Exception e) {
+            error = e;
+        }
+    }
+
+    private InMemoryUserSource source;
+    private InMemoryUserDao userDao;
+    private UserSync userSync;
+
+    @Before
+    public void setUp() {
+        source = new InMemoryUserSource();
+        userDao = new InMemoryUserDao();
+        userSync = new UserSync(source, userDao, Runnable::run, Runnable::run);
+    }
+
+    private RecordingListener sync() {
+        RecordingListener listener = new RecordingListener();
+        userSync.sync(listener);
+        return listener;
+    }
+
+    private static String id(int i) {
+        return String.format("user%05d", i);
+    }
+
+    @Test
+    public void fullSync_pagesThroughEveryUser() {
+        int count = 2 * UserSync.PAGE_SIZE + 1;
+        for (int i = 0; i < count; i++) {
+            source.put(id(i), "User " + i, SERVER_NOW - i * MINUTE_MS);
+        }
+
+        RecordingListener listener = sync();
+
+        assertEquals(Integer.valueOf(count), listener.changedCount);
+        assertEquals(count, userDao.users.size());
+        assertEquals(3, source.requestedSince.size());
+        for (long since : source.requestedSince) {
+            assertEquals(0, since);
+        }
+    }
+
+    @Test
+    public void fullSync_watermarkIsTheNewestUpdatedAtSetOnTheLastPage() {
+        // The newest document is on the first page, ids do not follow updatedAt
+        source.put(id(0), "Newest", SERVER_NOW);
+        for (int i = 1; i < UserSync.PAGE_SIZE + 10; i++) {
+            source.put(id(i), "User " + i, SERVER_NOW - i * MINUTE_MS);
+        }
+
+        sync();
+
+        assertEquals(2, userDao.appliedWatermarks.size());
+        assertEquals(0, (long) userDao.appliedWatermarks.get(0));
+        assertEquals(SERVER_NOW, (long) userDao.appliedWatermarks.get(1));
+        assertEquals(SERVER_NOW, userDao.getUserWatermark());
+    }
+
+    @Test
+    public void fullSync_watermarkIgnoresTheDeviceClock() {
+        // Written long before the device's "now"; a device clock ahead of the server must not matter
+        long serverTime = SERVER_NOW - 365L * 24 * 60 * MINUTE_MS;
+        source.put(id(1), "Alice", serverTime);
+        source.put(id(2), "Bob", serverTime - MINUTE_MS);
+        sync();
+        assertEquals(serverTime, userDao.getUserWatermark());
+
+        // Changed a minute later by server time, which a device-clock watermark would have skipped
+        source.put(id(3), "Carol", serverTime + MINUTE_MS);
+        sync();
+
+        assertTrue(userDao.users.containsKey(id(3)));
+        assertEquals(serverTime - UserSync.WATERMARK_OVERLAP_MS, (long) source.requestedSince.get(1));
+        assertEquals(serverTime + MINUTE_MS, userDao.getUserWatermark());
+    }
+
+    @Test
+    public void fullSync_withoutAnyUpdatedAtStaysFull() {
+        source.put(id(1), "Legacy", 0);
+
+        sync();
+        assertEquals(0, userDao.getUserWatermark());
+        sync();
+
+        assertEquals(0, (long) source.requestedSince.get(1));
+        assertEquals(1, userDao.users.size());
+    }
+
+    @Test
+    public void fullSync_skipsTombstones() {
+        source.put(id(1), "Alice", SERVER_NOW);
+        source.delete(id(2), SERVER_NOW + 1);
+
+        RecordingListener listener = sync();
+
+        assertEquals(1, userDao.users.size());
+        assertFalse(userDao.users.containsKey(id(2)));
+        assertEquals(SERVER_NOW + 1, userDao.getUserWatermark());
+        assertEquals(Integer.valueOf(2), listener.changedCount);
+    }
+
+    @Test
+    public void deltaSync_appliesChangesAndTombstones() {
+        source.put(id(1), "Alice", SERVER_NOW);
+        source.put(id(2), "Bob", SERVER_NOW);
+        sync();
+
+        source.put(id(1), "Alice Smith", SERVER_NOW + MINUTE_MS);
+        source.delete(id(2), SERVER_NOW + 2 * MINUTE_MS);
+        RecordingListener listener = sync();
+
+        assertEquals("Alice Smith", userDao.users.get(id(1)).getName());
+        assertFalse(userDao.users.containsKey(id(2)));
+        assertEquals(SERVER_NOW + 2 * MINUTE_MS, userDao.getUserWatermark());
+        assertEquals(Integer.valueOf(2), listener.changedCount);
+    }
+
+    @Test
+    public void deltaSync_watermarkAdvancesPageByPage() {
+        source.put(id(0), "First", SERVER_NOW);
+        sync();
+        for (int i = 1; i <= UserSync.PAGE_SIZE + 5; i++) {
+            source.put(id(i), "User " + i, SERVER_NOW + i * 1_000L);
+        }
+        source.failRequest = 2;
+
+        RecordingListener failed = sync();
+
+        assertNotNull(failed.error);
+        // The first delta page is stored with its watermark, the next sync starts from there
+        long afterFirstPage = userDao.getUserWatermark();
+        assertTrue(afterFirstPage > SERVER_NOW);
+        assertTrue(afterFirstPage < SERVER_NOW + (UserSync.PAGE_SIZE + 5) * 1_000L);
+
+        source.failRequest = -1;
+        RecordingListener listener = sync();
+
+        assertNull(listener.error);
+        assertEquals(afterFirstPage - UserSync.WATERMARK_OVERLAP_MS, (long) source.requestedSince.get(3));
+        assertEquals(UserSync.PAGE_SIZE + 6, userDao.users.size());
+        assertEquals(SERVER_NOW + (UserSync.PAGE_SIZE + 5) * 1_000L, userDao.getUserWatermark());
+    }
+
+    @Test
+    public void interruptedFullSyncSetsNoWatermark() {
+        for (int i = 0; i < UserSync.PAGE_SIZE + 5; i++) {
+            source.put(id(i), "User " + i, SERVER_NOW + i);
+        }
+        source.failRequest = 1;
+
+        RecordingListener listener = sync();
+
+        assertNotNull(listener.error);
+        assertEquals(UserSync.PAGE_SIZE, userDao.users.size());
+        assertEquals(0, userDao.getUserWatermark());
+    }
+}
@@ -0,0 +1,167 @@
+package com.hgb7725.botchattyapp.network;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.ByteString;
+
+import static com.hgb7725.botchattyapp.network.TestContent.content;
+import static com.hgb7725.botchattyapp.network.UploadFixtures.*;
+import static org.junit.Assert.*;
+
+/*
+ * Single request uploads against a local stand-in for the Cloudinary upload endpoint.
+ */
+public class AttachmentUploaderTest {
+
+    private MockWebServer server;
+    private AttachmentUploader uploader;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        uploader = new AttachmentUploader(null, null, HttpClientProvider.getInstance().getClient(), Runnable::run);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    private Map<String, String> params() {
+        Map<String, String> params = new HashMap<>();
+        params.put("upload_preset", "chat_attachments");
+        params.put("public_id", "photo");
+        return params;
+    }
+
+    @Test
+    public void upload_postsTheFileAsMultipartWithTheFormFields() throws Exception {
+        server.enqueue(uploaded());
+        byte[] content = content(300 * 1024);
+        RecordingCallback callback = new RecordingCallback();
+
+        uploader.upload(fileInfo("photo.jpg", content.length, new RecordingSource(content)),
+                server.url("/v1_1/demo/image/upload").toString(), params(), callback);
+        callback.await();
+
+        assertEquals(SECURE_URL, callback.secureUrl);
+        RecordedRequest request = server.takeRequest();
+        assertEquals("POST", request.getMethod());
+        assertTrue(request.getHeader("Content-Type").startsWith("multipart/form-data; boundary="));
+        // The binary content is sent as is, not base64 in a JSON data URI
+        assertTrue(request.getBodySize() < content.length + 1024);
+        assertTrue(request.getBody().indexOf(ByteString.of(content)) > 0);
+        String head = request.getBody().readUtf8(request.getBody().indexOf(ByteString.of(content)));
+        assertTrue(head.contains("name=\"upload_preset\"\r\nContent-Length: 16\r\n\r\nchat_attachments"));
+        assertTrue(head.contains("name=\"file\"; filename=\"photo.jpg\""));
+        assertTrue(head.contains("Content-Type: image/jpeg"));
+    }
+
+    @Test
+    public void upload_readsTheContentThroughAFixedBuffer() throws Exception {
+        server.enqueue(uploaded());
+        byte[] content = content(4 * 1024 * 1024);
+        RecordingSource source = new RecordingSource(content);
+        RecordingCallback callback = new RecordingCallback();
+
+        uploader.upload(fileInfo("video.mp4", content.length, source),
+                server.url("/upload").toString(), params(), callback);
+        callback.await();
+
+        assertEquals(SECURE_URL, callback.secureUrl);
+        assertEquals(1, source.opens.get());
+        assertTrue("read " + source.largestRead + " bytes at once", source.largestRead <= 8 * 1024);
+        assertTrue(server.takeRequest().getBody().indexOf(ByteString.of(content)) > 0);
+    }
+
+    @Test
+    public void upload_reportsProgressOncePerPercent() throws Exception {
+        server.enqueue(uploaded());
+        byte[] content = content(2 * 1024 * 1024);
+        RecordingCallback callback = new RecordingCallback();
+
+        uploader.upload(fileInfo("photo.jpg", content.length, new RecordingSource(content)),
+                server.url("/upload").toString(), params(), callback);
+        callback.await();
+
+        List<Long> progress = new ArrayList<>(callback.progress);
+        assertEquals(content.length, callback.totalBytes);
+        assertEquals(content.length, (long) progress.get(progress.size() - 1));
+        assertTrue(progress.size() + " updates", progress.size() <= 102);
+        for (int i = 1; i < progress.size(); i++) {
+            assertTrue(progress.get(i) > progress.get(i - 1));
+        }
+    }
+
+    @Test
+    public void upload_streamsContentOfUnknownSize() throws Exception {
+        server.enqueue(uploaded());
+        byte[] content = content(1024 * 1024 + 17);
+        RecordingCallback callback = new RecordingCallback();
+
+        uploader.upload(fileInfo("document.pdf", -1, new RecordingSource(content)),
+                server.url("/upload").toString(), params(), callback);
+        callback.await();
+
+        assertEquals(SECURE_URL, callback.secureUrl);
+        assertEquals(-1, callback.totalBytes);
+        assertEquals(content.length, (long) callback.progress.get(callback.progress.size() - 1));
+        RecordedRequest request = server.takeRequest();
+        assertEquals("chunked", request.getHeader("Transfer-Encoding"));
+        assertTrue(request.getBody().indexOf(ByteString.of(content)) > 0);
+    }
+
+    @Test
+    public void upload_errorResponseIsReportedWithItsBody() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(400)
+                .setBody("{\"error\":{\"message\":\"Upload preset not found\"}}"));
+        RecordingCallback callback = new RecordingCallback();
+
+        uploader.upload(fileInfo("photo.jpg", 10, new RecordingSource(content(10))),
+                server.url("/upload").toString(), params(), callback);
+        callback.await();
+
+        assertNull(callback.secureUrl);
+        assertEquals("{\"error\":{\"message\":\"Upload preset not found\"}}", callback.errorMessage);
+    }
+
+    @Test
+    public void upload_unreadableContentFails() throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+
+        uploader.upload(fileInfo("gone.jpg", 10, () -> {
+            throw new IOException("Permission revoked");
+        }), server.url("/upload").toString(), params(), callback);
+        callback.await();
+
+        assertEquals("Permission revoked", callback.errorMessage);
+    }
+
+    @Test
+    public void cancel_deliversNoResult() throws Exception {
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+        RecordingCallback callback = new RecordingCallback();
+
+        AttachmentUploader.Upload upload = uploader.upload(fileInfo("photo.jpg", 10, new RecordingSource(content(10))),
+                server.url("/upload").toString(), params(), callback);
+        assertNotNull(server.takeRequest(5, TimeUnit.SECONDS));
+        upload.cancel();
+
+        assertFalse(callback.done.await(500, TimeUnit.MILLISECONDS));
+        assertTrue(upload.isCancelled());
+    }
+}
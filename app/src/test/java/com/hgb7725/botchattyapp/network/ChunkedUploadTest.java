@@ -0,0 +1,213 @@
+package com.hgb7725.botchattyapp.network;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.QueueDispatcher;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.ByteString;
+
+import static org.junit.Assert.*;
+
+/*
+ * Chunked uploads against a local stand-in for Cloudinary's chunked upload endpoint.
+ * Retries do not wait here: SystemClock.sleep does nothing in JVM tests.
+ */
+public class ChunkedUploadTest {
+
+    private static final int MB = 1024 * 1024;
+    // Chunks of 6 MB, 6 MB and 1 MB
+    private static final byte[] CONTENT = TestContent.content(13 * MB);
+
+    private MockWebServer server;
+    private InMemoryPreferences uploadState;
+    private AttachmentUploader uploader;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        uploadState = new InMemoryPreferences();
+        uploader = new AttachmentUploader(null, uploadState, HttpClientProvider.getInstance().getClient(), Runnable::run);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    private static MockResponse chunkAccepted() {
+        return new MockResponse().setBody("{\"done\":false}");
+    }
+
+    private UploadFixtures.RecordingCallback upload() throws InterruptedException {
+        UploadFixtures.RecordingCallback callback = new UploadFixtures.RecordingCallback();
+        Map<String, String> params = Collections.singletonMap("upload_preset", "chat_attachments");
+        uploader.upload(UploadFixtures.fileInfo("video.mp4", CONTENT.length,
+                        new UploadFixtures.RecordingSource(CONTENT)),
+                server.url("/v1_1/demo/video/upload").toString(), params, callback);
+        callback.await();
+        return callback;
+    }
+
+    private String range(RecordedRequest request) {
+        return request.getHeader("Content-Range");
+    }
+
+    // The one stored resume state, or null
+    private JSONObject savedState() throws Exception {
+        assertTrue(uploadState.values.size() <= 1);
+        for (Object value : uploadState.values.values()) {
+            return new JSONObject((String) value);
+        }
+        return null;
+    }
+
+    @Test
+    public void upload_sendsConsecutiveRangesUnderOneUploadId() throws Exception {
+        server.enqueue(chunkAccepted());
+        server.enqueue(chunkAccepted());
+        server.enqueue(UploadFixtures.uploaded());
+
+        assertNotNull(upload().secureUrl);
+
+        RecordedRequest first = server.takeRequest();
+        RecordedRequest second = server.takeRequest();
+        RecordedRequest last = server.takeRequest();
+        assertEquals("bytes 0-6291455/13631488", range(first));
+        assertEquals("bytes 6291456-12582911/13631488", range(second));
+        assertEquals("bytes 12582912-13631487/13631488", range(last));
+        String uploadId = first.getHeader("X-Unique-Upload-Id");
+        assertEquals(uploadId, second.getHeader("X-Unique-Upload-Id"));
+        assertEquals(uploadId, last.getHeader("X-Unique-Upload-Id"));
+        assertTrue(second.getBody().indexOf(ByteString.of(Arrays.copyOfRange(CONTENT, 6 * MB, 12 * MB))) > 0);
+        assertNull(savedState());
+    }
+
+    @Test
+    public void serverErrorSendsTheSameChunkAgain() throws Exception {
+        server.enqueue(chunkAccepted());
+        server.enqueue(new MockResponse().setResponseCode(503).setBody("Service Unavailable"));
+        server.enqueue(new MockResponse().setResponseCode(502));
+        server.enqueue(chunkAccepted());
+        server.enqueue(UploadFixtures.uploaded());
+
+        assertNotNull(upload().secureUrl);
+
+        assertEquals(5, server.getRequestCount());
+        RecordedRequest first = server.takeRequest();
+        String uploadId = first.getHeader("X-Unique-Upload-Id");
+        for (int i = 0; i < 3; i++) {
+            RecordedRequest retry = server.takeRequest();
+            assertEquals("bytes 6291456-12582911/13631488", range(retry));
+            assertEquals(uploadId, retry.getHeader("X-Unique-Upload-Id"));
+        }
+        assertEquals(12 * MB, uploader.getLastStats().bytesRetransmitted);
+    }
+
+    @Test
+    public void rateLimitIsRetriedWithTheSameUploadId() throws Exception {
+        server.enqueue(chunkAccepted());
+        server.enqueue(new MockResponse().setResponseCode(429).setHeader("Retry-After", "2"));
+        server.enqueue(chunkAccepted());
+        server.enqueue(UploadFixtures.uploaded());
+
+        assertNotNull(upload().secureUrl);
+
+        String uploadId = server.takeRequest().getHeader("X-Unique-Upload-Id");
+        RecordedRequest limited = server.takeRequest();
+        RecordedRequest retry = server.takeRequest();
+        assertEquals(range(limited), range(retry));
+        assertEquals(uploadId, retry.getHeader("X-Unique-Upload-Id"));
+    }
+
+    @Test
+    public void persistentServerErrorKeepsTheStateAndTheNextUploadResumes() throws Exception {
+        server.enqueue(chunkAccepted());
+        for (int i = 0; i < 4; i++) {
+            server.enqueue(new MockResponse().setResponseCode(500).setBody("Internal Server Error"));
+        }
+
+        UploadFixtures.RecordingCallback failed = upload();
+
+        assertEquals("Internal Server Error", failed.errorMessage);
+        JSONObject state = savedState();
+        assertNotNull(state);
+        assertEquals(6 * MB, state.getLong("offset"));
+        String uploadId = server.takeRequest().getHeader("X-Unique-Upload-Id");
+        assertEquals(uploadId, state.getString("uploadId"));
+
+        server.enqueue(chunkAccepted());
+        server.enqueue(UploadFixtures.uploaded());
+        assertNotNull(upload().secureUrl);
+
+        for (int i = 0; i < 4; i++) {
+            server.takeRequest();
+        }
+        RecordedRequest resumed = server.takeRequest();
+        assertEquals("bytes 6291456-12582911/13631488", range(resumed));
+        assertEquals(uploadId, resumed.getHeader("X-Unique-Upload-Id"));
+        assertEquals(6 * MB, uploader.getLastStats().resumedFromOffset);
+        assertNull(savedState());
+    }
+
+    @Test
+    public void interruptedConnectionKeepsTheStateAndTheNextUploadResumes() throws Exception {
+        server.enqueue(chunkAccepted());
+        server.enqueue(chunkAccepted());
+        // Every later request loses its connection, OkHttp's own retries included
+        ((QueueDispatcher) server.getDispatcher()).setFailFast(
+                new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST));
+
+        assertNotNull(upload().errorMessage);
+        assertEquals(12 * MB, savedState().getLong("offset"));
+
+        server.enqueue(UploadFixtures.uploaded());
+        assertNotNull(upload().secureUrl);
+
+        RecordedRequest last = null;
+        for (int i = server.getRequestCount(); i > 0; i--) {
+            last = server.takeRequest();
+        }
+        assertEquals("bytes 12582912-13631487/13631488", range(last));
+        assertEquals(12 * MB, uploader.getLastStats().resumedFromOffset);
+        assertNull(savedState());
+    }
+
+    @Test
+    public void definitiveRejectionClearsTheState() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(400).setBody("Invalid upload preset"));
+
+        assertEquals("Invalid upload preset", upload().errorMessage);
+
+        assertEquals(1, server.getRequestCount());
+        assertNull(savedState());
+    }
+
+    @Test
+    public void rejectedUploadIdStartsOverOnce() throws Exception {
+        server.enqueue(chunkAccepted());
+        server.enqueue(new MockResponse().setResponseCode(404).setBody("Upload not found"));
+        server.enqueue(chunkAccepted());
+        server.enqueue(new MockResponse().setResponseCode(404).setBody("Upload not found"));
+
+        assertEquals("Upload not found", upload().errorMessage);
+
+        String firstId = server.takeRequest().getHeader("X-Unique-Upload-Id");
+        server.takeRequest();
+        RecordedRequest restarted = server.takeRequest();
+        assertEquals("bytes 0-6291455/13631488", range(restarted));
+        assertNotEquals(firstId, restarted.getHeader("X-Unique-Upload-Id"));
+        assertNull(savedState());
+    }
+}
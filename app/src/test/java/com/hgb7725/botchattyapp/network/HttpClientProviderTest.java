@@ -0,0 +1,121 @@
+package com.hgb7725.botchattyapp.network;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.*;
+
+public class HttpClientProviderTest {
+
+    private MockWebServer server;
+    private final OkHttpClient client = HttpClientProvider.getInstance().getClient();
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    private void get(OkHttpClient client, String path) throws IOException {
+        try (Response response = client.newCall(new Request.Builder().url(server.url(path)).build()).execute()) {
+            assertTrue(response.isSuccessful());
+            response.body().string();
+        }
+    }
+
+    @Test
+    public void getInstance_isOneClient() {
+        assertSame(HttpClientProvider.getInstance(), HttpClientProvider.getInstance());
+        assertSame(client, HttpClientProvider.getInstance().getClient());
+    }
+
+    @Test
+    public void sequentialCallsReuseOneConnection() throws Exception {
+        long openedBefore = HttpClientProvider.getInstance().getStats().connectionsOpened;
+        for (int i = 0; i < 5; i++) {
+            server.enqueue(new MockResponse().setBody("ok"));
+            get(client, "/call" + i);
+        }
+
+        for (int i = 0; i < 5; i++) {
+            // The sequence number counts requests on the same connection
+            assertEquals(i, server.takeRequest().getSequenceNumber());
+        }
+        assertEquals(1, HttpClientProvider.getInstance().getStats().connectionsOpened - openedBefore);
+    }
+
+    @Test
+    public void derivedClientSharesThePool() throws Exception {
+        // What AttachmentUploader and AttachmentCache do for their longer timeouts
+        OkHttpClient uploads = client.newBuilder().writeTimeout(60, TimeUnit.SECONDS).build();
+        server.enqueue(new MockResponse().setBody("ok"));
+        server.enqueue(new MockResponse().setBody("ok"));
+
+        get(client, "/first");
+        get(uploads, "/second");
+
+        assertSame(client.connectionPool(), uploads.connectionPool());
+        assertSame(client.dispatcher(), uploads.dispatcher());
+        assertEquals(0, server.takeRequest().getSequenceNumber());
+        assertEquals(1, server.takeRequest().getSequenceNumber());
+    }
+
+    @Test
+    public void concurrentCallsAreBoundedPerHost() throws Exception {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger largestInFlight = new AtomicInteger();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                largestInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                Thread.sleep(100);
+                inFlight.decrementAndGet();
+                return new MockResponse().setBody("ok");
+            }
+        });
+        int calls = 20;
+        CountDownLatch done = new CountDownLatch(calls);
+        for (int i = 0; i < calls; i++) {
+            client.newCall(new Request.Builder().url(server.url("/parallel" + i)).build()).enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    done.countDown();
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) {
+                    response.close();
+                    done.countDown();
+                }
+            });
+        }
+
+        assertTrue(done.await(20, TimeUnit.SECONDS));
+        assertEquals(calls, server.getRequestCount());
+        assertTrue("largest in flight " + largestInFlight.get(), largestInFlight.get() <= 4);
+        HttpClientProvider.Stats stats = HttpClientProvider.getInstance().getStats();
+        assertTrue(stats.toString(), stats.largestNetworkThreads <= 8);
+        assertTrue(stats.toString(), stats.idleConnections <= 5);
+    }
+}
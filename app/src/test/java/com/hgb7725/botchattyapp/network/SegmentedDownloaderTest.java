@@ -0,0 +1,242 @@
+package com.hgb7725.botchattyapp.network;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+/*
+ * Segmented downloads against a local server that answers Range and If-Range like a CDN does.
+ */
+public class SegmentedDownloaderTest {
+
+    private static final int MB = 1024 * 1024;
+    // Four segments of 2.25 MB
+    private static final byte[] CONTENT = TestContent.content(9 * MB);
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MockWebServer server;
+    private RangeDispatcher dispatcher;
+    private final OkHttpClient client = HttpClientProvider.getInstance().getClient();
+    private ExecutorService segmentExecutor;
+    private File target;
+
+    /*
+     * Serves one file by byte range. Segment requests can be held until a number of them
+     * are open at the same time, which only a downloader fetching in parallel gets through.
+     */
+    private static class RangeDispatcher extends Dispatcher {
+        volatile byte[] content;
+        volatile String etag;
+        volatile boolean supportsRanges = true;
+        final List<String> ranges = Collections.synchronizedList(new ArrayList<>());
+        volatile CountDownLatch concurrentSegments;
+        volatile boolean segmentsOverlapped;
+
+        RangeDispatcher(byte[] content) {
+            serve(content);
+        }
+
+        void serve(byte[] content) {
+            this.content = content;
+            etag = "\"" + md5(content) + "\"";
+        }
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+            String range = request.getHeader("Range");
+            String ifRange = request.getHeader("If-Range");
+            Matcher matcher = RANGE.matcher(range != null ? range : "");
+            if (!supportsRanges || !matcher.matches() || (ifRange != null && !ifRange.equals(etag))) {
+                return new MockResponse().setHeader("ETag", etag).setBody(new Buffer().write(content));
+            }
+            ranges.add(range);
+            int start = Integer.parseInt(matcher.group(1));
+            int end = Math.min(Integer.parseInt(matcher.group(2)), content.length - 1);
+            CountDownLatch latch = concurrentSegments;
+            if (latch != null && !range.equals("bytes=0-0")) {
+                latch.countDown();
+                segmentsOverlapped = latch.await(5, TimeUnit.SECONDS);
+            }
+            return new MockResponse()
+                    .setResponseCode(206)
+                    .setHeader("ETag", etag)
+                    .setHeader("Content-Range", "bytes " + start + "-" + end + "/" + content.length)
+                    .setBody(new Buffer().write(content, start, end - start + 1));
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        dispatcher = new RangeDispatcher(CONTENT);
+        server = new MockWebServer();
+        server.setDispatcher(dispatcher);
+        server.start();
+        segmentExecutor = Executors.newFixedThreadPool(4);
+        target = new File(folder.getRoot(), "video.mp4");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        segmentExecutor.shutdownNow();
+        server.shutdown();
+    }
+
+    private String url() {
+        return server.url("/demo/video.mp4").toString();
+    }
+
+    private SegmentedDownloader.Result download() throws IOException {
+        return new SegmentedDownloader(client, segmentExecutor).download(url(), target, null);
+    }
+
+    // Starts a download and stops it like a killed app once this many bytes are in
+    private void interruptAfter(long bytes) throws Exception {
+        Thread caller = Thread.currentThread();
+        AtomicBoolean stopped = new AtomicBoolean();
+        SegmentedDownloader downloader = new SegmentedDownloader(client, segmentExecutor);
+        try {
+            downloader.download(url(), target, (bytesDone, totalBytes) -> {
+                if (bytesDone >= bytes && stopped.compareAndSet(false, true)) {
+                    caller.interrupt();
+                }
+            });
+            fail("The download was not interrupted");
+        } catch (InterruptedIOException expected) {
+            assertTrue(Thread.interrupted());
+        }
+        // Let the segments notice, the next download runs with fresh threads
+        segmentExecutor.shutdown();
+        assertTrue(segmentExecutor.awaitTermination(5, TimeUnit.SECONDS));
+        segmentExecutor = Executors.newFixedThreadPool(4);
+        dispatcher.ranges.clear();
+    }
+
+    private static String md5(byte[] content) {
+        return hash("MD5", content);
+    }
+
+    private static String hash(String algorithm, byte[] content) {
+        try {
+            return SegmentedDownloader.toHex(MessageDigest.getInstance(algorithm).digest(content));
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    public void download_fetchesTheSegmentsInParallel() throws Exception {
+        dispatcher.concurrentSegments = new CountDownLatch(4);
+
+        SegmentedDownloader.Result result = download();
+
+        assertTrue(dispatcher.segmentsOverlapped);
+        assertEquals(4, result.segments);
+        assertEquals(5, server.getRequestCount());
+        List<String> ranges = new ArrayList<>(dispatcher.ranges);
+        Collections.sort(ranges);
+        assertEquals("bytes=0-0", ranges.get(0));
+        assertTrue(ranges.contains("bytes=0-2359295"));
+        assertTrue(ranges.contains("bytes=2359296-4718591"));
+        assertTrue(ranges.contains("bytes=4718592-7077887"));
+        assertTrue(ranges.contains("bytes=7077888-9437183"));
+        assertArrayEquals(CONTENT, Files.readAllBytes(target.toPath()));
+        assertEquals(hash("SHA-256", CONTENT), result.sha256);
+        assertEquals(CONTENT.length, result.bytesTransferred);
+        assertEquals(0, result.resumedBytes);
+        assertFalse(SegmentedDownloader.stateFile(target).exists());
+    }
+
+    @Test
+    public void download_sendsTheValidatorAsIfRange() throws Exception {
+        download();
+
+        for (int i = server.getRequestCount(); i > 0; i--) {
+            RecordedRequest request = server.takeRequest();
+            if (!"bytes=0-0".equals(request.getHeader("Range"))) {
+                assertEquals(dispatcher.etag, request.getHeader("If-Range"));
+            }
+        }
+    }
+
+    @Test
+    public void interruptedDownloadResumesWhereEachSegmentStopped() throws Exception {
+        interruptAfter(3 * MB);
+        assertTrue(SegmentedDownloader.stateFile(target).exists());
+        assertEquals(CONTENT.length, target.length());
+
+        SegmentedDownloader.Result result = download();
+
+        assertArrayEquals(CONTENT, Files.readAllBytes(target.toPath()));
+        assertEquals(hash("SHA-256", CONTENT), result.sha256);
+        assertTrue(result.resumedBytes >= 3 * MB);
+        assertTrue(result.resumedBytes < CONTENT.length);
+        assertEquals(CONTENT.length - result.resumedBytes, result.bytesTransferred);
+        // Segments that had started continue from their own offset, not from their start
+        boolean continued = false;
+        for (String range : dispatcher.ranges) {
+            Matcher matcher = RANGE.matcher(range);
+            assertTrue(matcher.matches());
+            long start = Long.parseLong(matcher.group(1));
+            continued |= start % 2359296 != 0;
+        }
+        assertTrue(continued);
+        assertFalse(SegmentedDownloader.stateFile(target).exists());
+    }
+
+    @Test
+    public void fileChangedOnTheServerIsDownloadedAgain() throws Exception {
+        interruptAfter(3 * MB);
+        // Same size, so only the validator tells the versions apart
+        byte[] changed = CONTENT.clone();
+        changed[5 * MB] ^= 1;
+        dispatcher.serve(changed);
+
+        SegmentedDownloader.Result result = download();
+
+        assertArrayEquals(changed, Files.readAllBytes(target.toPath()));
+        assertEquals(0, result.resumedBytes);
+        assertEquals(hash("SHA-256", changed), result.sha256);
+    }
+
+    @Test
+    public void serverWithoutRangesGetsOnePlainStream() throws Exception {
+        dispatcher.supportsRanges = false;
+
+        SegmentedDownloader.Result result = download();
+
+        assertEquals(1, server.getRequestCount());
+        assertEquals(1, result.segments);
+        assertArrayEquals(CONTENT, Files.readAllBytes(target.toPath()));
+        assertEquals(hash("SHA-256", CONTENT), result.sha256);
+    }
+}
@@ -0,0 +1,18 @@
+package com.hgb7725.botchattyapp.network;
+
+import java.util.Random;
+
+/*
+ * Bytes for the upload and download tests. The same size always gives the same content.
+ */
+final class TestContent {
+
+    private TestContent() {
+    }
+
+    static byte[] content(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+}
@@ -0,0 +1,95 @@
+package com.hgb7725.botchattyapp.network;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.MediaType;
+import okhttp3.mockwebserver.MockResponse;
+
+import static org.junit.Assert.assertTrue;
+
+/*
+ * What the single request and the chunked upload tests share: a content source and a callback
+ * that record what they saw, and the answer the stand-in Cloudinary endpoint gives.
+ */
+final class UploadFixtures {
+
+    static final String SECURE_URL = "https://res.cloudinary.com/demo/image/upload/photo.jpg";
+
+    private UploadFixtures() {
+    }
+
+    // Records what a content stream was asked for
+    static class RecordingSource implements AttachmentUploader.ContentSource {
+        final byte[] content;
+        final AtomicInteger opens = new AtomicInteger();
+        volatile int largestRead;
+
+        RecordingSource(byte[] content) {
+            this.content = content;
+        }
+
+        @Override
+        public InputStream open() {
+            opens.incrementAndGet();
+            return new ByteArrayInputStream(content) {
+                @Override
+                public synchronized int read(byte[] buffer, int offset, int length) {
+                    largestRead = Math.max(largestRead, length);
+                    return super.read(buffer, offset, length);
+                }
+            };
+        }
+    }
+
+    // Progress and the one result, callbacks run in place on the network thread
+    static class RecordingCallback implements AttachmentUploader.Callback {
+        final List<Long> progress = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile long totalBytes;
+        volatile String secureUrl;
+        volatile String errorMessage;
+
+        @Override
+        public void onProgress(long bytesSent, long totalBytes) {
+            progress.add(bytesSent);
+            this.totalBytes = totalBytes;
+        }
+
+        @Override
+        public void onSuccess(String secureUrl) {
+            this.secureUrl = secureUrl;
+            done.countDown();
+        }
+
+        @Override
+        public void onFailure(String errorMessage) {
+            this.errorMessage = errorMessage;
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("no result", done.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    static AttachmentUploader.FileInfo fileInfo(String name, long size, AttachmentUploader.ContentSource source) {
+        AttachmentUploader.FileInfo fileInfo = new AttachmentUploader.FileInfo();
+        fileInfo.name = name;
+        fileInfo.size = size;
+        fileInfo.contentType = MediaType.get("image/jpeg");
+        fileInfo.id = "content://media/" + name;
+        fileInfo.source = source;
+        return fileInfo;
+    }
+
+    static MockResponse uploaded() {
+        return new MockResponse().setBody("{\"secure_url\":\"" + SECURE_URL + "\",\"bytes\":1}");
+    }
+}
@@ -0,0 +1,186 @@
+package com.hgb7725.botchattyapp.utilities;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/*
+ * The reference hashes come from the C encoder of the BlurHash project for the same pixels.
+ */
+public class BlurHashTest {
+
+    private static final int WIDTH = 32;
+    private static final int HEIGHT = 24;
+
+    // Red grows to the right, green downwards, blue along the diagonal
+    private static int[] gradient() {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                pixels[y * WIDTH + x] = 0xff000000 | (x * 8) << 16 | (y * 10) << 8 | (x + y) * 4;
+            }
+        }
+        return pixels;
+    }
+
+    // Red and blue squares of 8 pixels, which gives negative components
+    private static int[] checkerboard() {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                pixels[y * WIDTH + x] = (x / 8 + y / 8) % 2 == 0 ? 0xffff0000 : 0xff0000ff;
+            }
+        }
+        return pixels;
+    }
+
+    private static int[] solid(int color, int count) {
+        int[] pixels = new int[count];
+        Arrays.fill(pixels, color);
+        return pixels;
+    }
+
+    @Test
+    public void encode_matchesTheReferenceEncoder() {
+        assertEquals("LxH27b2kwzX5mAWYjuf7gKfkfQfj", BlurHash.encode(gradient(), WIDTH, HEIGHT, 4, 3));
+        assertEquals("LjLjfL,UfQ]3sXjufQjufQ,SfQ|T", BlurHash.encode(checkerboard(), WIDTH, HEIGHT, 4, 3));
+        assertEquals("00H27b", BlurHash.encode(gradient(), WIDTH, HEIGHT, 1, 1));
+        assertEquals("00TSUA", BlurHash.encode(solid(0xffffffff, 16), 4, 4, 1, 1));
+    }
+
+    @Test
+    public void encode_ignoresAlpha() {
+        int[] pixels = gradient();
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] &= 0x00ffffff;
+        }
+        assertEquals("LxH27b2kwzX5mAWYjuf7gKfkfQfj", BlurHash.encode(pixels, WIDTH, HEIGHT, 4, 3));
+    }
+
+    @Test
+    public void encode_lengthFollowsTheComponents() {
+        int[] pixels = gradient();
+        for (int componentsX = 1; componentsX <= 9; componentsX++) {
+            for (int componentsY = 1; componentsY <= 9; componentsY++) {
+                String hash = BlurHash.encode(pixels, WIDTH, HEIGHT, componentsX, componentsY);
+                assertEquals(4 + 2 * componentsX * componentsY, hash.length());
+                // The decoder reads the component count back from the first character
+                assertEquals(WIDTH * HEIGHT, BlurHash.decode(hash, WIDTH, HEIGHT, 1).length);
+            }
+        }
+    }
+
+    @Test
+    public void encode_rejectsComponentCountsOutsideOneToNine() {
+        int[] pixels = gradient();
+        int[][] invalid = {{0, 3}, {4, 0}, {10, 3}, {4, 10}, {-1, -1}};
+        for (int[] components : invalid) {
+            try {
+                BlurHash.encode(pixels, WIDTH, HEIGHT, components[0], components[1]);
+                fail(components[0] + "x" + components[1]);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void encode_rejectsPixelsThatDoNotMatchTheSize() {
+        try {
+            BlurHash.encode(new int[WIDTH * HEIGHT - 1], WIDTH, HEIGHT, 4, 3);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            BlurHash.encode(new int[0], 0, 0, 4, 3);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void decode_ofASolidColorIsThatColor() {
+        int[] pixels = BlurHash.decode("00TSUA", 8, 6, 1);
+        for (int pixel : pixels) {
+            assertEquals(0xffffffff, pixel);
+        }
+        pixels = BlurHash.decode(BlurHash.encode(solid(0xff336699, 16), 4, 4, 1, 1), 8, 6, 1);
+        for (int pixel : pixels) {
+            assertEquals(0xff336699, pixel);
+        }
+    }
+
+    @Test
+    public void decode_keepsTheLayoutOfTheImage() {
+        int[] pixels = BlurHash.decode(BlurHash.encode(checkerboard(), WIDTH, HEIGHT, 4, 3), WIDTH, HEIGHT, 1);
+
+        // Centres of a red and a blue square
+        int red = pixels[4 * WIDTH + 4];
+        int blue = pixels[4 * WIDTH + 12];
+        assertTrue((red >> 16 & 0xff) > (red & 0xff));
+        assertTrue((blue & 0xff) > (blue >> 16 & 0xff));
+        assertEquals(0xff000000, red & 0xff000000);
+    }
+
+    @Test
+    public void decode_rejectsALengthThatDoesNotMatchTheComponents() {
+        String[] invalid = {
+                "LxH27b2kwzX5mAWYjuf7gKfkfQf",
+                "LxH27b2kwzX5mAWYjuf7gKfkfQfjj",
+                "00TSUA00",
+                "00TSU",
+                ""
+        };
+        for (String hash : invalid) {
+            try {
+                BlurHash.decode(hash, WIDTH, HEIGHT, 1);
+                fail(hash);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        try {
+            BlurHash.decode(null, WIDTH, HEIGHT, 1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void decode_rejectsCharactersOutsideTheAlphabet() {
+        try {
+            BlurHash.decode("00TS\"A", WIDTH, HEIGHT, 1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /*
+     * Microbenchmark: encoding the 32 px thumbnail ImageCompressor hashes for every image sent.
+     * Prints the time per encode; only the hash is checked, timing never fails the test.
+     */
+    @Test
+    public void benchmark_encodeOfAThumbnail() {
+        int[] pixels = gradient();
+        int rounds = 2_000;
+
+        // Warm up
+        long sink = runEncode(pixels, rounds);
+
+        long before = System.nanoTime();
+        sink += runEncode(pixels, rounds);
+        long encodeUs = (System.nanoTime() - before) / rounds / 1000;
+
+        System.out.println("BlurHash encode " + WIDTH + "x" + HEIGHT + ", 4x3 components: "
+                + encodeUs + " us per encode (" + sink + ")");
+        assertEquals(2L * rounds * "LxH27b2kwzX5mAWYjuf7gKfkfQfj".length(), sink);
+    }
+
+    private static long runEncode(int[] pixels, int rounds) {
+        long length = 0;
+        for (int round = 0; round < rounds; round++) {
+            length += BlurHash.encode(pixels, WIDTH, HEIGHT, 4, 3).length();
+        }
+        return length;
+    }
+}
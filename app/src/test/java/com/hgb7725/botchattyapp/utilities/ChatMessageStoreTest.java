@@ -0,0 +1,228 @@
+package com.hgb7725.botchattyapp.utilities;
+
+import androidx.recyclerview.widget.ListUpdateCallback;
+
+import com.hgb7725.botchattyapp.models.ChatMessage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ChatMessageStoreTest {
+
+    // Records every notification as a short string, e.g. "insert 3+1"
+    private static class RecordingCallback implements ListUpdateCallback {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onInserted(int position, int count) {
+            events.add("insert " + position + "+" + count);
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            events.add("remove " + position + "+" + count);
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            events.add("move " + fromPosition + "->" + toPosition);
+        }
+
+        @Override
+        public void onChanged(int position, int count, Object payload) {
+            events.add("change " + position + "+" + count);
+        }
+    }
+
+    private List<ChatMessage> messages;
+    private RecordingCallback callback;
+    private ChatMessageStore store;
+
+    @Before
+    public void setUp() {
+        messages = new ArrayList<>();
+        callback = new RecordingCallback();
+        store = new ChatMessageStore(messages, callback);
+    }
+
+    private static ChatMessage message(String id, Long time) {
+        ChatMessage chatMessage = new ChatMessage();
+        chatMessage.setId(id);
+        chatMessage.setDateObject(time != null ? new Date(time) : null);
+        return chatMessage;
+    }
+
+    private List<String> ids() {
+        List<String> ids = new ArrayList<>();
+        for (ChatMessage chatMessage : messages) {
+            ids.add(chatMessage.getId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void upsert_keepsTimestampOrderAndReportsExactPositions() {
+        store.upsert(message("b", 20L));
+        store.upsert(message("d", 40L));
+        store.upsert(message("a", 10L));
+        store.upsert(message("c", 30L));
+
+        assertEquals(Arrays.asList("a", "b", "c", "d"), ids());
+        assertEquals(Arrays.asList("insert 0+1", "insert 1+1", "insert 0+1", "insert 2+1"), callback.events);
+    }
+
+    @Test
+    public void upsert_ordersEqualTimestampsById() {
+        store.upsert(message("y", 10L));
+        store.upsert(message("x", 10L));
+        store.upsert(message("z", 10L));
+
+        assertEquals(Arrays.asList("x", "y", "z"), ids());
+    }
+
+    @Test
+    public void upsert_putsMessagesWithoutTimestampLast() {
+        store.upsert(message("pending", null));
+        store.upsert(message("a", 10L));
+
+        assertEquals(Arrays.asList("a", "pending"), ids());
+    }
+
+    @Test
+    public void upsert_sameTimestampReplacesInPlace() {
+        store.upsert(message("a", 10L));
+        store.upsert(message("b", 20L));
+        callback.events.clear();
+
+        ChatMessage updated = message("a", 10L);
+        store.upsert(updated);
+
+        assertSame(updated, messages.get(0));
+        assertEquals(2, store.size());
+        assertEquals(Collections.singletonList("change 0+1"), callback.events);
+    }
+
+    @Test
+    public void upsert_newTimestampMovesMessage() {
+        store.upsert(message("a", 10L));
+        store.upsert(message("b", 20L));
+        store.upsert(message("c", 30L));
+        callback.events.clear();
+
+        store.upsert(message("a", 40L));
+
+        assertEquals(Arrays.asList("b", "c", "a"), ids());
+        assertEquals(Arrays.asList("move 0->2", "change 2+1"), callback.events);
+    }
+
+    @Test
+    public void upsert_pendingMessageGetsItsServerTime() {
+        store.upsert(message("a", 10L));
+        store.upsert(message("pending", null));
+        store.upsert(message("c", 30L));
+        callback.events.clear();
+
+        store.upsert(message("pending", 20L));
+
+        assertEquals(Arrays.asList("a", "pending", "c"), ids());
+        assertEquals(Arrays.asList("move 2->1", "change 1+1"), callback.events);
+    }
+
+    @Test
+    public void remove_reportsPositionAndIgnoresUnknownIds() {
+        store.upsert(message("a", 10L));
+        store.upsert(message("b", 20L));
+        callback.events.clear();
+
+        store.remove("a");
+        store.remove("unknown");
+
+        assertEquals(Collections.singletonList("b"), ids());
+        assertFalse(store.contains("a"));
+        assertEquals(Collections.singletonList("remove 0+1"), callback.events);
+    }
+
+    @Test
+    public void upsertAll_pageOfHistoryIsOneRangeInsert() {
+        store.upsert(message("live", 1_000L));
+        callback.events.clear();
+
+        List<ChatMessage> page = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            page.add(message(String.format("old%03d", i), (long) i));
+        }
+        store.upsertAll(page);
+
+        assertEquals(51, store.size());
+        assertEquals("live", store.getLast().getId());
+        assertEquals(Collections.singletonList("insert 0+50"), callback.events);
+    }
+
+    @Test
+    public void upsertAll_shuffledInputEndsSorted() {
+        List<ChatMessage> input = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            input.add(message(String.format("m%04d", i), (long) i / 3));
+        }
+        Collections.shuffle(input, new Random(7));
+        store.upsertAll(input);
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            expected.add(String.format("m%04d", i));
+        }
+        assertEquals(expected, ids());
+    }
+
+    /*
+     * Benchmark: a live message costs the same whether the chat holds a thousand messages or
+     * a hundred thousand. Prints the time per insert; only the contents of the store are
+     * checked, timing never fails the test.
+     */
+    @Test
+    public void benchmark_perMessageInsertStaysFlatAsHistoryGrows() {
+        measureLiveInserts(1_000);
+        long small = measureLiveInserts(1_000);
+        long large = measureLiveInserts(100_000);
+        System.out.println("ChatMessageStore live insert: " + small + " ns at 1k, " + large + " ns at 100k");
+    }
+
+    // Average nanoseconds to upsert one live message into a store already holding `history`
+    private static long measureLiveInserts(int history) {
+        List<ChatMessage> messages = new ArrayList<>();
+        ChatMessageStore store = new ChatMessageStore(messages, new RecordingCallback() {
+            @Override
+            public void onInserted(int position, int count) {
+            }
+        });
+        List<ChatMessage> page = new ArrayList<>(history);
+        for (int i = 0; i < history; i++) {
+            page.add(message("h" + i, (long) i));
+        }
+        store.upsertAll(page);
+
+        int live = 10_000;
+        List<ChatMessage> incoming = new ArrayList<>(live);
+        for (int i = 0; i < live; i++) {
+            incoming.add(message("l" + i, (long) history + i));
+        }
+        long start = System.nanoTime();
+        for (ChatMessage chatMessage : incoming) {
+            store.upsert(chatMessage);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals(history + live, messages.size());
+        assertEquals("l" + (live - 1), messages.get(messages.size() - 1).getId());
+        return elapsed / live;
+    }
+}
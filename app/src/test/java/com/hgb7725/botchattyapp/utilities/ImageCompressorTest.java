@@ -0,0 +1,153 @@
+package com.hgb7725.botchattyapp.utilities;
+
+import android.media.ExifInterface;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/*
+ * Sizing math of the upload pipeline. Decoding and encoding need a device, the sizes they
+ * produce follow from these numbers.
+ */
+public class ImageCompressorTest {
+
+    private static final int MAX_EDGE = 2048;
+
+    // Camera sizes from 2 MP to 200 MP, landscape and portrait
+    private static final int[][] CAMERA_SIZES = {
+            {1600, 1200}, {3264, 2448}, {4000, 3000}, {3000, 4000}, {4032, 3024},
+            {6000, 4000}, {8000, 6000}, {9248, 6936}, {16320, 12240}, {1080, 2400}
+    };
+
+    @Test
+    public void calculateInSampleSize_leavesSmallImagesAlone() {
+        assertEquals(1, ImageCompressor.calculateInSampleSize(1600, 1200, MAX_EDGE));
+        assertEquals(1, ImageCompressor.calculateInSampleSize(2048, 2048, MAX_EDGE));
+        assertEquals(1, ImageCompressor.calculateInSampleSize(4095, 100, MAX_EDGE));
+    }
+
+    @Test
+    public void calculateInSampleSize_isTheLargestPowerOfTwoKeepingTheTargetEdge() {
+        assertEquals(2, ImageCompressor.calculateInSampleSize(4096, 3072, MAX_EDGE));
+        assertEquals(1, ImageCompressor.calculateInSampleSize(4000, 3000, MAX_EDGE));
+        assertEquals(2, ImageCompressor.calculateInSampleSize(3072, 4096, MAX_EDGE));
+        assertEquals(4, ImageCompressor.calculateInSampleSize(8192, 6144, MAX_EDGE));
+        assertEquals(4, ImageCompressor.calculateInSampleSize(9248, 6936, MAX_EDGE));
+        assertEquals(8, ImageCompressor.calculateInSampleSize(16384, 12288, MAX_EDGE));
+        assertEquals(4, ImageCompressor.calculateInSampleSize(2000, 1500, 500));
+    }
+
+    @Test
+    public void decodedBitmapStaysBelowTwiceTheTargetEdge() {
+        for (int[] size : CAMERA_SIZES) {
+            int inSampleSize = ImageCompressor.calculateInSampleSize(size[0], size[1], MAX_EDGE);
+            int decodedEdge = Math.max(size[0], size[1]) / inSampleSize;
+
+            // Sharp enough for the target, small enough for the memory bound of the class comment
+            assertTrue(size[0] + "x" + size[1], decodedEdge >= Math.min(MAX_EDGE, Math.max(size[0], size[1])));
+            assertTrue(size[0] + "x" + size[1], decodedEdge < 2 * MAX_EDGE);
+            assertEquals(0, Integer.bitCount(inSampleSize) - 1);
+        }
+    }
+
+    @Test
+    public void downscaleFactor_onlyShrinks() {
+        assertEquals(1f, ImageCompressor.downscaleFactor(1024, 768, MAX_EDGE), 0f);
+        assertEquals(1f, ImageCompressor.downscaleFactor(2048, 1536, MAX_EDGE), 0f);
+        assertEquals(0.5f, ImageCompressor.downscaleFactor(4096, 3072, MAX_EDGE), 0f);
+        assertEquals(0.5f, ImageCompressor.downscaleFactor(3072, 4096, MAX_EDGE), 0f);
+    }
+
+    @Test
+    public void targetSize_capsTheLongestEdgeAndKeepsTheAspectRatio() {
+        assertArrayEquals(new int[]{2048, 1536}, ImageCompressor.targetSize(
+                2000 * 2, 1500 * 2, ExifInterface.ORIENTATION_NORMAL, MAX_EDGE));
+        assertArrayEquals(new int[]{2016, 1512}, ImageCompressor.targetSize(
+                2016, 1512, ExifInterface.ORIENTATION_NORMAL, MAX_EDGE));
+        // 4624x3468 decoded at half size
+        assertArrayEquals(new int[]{2048, 1536}, ImageCompressor.targetSize(
+                2312, 1734, ExifInterface.ORIENTATION_NORMAL, MAX_EDGE));
+        assertArrayEquals(new int[]{1080, 2400}, ImageCompressor.targetSize(
+                1080, 2400, ExifInterface.ORIENTATION_UNDEFINED, 2400));
+        assertArrayEquals(new int[]{922, 2048}, ImageCompressor.targetSize(
+                1080, 2400, ExifInterface.ORIENTATION_NORMAL, MAX_EDGE));
+    }
+
+    @Test
+    public void targetSize_swapsEdgesForQuarterTurns() {
+        int[] quarterTurns = {
+                ExifInterface.ORIENTATION_ROTATE_90, ExifInterface.ORIENTATION_ROTATE_270,
+                ExifInterface.ORIENTATION_TRANSPOSE, ExifInterface.ORIENTATION_TRANSVERSE
+        };
+        for (int orientation : quarterTurns) {
+            assertArrayEquals(new int[]{1536, 2048},
+                    ImageCompressor.targetSize(4000, 3000, orientation, MAX_EDGE));
+        }
+        int[] halfTurnsAndFlips = {
+                ExifInterface.ORIENTATION_ROTATE_180, ExifInterface.ORIENTATION_FLIP_HORIZONTAL,
+                ExifInterface.ORIENTATION_FLIP_VERTICAL
+        };
+        for (int orientation : halfTurnsAndFlips) {
+            assertArrayEquals(new int[]{2048, 1536},
+                    ImageCompressor.targetSize(4000, 3000, orientation, MAX_EDGE));
+        }
+    }
+
+    @Test
+    public void targetSize_ofEveryCameraSizeFitsTheTarget() {
+        for (int[] size : CAMERA_SIZES) {
+            int inSampleSize = ImageCompressor.calculateInSampleSize(size[0], size[1], MAX_EDGE);
+            int[] target = ImageCompressor.targetSize(size[0] / inSampleSize, size[1] / inSampleSize,
+                    ExifInterface.ORIENTATION_NORMAL, MAX_EDGE);
+
+            assertEquals(Math.min(MAX_EDGE, Math.max(size[0], size[1])), Math.max(target[0], target[1]));
+            double sourceRatio = (double) size[0] / size[1];
+            double targetRatio = (double) target[0] / target[1];
+            assertEquals(sourceRatio, targetRatio, 0.01);
+        }
+    }
+
+    @Test
+    public void blurHashSize_fitsThirtyTwoPixels() {
+        assertArrayEquals(new int[]{32, 24}, ImageCompressor.blurHashSize(2048, 1536));
+        assertArrayEquals(new int[]{24, 32}, ImageCompressor.blurHashSize(1536, 2048));
+        assertArrayEquals(new int[]{32, 32}, ImageCompressor.blurHashSize(10, 10));
+        // A panorama keeps at least one row
+        assertArrayEquals(new int[]{32, 1}, ImageCompressor.blurHashSize(8000, 100));
+    }
+
+    @Test
+    public void outputFormat_keepsTheRequestedFormatForOpaqueImages() {
+        assertEquals(ImageCompressor.Format.JPEG, ImageCompressor.outputFormat(ImageCompressor.Format.JPEG, false, 34));
+        assertEquals(ImageCompressor.Format.WEBP, ImageCompressor.outputFormat(ImageCompressor.Format.WEBP, false, 24));
+        assertEquals(ImageCompressor.Format.PNG, ImageCompressor.outputFormat(ImageCompressor.Format.PNG, false, 34));
+    }
+
+    @Test
+    public void outputFormat_ofATransparentImageIsLossless() {
+        for (ImageCompressor.Format requested : ImageCompressor.Format.values()) {
+            assertEquals(requested.name(), ImageCompressor.Format.PNG.equals(requested)
+                            ? ImageCompressor.Format.PNG : ImageCompressor.Format.WEBP_LOSSLESS,
+                    ImageCompressor.outputFormat(requested, true, 30));
+            assertEquals(requested.name(), ImageCompressor.Format.PNG,
+                    ImageCompressor.outputFormat(requested, true, 29));
+        }
+        // Below API 30 WebP can only be written lossy
+        assertEquals(ImageCompressor.Format.PNG,
+                ImageCompressor.outputFormat(ImageCompressor.Format.WEBP_LOSSLESS, false, 24));
+    }
+
+    @Test
+    public void extensionAndMimeType_followTheFormat() {
+        assertEquals(".jpg", ImageCompressor.extension(ImageCompressor.Format.JPEG));
+        assertEquals("image/jpeg", ImageCompressor.mimeType(ImageCompressor.Format.JPEG));
+        assertEquals(".png", ImageCompressor.extension(ImageCompressor.Format.PNG));
+        assertEquals("image/png", ImageCompressor.mimeType(ImageCompressor.Format.PNG));
+        for (ImageCompressor.Format format : new ImageCompressor.Format[]{
+                ImageCompressor.Format.WEBP, ImageCompressor.Format.WEBP_LOSSLESS}) {
+            assertEquals(".webp", ImageCompressor.extension(format));
+            assertEquals("image/webp", ImageCompressor.mimeType(format));
+        }
+    }
+}
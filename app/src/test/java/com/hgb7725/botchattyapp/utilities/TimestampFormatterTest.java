@@ -0,0 +1,131 @@
+package com.hgb7725.botchattyapp.utilities;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+public class TimestampFormatterTest {
+
+    private static final long MINUTE_MS = 60 * 1000;
+
+    // What ChatActivity and the conversation adapter did for every message before
+    private static String formatWithNewFormatter(Date date) {
+        return new SimpleDateFormat("MMMM dd, yyyy - hh:mm a", Locale.ENGLISH).format(date);
+    }
+
+    private static long localTime(int year, int month, int day, int hour, int minute) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(year, month, day, hour, minute);
+        return calendar.getTimeInMillis();
+    }
+
+    @Test
+    public void formatDateTime_matchesSimpleDateFormat() {
+        Date date = new Date(localTime(2025, Calendar.APRIL, 12, 17, 38));
+
+        assertEquals("April 12, 2025 - 05:38 PM", TimestampFormatter.formatDateTime(date));
+    }
+
+    @Test
+    public void formatDateTime_sameMinuteSharesTheLabel() {
+        long minute = localTime(2025, Calendar.APRIL, 12, 17, 38);
+
+        String first = TimestampFormatter.formatDateTime(new Date(minute + 1_000));
+        String second = TimestampFormatter.formatDateTime(new Date(minute + 59_000));
+
+        assertSame(first, second);
+        assertNotEquals(first, TimestampFormatter.formatDateTime(new Date(minute + MINUTE_MS)));
+    }
+
+    @Test
+    public void formatDateTime_nullIsEmpty() {
+        assertEquals("", TimestampFormatter.formatDateTime(null));
+        assertEquals("", TimestampFormatter.formatRelative(null, System.currentTimeMillis()));
+    }
+
+    @Test
+    public void formatRelative_labelsByAge() {
+        long now = localTime(2025, Calendar.APRIL, 12, 17, 38);
+
+        assertEquals("Just now", TimestampFormatter.formatRelative(new Date(now - 30_000), now));
+        assertEquals("5 min ago", TimestampFormatter.formatRelative(new Date(now - 5 * MINUTE_MS), now));
+        assertEquals("59 min ago", TimestampFormatter.formatRelative(new Date(now - 59 * MINUTE_MS - 59_000), now));
+        assertEquals("09:15 AM", TimestampFormatter.formatRelative(
+                new Date(localTime(2025, Calendar.APRIL, 12, 9, 15)), now));
+        assertEquals("Yesterday", TimestampFormatter.formatRelative(
+                new Date(localTime(2025, Calendar.APRIL, 11, 23, 59)), now));
+        assertEquals("Yesterday", TimestampFormatter.formatRelative(
+                new Date(localTime(2025, Calendar.APRIL, 11, 0, 0)), now));
+        assertEquals("April 10, 2025 - 11:59 PM", TimestampFormatter.formatRelative(
+                new Date(localTime(2025, Calendar.APRIL, 10, 23, 59)), now));
+    }
+
+    @Test
+    public void formatRelative_followsTheDayChange() {
+        long message = localTime(2025, Calendar.APRIL, 12, 9, 15);
+
+        assertEquals("09:15 AM", TimestampFormatter.formatRelative(
+                new Date(message), localTime(2025, Calendar.APRIL, 12, 23, 59)));
+        assertEquals("Yesterday", TimestampFormatter.formatRelative(
+                new Date(message), localTime(2025, Calendar.APRIL, 13, 0, 1)));
+    }
+
+    /*
+     * Microbenchmark: binding a list of a few hundred messages, as the chat does on open and
+     * the conversation list on every scroll, against a new SimpleDateFormat per message.
+     * Prints both; only the labels are checked, timing never fails the test.
+     */
+    @Test
+    public void benchmark_cachedFormatterAgainstNewFormatterPerMessage() {
+        int messages = 300;
+        int rounds = 50;
+        Date[] dates = new Date[messages];
+        long start = localTime(2025, Calendar.APRIL, 12, 8, 0);
+        for (int i = 0; i < messages; i++) {
+            // A conversation of a few hours: several messages per minute
+            dates[i] = new Date(start + i * 20_000L);
+        }
+
+        // Warm up both paths
+        runNewFormatter(dates, rounds);
+        runCached(dates, rounds);
+
+        long before = System.nanoTime();
+        long newFormatterLength = runNewFormatter(dates, rounds);
+        long newFormatterNs = (System.nanoTime() - before) / (messages * rounds);
+
+        before = System.nanoTime();
+        long cachedLength = runCached(dates, rounds);
+        long cachedNs = (System.nanoTime() - before) / (messages * rounds);
+
+        System.out.println("Timestamp label: new SimpleDateFormat " + newFormatterNs + " ns, cached "
+                + cachedNs + " ns per message");
+        assertEquals(newFormatterLength, cachedLength);
+    }
+
+    private static long runNewFormatter(Date[] dates, int rounds) {
+        long length = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (Date date : dates) {
+                length += formatWithNewFormatter(date).length();
+            }
+        }
+        return length;
+    }
+
+    private static long runCached(Date[] dates, int rounds) {
+        long length = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (Date date : dates) {
+                length += TimestampFormatter.formatDateTime(date).length();
+            }
+        }
+        return length;
+    }
+}